@@ -0,0 +1,120 @@
+package com.checkmate.android.receiver;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.checkmate.android.AppPreference;
+import com.checkmate.android.service.SharedEGL.SegmentSplitTest;
+import com.checkmate.android.util.BulkCryptoEngine;
+import com.checkmate.android.util.EncryptedMediaFormat;
+import com.checkmate.android.util.HttpServer.DownloadBenchmark;
+import com.checkmate.android.util.HttpServer.HttpLoadTest;
+import com.checkmate.android.util.JpegEncoderBenchmark;
+import com.checkmate.android.util.KeyDerivationBenchmark;
+import com.checkmate.android.util.RecordingSinkBenchmark;
+import com.serenegiant.encoder.EncoderModeBenchmark;
+
+import java.io.IOException;
+
+/**
+ * Debug builds only: runs one of the on-device benchmarks or checks on a background thread and
+ * logs its report under this tag. Only the shell may send it, with the app running:
+ * <pre>
+ * adb shell am broadcast -a com.checkmate.android.RUN_BENCHMARK --es name jpeg --ei iterations 50
+ * </pre>
+ * Names and their extras, defaults in brackets; numbers, durations included, go with --ei and
+ * text with --es:
+ * <ul>
+ * <li>jpeg: iterations [20]</li>
+ * <li>keys: files [100]</li>
+ * <li>sink: size_mb [64], into the configured storage location</li>
+ * <li>download: size_mb [64]</li>
+ * <li>http: file (required), samples [20], port [8080], api_key [the configured key]</li>
+ * <li>split: splits [100], interval_ms [6000], keyframe_ms [2000], needs a recording running</li>
+ * <li>encoder: width [1920], height [1080], fps [30], duration_ms [10000]</li>
+ * <li>crypto: mode [measure] or reencrypt, password [the configured code], new_password
+ * [password], workers [cores - 1], over the storage location; reencrypt rewrites the files</li>
+ * </ul>
+ */
+public class BenchmarkReceiver extends BroadcastReceiver {
+    private static final String TAG = "BenchmarkReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final Context appContext = context.getApplicationContext();
+        final String name = intent.getStringExtra("name");
+        final Bundle extras = intent.getExtras() != null ? intent.getExtras() : new Bundle();
+        new Thread(() -> {
+            try {
+                Log.i(TAG, name + ":\n" + run(appContext, name, extras));
+            } catch (RuntimeException e) {
+                Log.e(TAG, name + " failed", e);
+            }
+        }, TAG).start();
+    }
+
+    private static String run(Context context, String name, Bundle extras) {
+        switch (name == null ? "" : name) {
+            case "jpeg":
+                return JpegEncoderBenchmark.run(extras.getInt("iterations", 20));
+            case "keys":
+                return KeyDerivationBenchmark.run(extras.getInt("files", 100));
+            case "sink": {
+                String tree = AppPreference.getStr(AppPreference.KEY.STORAGE_LOCATION, "");
+                if (tree.isEmpty()) return "no storage location configured";
+                return RecordingSinkBenchmark.run(context, Uri.parse(tree), extras.getInt("size_mb", 64));
+            }
+            case "download":
+                return DownloadBenchmark.run(context, extras.getInt("size_mb", 64));
+            case "http": {
+                String file = extras.getString("file");
+                if (file == null) return "--es file <recording name> is required";
+                String apiKey = extras.getString("api_key",
+                        AppPreference.getStr(AppPreference.KEY.API_KEY, null));
+                if (apiKey == null) return "no API key configured, pass --es api_key <key>";
+                return HttpLoadTest.run(extras.getInt("port", 8080), apiKey, file, extras.getInt("samples", 20));
+            }
+            case "split": {
+                boolean passed = SegmentSplitTest.testConsecutiveSplits(extras.getInt("splits", 100),
+                        extras.getInt("interval_ms", 6000), extras.getInt("keyframe_ms", 2000));
+                return passed ? "passed" : "FAILED, see the SegmentSplitTest log";
+            }
+            case "encoder":
+                return EncoderModeBenchmark.run(extras.getInt("width", 1920), extras.getInt("height", 1080),
+                        extras.getInt("fps", 30), extras.getInt("duration_ms", 10000));
+            case "crypto":
+                return crypto(context, extras);
+            default:
+                return "unknown benchmark '" + name + "', see BenchmarkReceiver for the names";
+        }
+    }
+
+    private static String crypto(Context context, Bundle extras) {
+        String tree = AppPreference.getStr(AppPreference.KEY.STORAGE_LOCATION, "");
+        if (tree.isEmpty()) return "no storage location configured";
+        String password = extras.getString("password",
+                AppPreference.getStr(AppPreference.KEY.ENCRYPTION_KEY, ""));
+        if (password.isEmpty()) return "no encryption code configured, pass --es password <code>";
+        BulkCryptoEngine engine = new BulkCryptoEngine(
+                extras.getInt("workers", Math.max(1, Runtime.getRuntime().availableProcessors() - 1)),
+                EncryptedMediaFormat.DEFAULT_CHUNK_SIZE);
+        try {
+            BulkCryptoEngine.Result result;
+            if ("reencrypt".equals(extras.getString("mode"))) {
+                result = engine.reencryptTree(context, Uri.parse(tree), password,
+                        extras.getString("new_password", password), null);
+            } else {
+                result = engine.measureTree(context, Uri.parse(tree), password);
+            }
+            return result + (result.errors.isEmpty() ? "" : "\n" + String.join("\n", result.errors));
+        } catch (IOException e) {
+            return "failed: " + e.getMessage();
+        } finally {
+            engine.shutdown();
+        }
+    }
+}
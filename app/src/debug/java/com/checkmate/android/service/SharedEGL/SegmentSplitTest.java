@@ -0,0 +1,197 @@
+package com.checkmate.android.service.SharedEGL;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-device check of gapless segmented recording.
+ * Splits a running recording many times in a row through {@link SharedEglManager#splitRecordingNow()}
+ * and inspects every closed segment before it is copied away. A segment passes when neither track
+ * has a gap inside it and its audio and video cover the same time span; the segments between the
+ * first and the last split must add up to the time between those splits, so a sample lost at any
+ * boundary shows up as missing time. Start a recording first and run this off the main thread;
+ * segments only pass through a temp file when encrypt-while-recording is not in use.
+ */
+public class SegmentSplitTest {
+    private static final String TAG = "SegmentSplitTest";
+
+    // a gap larger than this many sample intervals counts as a dropped sample
+    private static final float MAX_GAP_FACTOR = 1.5f;
+
+    /**
+     * Time covered by one track of a segment
+     */
+    private static final class TrackSpan {
+        long firstUs = -1;
+        long lastUs;
+        long maxGapUs;
+        int count;
+
+        void add(long ptsUs) {
+            if (firstUs < 0) {
+                firstUs = ptsUs;
+            } else if (ptsUs > lastUs) {
+                maxGapUs = Math.max(maxGapUs, ptsUs - lastUs);
+            }
+            lastUs = Math.max(lastUs, ptsUs);
+            count++;
+        }
+
+        long intervalUs() {
+            return count > 1 ? (lastUs - firstUs) / (count - 1) : 0;
+        }
+
+        long spanUs() {
+            return count > 0 ? lastUs - firstUs + intervalUs() : 0;
+        }
+
+        boolean hasGap() {
+            return count > 1 && maxGapUs > intervalUs() * MAX_GAP_FACTOR;
+        }
+    }
+
+    private static final class Segment {
+        final String name;
+        final TrackSpan video = new TrackSpan();
+        final TrackSpan audio = new TrackSpan();
+
+        Segment(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Test consecutive splits of the running recording
+     * @param splits number of splits, 100 for the release check
+     * @param intervalMs time between splits, should be a few keyframe intervals
+     * @param keyframeIntervalMs encoder keyframe interval, a split waits for up to one of them
+     * @return true if no segment lost a sample
+     */
+    public static boolean testConsecutiveSplits(int splits, long intervalMs, long keyframeIntervalMs) {
+        Log.d(TAG, "Testing " + splits + " consecutive splits...");
+
+        SharedEglManager manager = SharedEglManager.getInstance();
+        if (!manager.isRecording()) {
+            Log.e(TAG, "Recording is not running");
+            return false;
+        }
+
+        final List<Segment> segments = new ArrayList<>();
+        final CountDownLatch closed = new CountDownLatch(splits);
+        manager.setSegmentListener(file -> {
+            Segment segment = readSegment(file);
+            synchronized (segments) {
+                segments.add(segment);
+            }
+            closed.countDown();
+        });
+
+        long firstSplit = 0;
+        long lastSplit = 0;
+        try {
+            for (int i = 0; i < splits; i++) {
+                lastSplit = SystemClock.elapsedRealtime();
+                if (i == 0) firstSplit = lastSplit;
+                manager.splitRecordingNow();
+                SystemClock.sleep(intervalMs);
+            }
+            if (!closed.await(splits * intervalMs + 30000, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Only " + (splits - closed.getCount()) + " of " + splits + " segments closed");
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            manager.setSegmentListener(null);
+        }
+
+        boolean passed = true;
+        long videoUs = 0;
+        long audioUs = 0;
+        synchronized (segments) {
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                if (segment.video.count == 0) {
+                    Log.e(TAG, segment.name + ": no video samples");
+                    passed = false;
+                    continue;
+                }
+                if (segment.video.hasGap() || segment.audio.hasGap()) {
+                    Log.e(TAG, segment.name + ": gap inside segment, video max " + segment.video.maxGapUs
+                            + "us, audio max " + segment.audio.maxGapUs + "us");
+                    passed = false;
+                }
+                long tolerance = segment.video.intervalUs() + segment.audio.intervalUs();
+                if (segment.audio.count > 0
+                        && Math.abs(segment.video.spanUs() - segment.audio.spanUs()) > tolerance) {
+                    Log.e(TAG, segment.name + ": video covers " + segment.video.spanUs()
+                            + "us, audio " + segment.audio.spanUs() + "us");
+                    passed = false;
+                }
+                // the first segment started before the test
+                if (i > 0) {
+                    videoUs += segment.video.spanUs();
+                    audioUs += segment.audio.spanUs();
+                }
+            }
+        }
+
+        // segments 1..n-1 run from the first split to the last one; both switches wait for a
+        // keyframe, so the total may be off by up to one keyframe interval
+        long expectedUs = (lastSplit - firstSplit) * 1000L;
+        long toleranceUs = keyframeIntervalMs * 1000L;
+        if (splits > 1 && Math.abs(videoUs - expectedUs) > toleranceUs) {
+            Log.e(TAG, "Video covers " + videoUs + "us of " + expectedUs + "us");
+            passed = false;
+        }
+        if (splits > 1 && audioUs > 0 && Math.abs(audioUs - expectedUs) > toleranceUs) {
+            Log.e(TAG, "Audio covers " + audioUs + "us of " + expectedUs + "us");
+            passed = false;
+        }
+
+        Log.d(TAG, "Consecutive split test result: " + passed);
+        return passed;
+    }
+
+    private static Segment readSegment(File file) {
+        Segment segment = new Segment(file.getName());
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(file.getAbsolutePath());
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                TrackSpan span;
+                if (mime != null && mime.startsWith("video/")) {
+                    span = segment.video;
+                } else if (mime != null && mime.startsWith("audio/")) {
+                    span = segment.audio;
+                } else {
+                    continue;
+                }
+                extractor.selectTrack(i);
+                extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                while (extractor.getSampleTime() >= 0) {
+                    span.add(extractor.getSampleTime());
+                    extractor.advance();
+                }
+                extractor.unselectTrack(i);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + file, e);
+        } finally {
+            extractor.release();
+        }
+        return segment;
+    }
+}
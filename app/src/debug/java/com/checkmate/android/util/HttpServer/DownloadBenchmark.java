@@ -0,0 +1,129 @@
+package com.checkmate.android.util.HttpServer;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-device benchmark of /api/v1/playback/download bodies over loopback: the former path, where
+ * NanoHTTPD copied a channel-backed InputStream through a 16 KiB heap buffer into the socket stream,
+ * against {@link FileRangeResponse}, which sends the file with transferTo. Reports MB/s and process
+ * CPU% (100% = one core) for each. Run it off the main thread; the test file is deleted.
+ */
+public class DownloadBenchmark {
+    private static final String TAG = "DownloadBenchmark";
+
+    private static final int LEGACY_BUFFER_SIZE = 16 * 1024;   // NanoHTTPD's body buffer
+
+    /**
+     * @param sizeMb size of the file to download per run
+     * @return one line per path
+     */
+    public static String run(Context context, int sizeMb) {
+        File file = new File(context.getCacheDir(), "download_benchmark.mp4");
+        StringBuilder report = new StringBuilder();
+        try {
+            writeTestFile(file, (long) Math.max(1, sizeMb) * 1024 * 1024);
+            report.append(measure("stream copy", file, false)).append('\n');
+            report.append(measure("transferTo", file, true));
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Benchmark failed", e);
+            report.append("failed: ").append(e.getMessage());
+        } finally {
+            file.delete();
+        }
+        Log.i(TAG, report.toString());
+        return report.toString();
+    }
+
+    private static String measure(String name, File file, boolean sendfile)
+            throws IOException, InterruptedException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            AtomicLong received = new AtomicLong();
+            Thread client = new Thread(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+                     InputStream in = socket.getInputStream()) {
+                    byte[] buffer = new byte[256 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        received.addAndGet(n);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "client: " + e.getMessage());
+                }
+            }, TAG);
+            client.start();
+
+            long cpuStart = Process.getElapsedCpuTime();
+            long start = SystemClock.elapsedRealtime();
+            try (SocketChannel channel = server.accept()) {
+                Socket socket = channel.socket();
+                OutputStream out = socket.getOutputStream();
+                if (sendfile) {
+                    try (FileRangeResponse response = new FileRangeResponse(file, "video/mp4", null)) {
+                        response.writeTo(out, channel);
+                    }
+                } else {
+                    legacyCopy(file, out);
+                }
+            }
+            client.join();
+            long wallMs = Math.max(1, SystemClock.elapsedRealtime() - start);
+            long cpuMs = Process.getElapsedCpuTime() - cpuStart;
+            double mb = received.get() / (1024.0 * 1024.0);
+            return String.format(Locale.US, "%-12s %8.1f MB  %8.1f MB/s  cpu %5.1f%%",
+                    name, mb, mb * 1000 / wallMs, cpuMs * 100.0 / wallMs);
+        }
+    }
+
+    /**
+     * What the old download did: a fresh ByteBuffer wrap per read from the channel, 16 KiB at a
+     * time, written to the socket stream.
+     */
+    private static void legacyCopy(File file, OutputStream out) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            byte[] buffer = new byte[LEGACY_BUFFER_SIZE];
+            long position = 0;
+            long remaining = channel.size();
+            while (remaining > 0) {
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, remaining));
+                int n = channel.read(wrapped, position);
+                if (n <= 0) break;
+                out.write(buffer, 0, n);
+                position += n;
+                remaining -= n;
+            }
+            out.flush();
+        }
+    }
+
+    private static void writeTestFile(File file, long size) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (long done = 0; done < size; done += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - done));
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.checkmate.android.util.HttpServer;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.checkmate.android.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manual load test for a running {@link MyHttpServer}: latency of GET system/info on its own, then
+ * while three clients keep downloading a recording through playback/download. HttpURLConnection
+ * reuses keep-alive connections, as a polling controller would. Run it off the main thread.
+ */
+public class HttpLoadTest {
+    private static final String TAG = "HttpLoadTest";
+
+    private static final int DOWNLOADERS = 3;
+
+    /**
+     * @param port     server port on this device
+     * @param apiKey   value for X-API-Key
+     * @param filename a file in the recordings directory to download
+     * @param samples  system/info requests per phase
+     * @return one line per phase
+     */
+    public static String run(int port, String apiKey, String filename, int samples) {
+        String base = "http://127.0.0.1:" + port + "/api/v1/";
+        StringBuilder report = new StringBuilder();
+        try {
+            report.append("idle            ").append(poll(base + "system/info", apiKey, samples).getSummary())
+                    .append('\n');
+
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicLong downloaded = new AtomicLong();
+            List<Thread> downloaders = new ArrayList<>();
+            String download = base + "playback/download?filename="
+                    + URLEncoder.encode(filename, StandardCharsets.UTF_8.name());
+            for (int i = 0; i < DOWNLOADERS; i++) {
+                Thread thread = new Thread(() -> {
+                    while (running.get()) {
+                        try {
+                            downloaded.addAndGet(drain(download, apiKey, running));
+                        } catch (IOException e) {
+                            Log.w(TAG, "download: " + e.getMessage());
+                            SystemClock.sleep(100);
+                        }
+                    }
+                }, TAG + "-download-" + i);
+                thread.start();
+                downloaders.add(thread);
+            }
+            // let the downloads get going
+            SystemClock.sleep(500);
+            long start = SystemClock.elapsedRealtime();
+            LatencyHistogram loaded = poll(base + "system/info", apiKey, samples);
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+            running.set(false);
+            for (Thread thread : downloaders) {
+                thread.join();
+            }
+            report.append(DOWNLOADERS).append(" downloads     ").append(loaded.getSummary())
+                    .append(String.format(Locale.US, " (downloads %.1f MB/s)",
+                            downloaded.get() / 1048576.0 * 1000 / elapsed));
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Load test failed", e);
+            report.append("failed: ").append(e.getMessage());
+        }
+        Log.i(TAG, report.toString());
+        return report.toString();
+    }
+
+    private static LatencyHistogram poll(String url, String apiKey, int samples) throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < samples; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            // read to the end and no disconnect(), so the keep-alive connection is reused
+            HttpURLConnection connection = open(url, apiKey);
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) > 0) {
+                }
+            }
+            histogram.record((SystemClock.elapsedRealtimeNanos() - start) / 1000);
+        }
+        return histogram;
+    }
+
+    private static long drain(String url, String apiKey, AtomicBoolean running) throws IOException {
+        HttpURLConnection connection = open(url, apiKey);
+        long total = 0;
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[256 * 1024];
+            int n;
+            while (running.get() && (n = in.read(buffer)) > 0) {
+                total += n;
+            }
+        }
+        if (!running.get()) {
+            connection.disconnect();
+        }
+        return total;
+    }
+
+    private static HttpURLConnection open(String url, String apiKey) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("X-API-Key", apiKey);
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(30_000);
+        int code = connection.getResponseCode();
+        if (code >= 400) {
+            connection.disconnect();
+            throw new IOException(url + ": HTTP " + code);
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,121 @@
+package com.checkmate.android.util;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * On-device benchmark for still encoding: {@link StillJpegEncoder} (TurboJPEG) against
+ * {@link Bitmap#compress} with JPEG and with the PNG/100 setting the snapshot path used before.
+ * Run it off the main thread, e.g. through the debug build's BenchmarkReceiver; results are logged
+ * and returned.
+ */
+public class JpegEncoderBenchmark {
+    private static final String TAG = "JpegEncoderBenchmark";
+
+    private static final int[][] SIZES = {
+            {1280, 720},
+            {1920, 1080},
+            {3840, 2160},
+    };
+
+    /**
+     * @param iterations timed runs per encoder and size (one untimed warm-up run is added)
+     * @return one line per resolution with average milliseconds and output size
+     */
+    public static String run(int iterations) {
+        StringBuilder report = new StringBuilder();
+        StillJpegEncoder encoder = new StillJpegEncoder();
+        encoder.setQuality(StillJpegEncoder.DEFAULT_QUALITY);
+        // a run without libUVCCamera's TurboJpeg natives only times the fallback; say so up front
+        String path = encoder.isTurboJpeg() ? "encoder: TurboJPEG (native)"
+                : "encoder: Bitmap.compress fallback, TurboJPEG natives not loaded";
+        Log.i(TAG, path);
+        report.append(path).append('\n');
+        try {
+            for (int[] size : SIZES) {
+                String line = runSize(encoder, size[0], size[1], Math.max(1, iterations));
+                Log.i(TAG, line);
+                report.append(line).append('\n');
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Benchmark failed", e);
+            report.append("failed: ").append(e.getMessage());
+        } finally {
+            encoder.release();
+        }
+        return report.toString();
+    }
+
+    private static String runSize(StillJpegEncoder encoder, int width, int height, int iterations)
+            throws IOException {
+        ByteBuffer rgba = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+        fillTestPattern(rgba, width, height);
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        rgba.rewind();
+        bitmap.copyPixelsFromBuffer(rgba);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(width * height);
+
+        try {
+            long turboNs = 0;
+            long bitmapJpegNs = 0;
+            long bitmapPngNs = 0;
+            int turboBytes = 0;
+            int bitmapJpegBytes = 0;
+            int bitmapPngBytes = 0;
+            for (int i = 0; i <= iterations; i++) {
+                out.reset();
+                long start = SystemClock.elapsedRealtimeNanos();
+                encoder.encodeRgba(rgba, width, height, false, out);
+                long turbo = SystemClock.elapsedRealtimeNanos() - start;
+                turboBytes = out.size();
+
+                out.reset();
+                start = SystemClock.elapsedRealtimeNanos();
+                bitmap.compress(Bitmap.CompressFormat.JPEG, StillJpegEncoder.DEFAULT_QUALITY, out);
+                long bitmapJpeg = SystemClock.elapsedRealtimeNanos() - start;
+                bitmapJpegBytes = out.size();
+
+                out.reset();
+                start = SystemClock.elapsedRealtimeNanos();
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                long bitmapPng = SystemClock.elapsedRealtimeNanos() - start;
+                bitmapPngBytes = out.size();
+
+                if (i > 0) {    // first pass is warm-up
+                    turboNs += turbo;
+                    bitmapJpegNs += bitmapJpeg;
+                    bitmapPngNs += bitmapPng;
+                }
+            }
+            return String.format(Locale.US,
+                    "%dx%d: turbo=%.1fms (%dKB) bitmapJpeg=%.1fms (%dKB) bitmapPng=%.1fms (%dKB)",
+                    width, height,
+                    turboNs / 1e6 / iterations, turboBytes / 1024,
+                    bitmapJpegNs / 1e6 / iterations, bitmapJpegBytes / 1024,
+                    bitmapPngNs / 1e6 / iterations, bitmapPngBytes / 1024);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /** Gradients plus a block pattern, so the encoders see something closer to a camera frame than a flat fill. */
+    private static void fillTestPattern(ByteBuffer rgba, int width, int height) {
+        rgba.clear();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                byte r = (byte) (x * 255 / width);
+                byte g = (byte) (y * 255 / height);
+                byte b = (byte) ((((x >> 4) ^ (y >> 4)) & 1) != 0 ? 200 : 40);
+                rgba.put(r).put(g).put(b).put((byte) 0xff);
+            }
+        }
+        rgba.rewind();
+    }
+}
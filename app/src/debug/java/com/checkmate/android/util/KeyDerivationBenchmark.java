@@ -0,0 +1,66 @@
+package com.checkmate.android.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * On-device benchmark of per-file key setup: a full PBKDF2 run per file, as every segment and
+ * snapshot used to do, against {@link EncryptionKeyManager} (one PBKDF2 per session, then HKDF per
+ * file). Reports the mean cost per file for each. Run it off the main thread; it clears the key
+ * cache before and after.
+ */
+public class KeyDerivationBenchmark {
+    private static final String TAG = "KeyDerivationBenchmark";
+
+    private static final String PASSWORD = "benchmark";
+
+    /**
+     * @param files number of files to set up keys for
+     * @return one line per flow
+     */
+    public static String run(int files) {
+        int count = Math.max(1, files);
+        EncryptionKeyManager keys = EncryptionKeyManager.getInstance();
+        StringBuilder report = new StringBuilder();
+        try {
+            keys.clear();
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < count; i++) {
+                EncryptedMediaFormat.Header header = keys.newHeader(PASSWORD, EncryptedMediaFormat.DEFAULT_CHUNK_SIZE);
+                SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+                PBEKeySpec spec = new PBEKeySpec(PASSWORD.toCharArray(), header.fileSalt, header.iterations, 256);
+                new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+                spec.clearPassword();
+            }
+            report.append(line("pbkdf2 per file", count, SystemClock.elapsedRealtimeNanos() - start)).append('\n');
+
+            keys.clear();
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < count; i++) {
+                EncryptedMediaFormat.Header header = keys.newHeader(PASSWORD, EncryptedMediaFormat.DEFAULT_CHUNK_SIZE);
+                keys.fileKey(PASSWORD, header);
+            }
+            report.append(line("session + hkdf", count, SystemClock.elapsedRealtimeNanos() - start))
+                    .append(String.format(Locale.US, " (%d pbkdf2 runs)", keys.getDerivationCount()));
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Benchmark failed", e);
+            report.append("failed: ").append(e.getMessage());
+        } finally {
+            keys.clear();
+        }
+        Log.i(TAG, report.toString());
+        return report.toString();
+    }
+
+    private static String line(String name, int files, long nanos) {
+        return String.format(Locale.US, "%-16s %4d files  %8.2f ms/file  %8.1f ms total",
+                name, files, nanos / 1e6 / files, nanos / 1e6);
+    }
+}
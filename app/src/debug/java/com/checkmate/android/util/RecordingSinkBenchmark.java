@@ -0,0 +1,145 @@
+package com.checkmate.android.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import androidx.documentfile.provider.DocumentFile;
+
+import com.checkmate.android.service.SharedEGL.SharedEglManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-device benchmark of encrypted recording: the two-pass flow (muxer writes a temp file,
+ * {@link SharedEglManager#copyAndEncryptFileToDestination} re-reads it into the SAF document) against
+ * {@link EncryptedRecordingSink}, which encrypts while writing. Both get the same MP4-like write
+ * pattern, sequential chunks followed by a rewrite of the first bytes (mdat size) at close.
+ * Reports bytes moved per payload byte and the time from the end of recording until the document
+ * is complete. Run it off the main thread with a writable storage tree; the files are deleted.
+ */
+public class RecordingSinkBenchmark {
+    private static final String TAG = "RecordingSinkBenchmark";
+
+    private static final String PASSWORD = "benchmark";
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    /**
+     * @param treeUri storage location, as picked for recordings
+     * @param sizeMb  payload per run
+     * @return one line per flow
+     */
+    public static String run(Context context, Uri treeUri, int sizeMb) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        new Random(42).nextBytes(chunk);
+        long payload = (long) Math.max(1, sizeMb) * 1024 * 1024;
+
+        StringBuilder report = new StringBuilder();
+        try {
+            report.append(runTwoPass(context, treeUri, chunk, payload)).append('\n');
+            report.append(runSink(context, treeUri, chunk, payload)).append('\n');
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Benchmark failed", e);
+            report.append("failed: ").append(e.getMessage());
+        }
+        Log.i(TAG, report.toString());
+        return report.toString();
+    }
+
+    private static String runTwoPass(Context context, Uri treeUri, byte[] chunk, long payload)
+            throws IOException {
+        File temp = SharedEglManager.getTempRecordingFile(context);
+        String name = "bench_twopass_" + SystemClock.elapsedRealtime();
+        long start = SystemClock.elapsedRealtime();
+        try (RandomAccessFile file = new RandomAccessFile(temp, "rw")) {
+            writePattern(file.getChannel(), chunk, payload);
+        }
+        long recordMs = SystemClock.elapsedRealtime() - start;
+
+        long finishStart = SystemClock.elapsedRealtime();
+        boolean ok = SharedEglManager.copyAndEncryptFileToDestination(temp, treeUri, name, ".t3v", PASSWORD);
+        long finishMs = SystemClock.elapsedRealtime() - finishStart;
+
+        long destSize = deleteDocument(context, treeUri, name + ".t3v");
+        // temp file written once, read once, destination written once
+        long moved = payload + payload + destSize;
+        if (!temp.delete()) {
+            Log.w(TAG, "could not delete " + temp);
+        }
+        return String.format(Locale.US,
+                "two-pass %dMB: ok=%b record=%dms finalise=%dms moved=%.2fx (written %.2fx)",
+                payload >> 20, ok, recordMs, finishMs,
+                (double) moved / payload, (double) (payload + destSize) / payload);
+    }
+
+    private static String runSink(Context context, Uri treeUri, byte[] chunk, long payload)
+            throws IOException, InterruptedException {
+        String name = "bench_sink_" + SystemClock.elapsedRealtime() + ".t3v";
+        EncryptedRecordingSink sink = EncryptedRecordingSink.create(context, treeUri, name, PASSWORD);
+        CountDownLatch closed = new CountDownLatch(1);
+        sink.setListener(s -> closed.countDown());
+
+        long start = SystemClock.elapsedRealtime();
+        ParcelFileDescriptor pfd = sink.getFileDescriptor();
+        FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor());
+        writePattern(out.getChannel(), chunk, payload);
+        long recordMs = SystemClock.elapsedRealtime() - start;
+
+        long finishStart = SystemClock.elapsedRealtime();
+        pfd.close();
+        boolean ok = closed.await(30, TimeUnit.SECONDS);
+        long finishMs = SystemClock.elapsedRealtime() - finishStart;
+
+        long written = sink.getBytesWritten();
+        sink.delete();
+        return String.format(Locale.US,
+                "sink %dMB: ok=%b record=%dms finalise=%dms moved=%.2fx (no read back, %d writes)",
+                payload >> 20, ok, recordMs, finishMs, (double) written / payload, sink.getWriteCount());
+    }
+
+    /**
+     * Sequential chunks, then the muxer's rewrite of the first box header at close.
+     */
+    private static void writePattern(FileChannel channel, byte[] chunk, long payload) throws IOException {
+        long position = 0;
+        while (position < payload) {
+            int length = (int) Math.min(chunk.length, payload - position);
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(8).putInt((int) Math.min(payload, Integer.MAX_VALUE)).putInt(0x6d646174);
+        header.flip();
+        channel.write(header, 0);
+        channel.force(false);
+    }
+
+    /**
+     * @return size of the deleted document
+     */
+    private static long deleteDocument(Context context, Uri treeUri, String displayName) {
+        DocumentFile dir = DocumentFile.fromTreeUri(context, treeUri);
+        DocumentFile file = dir != null ? dir.findFile(displayName) : null;
+        if (file == null) return 0;
+        long size = file.length();
+        try {
+            DocumentsContract.deleteDocument(context.getContentResolver(), file.getUri());
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "could not delete " + displayName, e);
+        }
+        return size;
+    }
+}
@@ -174,10 +174,24 @@ public class AppPreference {
         final public static String IS_ROTATED = "IS_ROTATED";
         final public static String IS_FLIPPED = "IS_FLIPPED";
         final public static String IS_MIRRORED = "IS_MIRRORED";
+
+        // Rendering
+        final public static String RENDER_GRAPH = "RENDER_GRAPH";
+        final public static String SNAPSHOT_JPEG_QUALITY = "SNAPSHOT_JPEG_QUALITY";
+        final public static String SNAPSHOT_JPEG_SUBSAMPLING = "SNAPSHOT_JPEG_SUBSAMPLING";
+
+        // Recording
+        final public static String ENCRYPT_WHILE_RECORDING = "ENCRYPT_WHILE_RECORDING";
+        final public static String PREALLOCATE_RECORDING = "PREALLOCATE_RECORDING";
+        final public static String RECORD_SYNC_INTERVAL = "RECORD_SYNC_INTERVAL";   // ms, 0 syncs only on close
+
+        // HTTP server
+        final public static String EVENTS_MIN_INTERVAL = "EVENTS_MIN_INTERVAL";     // ms between pushes per /events client
     }
 
     public static void initialize(SharedPreferences pref) {
         instance = pref;
+        RenderSettings.install(pref);
     }
 
     // check contain
@@ -0,0 +1,70 @@
+package com.checkmate.android;
+
+import android.content.SharedPreferences;
+
+/**
+ * Immutable snapshot of the preferences read on the render and stream-conditioning hot paths.
+ * <p>
+ * A {@link SharedPreferences.OnSharedPreferenceChangeListener} rebuilds the snapshot whenever one
+ * of its keys changes and publishes it through a volatile reference, so per-frame code pays one
+ * field read instead of a SharedPreferences map lookup. Installed by {@link AppPreference#initialize}.
+ */
+public final class RenderSettings {
+
+    private static final RenderSettings DEFAULTS = new RenderSettings(true, true, false, 30);
+
+    private static volatile RenderSettings sCurrent = DEFAULTS;
+
+    // SharedPreferences only keeps a weak reference to its listeners
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sListener = (prefs, key) -> {
+        if (key == null || isTrackedKey(key)) {
+            sCurrent = from(prefs);
+        }
+    };
+
+    public final boolean timestamp;
+    public final boolean renderGraph;
+    public final boolean adaptiveFramerate;
+    public final int streamingFrame;
+
+    private RenderSettings(boolean timestamp, boolean renderGraph, boolean adaptiveFramerate, int streamingFrame) {
+        this.timestamp = timestamp;
+        this.renderGraph = renderGraph;
+        this.adaptiveFramerate = adaptiveFramerate;
+        this.streamingFrame = streamingFrame;
+    }
+
+    /**
+     * Current snapshot; never null. Returns defaults until preferences are installed.
+     */
+    public static RenderSettings get() {
+        return sCurrent;
+    }
+
+    static void install(SharedPreferences prefs) {
+        prefs.unregisterOnSharedPreferenceChangeListener(sListener);
+        prefs.registerOnSharedPreferenceChangeListener(sListener);
+        sCurrent = from(prefs);
+    }
+
+    private static boolean isTrackedKey(String key) {
+        return AppPreference.KEY.TIMESTAMP.equals(key)
+                || AppPreference.KEY.RENDER_GRAPH.equals(key)
+                || AppPreference.KEY.ADAPTIVE_FRAMERATE.equals(key)
+                || AppPreference.KEY.STREAMING_FRAME.equals(key);
+    }
+
+    private static RenderSettings from(SharedPreferences prefs) {
+        return new RenderSettings(
+                prefs.getBoolean(AppPreference.KEY.TIMESTAMP, DEFAULTS.timestamp),
+                prefs.getBoolean(AppPreference.KEY.RENDER_GRAPH, DEFAULTS.renderGraph),
+                prefs.getBoolean(AppPreference.KEY.ADAPTIVE_FRAMERATE, DEFAULTS.adaptiveFramerate),
+                prefs.getInt(AppPreference.KEY.STREAMING_FRAME, DEFAULTS.streamingFrame));
+    }
+
+    @Override
+    public String toString() {
+        return "RenderSettings{timestamp=" + timestamp + ", renderGraph=" + renderGraph
+                + ", adaptiveFramerate=" + adaptiveFramerate + ", streamingFrame=" + streamingFrame + "}";
+    }
+}
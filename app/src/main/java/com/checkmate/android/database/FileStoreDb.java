@@ -7,17 +7,29 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.provider.DocumentsContract;
 import android.util.Log;
 
 import com.checkmate.android.model.Media;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Index of the recordings and snapshots in the storage location. Rows are added when a file is
+ * saved ({@link #logFile}) and kept in step with the folder by {@link #reconcile}, which lists it
+ * with one provider query instead of a DocumentFile per child. The playback list is served from
+ * here a page at a time ({@link #queryPage}); {@link #COL_PATH} holds the document URI.
+ */
 public class FileStoreDb extends SQLiteOpenHelper {
+    private static final String TAG = "FileStoreDb";
     private static final String DB_NAME = "filestore.db";
-    private static final int DB_VER = 2;
+    private static final int DB_VER = 3;
     private static final String TABLE = "files";
 
     // Column names
@@ -31,9 +43,51 @@ public class FileStoreDb extends SQLiteOpenHelper {
     public static final String COL_RES_W = "res_w";
     public static final String COL_RES_H = "res_h";
     public static final String COL_FILE_SIZE = "file_size";
+    public static final String COL_MTIME = "mtime";       // provider last-modified, 0 until reconciled
+    public static final String COL_META = "meta";         // 1 once duration/resolution are known
+
+    // bumped by every write, so in-memory views of the index know when to reload
+    private static final AtomicLong sGeneration = new AtomicLong();
+
+    /**
+     * Path, time and size of one indexed file, for {@link #queryStoredFiles}.
+     */
+    public static class StoredFile {
+        public final String path;
+        public final long timestamp;
+        public final long size;
+
+        public StoredFile(String path, long timestamp, long size) {
+            this.path = path;
+            this.timestamp = timestamp;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Outcome of one {@link #reconcile} pass.
+     */
+    public static class ReconcileResult {
+        public int added;
+        public int updated;
+        public int removed;
+        public int unchanged;
+
+        public boolean changed() {
+            return added + updated + removed > 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "added=%d updated=%d removed=%d unchanged=%d",
+                    added, updated, removed, unchanged);
+        }
+    }
 
     public FileStoreDb(Context ctx) {
         super(ctx.getApplicationContext(), DB_NAME, null, DB_VER);
+        // the recorder logs files while the playback list reads and reconciles
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -48,15 +102,34 @@ public class FileStoreDb extends SQLiteOpenHelper {
                 + COL_DURATION + " INTEGER, "
                 + COL_RES_W + " INTEGER, "
                 + COL_RES_H + " INTEGER, "
-                + COL_FILE_SIZE + " INTEGER)");
+                + COL_FILE_SIZE + " INTEGER, "
+                + COL_MTIME + " INTEGER NOT NULL DEFAULT 0, "
+                + COL_META + " INTEGER NOT NULL DEFAULT 0)");
+        createIndexes(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldV, int newV) {
+        if (oldV == 2) {
+            // keep what the recorder logged; reconcile fills in the rest
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COL_MTIME + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COL_META + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("UPDATE " + TABLE + " SET " + COL_META + " = 1 WHERE " + COL_DURATION + " > 0 OR "
+                    + COL_RES_W + " > 0");
+            db.execSQL("DELETE FROM " + TABLE + " WHERE " + COL_ID + " NOT IN (SELECT MAX(" + COL_ID + ") FROM "
+                    + TABLE + " GROUP BY " + COL_PATH + ")");
+            createIndexes(db);
+            return;
+        }
         db.execSQL("DROP TABLE IF EXISTS " + TABLE);
         onCreate(db);
     }
 
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS idx_files_path ON " + TABLE + " (" + COL_PATH + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_files_ts ON " + TABLE + " (" + COL_TIMESTAMP + " DESC)");
+    }
+
     public long logFile(String filename, String path, long timestamp,
                         String type, boolean encrypted, long duration,
                         int resW, int resH, long fileSize) {
@@ -70,7 +143,11 @@ public class FileStoreDb extends SQLiteOpenHelper {
         cv.put(COL_RES_W, resW);
         cv.put(COL_RES_H, resH);
         cv.put(COL_FILE_SIZE, fileSize);
-        return getWritableDatabase().insert(TABLE, null, cv);
+        cv.put(COL_META, 1);
+        // replaces a row reconcile may already have added for the same document
+        long id = getWritableDatabase().insertWithOnConflict(TABLE, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+        sGeneration.incrementAndGet();
+        return id;
     }
     
     // Insert Media object into database
@@ -85,7 +162,9 @@ public class FileStoreDb extends SQLiteOpenHelper {
         cv.put(COL_RES_W, media.resolutionWidth);
         cv.put(COL_RES_H, media.resolutionHeight);
         cv.put(COL_FILE_SIZE, media.fileSize);
-        return getWritableDatabase().insert(TABLE, null, cv);
+        long id = getWritableDatabase().insert(TABLE, null, cv);
+        sGeneration.incrementAndGet();
+        return id;
     }
     
     // Update Media object in database
@@ -100,7 +179,9 @@ public class FileStoreDb extends SQLiteOpenHelper {
         cv.put(COL_RES_W, media.resolutionWidth);
         cv.put(COL_RES_H, media.resolutionHeight);
         cv.put(COL_FILE_SIZE, media.fileSize);
-        return getWritableDatabase().update(TABLE, cv, COL_ID + " = ?", new String[]{String.valueOf(media.id)});
+        int rows = getWritableDatabase().update(TABLE, cv, COL_ID + " = ?", new String[]{String.valueOf(media.id)});
+        sGeneration.incrementAndGet();
+        return rows;
     }
     
     // Helper method to convert Media.TYPE to string for database storage
@@ -158,7 +239,229 @@ public class FileStoreDb extends SQLiteOpenHelper {
 
 
     public int deleteByPath(String path) {
-        return getWritableDatabase()
+        int rows = getWritableDatabase()
                 .delete(TABLE, COL_PATH + " = ?", new String[]{path});
+        sGeneration.incrementAndGet();
+        return rows;
+    }
+
+    /**
+     * Brings the rows under {@code treeUri} in line with the folder: one children query with
+     * name, size and mtime, then inserts, updates and deletes in a single transaction. Rows the
+     * recorder logged keep their metadata; only files changed since the last pass lose it.
+     */
+    public ReconcileResult reconcile(Context context, Uri treeUri) {
+        ReconcileResult result = new ReconcileResult();
+        String tree = treeUri.toString();
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+
+        // path -> {id, size, mtime}
+        Map<String, long[]> known = new HashMap<>();
+        SQLiteDatabase db = getWritableDatabase();
+        try (Cursor cursor = db.query(TABLE, new String[]{COL_ID, COL_PATH, COL_FILE_SIZE, COL_MTIME},
+                treeSelection(), treeArgs(tree), null, null, null)) {
+            while (cursor.moveToNext()) {
+                known.put(cursor.getString(1), new long[]{cursor.getLong(0), cursor.getLong(2), cursor.getLong(3)});
+            }
+        }
+
+        String[] projection = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_SIZE,
+                DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+                DocumentsContract.Document.COLUMN_MIME_TYPE
+        };
+        db.beginTransaction();
+        try (Cursor cursor = context.getContentResolver().query(childrenUri, projection, null, null, null)) {
+            if (cursor == null) {
+                return result;
+            }
+            while (cursor.moveToNext()) {
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(4))) continue;
+                String name = cursor.getString(1);
+                String type = typeForName(name);
+                if (type == null) continue;
+                String path = DocumentsContract.buildDocumentUriUsingTree(treeUri, cursor.getString(0)).toString();
+                long size = cursor.getLong(2);
+                long mtime = cursor.getLong(3);
+
+                long[] row = known.remove(path);
+                if (row == null) {
+                    ContentValues cv = new ContentValues();
+                    cv.put(COL_FILENAME, name);
+                    cv.put(COL_PATH, path);
+                    cv.put(COL_TIMESTAMP, mtime);
+                    cv.put(COL_TYPE, type);
+                    cv.put(COL_ENCRYPTED, isEncryptedName(name) ? 1 : 0);
+                    cv.put(COL_DURATION, 0);
+                    cv.put(COL_RES_W, 0);
+                    cv.put(COL_RES_H, 0);
+                    cv.put(COL_FILE_SIZE, size);
+                    cv.put(COL_MTIME, mtime);
+                    db.insertWithOnConflict(TABLE, null, cv, SQLiteDatabase.CONFLICT_IGNORE);
+                    result.added++;
+                } else if (row[2] == 0 || row[1] != size || row[2] != mtime) {
+                    ContentValues cv = new ContentValues();
+                    cv.put(COL_FILE_SIZE, size);
+                    cv.put(COL_MTIME, mtime);
+                    if (row[2] != 0) {
+                        // rewritten since the last pass
+                        cv.put(COL_META, 0);
+                    }
+                    db.update(TABLE, cv, COL_ID + " = ?", new String[]{String.valueOf(row[0])});
+                    result.updated++;
+                } else {
+                    result.unchanged++;
+                }
+            }
+            for (long[] row : known.values()) {
+                db.delete(TABLE, COL_ID + " = ?", new String[]{String.valueOf(row[0])});
+                result.removed++;
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            // SecurityException when the tree permission is gone
+            Log.e(TAG, "reconcile failed for " + tree, e);
+        } finally {
+            db.endTransaction();
+        }
+        if (result.changed()) {
+            sGeneration.incrementAndGet();
+        }
+        Log.d(TAG, "reconcile: " + result);
+        return result;
+    }
+
+    public int count(String treeUri) {
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE + " WHERE "
+                + treeSelection(), treeArgs(treeUri))) {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        }
+    }
+
+    /**
+     * Rows under {@code treeUri}, newest first.
+     */
+    public List<Media> queryPage(String treeUri, int offset, int limit) {
+        return queryMedia(treeSelection(), treeArgs(treeUri), COL_TIMESTAMP + " DESC, " + COL_ID + " DESC",
+                offset + ", " + limit);
+    }
+
+    /**
+     * The page after the row ({@code timestamp}, {@code id}) in {@link #queryPage} order. Unlike an
+     * offset this stays right when rows were added or removed since the previous page.
+     */
+    public List<Media> queryPageAfter(String treeUri, long timestamp, long id, int limit) {
+        String[] tree = treeArgs(treeUri);
+        String ts = String.valueOf(timestamp);
+        return queryMedia(treeSelection() + " AND (" + COL_TIMESTAMP + " < ? OR (" + COL_TIMESTAMP
+                        + " = ? AND " + COL_ID + " < ?))",
+                new String[]{tree[0], tree[1], ts, ts, String.valueOf(id)},
+                COL_TIMESTAMP + " DESC, " + COL_ID + " DESC", String.valueOf(limit));
+    }
+
+    /**
+     * Unencrypted rows under {@code treeUri} whose duration and resolution are still unknown.
+     */
+    public List<Media> queryMissingMetadata(String treeUri, int limit) {
+        return queryMedia(treeSelection() + " AND " + COL_META + " = 0 AND " + COL_ENCRYPTED + " = 0",
+                treeArgs(treeUri), COL_TIMESTAMP + " DESC", String.valueOf(limit));
+    }
+
+    /**
+     * Path, timestamp and size of every row of {@code type} under {@code treeUri}, in no
+     * particular order.
+     */
+    public List<StoredFile> queryStoredFiles(String treeUri, String type) {
+        List<StoredFile> files = new ArrayList<>();
+        String[] tree = treeArgs(treeUri);
+        try (Cursor cursor = getReadableDatabase().query(TABLE, new String[]{COL_PATH, COL_TIMESTAMP, COL_FILE_SIZE},
+                treeSelection() + " AND " + COL_TYPE + " = ?", new String[]{tree[0], tree[1], type},
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                files.add(new StoredFile(cursor.getString(0), cursor.getLong(1), cursor.getLong(2)));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying stored files", e);
+        }
+        return files;
+    }
+
+    /**
+     * Changes on every write to the index, by any instance.
+     */
+    public static long generation() {
+        return sGeneration.get();
+    }
+
+    public void updateMetadata(long id, long duration, int resW, int resH) {
+        ContentValues cv = new ContentValues();
+        cv.put(COL_DURATION, duration);
+        cv.put(COL_RES_W, resW);
+        cv.put(COL_RES_H, resH);
+        cv.put(COL_META, 1);
+        getWritableDatabase().update(TABLE, cv, COL_ID + " = ?", new String[]{String.valueOf(id)});
+    }
+
+    /**
+     * Type column value for a media file name, null for anything else.
+     */
+    public static String typeForName(String name) {
+        if (name == null) return null;
+        String lower = name.toLowerCase(Locale.US);
+        if (lower.endsWith(".t3v")) return "video";
+        if (lower.endsWith(".t3j")) return "photo";
+        if (lower.endsWith(".mp4") || lower.endsWith(".mov") || lower.endsWith(".mkv")
+                || lower.endsWith(".avi") || lower.endsWith(".3gp") || lower.endsWith(".webm")) {
+            return "video";
+        }
+        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png")
+                || lower.endsWith(".gif") || lower.endsWith(".bmp") || lower.endsWith(".webp")) {
+            return "image";
+        }
+        return null;
+    }
+
+    private static boolean isEncryptedName(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        return lower.endsWith(".t3v") || lower.endsWith(".t3j");
+    }
+
+    // Document URIs start with their tree URI; a range keeps the path index usable
+    private static String treeSelection() {
+        return COL_PATH + " >= ? AND " + COL_PATH + " < ?";
+    }
+
+    private static String[] treeArgs(String treeUri) {
+        return new String[]{treeUri + "/document/", treeUri + "/document/\uffff"};
+    }
+
+    @SuppressLint("Range")
+    private List<Media> queryMedia(String selection, String[] args, String orderBy, String limit) {
+        List<Media> mediaList = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE, null, selection, args, null, null, orderBy, limit)) {
+            while (cursor.moveToNext()) {
+                Media media = new Media();
+                media.id = cursor.getLong(cursor.getColumnIndex(COL_ID));
+                media.name = cursor.getString(cursor.getColumnIndex(COL_FILENAME));
+                media.path = cursor.getString(cursor.getColumnIndex(COL_PATH));
+                media.contentUri = Uri.parse(media.path);
+                media.date = new Date(cursor.getLong(cursor.getColumnIndex(COL_TIMESTAMP)));
+                String type = cursor.getString(cursor.getColumnIndex(COL_TYPE));
+                media.type = "video".equals(type) ? Media.TYPE.VIDEO
+                        : "image".equals(type) ? Media.TYPE.IMAGE : Media.TYPE.PHOTO;
+                media.is_encrypted = cursor.getInt(cursor.getColumnIndex(COL_ENCRYPTED)) == 1;
+                media.duration = cursor.getLong(cursor.getColumnIndex(COL_DURATION));
+                media.resolutionWidth = cursor.getInt(cursor.getColumnIndex(COL_RES_W));
+                media.resolutionHeight = cursor.getInt(cursor.getColumnIndex(COL_RES_H));
+                media.fileSize = cursor.getLong(cursor.getColumnIndex(COL_FILE_SIZE));
+                mediaList.add(media);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying media", e);
+        }
+        return mediaList;
     }
 }
\ No newline at end of file
@@ -24,6 +24,7 @@ import androidx.core.content.ContextCompat;
 import com.checkmate.android.AppConstant;
 import com.checkmate.android.AppPreference;
 import com.checkmate.android.model.SurfaceModel;
+import com.checkmate.android.service.SharedEGL.FramePacer;
 import com.checkmate.android.service.SharedEGL.ServiceType;
 import com.checkmate.android.service.SharedEGL.SharedEglManager;
 import java.lang.ref.WeakReference;
@@ -118,20 +119,21 @@ public class BgAudioService extends BaseBackgroundService {
                         mEglManager.setPreviewSurface(dsurfaceTexture, 1280, 720);
                     }
 
-                    mFrameAvailableListener = surfaceTexture -> {
-                        if (mEglManager != null && mEglManager.getHandler() != null) {
-                            mEglManager.getHandler().post(this::drawFrame);
-                        }
-                    };
+                    FramePacer pacer = mEglManager.getFramePacer();
+                    pacer.setCallback(this::drawFrame);
+                    mFrameAvailableListener = surfaceTexture -> pacer.onFrameAvailable();
                     mPreviewTexture.setOnFrameAvailableListener(mFrameAvailableListener);
                     initCamera();
                 }
             }
 
-            private void drawFrame() {
+            private void drawFrame(int pendingFrames) {
                 if (mPreviewTexture != null) {
                     try {
-                        mPreviewTexture.updateTexImage();
+                        // Latch every queued buffer; only the newest gets drawn
+                        for (int i = 0; i < pendingFrames; i++) {
+                            mPreviewTexture.updateTexImage();
+                        }
                     } catch (Exception e) {
                         Log.e(TAG, "Failed to updateTexImage()", e);
                         return;
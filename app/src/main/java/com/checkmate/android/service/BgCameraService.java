@@ -13,6 +13,7 @@ import androidx.annotation.NonNull;
 
 import java.lang.ref.WeakReference;
 
+import com.checkmate.android.service.SharedEGL.FramePacer;
 import com.checkmate.android.service.SharedEGL.SharedEglManager;
 import com.checkmate.android.service.SharedEGL.ServiceType;
 import com.checkmate.android.model.SurfaceModel;
@@ -79,21 +80,22 @@ public class BgCameraService extends BaseBackgroundService {
                     }
                 }
 
-                mFrameAvailableListener = st -> {
-                    if (mEglManager != null && mEglManager.getHandler() != null) {
-                        mEglManager.getHandler().post(this::drawFrame);
-                    }
-                };
+                FramePacer pacer = mEglManager.getFramePacer();
+                pacer.setCallback(this::drawFrame);
+                mFrameAvailableListener = st -> pacer.onFrameAvailable();
                 mPreviewTexture.setOnFrameAvailableListener(mFrameAvailableListener);
                 initCamera();
             });
         }
     }
 
-    private void drawFrame() {
+    private void drawFrame(int pendingFrames) {
         if (mPreviewTexture != null) {
             try {
-                mPreviewTexture.updateTexImage();
+                // Latch every queued buffer; only the newest gets drawn
+                for (int i = 0; i < pendingFrames; i++) {
+                    mPreviewTexture.updateTexImage();
+                }
             } catch (Exception e) {
                 Log.e(TAG, "Failed to updateTexImage()", e);
                 return;
@@ -12,6 +12,7 @@ import android.os.IBinder;
 import android.os.PowerManager;
 import android.util.Log;
 import android.view.Surface;
+import com.checkmate.android.service.SharedEGL.FramePacer;
 import com.checkmate.android.service.SharedEGL.ServiceType;
 import com.checkmate.android.service.SharedEGL.SharedEglManager;
 import com.checkmate.android.service.cast.StreamConditionerBase;
@@ -163,10 +164,14 @@ public final class BgCastService extends BaseBackgroundService {
             return;
         }
 
-        mFrameAvailableListener = surfaceTexture -> {
+        FramePacer pacer = mEglManager.getFramePacer();
+        pacer.setCallback(pendingFrames -> {
             if (mPreviewTexture != null) {
                 try {
-                    mPreviewTexture.updateTexImage();
+                    // Latch every queued buffer; only the newest gets drawn
+                    for (int i = 0; i < pendingFrames; i++) {
+                        mPreviewTexture.updateTexImage();
+                    }
                     float[] tx = new float[16];
                     mPreviewTexture.getTransformMatrix(tx);
                 } catch (Exception e) {
@@ -174,10 +179,11 @@ public final class BgCastService extends BaseBackgroundService {
                     return;
                 }
             }
-            if (mEglManager != null && mEglManager.getHandler() != null) {
-                mEglManager.getHandler().post(mEglManager::drawFrame);
+            if (mEglManager != null) {
+                mEglManager.drawFrame();
             }
-        };
+        });
+        mFrameAvailableListener = surfaceTexture -> pacer.onFrameAvailable();
 
         mPreviewTexture.setOnFrameAvailableListener(mFrameAvailableListener, mEglManager.getHandler());
 
@@ -271,6 +277,7 @@ public final class BgCastService extends BaseBackgroundService {
     private void releasePreviewResources() {
         if (mPreviewTexture != null) {
             mPreviewTexture.setOnFrameAvailableListener(null);
+            if (mEglManager != null) mEglManager.getFramePacer().stop();
             try { mPreviewTexture.release(); } catch (Exception ignore) {}
             mPreviewTexture = null;
         }
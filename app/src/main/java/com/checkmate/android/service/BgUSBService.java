@@ -21,6 +21,7 @@ import android.widget.Toast;
 import com.checkmate.android.AppPreference;
 import com.checkmate.android.R;
 import com.checkmate.android.model.SurfaceModel;
+import com.checkmate.android.service.SharedEGL.FramePacer;
 import com.checkmate.android.service.SharedEGL.ServiceType;
 import com.checkmate.android.service.SharedEGL.SharedEglManager;
 import com.checkmate.android.ui.fragment.LiveFragment;
@@ -216,10 +217,11 @@ public class BgUSBService extends BaseBackgroundService {
                     }
 
                     mPreviewTexture.setDefaultBufferSize(mPreviewWidth, mPreviewHeight);
-                    if (mEglManager != null && mEglManager.getHandler() != null) {
-                        Handler eglHandler = mEglManager.getHandler();
+                    if (mEglManager != null) {
+                        FramePacer pacer = mEglManager.getFramePacer();
+                        pacer.setCallback(this::drawFrame);
                         mPreviewTexture.setOnFrameAvailableListener(surfaceTexture ->
-                                eglHandler.post(this::drawFrame));
+                                pacer.onFrameAvailable());
                     }
 
                     // Start preview if possible
@@ -241,7 +243,7 @@ public class BgUSBService extends BaseBackgroundService {
                     }
                 }
 
-                private void drawFrame() {
+                private void drawFrame(int pendingFrames) {
                     // 🔴 Critical null check for texture
                     if (mPreviewTexture == null) {
                         Log.e(TAG, "Preview texture null in drawFrame");
@@ -250,7 +252,10 @@ public class BgUSBService extends BaseBackgroundService {
                     }
 
                     try {
-                        mPreviewTexture.updateTexImage();
+                        // Latch every queued buffer; only the newest gets drawn
+                        for (int i = 0; i < pendingFrames; i++) {
+                            mPreviewTexture.updateTexImage();
+                        }
                     } catch (Throwable t) {
                         Log.e(TAG, "updateTexImage failed", t);
                         scheduleServiceRestart("Texture update failed");
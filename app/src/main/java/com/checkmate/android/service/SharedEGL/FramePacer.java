@@ -0,0 +1,167 @@
+package com.checkmate.android.service.SharedEGL;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame-available scheduler for the EGL thread.
+ * <p>
+ * {@link #onFrameAvailable()} may be called from any thread. Signals that arrive while a render
+ * is already queued only bump an atomic counter, so the handler never holds more than one
+ * render message no matter how far the camera outruns the encoder. Renders are paced to the
+ * target fps of the active VideoConfig; the callback is told how many buffers are waiting so it
+ * can latch all of them and draw only the newest.
+ * <p>
+ * Counters:
+ * <ul>
+ *   <li>coalesced - signals merged into a render that was already queued (EGL thread busy)</li>
+ *   <li>dropped - signals superseded while a render was held back to honour the target fps</li>
+ *   <li>late - renders that started more than one frame interval after their first signal</li>
+ * </ul>
+ */
+public class FramePacer {
+    private static final String TAG = "FramePacer";
+
+    public interface Callback {
+        /**
+         * Runs on the pacer's handler thread.
+         *
+         * @param pendingFrames number of frame-available signals since the last call (at least 1);
+         *                      the texture should be latched this many times before drawing once
+         */
+        void onDrawFrame(int pendingFrames);
+    }
+
+    private static final float DEFAULT_FPS = 30f;
+    // Accept a frame slightly early so source jitter at the same rate as the target isn't dropped
+    private static final int EARLY_TOLERANCE_DIVISOR = 4;
+
+    private final Handler mHandler;
+    private volatile Callback mCallback;
+
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile long mFirstSignalNs;
+    private volatile boolean mDeferred;
+    private volatile long mIntervalNs;
+    private long mNextDueNs;
+
+    private final AtomicLong mRendered = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mLate = new AtomicLong();
+
+    public FramePacer(Handler handler) {
+        mHandler = handler;
+        setTargetFps(DEFAULT_FPS);
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Sets the render rate. Values {@code <= 0} disable pacing (render as soon as the thread is free).
+     */
+    public void setTargetFps(float fps) {
+        mIntervalNs = fps > 0 ? (long) (1_000_000_000L / fps) : 0;
+        Log.d(TAG, "Target fps " + fps);
+    }
+
+    public float getTargetFps() {
+        long interval = mIntervalNs;
+        return interval > 0 ? 1_000_000_000f / interval : 0f;
+    }
+
+    /**
+     * Frame-available signal; safe from any thread. Posts at most one render message.
+     */
+    public void onFrameAvailable() {
+        if (mPending.getAndIncrement() == 0) {
+            mFirstSignalNs = System.nanoTime();
+            mHandler.post(mDrain);
+        } else if (mDeferred) {
+            mDropped.incrementAndGet();
+        } else {
+            mCoalesced.incrementAndGet();
+        }
+    }
+
+    /**
+     * Cancels any queued render and forgets pending signals. Counters are kept.
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mDrain);
+        mPending.set(0);
+        mDeferred = false;
+        mNextDueNs = 0;
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            final long now = System.nanoTime();
+            final long interval = mIntervalNs;
+            if (interval > 0 && now < mNextDueNs) {
+                // Too early for the target rate: hold this render, later signals fold into it
+                mDeferred = true;
+                long delayMs = Math.max(1, (mNextDueNs - now + 999_999) / 1_000_000);
+                mHandler.postAtTime(this, SystemClock.uptimeMillis() + delayMs);
+                return;
+            }
+            mDeferred = false;
+
+            final long firstSignal = mFirstSignalNs;
+            final int frames = mPending.getAndSet(0);
+            if (frames == 0) {
+                return;
+            }
+            if (interval > 0 && now - firstSignal > interval) {
+                mLate.incrementAndGet();
+            }
+            mNextDueNs = now + interval - interval / EARLY_TOLERANCE_DIVISOR;
+            mRendered.incrementAndGet();
+
+            Callback cb = mCallback;
+            if (cb != null) {
+                try {
+                    cb.onDrawFrame(frames);
+                } catch (Exception e) {
+                    Log.e(TAG, "Frame callback failed", e);
+                }
+            }
+        }
+    };
+
+    public long getRenderedFrames() {
+        return mRendered.get();
+    }
+
+    public long getCoalescedFrames() {
+        return mCoalesced.get();
+    }
+
+    public long getDroppedFrames() {
+        return mDropped.get();
+    }
+
+    public long getLateFrames() {
+        return mLate.get();
+    }
+
+    public void resetCounters() {
+        mRendered.set(0);
+        mCoalesced.set(0);
+        mDropped.set(0);
+        mLate.set(0);
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "pacer %.1ffps: rendered=%d coalesced=%d dropped=%d late=%d",
+                getTargetFps(), getRenderedFrames(), getCoalescedFrames(), getDroppedFrames(), getLateFrames());
+    }
+}
@@ -0,0 +1,98 @@
+package com.checkmate.android.service.SharedEGL;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Per-frame GL thread timing for SharedEglManager.
+ * Stages are accumulated over a reporting window and logged as average / max milliseconds,
+ * so the legacy per-surface path and the render-graph path can be compared on a device.
+ * Only touched from the EGL thread; {@link #getSummary()} may be read from anywhere.
+ */
+public class FrameTimingReport {
+    private static final String TAG = "FrameTimingReport";
+
+    public static final int STAGE_UPDATE = 0;   // updateTexImage + transform matrix
+    public static final int STAGE_SAMPLE = 1;   // OES -> intermediate FBO
+    public static final int STAGE_FANOUT = 2;   // draw + swap on every target surface
+    public static final int STAGE_TOTAL = 3;    // frame start to its last swap
+    private static final int STAGE_COUNT = 4;
+    private static final String[] STAGE_NAMES = {"update", "sample", "fanout", "total"};
+
+    private final String mLabel;
+    private final long mIntervalMs;
+    private final long[] mSumNs = new long[STAGE_COUNT];
+    private final long[] mMaxNs = new long[STAGE_COUNT];
+    private long mFrames;
+    private long mSurfaces;
+    private long mWindowStart = SystemClock.elapsedRealtime();
+    private volatile String mSummary = "";
+
+    public FrameTimingReport(String label, long intervalMs) {
+        mLabel = label;
+        mIntervalMs = intervalMs;
+    }
+
+    /**
+     * Record the duration of one stage of the current frame.
+     */
+    public void addStage(int stage, long durationNs) {
+        mSumNs[stage] += durationNs;
+        if (durationNs > mMaxNs[stage]) {
+            mMaxNs[stage] = durationNs;
+        }
+    }
+
+    /**
+     * Close the current frame; logs and resets the window once the interval has elapsed.
+     *
+     * @param totalNs        wall time from the start of the frame to its last swap
+     * @param surfacesDrawn  number of window surfaces written this frame
+     */
+    public void endFrame(long totalNs, int surfacesDrawn) {
+        addStage(STAGE_TOTAL, totalNs);
+        mFrames++;
+        mSurfaces += surfacesDrawn;
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - mWindowStart < mIntervalMs) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(mLabel).append(": ").append(mFrames).append(" frames");
+        sb.append(String.format(Locale.US, ", %.1f surfaces/frame", mFrames > 0 ? (double) mSurfaces / mFrames : 0));
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            if (mSumNs[i] == 0) {
+                continue;
+            }
+            sb.append(String.format(Locale.US, ", %s avg=%.2fms max=%.2fms",
+                    STAGE_NAMES[i], mSumNs[i] / 1e6 / Math.max(1, mFrames), mMaxNs[i] / 1e6));
+        }
+        mSummary = sb.toString();
+        Log.i(TAG, mSummary);
+        reset(now);
+    }
+
+    /**
+     * Last logged summary line, empty until the first window completes.
+     */
+    public String getSummary() {
+        return mSummary;
+    }
+
+    public void reset() {
+        reset(SystemClock.elapsedRealtime());
+    }
+
+    private void reset(long now) {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mSumNs[i] = 0;
+            mMaxNs[i] = 0;
+        }
+        mFrames = 0;
+        mSurfaces = 0;
+        mWindowStart = now;
+    }
+}
@@ -10,6 +10,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -30,6 +31,7 @@ import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.provider.DocumentsContract;
@@ -44,6 +46,7 @@ import androidx.documentfile.provider.DocumentFile;
 import androidx.lifecycle.ViewModelProvider;
 import com.checkmate.android.AppConstant;
 import com.checkmate.android.AppPreference;
+import com.checkmate.android.RenderSettings;
 import com.checkmate.android.MyApp;
 import com.checkmate.android.R;
 import com.checkmate.android.SoftRestartActivity;
@@ -57,33 +60,46 @@ import com.checkmate.android.util.CameraInfo;
 import com.checkmate.android.util.CameraManager;
 import com.checkmate.android.util.Connection;
 import com.checkmate.android.util.ConnectionStatistics;
+import com.checkmate.android.util.EncryptedMediaWriter;
+import com.checkmate.android.util.EncryptedRecordingSink;
 import com.checkmate.android.util.ErrorMessage;
 import com.checkmate.android.util.Formatter;
 import com.checkmate.android.util.MainActivity;
 import com.checkmate.android.util.MessageUtil;
 import com.checkmate.android.util.MicThread;
+import com.checkmate.android.util.PreallocatedRecordingSink;
+import com.checkmate.android.util.PreviewFrameRing;
 import com.checkmate.android.util.SettingsUtils;
+import com.checkmate.android.util.StillJpegEncoder;
+import com.checkmate.android.util.StorageQuotaManager;
 import com.checkmate.android.util.StreamConditionerBase;
+import com.checkmate.android.util.ThumbnailCache;
 import com.checkmate.android.util.libgraph.EglCoreNew;
+import com.checkmate.android.util.libgraph.FramebufferNew;
 import com.checkmate.android.util.libgraph.FullFrameRectLetterboxNew;
+import com.checkmate.android.util.libgraph.GlUtilNew;
+import com.checkmate.android.util.libgraph.GlyphAtlasTextNew;
+import com.checkmate.android.util.libgraph.PixelPackReaderNew;
 import com.checkmate.android.util.libgraph.SurfaceImageNew;
 import com.checkmate.android.util.libgraph.Texture2dProgramNew;
 import com.checkmate.android.util.libgraph.WindowSurfaceNew;
 import com.checkmate.android.viewmodels.SharedViewModel;
+import com.serenegiant.encoder.AvSyncMonitor;
 import com.wmspanel.libstream.AudioConfig;
 import com.wmspanel.libstream.Streamer;
 import com.wmspanel.libstream.StreamerSurface;
 import com.wmspanel.libstream.StreamerSurfaceBuilder;
 import com.wmspanel.libstream.VideoConfig;
 import org.json.JSONObject;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -91,20 +107,18 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Queue;
 import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.ref.WeakReference;
-import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import androidx.annotation.GuardedBy;
@@ -139,7 +153,6 @@ public class SharedEglManager {
     private static final int REOPEN_DELAY_MS = 500;
     private static final int MAX_RETRIES = 5;
     private static final int RETRY_TIMEOUT = 3000;
-    private static final long MIN_FRAME_INTERVAL = 33; // 30 FPS in ms
     private static final long MEM_THRESHOLD = 100 * 1024 * 1024; // 100MB
     private static final long CONNECTION_TIMEOUT = 10000; // 10 seconds
 
@@ -154,7 +167,7 @@ public class SharedEglManager {
     private boolean mUseBluetooth = false;
     private boolean isBlueToothReceiverRegistered = false;
     public boolean mStreaming = false;
-    public boolean mRecording = false;
+    public volatile boolean mRecording = false;
     public Streamer.Size videoSize, recordSize;
 
     private final Map<Integer, Connection> mConnectionId = new ConcurrentHashMap<>();
@@ -173,6 +186,10 @@ public class SharedEglManager {
     private WindowSurfaceNew encoderSurface;
     private WindowSurfaceNew recorderSurface;
     private FullFrameRectLetterboxNew fullFrameBlit;
+    // Render graph: camera frame sampled once into an FBO, then fanned out to every surface
+    private boolean mRenderGraphEnabled = true;
+    private FramebufferNew frameFbo;
+    private FullFrameRectLetterboxNew fboBlit;
     private int textureId;
     private SurfaceTexture cameraTexture;
     private int oesTextureId;
@@ -182,7 +199,34 @@ public class SharedEglManager {
     private int mRotation = 0;
     private boolean mIsMirrored = false;
     private boolean mIsFlipped = false;
+    // Viewport/MVP per output surface; invalidated by the transform setters and config changes
+    private final SurfaceTransformCache mTransformCache = new SurfaceTransformCache();
+    private volatile boolean mPortrait = false;
+    // Capture time of the texture frame being drawn (SurfaceTexture clock), see presentationTimeNs()
+    private long mFrameTimestampNs;
+    private long mLastEncoderPtsNs;
+    private long mLastRecorderPtsNs;
+    private static final long MAX_TIMESTAMP_SKEW_NS = 1_000_000_000L;
+    // A/V timestamp skew per recording segment
+    private final AvSyncMonitor mAvSync = new AvSyncMonitor("Recording");
     private boolean should_snapshot = false;
+    // Snapshot readback runs through pixel-pack buffers; encoding and saving on mSnapshotExecutor
+    private PixelPackReaderNew snapshotReader;
+    private final ExecutorService mSnapshotExecutor = Executors.newSingleThreadExecutor();
+    private StillJpegEncoder mStillEncoder;   // only used on mSnapshotExecutor
+    // Live preview: a small FBO copy read back while someone watches, JPEG-encoded on mPreviewExecutor
+    private static final int PREVIEW_WIDTH = 640;
+    private static final long PREVIEW_FRAME_INTERVAL_NS = 100_000_000L;   // 10 fps
+    private static final int PREVIEW_JPEG_QUALITY = 60;
+    private static final int PREVIEW_RING_SLOTS = 4;
+    private final PreviewFrameRing mPreviewRing = new PreviewFrameRing(PREVIEW_RING_SLOTS);
+    private FramebufferNew previewFbo;
+    private PixelPackReaderNew previewReader;
+    private long mLastPreviewNs;
+    private final ExecutorService mPreviewExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean mPreviewEncoding = new AtomicBoolean();
+    private StillJpegEncoder mPreviewEncoder;   // only used on mPreviewExecutor
+    private PreviewJpegBuffer mPreviewJpeg;     // only used on mPreviewExecutor
     private int mScreenWidth = 1280;
     private int mScreenHeight = 720;
     private Formatter mFormatter;
@@ -194,12 +238,12 @@ public class SharedEglManager {
     // Overlay components
     private final Object overlayLock = new Object();
     @GuardedBy("overlayLock") private SurfaceImageNew overlay;
+    @GuardedBy("overlayLock") private GlyphAtlasTextNew timestampText;
     @GuardedBy("overlayLock") private Paint textPaint;
-    @GuardedBy("overlayLock") private Paint bgPaint;
     @GuardedBy("overlayLock") private Rect textBounds;
-    @GuardedBy("overlayLock") private Bitmap overlayBmp;
-    @GuardedBy("overlayLock") private Canvas overlayCanvas;
     @GuardedBy("overlayLock") private String lastOverlayText;
+    private volatile String pendingOverlayText;
+    private SimpleDateFormat timestampFormat;
     private int overlayPadding;
     private float textSize;
     private int overlayMarginX = 16;
@@ -207,10 +251,26 @@ public class SharedEglManager {
     public SharedViewModel sharedViewModel;
     // File management
     private File tempRecordingFile;
+    // Set while tempRecordingFile is written through a preallocating sink (removable card)
+    private PreallocatedRecordingSink mTempSink;
     private Uri selectedTreeUri;
+    // Closed segments are copied, encrypted and logged here, never on the camera thread
+    private final ExecutorService mSegmentExecutor = Executors.newSingleThreadExecutor();
+    private static final long SEGMENT_CLOSE_TIMEOUT_MS = 15000;
+    // An MP4 the muxer closed before its first sample is only ftyp and an empty moov, a few hundred
+    // bytes; anything up to this holds no frame and is deleted instead of kept as a segment
+    private static final long MIN_RECORDING_BYTES = 512;
+    // Path of the segment a split moves away from, until the recorder reports it stopped
+    private volatile String mSplitOutgoing;
+    // Temp segments waiting for the recorder's STOPPED callback, by absolute path
+    private final Map<String, Runnable> mPendingSegments = new ConcurrentHashMap<>();
+    private volatile SegmentListener mSegmentListener;
+    // static so listeners outlive the singleton being reset
+    private static final List<StateListener> sStateListeners = new CopyOnWriteArrayList<>();
+    // Set while the recorder writes through an encrypting SAF sink instead of tempRecordingFile
+    private EncryptedRecordingSink mRecordingSink;
     private FileStoreDb fileStoreDb;
     // Performance tracking
-    private long lastFrameTime = 0;
     private long textureUpdateTime = 0;
     private long drawTime = 0;
     private long swapBufferTime = 0;
@@ -219,7 +279,13 @@ public class SharedEglManager {
     private long slowFrameCount;
     private long totalFrameCount;
     private long lastPerformanceLogTime;
-    private final Queue<Bitmap> bitmapPool = new ArrayDeque<>(3);
+    private final FrameTimingReport mLegacyTiming = new FrameTimingReport("legacy", PERFORMANCE_LOG_INTERVAL_MS);
+    private final FrameTimingReport mGraphTiming = new FrameTimingReport("render-graph", PERFORMANCE_LOG_INTERVAL_MS);
+    private LegacyFrame mLegacyFrame;   // set while a legacy frame task runs, camera thread only
+    // Frame-available pacing, shared by all capture services
+    private final FramePacer mFramePacer = new FramePacer(mCameraHandler.getMainThreadHandler());
+    private float mStreamFps;
+    private float mRecordFps;
     Runnable updateRunnable;
     // Transformation matrices
     private final float[] mBaseMatrix = new float[16];
@@ -262,6 +328,7 @@ public class SharedEglManager {
             stats.isPacketLossIncreasing = new boolean[count];
             buildStreamerStats(stats);
             needUpdate = false;
+            notifyStateChanged();
             CameraInfo cameraInfo = findCameraInfo();
             if (!mStreaming) {
                 return;
@@ -380,6 +447,9 @@ public class SharedEglManager {
     };
 
     Streamer.AudioCallback mAudioCallback = (audioFormat, data, audioInputLength, channelCount, sampleRate, samplesPerFrame) -> {
+        if (mRecording && channelCount > 0) {
+            mAvSync.onAudioSamples(audioInputLength / (2 * channelCount), sampleRate);   // 16-bit PCM
+        }
         if (MainActivity.instance != null) {
             MainActivity.instance.onAudioDelivered(data, channelCount, sampleRate);
         }
@@ -404,6 +474,15 @@ public class SharedEglManager {
         return sInstance;
     }
 
+    /**
+     * The current instance without creating one, for callers off the service threads (HTTP
+     * handlers) that only read state.
+     */
+    @Nullable
+    public static SharedEglManager peekInstance() {
+        return sInstance;
+    }
+
     /**
      * Register a service with the shared EGL manager
      * @param serviceType The type of service being registered
@@ -622,6 +701,8 @@ public class SharedEglManager {
             
             mServiceType = serviceType;
             context = ctx;
+            mPortrait = ctx.getResources().getConfiguration().orientation
+                    == Configuration.ORIENTATION_PORTRAIT;
             mIsShuttingDown = false;
         }
 
@@ -674,6 +755,7 @@ public class SharedEglManager {
                     }
                     mMic.mStreamer = mStreamer;
                     mMic.mRecorder = mRecorder;
+                    mMic.mSyncMonitor = mAvSync;
                     mMic.start();
                 }
                 lastPerformanceLogTime = SystemClock.elapsedRealtime();
@@ -710,14 +792,15 @@ public class SharedEglManager {
             float scaleFactor = Math.max(1.0f, mScreenHeight / BASE_HEIGHT);
             textSize = TEXT_SIZE_DP * scaleFactor;
             overlayPadding = (int) (PADDING_DP * scaleFactor);
+            mRenderGraphEnabled = RenderSettings.get().renderGraph;
 
             try {
                 Log.d(TAG, "Creating EGL core with FLAG_RECORDABLE...");
-                eglCore = new EglCoreNew(sharedContext, EglCoreNew.FLAG_RECORDABLE);
+                eglCore = new EglCoreNew(sharedContext, EglCoreNew.FLAG_RECORDABLE | EglCoreNew.FLAG_TRY_GLES3);
                 Log.d(TAG, "EGL core created successfully with FLAG_RECORDABLE");
             } catch (RuntimeException e) {
                 Log.w(TAG, "FLAG_RECORDABLE not supported — retrying without it", e);
-                eglCore = new EglCoreNew(sharedContext, 0);
+                eglCore = new EglCoreNew(sharedContext, EglCoreNew.FLAG_TRY_GLES3);
                 Log.d(TAG, "EGL core created successfully without FLAG_RECORDABLE");
             }
 
@@ -812,6 +895,7 @@ public class SharedEglManager {
     private void initializeOverlay() {
         synchronized (overlayLock) {
             overlay = new SurfaceImageNew();
+            timestampText = new GlyphAtlasTextNew();
             textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
             textPaint.setTextSize(textSize);
             textPaint.setTypeface(Typeface.DEFAULT_BOLD);
@@ -870,34 +954,27 @@ public class SharedEglManager {
         long memUsage = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
         if (memUsage > MEM_THRESHOLD) {
             Log.w(TAG, "High memory usage: " + (memUsage / (1024 * 1024)) + "MB");
-            clearBitmapPool();
         }
     }
 
-    private boolean shouldSkipFrame() {
-        long now = SystemClock.elapsedRealtime();
-        return (now - lastFrameTime) < MIN_FRAME_INTERVAL;
-    }
-
     void updateTexture() {
         safeUpdateTexture();
     }
 
-    private int[] adjustSrcForOrientation(int w, int h) {
-        boolean portrait = context.getResources()
-                .getConfiguration()
-                .orientation == Configuration.ORIENTATION_PORTRAIT;
-        return portrait ? new int[]{h, w} : new int[]{w, h};
+    // Source size as seen by the encoders: swapped in portrait. mPortrait is refreshed in
+    // onConfigurationChanged rather than queried from Resources every frame.
+    private int orientedSrcWidth(int w, int h) {
+        return mPortrait ? h : w;
+    }
+
+    private int orientedSrcHeight(int w, int h) {
+        return mPortrait ? w : h;
     }
 
     public void drawFrame() {
         if (mClosing || eglCore == null || !eglIsReady) return;
 
         mCameraHandler.post(() -> {
-            if (shouldSkipFrame()) {
-                return;
-            }
-
             if (mServiceType == ServiceType.BgAudio) {
                 // Draw a blank frame with overlay for BgAudio
                 drawBlankFrameWithOverlay();
@@ -915,10 +992,10 @@ public class SharedEglManager {
                         safeUpdateTexture();
                         fullFrameBlit.drawFrame(textureId, mTmpMatrix);
                         // Draw timestamp on encoder surface
-                        if (AppPreference.getBool(AppPreference.KEY.TIMESTAMP, true)) {
+                        if (RenderSettings.get().timestamp) {
                             drawTimestampOverlay(videoSize.width,videoSize.height,srcW,srcH);
                         }
-                        encoderSurface.setPresentationTime(System.nanoTime());
+                        encoderSurface.setPresentationTime(presentationTimeNs(encoderSurface, mFrameTimestampNs));
                         encoderSurface.swapBuffers();
                     }
 
@@ -931,16 +1008,15 @@ public class SharedEglManager {
                         fullFrameBlit.drawFrame(textureId, mTmpMatrix);
 
                         // Draw timestamp on recorder surface
-                        if (AppPreference.getBool(AppPreference.KEY.TIMESTAMP, true)) {
+                        if (RenderSettings.get().timestamp) {
                             drawTimestampOverlay(recordSize.width,recordSize.height,srcW,srcH);
                         }
 
                         // Handle screenshot if requested
-                        if (should_snapshot) {
-                            doSnapshot();
-                        }
+                        serviceSnapshot();
+                        serviceLivePreview(fullFrameBlit, textureId, mTmpMatrix);
 
-                        recorderSurface.setPresentationTime(System.nanoTime());
+                        recorderSurface.setPresentationTime(presentationTimeNs(recorderSurface, mFrameTimestampNs));
                         recorderSurface.swapBuffers();
                     }
                 } catch (Exception e) {
@@ -948,6 +1024,14 @@ public class SharedEglManager {
                 }
                 return;
             }
+            if (mRenderGraphEnabled && drawFrameRenderGraph()) {
+                monitorResources();
+                return;
+            }
+            final long frameStart = System.nanoTime();
+            final LegacyFrame frame = new LegacyFrame(frameStart);
+            mLegacyFrame = frame;
+            int surfacesDrawn = 0;
             try {
                 makeTextureCurrent();
 
@@ -955,7 +1039,9 @@ public class SharedEglManager {
                     drawBlankFrameWithOverlay();
                 } else {
                     updateTexture();
+                    mLegacyTiming.addStage(FrameTimingReport.STAGE_UPDATE, System.nanoTime() - frameStart);
                     if (displaySurface != null) {
+                        surfacesDrawn++;
                         if (mServiceType == ServiceType.BgUSBCamera) {
                             drawToSurface(displaySurface,
                                     srcW, srcH,
@@ -968,11 +1054,11 @@ public class SharedEglManager {
                     }
 
                     if (encoderSurface != null) {
-                        int[] src = adjustSrcForOrientation(srcW, srcH);
+                        surfacesDrawn++;
                         if (mServiceType == ServiceType.BgUSBCamera) {
                             drawToSurface(encoderSurface,
                                     videoSize.width, videoSize.height,
-                                    src[0], src[1]);
+                                    orientedSrcWidth(srcW, srcH), orientedSrcHeight(srcW, srcH));
                         }else {
                             drawToSurface(encoderSurface,
                                     videoSize.width, videoSize.height,
@@ -981,20 +1067,19 @@ public class SharedEglManager {
                     }
 
                     if (recorderSurface != null) {
-                        int[] src = adjustSrcForOrientation(srcW, srcH);
+                        surfacesDrawn++;
                         if (mServiceType == ServiceType.BgUSBCamera) {
                             drawToSurface(recorderSurface,
                                     recordSize.width, recordSize.height,
-                                    src[0], src[1]);
+                                    orientedSrcWidth(srcW, srcH), orientedSrcHeight(srcW, srcH));
                         }else {
                             drawToSurface(recorderSurface,
                                     recordSize.width, recordSize.height,
                                     srcW, srcH);
                         }
 
-                        if (should_snapshot) {
-                            doSnapshot();
-                        }
+                        serviceSnapshot();
+                        serviceLivePreview(fullFrameBlit, textureId, mTmpMatrix);
                     }
                 }
                 GLES20.glFlush();
@@ -1006,72 +1091,258 @@ public class SharedEglManager {
                 // Safely release texture image with proper error handling
                 safeReleaseTextureImage();
                 monitorResources();
+                mLegacyFrame = null;
+                frame.surfaces = surfacesDrawn;
+                if (frame.pending.decrementAndGet() == 0) {
+                    mLegacyTiming.endFrame(System.nanoTime() - frameStart, surfacesDrawn);
+                }
             }
         });
     }
 
+    /**
+     * Render-graph frame: one updateTexImage, one OES sample into {@link #frameFbo}, then the
+     * FBO texture is drawn to every live window surface inside this task. There is no glFinish;
+     * each swapBuffers already hands the frame to its consumer.
+     *
+     * @return false if the graph cannot run (no surface or source size yet); the caller then
+     *         falls back to the per-surface path
+     */
+    private boolean drawFrameRenderGraph() {
+        WindowSurfaceNew anchor = displaySurface != null ? displaySurface
+                : encoderSurface != null ? encoderSurface : recorderSurface;
+        if (anchor == null || srcW <= 0 || srcH <= 0 || isTextureReleased()) {
+            return false;
+        }
+
+        final long frameStart = System.nanoTime();
+        int surfacesDrawn = 0;
+        try {
+            anchor.makeCurrent();
+            if (!ensureRenderGraphResources()) {
+                Log.w(TAG, "Render graph unavailable, using per-surface drawing");
+                mRenderGraphEnabled = false;
+                return false;
+            }
+
+            safeUpdateTexture();
+            if (isTextureReleased()) {
+                return true;
+            }
+            final long updated = System.nanoTime();
+            mGraphTiming.addStage(FrameTimingReport.STAGE_UPDATE, updated - frameStart);
+
+            frameFbo.bind();
+            GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            fullFrameBlit.drawFrame(textureId, mTmpMatrix);
+            frameFbo.unbind();
+            final long sampled = System.nanoTime();
+            mGraphTiming.addStage(FrameTimingReport.STAGE_SAMPLE, sampled - updated);
+
+            final int fboTexture = frameFbo.getTextureId();
+            if (displaySurface != null) {
+                boolean usb = mServiceType == ServiceType.BgUSBCamera;
+                if (renderToSurface(displaySurface, fboBlit, fboTexture, GlUtilNew.IDENTITY_MATRIX,
+                        srcW, srcH, usb ? mScreenWidth : srcW, usb ? mScreenHeight : srcH)) {
+                    surfacesDrawn++;
+                }
+            }
+            if (encoderSurface != null || recorderSurface != null) {
+                boolean usb = mServiceType == ServiceType.BgUSBCamera;
+                int encSrcW = usb ? orientedSrcWidth(srcW, srcH) : srcW;
+                int encSrcH = usb ? orientedSrcHeight(srcW, srcH) : srcH;
+                if (encoderSurface != null && renderToSurface(encoderSurface, fboBlit, fboTexture,
+                        GlUtilNew.IDENTITY_MATRIX, videoSize.width, videoSize.height, encSrcW, encSrcH)) {
+                    surfacesDrawn++;
+                }
+                if (recorderSurface != null && renderToSurface(recorderSurface, fboBlit, fboTexture,
+                        GlUtilNew.IDENTITY_MATRIX, recordSize.width, recordSize.height, encSrcW, encSrcH)) {
+                    surfacesDrawn++;
+                    serviceSnapshot();
+                    serviceLivePreview(fboBlit, fboTexture, GlUtilNew.IDENTITY_MATRIX);
+                }
+            }
+            mGraphTiming.addStage(FrameTimingReport.STAGE_FANOUT, System.nanoTime() - sampled);
+        } catch (Exception e) {
+            handleError("Render graph frame failed", e);
+        } finally {
+            mGraphTiming.endFrame(System.nanoTime() - frameStart, surfacesDrawn);
+        }
+        return true;
+    }
+
+    /**
+     * Lazily creates the intermediate FBO (source size) and the 2D blit program.
+     * Must be called with a surface current.
+     */
+    private boolean ensureRenderGraphResources() {
+        try {
+            if (fboBlit == null) {
+                fboBlit = new FullFrameRectLetterboxNew(
+                        new Texture2dProgramNew(Texture2dProgramNew.ProgramType.TEXTURE_2D));
+            }
+            if (frameFbo == null) {
+                frameFbo = new FramebufferNew();
+            }
+            return frameFbo.ensureSize(srcW, srcH);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to create render graph resources", e);
+            return false;
+        }
+    }
+
+    public void setRenderGraphEnabled(boolean enabled) {
+        mRenderGraphEnabled = enabled;
+        mLegacyTiming.reset();
+        mGraphTiming.reset();
+    }
+
+    public boolean isRenderGraphEnabled() {
+        return mRenderGraphEnabled;
+    }
+
+    /**
+     * Latest per-frame GL timing summary for the active draw path.
+     */
+    public String getFrameTimingSummary() {
+        String timing = mRenderGraphEnabled ? mGraphTiming.getSummary() : mLegacyTiming.getSummary();
+        return timing + "; " + mFramePacer.getSummary();
+    }
+
+    /**
+     * Scheduler the capture services feed their frame-available callbacks into. It keeps at most
+     * one render queued on the EGL thread and paces to the active VideoConfig fps.
+     */
+    public FramePacer getFramePacer() {
+        return mFramePacer;
+    }
+
+    private void updatePacerFps() {
+        float fps = Math.max(mStreamFps, mRecordFps);
+        if (fps > 0) {
+            mFramePacer.setTargetFps(fps);
+        }
+    }
+
+    /**
+     * Presentation time for a frame going to {@code surface}. Uses the capture timestamp when it is on
+     * the System.nanoTime() clock (camera and virtual-display SurfaceTextures are), otherwise now, and
+     * keeps it strictly increasing per encoder surface since codecs drop repeated timestamps.
+     */
+    private long presentationTimeNs(WindowSurfaceNew surface, long frameTimeNs) {
+        final long now = System.nanoTime();
+        long pts = frameTimeNs;
+        if (pts <= 0 || Math.abs(now - pts) > MAX_TIMESTAMP_SKEW_NS) {
+            pts = now;
+        }
+        if (surface == encoderSurface) {
+            if (pts <= mLastEncoderPtsNs) pts = mLastEncoderPtsNs + 1000;
+            mLastEncoderPtsNs = pts;
+        } else if (surface == recorderSurface) {
+            if (pts <= mLastRecorderPtsNs) pts = mLastRecorderPtsNs + 1000;
+            mLastRecorderPtsNs = pts;
+            if (mRecording) {
+                mAvSync.onVideoPts(pts / 1000);
+            }
+        }
+        return pts;
+    }
+
+    public AvSyncMonitor getAvSyncMonitor() {
+        return mAvSync;
+    }
+
+    /**
+     * Legacy frame being timed. {@link #drawToSurface} draws inline when called on the main looper,
+     * where the frame task normally runs; otherwise its draws are posted and the frame ends at the
+     * swap of the last of them. {@code pending} counts the frame task itself plus the posted draws.
+     */
+    private static final class LegacyFrame {
+        final long start;
+        final AtomicInteger pending = new AtomicInteger(1);
+        volatile int surfaces;
+
+        LegacyFrame(long start) {
+            this.start = start;
+        }
+    }
+
     private void drawToSurface(WindowSurfaceNew surface, int dstW, int dstH, int srcW, int srcH) {
+        final LegacyFrame frame = mLegacyFrame;
+        if (frame == null) {
+            mCameraHandler.post(() -> renderToSurface(surface, fullFrameBlit, textureId, mTmpMatrix,
+                    dstW, dstH, srcW, srcH));
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            // mCameraHandler.post() would run it inline anyway
+            long drawStart = System.nanoTime();
+            try {
+                renderToSurface(surface, fullFrameBlit, textureId, mTmpMatrix, dstW, dstH, srcW, srcH);
+            } finally {
+                mLegacyTiming.addStage(FrameTimingReport.STAGE_FANOUT, System.nanoTime() - drawStart);
+            }
+            return;
+        }
+        frame.pending.incrementAndGet();
         mCameraHandler.post(() -> {
-            if (surface == null) return;
-            //   logSurfaceInfo(TAG);
+            long drawStart = System.nanoTime();
             try {
-                surface.makeCurrent();
+                renderToSurface(surface, fullFrameBlit, textureId, mTmpMatrix, dstW, dstH, srcW, srcH);
+            } finally {
+                long now = System.nanoTime();
+                mLegacyTiming.addStage(FrameTimingReport.STAGE_FANOUT, now - drawStart);
+                if (frame.pending.decrementAndGet() == 0) {
+                    mLegacyTiming.endFrame(now - frame.start, frame.surfaces);
+                }
+            }
+        });
+    }
 
-                // Clear to black
-                GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    /**
+     * Draws the given texture aspect-fit into one window surface, adds the overlay and swaps.
+     *
+     * @return true if the surface was swapped
+     */
+    private boolean renderToSurface(WindowSurfaceNew surface, FullFrameRectLetterboxNew blit,
+                                    int texId, float[] texMatrix,
+                                    int dstW, int dstH, int srcW, int srcH) {
+        if (surface == null) return false;
+        //   logSurfaceInfo(TAG);
+        try {
+            surface.makeCurrent();
 
-                if (srcW > 0 && srcH > 0) {
-                    // Calculate aspect-correct viewport
-                    float srcAspect = (float)srcW / srcH;
-                    float dstAspect = (float)dstW / dstH;
-                    int vpWidth, vpHeight, vpX, vpY;
-
-                    if (srcAspect > dstAspect) {
-                        // Source is wider - fit to width
-                        vpWidth = dstW;
-                        vpHeight = (int)(dstW / srcAspect);
-                        vpX = 0;
-                        vpY = (dstH - vpHeight) / 2;
-                    } else {
-                        // Source is taller - fit to height
-                        vpHeight = dstH;
-                        vpWidth = (int)(dstH * srcAspect);
-                        vpX = (dstW - vpWidth) / 2;
-                        vpY = 0;
-                    }
+            // Clear to black
+            GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
-                    // Set viewport to maintain aspect ratio
-                    GLES20.glViewport(vpX, vpY, vpWidth, vpHeight);
-
-                    // Apply transformations
-                    boolean wantMirror = mIsMirrored;
-                    boolean wantFlip = mIsFlipped;
-                    if (wantMirror && wantFlip) {
-                        fullFrameBlit.drawFlipMirror(textureId, mTmpMatrix, mRotation);
-                    } else if (wantMirror) {
-                        fullFrameBlit.drawFrameMirrorY(textureId, mTmpMatrix, (mRotation + 180) % 360, 1f);
-                    } else if (wantFlip) {
-                        fullFrameBlit.drawFrameMirrorY(textureId, mTmpMatrix, mRotation, 1f);
-                    } else {
-                        fullFrameBlit.drawFrameX(textureId, mTmpMatrix, mRotation, 1f);
-                    }
-                }
+            if (srcW > 0 && srcH > 0 && dstW > 0 && dstH > 0) {
+                // Aspect-correct viewport and rotation/mirror/flip transform, rebuilt only when
+                // the sizes change or a setter invalidates the cache
+                SurfaceTransformCache.Entry xf = mTransformCache.get(surface, srcW, srcH, dstW, dstH,
+                        mRotation, mIsMirrored, mIsFlipped);
+                xf.applyViewport();
+                blit.drawFrameTransformed(texId, texMatrix, xf.transform);
+            }
 
-                // Draw overlay if enabled
-                if (AppPreference.getBool(AppPreference.KEY.TIMESTAMP, true)) {
-                    drawTimestampOverlay(dstW, dstH,srcW,srcH);     // NEW – single call
-                }
+            // Draw overlay if enabled
+            if (RenderSettings.get().timestamp) {
+                drawTimestampOverlay(dstW, dstH,srcW,srcH);     // NEW – single call
+            }
 
 
-                surface.setPresentationTime(System.nanoTime());
-                surface.swapBuffers();
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Surface invalid - releasing", e);
-                surface.release();
-                if (surface == displaySurface) displaySurface = null;
-            }
-        });
+            // blank frames (no source) have no capture time of their own
+            surface.setPresentationTime(presentationTimeNs(surface,
+                    srcW > 0 && srcH > 0 ? mFrameTimestampNs : System.nanoTime()));
+            return surface.swapBuffers();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Surface invalid - releasing", e);
+            mTransformCache.remove(surface);
+            surface.release();
+            if (surface == displaySurface) displaySurface = null;
+            return false;
+        }
     }
 
     public void drawBlankFrameWithOverlay() {
@@ -1091,12 +1362,12 @@ public class SharedEglManager {
                 GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
                 // Draw timestamp overlay if enabled
-                if (AppPreference.getBool(AppPreference.KEY.TIMESTAMP, true)) {
+                if (RenderSettings.get().timestamp) {
                     drawTimestampOverlay(recordSize.width, recordSize.height, srcW, srcH);
                 }
 
                 // Set presentation time
-                long ts = System.nanoTime();
+                long ts = presentationTimeNs(encoderSurface, System.nanoTime());
                 encoderSurface.setPresentationTime(ts);
                 encoderSurface.swapBuffers();
             } catch (Exception e) {
@@ -1108,9 +1379,8 @@ public class SharedEglManager {
             drawToSurface(recorderSurface,
                     recordSize.width, recordSize.height,
                     srcW, srcH);
-            if (should_snapshot) {
-                doSnapshot();
-            }
+            serviceSnapshot();
+            serviceLivePreview(fullFrameBlit, textureId, mTmpMatrix);
         }
     }
 
@@ -1118,6 +1388,34 @@ public class SharedEglManager {
         return cameraTexture == null || cameraTexture.isReleased();
     }
 
+    /**
+     * Called right after the recorder surface is drawn: hands any completed readback to the
+     * snapshot executor, then starts a newly requested one.
+     */
+    private void serviceSnapshot() {
+        if (snapshotReader != null && snapshotReader.hasPending()) {
+            collectSnapshot(false);
+        }
+        if (should_snapshot) {
+            doSnapshot();
+        }
+    }
+
+    /** Destination details captured when the photo was taken, carried through the readback. */
+    private static final class SnapshotRequest {
+        final Uri treeUri;
+        final String fileName;
+        final boolean encrypt;
+        final String key;
+
+        SnapshotRequest(Uri treeUri, String fileName, boolean encrypt, String key) {
+            this.treeUri = treeUri;
+            this.fileName = fileName;
+            this.encrypt = encrypt;
+            this.key = key;
+        }
+    }
+
     private void doSnapshot() {
         try {
             if (!eglIsReady || eglCore == null) {
@@ -1132,82 +1430,185 @@ public class SharedEglManager {
                 return;
             }
 
-            // Make sure we're on the correct thread
-            mCameraHandler.post(() -> {
-                try {
-                    if (!eglIsReady || eglCore == null) {
-                        Log.e(TAG, "EGL context became invalid during snapshot");
-                        should_snapshot = false;
-                        return;
-                    }
+            String storage_location = AppPreference.getStr(AppPreference.KEY.STORAGE_LOCATION, "");
+            if (storage_location.isEmpty()) {
+                Log.e(TAG, "Storage location not set");
+                should_snapshot = false;
+                return;
+            }
 
-                    // Make the surface current and ensure frame is rendered
-                    recorderSurface.makeCurrent();
+            if (snapshotReader == null) {
+                snapshotReader = new PixelPackReaderNew(eglCore.getGlVersion());
+            }
 
-                    // Clear to black and draw the frame
-                    GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            // Re-render the current frame (not swapped) so the readback includes the overlay
+            recorderSurface.makeCurrent();
+            GLES20.glViewport(0, 0, recorderSurface.getWidth(), recorderSurface.getHeight());
+            GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            fullFrameBlit.drawFrame(textureId, mTmpMatrix);
+            if (RenderSettings.get().timestamp) {
+                drawTimestampOverlay(recordSize.width, recordSize.height, srcW, srcH);
+            }
 
-                    // Draw the frame
-                    if (cameraTexture != null && !cameraTexture.isReleased()) {
-                        cameraTexture.updateTexImage();
-                        cameraTexture.getTransformMatrix(mTmpMatrix);
-                        fullFrameBlit.drawFrame(textureId, mTmpMatrix);
-                    } else {
-                        Log.e(TAG, "Camera texture is null or released");
-                        should_snapshot = false;
-                        return;
-                    }
+            boolean encrypt = AppPreference.getBool(AppPreference.KEY.FILE_ENCRYPTION, false);
+            String key = encrypt ?
+                AppPreference.getStr(AppPreference.KEY.ENCRYPTION_KEY, "12345678") :
+                null;
+            String fileName = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+            SnapshotRequest request = new SnapshotRequest(Uri.parse(storage_location), fileName, encrypt, key);
 
-                    // Draw overlay if enabled
-                    if (AppPreference.getBool(AppPreference.KEY.TIMESTAMP, true)) {
-                        drawTimestampOverlay(recordSize.width, recordSize.height,srcW,srcH);
-                    }
+            if (!snapshotReader.start(recorderSurface.getWidth(), recorderSurface.getHeight(), request)) {
+                // Both pixel-pack buffers still in flight; try again on the next frame
+                return;
+            }
+            should_snapshot = false;
+            if (!snapshotReader.isAsync()) {
+                collectSnapshot(false);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Snapshot failed", e);
+            should_snapshot = false;
+        }
+    }
 
-                    // Flush and finish to ensure frame is complete
-                    GLES20.glFlush();
-                    GLES20.glFinish();
+    private void collectSnapshot(boolean wait) {
+        PixelPackReaderNew.Result result = snapshotReader.poll(wait);
+        if (result == null) {
+            return;
+        }
+        submit(mSnapshotExecutor, () -> writeSnapshot(result));
+    }
 
-                    // Now take the snapshot
-                    File file = getTempImageFile(context);
-                    if (file == null) {
-                        Log.e(TAG, "Failed to create temporary image file");
-                        should_snapshot = false;
-                        return;
-                    }
+    /**
+     * Flips, JPEG-encodes and stores a completed readback. Runs on the snapshot executor.
+     */
+    private void writeSnapshot(PixelPackReaderNew.Result result) {
+        SnapshotRequest request = (SnapshotRequest) result.tag;
+        try {
+            File file = getTempImageFile(context);
+            if (file == null) {
+                Log.e(TAG, "Failed to create temporary image file");
+                return;
+            }
 
-                    recorderSurface.saveFrame(file);
+            if (mStillEncoder == null) {
+                mStillEncoder = new StillJpegEncoder();
+            } else {
+                mStillEncoder.applyPreferences();
+            }
+            try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file))) {
+                // GL rows are bottom-up; the encoder flips while compressing
+                mStillEncoder.encodeRgba(result.pixels, result.width, result.height, true, bos);
+            }
 
-                    String storage_location = AppPreference.getStr(AppPreference.KEY.STORAGE_LOCATION, "");
-                    if (storage_location.isEmpty()) {
-                        Log.e(TAG, "Storage location not set");
-                        should_snapshot = false;
-                        return;
-                    }
+            final String fileExtension = request.encrypt ? ".t3j" : ".jpg";
+            final String fileType = "photo";
 
-                    Uri treeUri = Uri.parse(storage_location);
-                    boolean encrypt = AppPreference.getBool(AppPreference.KEY.FILE_ENCRYPTION, false);
-                    String key = encrypt ? 
-                        AppPreference.getStr(AppPreference.KEY.ENCRYPTION_KEY, "12345678") : 
-                        null;
-                    
-                    final String fileName = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-                    final String fileExtension = encrypt ? ".t3j" : ".jpg";
-                    final String fileType = "photo";
-
-                    // Save and log file
-                    saveAndLogFile(file, treeUri, fileName, fileExtension, fileType, encrypt, key);
-                    
-                    MessageUtil.showToast(context, R.string.Screenshot_taken);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error taking snapshot", e);
-                } finally {
-                    should_snapshot = false;
-                }
-            });
+            // Save and log file
+            saveAndLogFile(file, request.treeUri, request.fileName, fileExtension, fileType,
+                    request.encrypt, request.key);
+
+            mCameraHandler.post(() -> MessageUtil.showToast(context, R.string.Screenshot_taken));
         } catch (Exception e) {
-            Log.e(TAG, "Snapshot failed", e);
-            should_snapshot = false;
+            Log.e(TAG, "Error taking snapshot", e);
+        }
+    }
+
+    /**
+     * Frames for the HTTP live preview, shared by every viewer.
+     */
+    public PreviewFrameRing getPreviewRing() {
+        return mPreviewRing;
+    }
+
+    /**
+     * While someone watches the preview, draws {@code texture} into a {@link #PREVIEW_WIDTH}-wide
+     * FBO at most every {@link #PREVIEW_FRAME_INTERVAL_NS} and reads it back like a snapshot. A
+     * frame is skipped while the previous one is still being encoded. Called with a surface
+     * current, after it is drawn; leaves the default framebuffer bound.
+     */
+    private void serviceLivePreview(FullFrameRectLetterboxNew blit, int texture, float[] texMatrix) {
+        if (previewReader != null && previewReader.hasPending()) {
+            collectPreview();
+        }
+        if (!mPreviewRing.hasViewers() || blit == null || eglCore == null || srcW <= 0 || srcH <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - mLastPreviewNs < PREVIEW_FRAME_INTERVAL_NS || mPreviewEncoding.get()) {
+            return;
+        }
+        try {
+            if (previewFbo == null) {
+                previewFbo = new FramebufferNew();
+            }
+            if (previewReader == null) {
+                previewReader = new PixelPackReaderNew(eglCore.getGlVersion());
+            }
+            int width = Math.min(PREVIEW_WIDTH, srcW) & ~1;
+            int height = (int) ((long) width * srcH / srcW) & ~1;
+            if (!previewFbo.ensureSize(width, height)) {
+                return;
+            }
+            previewFbo.bind();
+            GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            blit.drawFrame(texture, texMatrix);
+            boolean started = previewReader.start(width, height, null);
+            previewFbo.unbind();
+            if (started) {
+                mLastPreviewNs = now;
+                if (!previewReader.isAsync()) {
+                    collectPreview();
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Live preview readback failed", e);
+            if (previewFbo != null) {
+                previewFbo.unbind();
+            }
+        }
+    }
+
+    private void collectPreview() {
+        PixelPackReaderNew.Result result = previewReader.poll(false);
+        if (result == null || !mPreviewEncoding.compareAndSet(false, true)) {
+            return;
+        }
+        if (!submit(mPreviewExecutor, () -> encodePreview(result))) {
+            mPreviewEncoding.set(false);
+        }
+    }
+
+    /**
+     * JPEG-encodes a preview readback into the ring. Runs on the preview executor.
+     */
+    private void encodePreview(PixelPackReaderNew.Result result) {
+        try {
+            if (mPreviewEncoder == null) {
+                mPreviewEncoder = new StillJpegEncoder();
+                mPreviewEncoder.setQuality(PREVIEW_JPEG_QUALITY);
+                mPreviewJpeg = new PreviewJpegBuffer();
+            }
+            mPreviewJpeg.reset();
+            mPreviewEncoder.encodeRgba(result.pixels, result.width, result.height, true, mPreviewJpeg);
+            mPreviewRing.publish(mPreviewJpeg.buffer(), mPreviewJpeg.size());
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Live preview encode failed", e);
+        } finally {
+            mPreviewEncoding.set(false);
+        }
+    }
+
+    /** Reused JPEG output whose array is handed to the ring without a copy. */
+    private static final class PreviewJpegBuffer extends ByteArrayOutputStream {
+        PreviewJpegBuffer() {
+            super(64 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
         }
     }
 
@@ -1301,6 +1702,7 @@ public class SharedEglManager {
                     return;
                 }
                 mConnectionState.put(connectionId, state);
+                notifyStateChanged();
                 switch (state) {
                     case CONNECTED:
                         ConnectionStatistics statistics = mConnectionStatistics.get(connectionId);
@@ -1427,6 +1829,8 @@ public class SharedEglManager {
         if (mStreamer == null) {
             mStreamer = builder.build(Streamer.MODE.VIDEO_ONLY);
         }
+        mStreamFps = videoConfig.fps;
+        updatePacerFps();
 
         mRadioMode = AppPreference.getBool(AppPreference.KEY.STREAMING_RADIO_MODE, false);
         if (!mRadioMode) {
@@ -1478,7 +1882,9 @@ public class SharedEglManager {
             }
 
             @Override
-            public void onRecordStateChanged(Streamer.RECORD_STATE state, Uri uri, Streamer.SAVE_METHOD method) {}
+            public void onRecordStateChanged(Streamer.RECORD_STATE state, Uri uri, Streamer.SAVE_METHOD method) {
+                onRecorderStateChanged(state, uri);
+            }
 
             @Override
             public void onSnapshotStateChanged(Streamer.RECORD_STATE state, Uri uri, Streamer.SAVE_METHOD method) {}
@@ -1559,6 +1965,8 @@ public class SharedEglManager {
         if (mRecorder == null) {
             mRecorder = builder.build(Streamer.MODE.VIDEO_ONLY);
         }
+        mRecordFps = videoConfig.fps;
+        updatePacerFps();
 
         mRecorder.startVideoCapture();
         if (mServiceType == ServiceType.BgScreenCast) {
@@ -1751,6 +2159,7 @@ public class SharedEglManager {
             }
 
             mStreaming = true;
+            notifyStateChanged();
             createConnection();
             mCameraHandler.postDelayed(mConnectionCheckRunnable, CONNECTION_TIMEOUT);
             mCameraHandler.post(updateRunnable);
@@ -1791,6 +2200,7 @@ public class SharedEglManager {
             mConnectionId.clear();
             mConnectionState.clear();
             mConnectionStatistics.clear();
+            notifyStateChanged();
 
             if (AppPreference.getBool(AppPreference.KEY.RECORD_BROADCAST, false)) {
                 stopRecording(false);
@@ -1818,13 +2228,32 @@ public class SharedEglManager {
                 }
 
                 selectedTreeUri = Uri.parse(storage_location);
-                tempRecordingFile = getTempRecordingFile(context);
 
-                mRecorder.startRecord(tempRecordingFile);
+                mAvSync.reset();
+                mSplitOutgoing = null;
+                mRecordingSink = null;
+                if (useRecordingSink()) {
+                    mRecordingSink = openRecordingSink(selectedTreeUri);
+                }
+                tempRecordingFile = null;
+                if (mRecordingSink != null) {
+                    try {
+                        startRecordingSink(mRecordingSink, false);
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Recorder rejected the encrypting sink, using temp file", e);
+                        mRecordingSink = null;
+                    }
+                }
+                if (mRecordingSink == null) {
+                    tempRecordingFile = getTempRecordingFile(context, selectedTreeUri);
+                    mTempSink = recordIntoFile(tempRecordingFile, selectedTreeUri, false);
+                }
                 mRecording = true;
+                notifyStateChanged();
 
                 int splitTime = AppPreference.getInt(AppPreference.KEY.SPLIT_TIME, 10);
                 SPLIT_INTERVAL_MS = (long) splitTime * 60 * 1000;
+                reserveRecordingSpace(selectedTreeUri);
                 mCameraHandler.removeCallbacks(mSplitRunnable);
                 mCameraHandler.postDelayed(mSplitRunnable, SPLIT_INTERVAL_MS);
 
@@ -1844,43 +2273,393 @@ public class SharedEglManager {
             }
 
             if (mRecorder != null) {
+                // a sink finishes by itself once the recorder closes it
+                if (!isFromStartRecording && tempRecordingFile != null && mTempSink == null) {
+                    finishWhenStopped(tempRecordingFile, selectedTreeUri);
+                }
                 mRecorder.stopRecord();
-                mRecording = false;
-
-                if (!isFromStartRecording) {
-                    finishRecording();
+                if (mRecording) {
+                    Log.i(TAG, mAvSync.getSummary());
                 }
+                mRecording = false;
+                notifyStateChanged();
+                mRecordingSink = null;
+                mTempSink = null;
             }
         });
     }
 
+    /**
+     * Rolls the recording over to a new file at SPLIT_TIME without stopping the recorder.
+     * The recorder keeps its encoders running and switches muxers on the next keyframe, so no
+     * frames or audio are lost at the boundary; the closed segment is finalised on mSegmentExecutor.
+     */
     private void restartRecording() {
-        if (mRecorder != null && mRecording) {  // Add check for mRecording
+        if (mRecorder == null || !mRecording) {
+            return;
+        }
+        reserveRecordingSpace(selectedTreeUri);
+        if (mRecordingSink != null) {
+            splitRecordingSink();
+            return;
+        }
+        final File previous = tempRecordingFile;
+        final PreallocatedRecordingSink previousSink = mTempSink;
+        final Uri treeUri = selectedTreeUri;
+        final File next = getTempRecordingFile(context, treeUri);
+        // registered first, the recorder may report the old muxer stopped before splitRecord returns;
+        // a sink-backed segment is finished when the recorder releases the sink
+        if (previousSink == null) {
+            finishWhenStopped(previous, treeUri);
+        }
+        try {
+            mTempSink = recordIntoFile(next, treeUri, true);
+        } catch (Exception e) {
+            if (previous != null) {
+                mPendingSegments.remove(previous.getAbsolutePath());
+            }
+            Log.e(TAG, "Failed to split recording, restarting recorder", e);
             stopRecording(false);
             startRecording();
+            return;
+        }
+        tempRecordingFile = next;
+        if (previous != null) {
+            mSplitOutgoing = previous.getAbsolutePath();
+        }
+        mCameraHandler.removeCallbacks(mSplitRunnable);
+        mCameraHandler.postDelayed(mSplitRunnable, SPLIT_INTERVAL_MS);
+    }
+
+    /**
+     * Starts or splits the recorder into a temp file. On a removable card the file is written
+     * through a {@link PreallocatedRecordingSink}, which finishes the segment itself once the
+     * recorder releases it, by then truncated to what the muxer wrote.
+     *
+     * @return the sink, or null when the recorder writes the file directly
+     */
+    private PreallocatedRecordingSink recordIntoFile(File file, Uri treeUri, boolean split) {
+        if (PreallocatedRecordingSink.shouldUse(file)) {
+            try {
+                PreallocatedRecordingSink sink = PreallocatedRecordingSink.create(context, file,
+                        PreallocatedRecordingSink.expectedSegmentBytes());
+                sink.setListener(closed -> runOnSegmentExecutor(() -> finishRecording(file, treeUri)));
+                try {
+                    if (split) {
+                        mRecorder.splitRecord(sink.getFileDescriptor(), Uri.fromFile(file), Streamer.SAVE_METHOD.SAF);
+                    } else {
+                        mRecorder.startRecord(sink.getFileDescriptor(), Uri.fromFile(file), Streamer.SAVE_METHOD.SAF);
+                    }
+                    return sink;
+                } catch (RuntimeException e) {
+                    sink.abort();
+                    Log.w(TAG, "Recorder rejected the preallocated sink, recording directly: " + e.getMessage());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Preallocated sink unavailable, recording directly: " + e.getMessage());
+            }
+        }
+        if (split) {
+            mRecorder.splitRecord(file);
+        } else {
+            mRecorder.startRecord(file);
+        }
+        return null;
+    }
+
+    /**
+     * FIFO eviction on mSegmentExecutor, for the segment starting now and the one after it, so the
+     * next split already has its space.
+     */
+    private void reserveRecordingSpace(Uri treeUri) {
+        if (treeUri == null) return;
+        final long bytes = 2 * StorageQuotaManager.segmentBytes(SPLIT_INTERVAL_MS);
+        runOnSegmentExecutor(() -> StorageQuotaManager.get(context).ensureHeadroom(treeUri, bytes));
+    }
+
+    private boolean useRecordingSink() {
+        return AppPreference.getBool(AppPreference.KEY.FILE_ENCRYPTION, false)
+                && AppPreference.getBool(AppPreference.KEY.ENCRYPT_WHILE_RECORDING, true);
+    }
+
+    /**
+     * Opens an encrypting sink in the storage location, or returns null so the caller records into
+     * a temp file and encrypts afterwards (providers without seekable read/write descriptors).
+     */
+    private EncryptedRecordingSink openRecordingSink(Uri treeUri) {
+        final String key = AppPreference.getStr(AppPreference.KEY.ENCRYPTION_KEY, "12345678");
+        final String fileName = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".t3v";
+        try {
+            EncryptedRecordingSink sink = EncryptedRecordingSink.create(context, treeUri, fileName, key);
+            sink.setListener(this::onRecordingSinkClosed);
+            return sink;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Encrypting sink unavailable, using temp file: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void startRecordingSink(EncryptedRecordingSink sink, boolean split) {
+        try {
+            if (split) {
+                mRecorder.splitRecord(sink.getFileDescriptor(), sink.getUri(), Streamer.SAVE_METHOD.SAF);
+            } else {
+                mRecorder.startRecord(sink.getFileDescriptor(), sink.getUri(), Streamer.SAVE_METHOD.SAF);
+            }
+        } catch (RuntimeException e) {
+            sink.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Split for sink recordings. Document creation and key derivation run on mSegmentExecutor;
+     * the recorder switches to the new sink on the next keyframe and closes the old one, which
+     * then logs itself (onRecordingSinkClosed).
+     */
+    private void splitRecordingSink() {
+        final EncryptedRecordingSink current = mRecordingSink;
+        final Uri treeUri = selectedTreeUri;
+        runOnSegmentExecutor(() -> {
+            final EncryptedRecordingSink next = openRecordingSink(treeUri);
+            if (next == null) {
+                // keep writing into the current segment, the next split tries again
+                return;
+            }
+            mCameraHandler.post(() -> {
+                if (!mRecording || mRecorder == null || mRecordingSink != current) {
+                    next.abort();
+                    return;
+                }
+                try {
+                    startRecordingSink(next, true);
+                    mRecordingSink = next;
+                    mSplitOutgoing = current.getUri().getPath();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to split recording", e);
+                }
+            });
+        });
+        mCameraHandler.removeCallbacks(mSplitRunnable);
+        mCameraHandler.postDelayed(mSplitRunnable, SPLIT_INTERVAL_MS);
+    }
+
+    // Runs on the sink thread after the recorder closed the sink
+    private void onRecordingSinkClosed(EncryptedRecordingSink sink) {
+        runOnSegmentExecutor(() -> {
+            if (sink.getPlainSize() <= MIN_RECORDING_BYTES) {
+                sink.delete();
+                return;
+            }
+            final Streamer.Size size = recordSize;
+            final long timestamp = System.currentTimeMillis();
+            if (fileStoreDb != null) {
+                fileStoreDb.logFile(
+                    sink.getDisplayName(),
+                    sink.getUri().toString(),
+                    timestamp,
+                    "video",
+                    true,
+                    sink.getOpenDurationMs(),
+                    size != null ? size.width : 0,
+                    size != null ? size.height : 0,
+                    sink.getFileSize()
+                );
+                StorageQuotaManager.get(context).onFileLogged(sink.getUri().toString(), "video", timestamp,
+                        sink.getFileSize());
+            }
+            // decrypts only the first frame's chunks
+            ThumbnailCache.get(context).createFromEncrypted(sink.getUri().toString(), sink.getUri(), true,
+                    AppPreference.getStr(AppPreference.KEY.ENCRYPTION_KEY, "12345678"));
+        });
+    }
+
+    /**
+     * Splits the running recording now instead of waiting for SPLIT_TIME.
+     */
+    public void splitRecordingNow() {
+        mCameraHandler.post(this::restartRecording);
+    }
+
+    /**
+     * Segment work must not be lost with the executor: after {@link #shutdownExecutors()} it gets
+     * a thread of its own.
+     */
+    private void runOnSegmentExecutor(Runnable task) {
+        if (!submit(mSegmentExecutor, task)) {
+            new Thread(task, TAG + "-segment").start();
+        }
+    }
+
+    private static boolean submit(ExecutorService executor, Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Ends the worker threads once the recorder is released, on both paths that forget the
+     * singleton. Queued work still runs: segments waiting for a STOPPED callback are handed over
+     * first, as their files are closed by now, and the JPEG encoders are released last on their
+     * own threads.
+     */
+    private void shutdownExecutors() {
+        if (mSegmentExecutor.isShutdown()) return;
+        for (String path : new ArrayList<>(mPendingSegments.keySet())) {
+            Runnable finish = mPendingSegments.remove(path);
+            if (finish != null) {
+                mSegmentExecutor.execute(finish);
+            }
+        }
+        mSegmentExecutor.shutdown();
+        submit(mSnapshotExecutor, () -> {
+            if (mStillEncoder != null) {
+                mStillEncoder.release();
+                mStillEncoder = null;
+            }
+        });
+        mSnapshotExecutor.shutdown();
+        submit(mPreviewExecutor, () -> {
+            if (mPreviewEncoder != null) {
+                mPreviewEncoder.release();
+                mPreviewEncoder = null;
+            }
+        });
+        mPreviewExecutor.shutdown();
+    }
+
+    /**
+     * Finalises {@code file} on mSegmentExecutor once the recorder reports its muxer STOPPED, which
+     * is when the moov has been written. The recorder switches muxers on the first keyframe after
+     * splitRecord(), so this can be a GOP later; without a callback in time the segment is left in
+     * temp rather than copied half-written.
+     */
+    private void finishWhenStopped(File file, Uri treeUri) {
+        if (file == null) return;
+        final String path = file.getAbsolutePath();
+        mPendingSegments.put(path, () -> finishRecording(file, treeUri));
+        mCameraHandler.postDelayed(() -> {
+            if (mPendingSegments.remove(path) != null) {
+                Log.w(TAG, "No STOPPED for " + path + " in time, leaving it in temp");
+            }
+        }, SEGMENT_CLOSE_TIMEOUT_MS);
+    }
+
+    // Recorder listener, on the main thread
+    private void onRecorderStateChanged(Streamer.RECORD_STATE state, Uri uri) {
+        Log.d(TAG, "Recorder record state: " + state + " " + uri);
+        if (uri == null || uri.getPath() == null) return;
+        if ((state == Streamer.RECORD_STATE.STOPPED || state == Streamer.RECORD_STATE.FAILED)
+                && new File(uri.getPath()).getAbsolutePath().equals(mSplitOutgoing)) {
+            // the recorder switched muxers on the first keyframe after the split, the A/V
+            // segment ends here rather than when the split was asked for
+            mSplitOutgoing = null;
+            Log.i(TAG, mAvSync.getSummary());
+            mAvSync.reset();
+        }
+        if (state == Streamer.RECORD_STATE.STOPPED) {
+            Runnable finish = mPendingSegments.remove(new File(uri.getPath()).getAbsolutePath());
+            if (finish != null) {
+                runOnSegmentExecutor(finish);
+            }
+        } else if (state == Streamer.RECORD_STATE.FAILED
+                && mPendingSegments.remove(new File(uri.getPath()).getAbsolutePath()) != null) {
+            Log.e(TAG, "Muxer failed, leaving segment in temp: " + uri.getPath());
         }
     }
 
-    private void finishRecording() {
-        if (tempRecordingFile == null || selectedTreeUri == null) return;
+    // Runs on mSegmentExecutor
+    private void finishRecording(File recordingFile, Uri treeUri) {
+        if (recordingFile == null || treeUri == null) return;
 
-        final long fileSize = tempRecordingFile.length();
-        if (fileSize <= 512) {
-            tempRecordingFile.delete();
+        final long fileSize = recordingFile.length();
+        if (fileSize <= MIN_RECORDING_BYTES) {
+            recordingFile.delete();
             return;
         }
 
+        final SegmentListener listener = mSegmentListener;
+        if (listener != null) {
+            listener.onSegmentClosed(recordingFile);
+        }
+
         final boolean encrypt = AppPreference.getBool(AppPreference.KEY.FILE_ENCRYPTION, false);
         final String key = encrypt ? 
             AppPreference.getStr(AppPreference.KEY.ENCRYPTION_KEY, "12345678") : 
             null;
         
-        final String fileName = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        final String fileName = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date(recordingFile.lastModified()));
         final String fileExtension = encrypt ? ".t3v" : ".mp4";
         final String fileType = "video";
 
         // Save and log file
-        saveAndLogFile(tempRecordingFile, selectedTreeUri, fileName, fileExtension, fileType, encrypt, key);
+        saveAndLogFile(recordingFile, treeUri, fileName, fileExtension, fileType, encrypt, key);
+    }
+
+    /**
+     * Notified on the segment thread for every closed recording segment, before it is copied
+     * to the storage location and the temp file is deleted.
+     */
+    public interface SegmentListener {
+        void onSegmentClosed(File segment);
+    }
+
+    public void setSegmentListener(SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    /**
+     * Notified, on whichever thread made the change, when streaming or recording starts or stops,
+     * a connection changes state or the connection statistics are refreshed. Listeners only get a
+     * hint and read the state themselves, so they must not block. Registrations are kept across
+     * singleton resets.
+     */
+    public interface StateListener {
+        void onStateChanged();
+    }
+
+    public static void addStateListener(StateListener listener) {
+        sStateListeners.add(listener);
+    }
+
+    public static void removeStateListener(StateListener listener) {
+        sStateListeners.remove(listener);
+    }
+
+    private void notifyStateChanged() {
+        for (StateListener listener : sStateListeners) {
+            listener.onStateChanged();
+        }
+    }
+
+    /**
+     * Sum of the last measured bandwidth of the connections that are sending, in bits per second.
+     */
+    public long getStreamBandwidth() {
+        long bps = 0;
+        for (Map.Entry<Integer, ConnectionStatistics> entry : mConnectionStatistics.entrySet()) {
+            if (mConnectionState.get(entry.getKey()) == Streamer.CONNECTION_STATE.RECORD) {
+                bps += entry.getValue().getBandwidth();
+            }
+        }
+        return bps;
+    }
+
+    /**
+     * Connection name to state for the current streaming connections.
+     */
+    public Map<String, String> getConnectionStates() {
+        Map<String, String> states = new TreeMap<>();
+        for (Map.Entry<Integer, Streamer.CONNECTION_STATE> entry : mConnectionState.entrySet()) {
+            Connection connection = mConnectionId.get(entry.getKey());
+            if (connection != null) {
+                states.put(connection.name, entry.getValue().name());
+            }
+        }
+        return states;
     }
 
     // In your timestamp update method
@@ -1889,19 +2668,36 @@ public class SharedEglManager {
             return;
         }
 
-        mCameraHandler.post(() -> {
+        pendingOverlayText = text;
+        mCameraHandler.post(applyOverlayText);
+    }
+
+    /**
+     * Applies {@link #pendingOverlayText} on the GL thread. Digits and separators go through the
+     * glyph atlas (vertex rewrite only); anything the atlas lacks, e.g. localized digits, falls
+     * back to rasterising a bitmap into {@link #overlay}.
+     */
+    private final Runnable applyOverlayText = new Runnable() {
+        @Override
+        public void run() {
+            String text = pendingOverlayText;
+            if (text == null) return;
             synchronized (overlayLock) {
-                if (overlay == null) return;
+                if (overlay == null || text.equals(lastOverlayText)) return;
 
-                // Create bitmap with text
-                Bitmap timestampBitmap = createTimestampBitmap(text);
+                if (timestampText == null || !timestampText.setText(text)) {
+                    if (timestampText != null) timestampText.clear();
 
-                // Set the bitmap to the overlay
-                overlay.setImage(timestampBitmap);
+                    // Create bitmap with text
+                    Bitmap timestampBitmap = createTimestampBitmap(text);
+
+                    // Set the bitmap to the overlay
+                    overlay.setImage(timestampBitmap);
+                }
                 lastOverlayText = text;
             }
-        });
-    }
+        }
+    };
 
     private Bitmap createTimestampBitmap(String text) {
         // ---------- paint for the text (BLACK) -----------------------
@@ -1949,14 +2745,17 @@ public class SharedEglManager {
 
     public void setRotation(int rotation) {
         mRotation = rotation;
+        invalidateTransforms();
     }
 
     public void setMirror(boolean mirror) {
         mIsMirrored = mirror;
+        invalidateTransforms();
     }
 
     public void setFlip(boolean flip) {
         mIsFlipped = flip;
+        invalidateTransforms();
     }
 
     public void setNormal() {
@@ -1964,6 +2763,12 @@ public class SharedEglManager {
         mIsMirrored = false;
         mRotation = 0;
         mDisplayOrientation = 0;
+        invalidateTransforms();
+    }
+
+    // The cache is only touched on the EGL thread; setters may come from the UI
+    private void invalidateTransforms() {
+        mCameraHandler.post(mTransformCache::invalidate);
     }
 
     public void updateDisplayOrientation() {
@@ -1971,10 +2776,23 @@ public class SharedEglManager {
     }
 
     public static File getTempRecordingFile(Context context) {
-        File tempDir = new File(context.getExternalFilesDir(null), "temp");
+        return getTempRecordingFile(context, null);
+    }
+
+    /**
+     * Temp segment file; on the removable card holding {@code treeUri} when there is one.
+     */
+    public static File getTempRecordingFile(Context context, Uri treeUri) {
+        File base = PreallocatedRecordingSink.removableFilesDir(context, treeUri);
+        File tempDir = new File(base != null ? base : context.getExternalFilesDir(null), "temp");
         if (!tempDir.exists()) tempDir.mkdirs();
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-        return new File(tempDir, timeStamp + ".mp4");
+        File file = new File(tempDir, timeStamp + ".mp4");
+        // segments can be split within the same second
+        for (int i = 1; file.exists(); i++) {
+            file = new File(tempDir, timeStamp + "_" + i + ".mp4");
+        }
+        return file;
     }
 
     public static File getTempImageFile(Context context) {
@@ -2048,31 +2866,7 @@ public class SharedEglManager {
                 return false;
             }
 
-            byte[] salt = new byte[16];
-            byte[] iv = new byte[16];
-            SecureRandom random = new SecureRandom();
-            random.nextBytes(salt);
-            random.nextBytes(iv);
-
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 10000, 256);
-            SecretKey tmp = factory.generateSecret(spec);
-            SecretKeySpec secretKey = new SecretKeySpec(tmp.getEncoded(), "AES");
-
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
-
-            fileOut.write(salt);
-            fileOut.write(iv);
-
-            try (CipherOutputStream cipherOut = new CipherOutputStream(fileOut, cipher)) {
-                byte[] buffer = new byte[65536];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    cipherOut.write(buffer, 0, bytesRead);
-                }
-                cipherOut.flush();
-            }
+            EncryptedMediaWriter.encrypt(in, sourceFile.length(), fileOut, password);
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Encryption failed", e);
@@ -2159,6 +2953,8 @@ public class SharedEglManager {
     }
 
     public void onConfigurationChanged(Configuration newConfig) {
+        mPortrait = newConfig.orientation == Configuration.ORIENTATION_PORTRAIT;
+        invalidateTransforms();
         boolean newLandscape = newConfig.orientation == Configuration.ORIENTATION_LANDSCAPE;
         if (newLandscape != isLandscape()) {
             updateOverlayLayout(newLandscape);
@@ -2352,6 +3148,7 @@ public class SharedEglManager {
 
     public void release() {
         mClosing = true;
+        mFramePacer.stop();
         if (mCameraHandler != null) {
             mCameraHandler.removeCallbacks(timestampUpdater);
             mCameraHandler.removeCallbacks(updateRunnable);
@@ -2381,6 +3178,7 @@ public class SharedEglManager {
                     mRecorder.release();
                     mRecorder = null;
                 }
+                shutdownExecutors();
 
                 if (mMic != null) {
                     mMic.interrupt();
@@ -2400,10 +3198,12 @@ public class SharedEglManager {
                         overlay.release();
                         overlay = null;
                     }
-                    recycleBitmap(overlayBmp);
-                    overlayBmp = null;
+                    if (timestampText != null) {
+                        timestampText.release();
+                        timestampText = null;
+                    }
+                    lastOverlayText = null;
                 }
-                clearBitmapPool();
 
                 if (mCameraThread != null) {
                     mCameraThread.quitSafely();
@@ -2426,6 +3226,7 @@ public class SharedEglManager {
     }
 
     private void releaseEgl() {
+        mTransformCache.clear();
         if (cameraTexture != null) {
             cameraTexture.release();
             cameraTexture = null;
@@ -2457,13 +3258,25 @@ public class SharedEglManager {
             fullFrameBlit.release(false);
             fullFrameBlit = null;
         }
+
+        // GL objects died with the context; just drop the wrappers
+        frameFbo = null;
+        snapshotReader = null;
+        previewFbo = null;
+        previewReader = null;
+        if (fboBlit != null) {
+            fboBlit.release(false);
+            fboBlit = null;
+        }
     }
 
     public String getCurrentDateTime() {
-        Date now = new Date();
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-        sdf.setTimeZone(timeZone);
-        return sdf.format(now);
+        // Only called from the timestamp updater, so the cached formatter is single-threaded
+        if (timestampFormat == null) {
+            timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+            timestampFormat.setTimeZone(timeZone);
+        }
+        return timestampFormat.format(new Date());
     }
 
     private void handleError(String message) {
@@ -2514,25 +3327,6 @@ public class SharedEglManager {
         }
     }
 
-    private void recycleBitmap(Bitmap bitmap) {
-        if (bitmap == null || bitmap.isRecycled()) return;
-
-        if (bitmapPool.size() < 3) {
-            bitmapPool.offer(bitmap);
-        } else {
-            bitmap.recycle();
-        }
-    }
-
-    private void clearBitmapPool() {
-        for (Bitmap bmp : bitmapPool) {
-            if (!bmp.isRecycled()) {
-                bmp.recycle();
-            }
-        }
-        bitmapPool.clear();
-    }
-
     public CameraInfo findCameraInfo() {
         CameraInfo cameraInfo = null;
         List<CameraInfo> mCameraList = CameraManager.getCameraList(context, true);
@@ -2689,7 +3483,7 @@ public class SharedEglManager {
     // 1) Replace your existing helper with this version:
     private void drawTimestampOverlay(int dstW, int dstH, int srcW, int srcH) {
         // 1) bail if disabled
-        if (!AppPreference.getBool(AppPreference.KEY.TIMESTAMP, true)) return;
+        if (!RenderSettings.get().timestamp) return;
 
         // Ensure overlay is created and text is set
         if (overlay == null || lastOverlayText == null) return;
@@ -2698,6 +3492,16 @@ public class SharedEglManager {
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
 
+        if (timestampText != null && timestampText.hasText()) {
+            if (mServiceType == ServiceType.BgAudio) {
+                timestampText.drawOnFrame(dstW, dstH);
+            } else {
+                timestampText.drawOnFrame(srcW, srcH);
+            }
+            GLES20.glDisable(GLES20.GL_BLEND);
+            return;
+        }
+
         // Use the new method that takes camera dimensions into account
         if (mServiceType == ServiceType.BgAudio) {
             overlay.draw(dstW,dstH);
@@ -2754,6 +3558,7 @@ public class SharedEglManager {
                 if (eglCore != null && eglIsReady && !mIsShuttingDown) {
                     cameraTexture.updateTexImage();
                     cameraTexture.getTransformMatrix(mTmpMatrix);
+                    mFrameTimestampNs = cameraTexture.getTimestamp();
                 } else {
                     Log.w(TAG, "Skipping texture update - EGL context not ready or shutting down");
                 }
@@ -2878,6 +3683,7 @@ public class SharedEglManager {
         mStreamer = null;
         try { if (mRecorder != null) mRecorder.release(); } catch (Exception ignored) {}
         mRecorder = null;
+        shutdownExecutors();
 
         /* 5. release EGL / GL resources */
         releaseEgl();                               // existing helper
@@ -2886,10 +3692,10 @@ public class SharedEglManager {
         synchronized (overlayLock) {
             if (overlay != null) overlay.release();
             overlay = null;
-            recycleBitmap(overlayBmp);
-            overlayBmp = null;
+            if (timestampText != null) timestampText.release();
+            timestampText = null;
+            lastOverlayText = null;
         }
-        clearBitmapPool();
 
         /* 7. unregister receivers */
         unregisterBluetoothReceiver();
@@ -2962,11 +3768,12 @@ public class SharedEglManager {
         }
 
         // Add to database
+        final long timestamp = System.currentTimeMillis();
         if (fileStoreDb != null) {
             fileStoreDb.logFile(
                 fileName + fileExtension,
                 destPath,
-                System.currentTimeMillis(),
+                timestamp,
                 fileType,
                 encrypt,
                 duration,
@@ -2974,8 +3781,13 @@ public class SharedEglManager {
                 resolution != null ? resolution[1] : 0,
                 fileSize
             );
+            StorageQuotaManager.get(context).onFileLogged(destPath, fileType, timestamp, fileSize);
         }
 
+        // Thumbnail from the plaintext while it is still here; stored encrypted for encrypted files
+        ThumbnailCache.get(context).createFromFile(destPath, sourceFile, "video".equals(fileType),
+                encrypt ? encryptionKey : null);
+
         // Delete temp file
         boolean isDel = sourceFile.delete();
         if (!isDel) {
@@ -3021,12 +3833,21 @@ public class SharedEglManager {
         if (treeUri == null || !DocumentsContract.isTreeUri(treeUri)) {
             return "";
         }
-        DocumentFile pickedDir = DocumentFile.fromTreeUri(MyApp.getContext(), treeUri);
-        if (pickedDir == null) {
-            return "";
+        // one children query; findFile() builds a DocumentFile (and an IPC) per child
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        String[] projection = {DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME};
+        try (Cursor cursor = MyApp.getContext().getContentResolver().query(childrenUri, projection, null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                if (fileName.equals(cursor.getString(1))) {
+                    return DocumentsContract.buildDocumentUriUsingTree(treeUri, cursor.getString(0)).toString();
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "getDocumentFilePath: " + e.getMessage());
         }
-        DocumentFile file = pickedDir.findFile(fileName);
-        return file != null ? file.getUri().toString() : "";
+        return "";
     }
 
     // Video resolution helper
@@ -3146,31 +3967,7 @@ public class SharedEglManager {
                 return false;
             }
 
-            byte[] salt = new byte[16];
-            byte[] iv = new byte[16];
-            SecureRandom random = new SecureRandom();
-            random.nextBytes(salt);
-            random.nextBytes(iv);
-
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 10000, 256);
-            SecretKey tmp = factory.generateSecret(spec);
-            SecretKeySpec secretKey = new SecretKeySpec(tmp.getEncoded(), "AES");
-
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
-
-            fileOut.write(salt);
-            fileOut.write(iv);
-
-            try (CipherOutputStream cipherOut = new CipherOutputStream(fileOut, cipher)) {
-                byte[] buffer = new byte[65536];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    cipherOut.write(buffer, 0, bytesRead);
-                }
-                cipherOut.flush();
-            }
+            EncryptedMediaWriter.encrypt(in, sourceFile.length(), fileOut, password);
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Encryption failed", e);
@@ -0,0 +1,150 @@
+package com.checkmate.android.service.SharedEGL;
+
+import android.opengl.GLES20;
+
+import com.checkmate.android.util.libgraph.FullFrameRectLetterboxNew;
+
+/**
+ * Per-surface cache of the aspect-fit viewport and vertex transform used by
+ * {@link SharedEglManager}.
+ * <p>
+ * An entry is keyed by the surface and its source/destination sizes, and is stamped with the
+ * generation that was current when it was built. {@link #invalidate} bumps the generation; it is
+ * called from the rotation/mirror/flip setters and on configuration changes, so the steady-state
+ * draw path neither allocates nor rebuilds matrices. Only used on the EGL thread.
+ */
+final class SurfaceTransformCache {
+    // display, encoder, recorder, plus one spare for surfaces swapped in during a reconfigure
+    private static final int CAPACITY = 4;
+
+    static final class Entry {
+        Object surface;
+        int srcW;
+        int srcH;
+        int dstW;
+        int dstH;
+        int generation;
+        int vpX;
+        int vpY;
+        int vpWidth;
+        int vpHeight;
+        final float[] transform = new float[16];
+
+        void applyViewport() {
+            GLES20.glViewport(vpX, vpY, vpWidth, vpHeight);
+        }
+    }
+
+    private final Entry[] mEntries = new Entry[CAPACITY];
+    private int mNextEvict;
+    private int mGeneration = 1;
+    private int mBuilds;
+
+    SurfaceTransformCache() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mEntries[i] = new Entry();
+        }
+    }
+
+    /**
+     * Marks every entry stale. Cheap; entries are rebuilt lazily on their next lookup.
+     */
+    void invalidate() {
+        mGeneration++;
+    }
+
+    /**
+     * Drops the entry for a surface that is being released.
+     */
+    void remove(Object surface) {
+        for (Entry e : mEntries) {
+            if (e.surface == surface) {
+                e.surface = null;
+            }
+        }
+    }
+
+    void clear() {
+        for (Entry e : mEntries) {
+            e.surface = null;
+        }
+    }
+
+    /** Number of times an entry had to be (re)built; for diagnostics. */
+    int getBuildCount() {
+        return mBuilds;
+    }
+
+    /**
+     * Returns the entry for this surface and geometry, rebuilding it if the sizes or the
+     * transform generation changed.
+     */
+    Entry get(Object surface, int srcW, int srcH, int dstW, int dstH,
+              int rotation, boolean mirror, boolean flip) {
+        Entry entry = null;
+        for (Entry e : mEntries) {
+            if (e.surface == surface) {
+                entry = e;
+                break;
+            }
+        }
+        if (entry != null && entry.generation == mGeneration
+                && entry.srcW == srcW && entry.srcH == srcH
+                && entry.dstW == dstW && entry.dstH == dstH) {
+            return entry;
+        }
+        if (entry == null) {
+            entry = claim();
+        }
+        build(entry, surface, srcW, srcH, dstW, dstH, rotation, mirror, flip);
+        return entry;
+    }
+
+    private Entry claim() {
+        for (Entry e : mEntries) {
+            if (e.surface == null) {
+                return e;
+            }
+        }
+        Entry e = mEntries[mNextEvict];
+        mNextEvict = (mNextEvict + 1) % CAPACITY;
+        return e;
+    }
+
+    private void build(Entry entry, Object surface, int srcW, int srcH, int dstW, int dstH,
+                       int rotation, boolean mirror, boolean flip) {
+        entry.surface = surface;
+        entry.srcW = srcW;
+        entry.srcH = srcH;
+        entry.dstW = dstW;
+        entry.dstH = dstH;
+        entry.generation = mGeneration;
+        mBuilds++;
+
+        float srcAspect = (float) srcW / srcH;
+        float dstAspect = (float) dstW / dstH;
+        if (srcAspect > dstAspect) {
+            // Source is wider - fit to width
+            entry.vpWidth = dstW;
+            entry.vpHeight = (int) (dstW / srcAspect);
+            entry.vpX = 0;
+            entry.vpY = (dstH - entry.vpHeight) / 2;
+        } else {
+            // Source is taller - fit to height
+            entry.vpHeight = dstH;
+            entry.vpWidth = (int) (dstH * srcAspect);
+            entry.vpX = (dstW - entry.vpWidth) / 2;
+            entry.vpY = 0;
+        }
+
+        if (mirror && flip) {
+            FullFrameRectLetterboxNew.flipMirrorTransform(entry.transform, rotation);
+        } else if (mirror) {
+            FullFrameRectLetterboxNew.mirrorYTransform(entry.transform, (rotation + 180) % 360, 1f);
+        } else if (flip) {
+            FullFrameRectLetterboxNew.mirrorYTransform(entry.transform, rotation, 1f);
+        } else {
+            FullFrameRectLetterboxNew.xTransform(entry.transform, rotation, 1f);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.ImageView;
@@ -15,15 +16,20 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.checkmate.android.R;
+import com.checkmate.android.util.DecryptingMediaDataSource;
+import com.checkmate.android.util.EncryptionKeyManager;
 import com.checkmate.android.util.MediaMetadataUtils;
 import com.github.chrisbanes.photoview.PhotoView;
 
 import java.lang.ref.WeakReference;
 
 public class ImageViewerActivity extends AppCompatActivity {
+    private static final String TAG = "ImageViewerActivity";
     
     public static final String EXTRA_IMAGE_URI = "extra_image_uri";
     public static final String EXTRA_IS_ENCRYPTED = "extra_is_encrypted";
+    // EncryptionKeyManager#holdPassword handle, released when this screen finishes
+    public static final String EXTRA_PASSWORD_HANDLE = "extra_password_handle";
     
     private PhotoView photoView;
     private ImageView btnClose;
@@ -34,6 +40,9 @@ public class ImageViewerActivity extends AppCompatActivity {
     
     private Uri imageUri;
     private boolean isEncrypted;
+    private String password;
+    private String passwordHandle;
+    private byte[] plainImage; // decrypted in memory, never written out
     private boolean isMetadataVisible = false;
     private MediaMetadataUtils.ImageMetadata metadata;
 
@@ -77,6 +86,14 @@ public class ImageViewerActivity extends AppCompatActivity {
         if (intent != null) {
             String uriString = intent.getStringExtra(EXTRA_IMAGE_URI);
             isEncrypted = intent.getBooleanExtra(EXTRA_IS_ENCRYPTED, false);
+            passwordHandle = intent.getStringExtra(EXTRA_PASSWORD_HANDLE);
+            password = EncryptionKeyManager.getInstance().heldPassword(passwordHandle);
+            if (isEncrypted && password == null) {
+                // the process was restarted since the password was entered
+                Log.w(TAG, "Password no longer held, closing");
+                finish();
+                return;
+            }
             
             if (uriString != null) {
                 imageUri = Uri.parse(uriString);
@@ -107,7 +124,9 @@ public class ImageViewerActivity extends AppCompatActivity {
     }
     
     private void loadImage() {
-        if (imageUri != null) {
+        if (imageUri != null && isEncrypted && password != null) {
+            new DecryptImageTask(this, password).execute(imageUri);
+        } else if (imageUri != null) {
             Glide.with(this)
                     .load(imageUri)
                     .diskCacheStrategy(DiskCacheStrategy.ALL)
@@ -117,8 +136,60 @@ public class ImageViewerActivity extends AppCompatActivity {
     }
     
     private void loadMetadata() {
-        if (imageUri != null) {
-            new LoadMetadataTask(this).execute(imageUri);
+        if (imageUri != null && isEncrypted && password != null) {
+            // Comes with the decrypted bytes
+            if (plainImage != null) {
+                new LoadMetadataTask(this, plainImage).execute(imageUri);
+            }
+        } else if (imageUri != null) {
+            new LoadMetadataTask(this, null).execute(imageUri);
+        }
+    }
+
+    private void showDecryptedImage(byte[] plain) {
+        plainImage = plain;
+        Glide.with(this)
+                .load(plain)
+                .diskCacheStrategy(DiskCacheStrategy.NONE)
+                .error(R.mipmap.ic_launcher)
+                .into(photoView);
+        new LoadMetadataTask(this, plain).execute(imageUri);
+    }
+
+    private static class DecryptImageTask extends AsyncTask<Uri, Void, byte[]> {
+        private final WeakReference<ImageViewerActivity> activityRef;
+        private final String password;
+
+        DecryptImageTask(ImageViewerActivity activity, String password) {
+            activityRef = new WeakReference<>(activity);
+            this.password = password;
+        }
+
+        @Override
+        protected byte[] doInBackground(Uri... uris) {
+            ImageViewerActivity activity = activityRef.get();
+            if (activity == null || uris.length == 0) {
+                return null;
+            }
+            try (DecryptingMediaDataSource source = DecryptingMediaDataSource.open(activity, uris[0], password)) {
+                return source.readFully();
+            } catch (Exception e) {
+                Log.e(TAG, "Error decrypting image", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(byte[] result) {
+            ImageViewerActivity activity = activityRef.get();
+            if (activity == null || activity.isFinishing()) {
+                return;
+            }
+            if (result != null) {
+                activity.showDecryptedImage(result);
+            } else {
+                activity.photoView.setImageResource(R.mipmap.ic_launcher);
+            }
         }
     }
     
@@ -156,9 +227,11 @@ public class ImageViewerActivity extends AppCompatActivity {
     
     private static class LoadMetadataTask extends AsyncTask<Uri, Void, MediaMetadataUtils.ImageMetadata> {
         private final WeakReference<ImageViewerActivity> activityRef;
+        private final byte[] plain;
         
-        LoadMetadataTask(ImageViewerActivity activity) {
+        LoadMetadataTask(ImageViewerActivity activity, byte[] plain) {
             activityRef = new WeakReference<>(activity);
+            this.plain = plain;
         }
         
         @Override
@@ -168,7 +241,7 @@ public class ImageViewerActivity extends AppCompatActivity {
                 return null;
             }
             
-            return MediaMetadataUtils.extractImageMetadata(activity, uris[0]);
+            return MediaMetadataUtils.extractImageMetadata(activity, uris[0], plain);
         }
         
         @Override
@@ -195,6 +268,14 @@ public class ImageViewerActivity extends AppCompatActivity {
                 View.SYSTEM_UI_FLAG_IMMERSIVE_STICKY);
     }
     
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing() && passwordHandle != null) {
+            EncryptionKeyManager.getInstance().releasePassword(passwordHandle);
+        }
+    }
+    
     @Override
     public void onBackPressed() {
         if (isMetadataVisible) {
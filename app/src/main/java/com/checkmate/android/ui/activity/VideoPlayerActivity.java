@@ -4,6 +4,7 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.ImageView;
@@ -13,20 +14,27 @@ import android.widget.TextView;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.checkmate.android.R;
+import com.checkmate.android.util.DecryptingDataSource;
+import com.checkmate.android.util.DecryptingMediaDataSource;
+import com.checkmate.android.util.EncryptionKeyManager;
 import com.checkmate.android.util.MediaMetadataUtils;
 import com.google.android.exoplayer2.ExoPlayer;
 import com.google.android.exoplayer2.MediaItem;
 import com.google.android.exoplayer2.PlaybackException;
 import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.source.ProgressiveMediaSource;
 import com.google.android.exoplayer2.ui.PlayerView;
 import com.google.android.exoplayer2.util.Util;
 
 import java.lang.ref.WeakReference;
 
 public class VideoPlayerActivity extends AppCompatActivity {
+    private static final String TAG = "VideoPlayerActivity";
     
     public static final String EXTRA_VIDEO_URI = "extra_video_uri";
     public static final String EXTRA_IS_ENCRYPTED = "extra_is_encrypted";
+    // EncryptionKeyManager#holdPassword handle, released when this screen finishes
+    public static final String EXTRA_PASSWORD_HANDLE = "extra_password_handle";
     
     private PlayerView playerView;
     private ExoPlayer player;
@@ -38,6 +46,9 @@ public class VideoPlayerActivity extends AppCompatActivity {
     
     private Uri videoUri;
     private boolean isEncrypted;
+    private String password;
+    private String passwordHandle;
+    private DecryptingDataSource.Factory decryptingFactory;
     private boolean isMetadataVisible = false;
     private MediaMetadataUtils.VideoMetadata metadata;
     private boolean playWhenReady = true;
@@ -89,6 +100,14 @@ public class VideoPlayerActivity extends AppCompatActivity {
         if (intent != null) {
             String uriString = intent.getStringExtra(EXTRA_VIDEO_URI);
             isEncrypted = intent.getBooleanExtra(EXTRA_IS_ENCRYPTED, false);
+            passwordHandle = intent.getStringExtra(EXTRA_PASSWORD_HANDLE);
+            password = EncryptionKeyManager.getInstance().heldPassword(passwordHandle);
+            if (isEncrypted && password == null) {
+                // the process was restarted since the password was entered
+                Log.w(TAG, "Password no longer held, closing");
+                finish();
+                return;
+            }
             
             if (uriString != null) {
                 videoUri = Uri.parse(uriString);
@@ -130,7 +149,14 @@ public class VideoPlayerActivity extends AppCompatActivity {
             playerView.setPlayer(player);
             
             MediaItem mediaItem = MediaItem.fromUri(videoUri);
-            player.setMediaItem(mediaItem);
+            if (isEncrypted && password != null) {
+                // Decrypts the chunks the extractor asks for, nothing is written to storage
+                decryptingFactory = new DecryptingDataSource.Factory(this, videoUri, password);
+                player.setMediaSource(new ProgressiveMediaSource.Factory(decryptingFactory)
+                        .createMediaSource(mediaItem));
+            } else {
+                player.setMediaItem(mediaItem);
+            }
             
             player.setPlayWhenReady(playWhenReady);
             player.seekTo(currentWindow, playbackPosition);
@@ -158,7 +184,7 @@ public class VideoPlayerActivity extends AppCompatActivity {
     
     private void loadMetadata() {
         if (videoUri != null) {
-            new LoadMetadataTask(this).execute(videoUri);
+            new LoadMetadataTask(this, isEncrypted ? password : null).execute(videoUri);
         }
     }
     
@@ -184,9 +210,11 @@ public class VideoPlayerActivity extends AppCompatActivity {
     
     private static class LoadMetadataTask extends AsyncTask<Uri, Void, MediaMetadataUtils.VideoMetadata> {
         private final WeakReference<VideoPlayerActivity> activityRef;
+        private final String password;
         
-        LoadMetadataTask(VideoPlayerActivity activity) {
+        LoadMetadataTask(VideoPlayerActivity activity, String password) {
             activityRef = new WeakReference<>(activity);
+            this.password = password;
         }
         
         @Override
@@ -196,6 +224,16 @@ public class VideoPlayerActivity extends AppCompatActivity {
                 return null;
             }
             
+            if (password != null) {
+                // Own source: the retriever closes it on release
+                try {
+                    DecryptingMediaDataSource source = DecryptingMediaDataSource.open(activity, uris[0], password);
+                    return MediaMetadataUtils.extractVideoMetadata(activity, uris[0], source);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error opening encrypted video for metadata", e);
+                    return null;
+                }
+            }
             return MediaMetadataUtils.extractVideoMetadata(activity, uris[0]);
         }
         
@@ -259,6 +297,18 @@ public class VideoPlayerActivity extends AppCompatActivity {
             player.release();
             player = null;
         }
+        if (decryptingFactory != null) {
+            decryptingFactory.close();
+            decryptingFactory = null;
+        }
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing() && passwordHandle != null) {
+            EncryptionKeyManager.getInstance().releasePassword(passwordHandle);
+        }
     }
     
     @Override
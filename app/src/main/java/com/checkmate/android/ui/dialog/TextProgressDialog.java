@@ -48,6 +48,11 @@ public class TextProgressDialog extends Dialog {
 		message.setText(str_message);
 	}
 
+	public void setMessage(String text) {
+		str_message = text;
+		message.setText(text);
+	}
+
 	@Override
 	public void show() {
 		// we are using try - catch in order to prevent crashing issue
@@ -3,6 +3,7 @@ package com.checkmate.android.ui.fragment;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
@@ -27,7 +28,6 @@ import androidx.core.content.FileProvider;
 import androidx.documentfile.provider.DocumentFile;
 import androidx.lifecycle.ViewModelProvider;
 
-import com.bumptech.glide.Glide;
 import com.checkmate.android.AppPreference;
 import com.checkmate.android.R;
 import com.checkmate.android.database.FileStoreDb;
@@ -35,8 +35,11 @@ import com.checkmate.android.model.Media;
 import com.checkmate.android.ui.view.DragListView;
 import com.checkmate.android.ui.activity.ImageViewerActivity;
 import com.checkmate.android.ui.activity.VideoPlayerActivity;
+import com.checkmate.android.util.EncryptedMediaReader;
+import com.checkmate.android.util.EncryptionKeyManager;
 import com.checkmate.android.util.MessageUtil;
 import com.checkmate.android.util.ResourceUtil;
+import com.checkmate.android.util.ThumbnailCache;
 import com.checkmate.android.viewmodels.EventType;
 import com.checkmate.android.viewmodels.SharedViewModel;
 import com.kongzue.dialogx.dialogs.MessageDialog;
@@ -47,7 +50,6 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
@@ -55,21 +57,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
-
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
 public class PlaybackFragment extends BaseFragment
         implements DragListView.OnRefreshLoadingMoreListener {
@@ -85,6 +76,11 @@ public class PlaybackFragment extends BaseFragment
     private List<Media> mDataList = new ArrayList<>();
     private ListAdapter adapter;
     private FileStoreDb fileStoreDb;
+    private LoadPageTask pageTask;
+    private MetadataTask metadataTask;
+
+    private static final int PAGE_SIZE = 50;
+    private static final int METADATA_BATCH = 25;
 
     // UI references
     DragListView list_view;
@@ -121,6 +117,10 @@ public class PlaybackFragment extends BaseFragment
     @Override
     public void onDetach() {
         super.onDetach();
+        if (metadataTask != null) {
+            metadataTask.cancel(false);
+            metadataTask = null;
+        }
         if (fileStoreDb != null) {
             fileStoreDb.close();
         }
@@ -277,64 +277,75 @@ public class PlaybackFragment extends BaseFragment
         builder.setView(input);
         builder.setPositiveButton("OK", (dialog, which) -> {
             String password = input.getText().toString();
-            try {
-                File tempDecryptedFile = File.createTempFile("temp_decrypted", ".mp4", getActivity().getCacheDir());
-                boolean result = decryptFile(media.contentUri, tempDecryptedFile, password);
-                if (result) {
-                    Uri fileUri = FileProvider.getUriForFile(getActivity(), getActivity().getPackageName() + ".provider", tempDecryptedFile);
-                    
-                    // Launch appropriate in-app viewer based on mime type
-                    Intent intent;
-                    if (mimeType.startsWith("video/")) {
-                        intent = new Intent(getActivity(), VideoPlayerActivity.class);
-                        intent.putExtra(VideoPlayerActivity.EXTRA_VIDEO_URI, fileUri.toString());
-                        intent.putExtra(VideoPlayerActivity.EXTRA_IS_ENCRYPTED, true);
-                    } else {
-                        intent = new Intent(getActivity(), ImageViewerActivity.class);
-                        intent.putExtra(ImageViewerActivity.EXTRA_IMAGE_URI, fileUri.toString());
-                        intent.putExtra(ImageViewerActivity.EXTRA_IS_ENCRYPTED, true);
-                    }
-                    intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                    startActivity(intent);
-                } else {
-                    MessageUtil.showToast(getActivity(), "Failed to decrypt");
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                MessageUtil.showToast(getActivity(), e.getLocalizedMessage());
-            }
+            new OpenEncryptedTask(media, mimeType, password).execute();
         });
         builder.setNegativeButton("Cancel", (dialog, which) -> dialog.cancel());
         builder.show();
     }
 
-    public boolean decryptFile(Uri encryptedUri, File outputFile, String password) {
-        try (InputStream fis = requireContext().getContentResolver().openInputStream(encryptedUri);
-             FileOutputStream fos = new FileOutputStream(outputFile)) {
-            if (fis == null) return false;
-
-            byte[] salt = new byte[16];
-            byte[] iv = new byte[16];
-            if (fis.read(salt) != salt.length || fis.read(iv) != iv.length) {
-                return false;
-            }
-
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 10000, 256);
-            SecretKey tmp = factory.generateSecret(spec);
-            SecretKeySpec secret = new SecretKeySpec(tmp.getEncoded(), "AES");
+    /**
+     * Checks the password off the main thread (key derivation plus the first chunk) and hands the
+     * original document to the viewer, which decrypts on demand instead of from a temp copy.
+     */
+    private class OpenEncryptedTask extends AsyncTask<Void, Void, Exception> {
+        private final Media media;
+        private final String mimeType;
+        private final String password;
+        private boolean partial;
+
+        OpenEncryptedTask(Media media, String mimeType, String password) {
+            this.media = media;
+            this.mimeType = mimeType;
+            this.password = password;
+        }
 
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
+        @Override
+        protected Exception doInBackground(Void... voids) {
+            try (EncryptedMediaReader reader = EncryptedMediaReader.open(requireContext(), media.contentUri, password)) {
+                partial = !reader.isComplete();
+                return null;
+            } catch (Exception e) {
+                return e;
+            }
+        }
 
-            try (CipherInputStream cis = new CipherInputStream(fis, cipher)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = cis.read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesRead);
-                }
-                fos.flush();
+        @Override
+        protected void onPostExecute(Exception error) {
+            if (!isAdded()) {
+                return;
+            }
+            if (error != null) {
+                Log.e("OpenEncrypted", "Failed to open encrypted file", error);
+                MessageUtil.showToast(getActivity(), "Failed to decrypt");
+                return;
+            }
+            if (partial) {
+                // the app stopped before the recording was finished; the tail may be missing
+                MessageUtil.showToast(getActivity(), "Unfinished recording: showing the part that was saved", true);
+            }
+            // the viewer looks the password up by handle; it never goes into the Intent
+            String passwordHandle = EncryptionKeyManager.getInstance().holdPassword(password);
+            Intent intent;
+            if (mimeType.startsWith("video/")) {
+                intent = new Intent(getActivity(), VideoPlayerActivity.class);
+                intent.putExtra(VideoPlayerActivity.EXTRA_VIDEO_URI, media.contentUri.toString());
+                intent.putExtra(VideoPlayerActivity.EXTRA_IS_ENCRYPTED, true);
+                intent.putExtra(VideoPlayerActivity.EXTRA_PASSWORD_HANDLE, passwordHandle);
+            } else {
+                intent = new Intent(getActivity(), ImageViewerActivity.class);
+                intent.putExtra(ImageViewerActivity.EXTRA_IMAGE_URI, media.contentUri.toString());
+                intent.putExtra(ImageViewerActivity.EXTRA_IS_ENCRYPTED, true);
+                intent.putExtra(ImageViewerActivity.EXTRA_PASSWORD_HANDLE, passwordHandle);
             }
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            startActivity(intent);
+        }
+    }
+
+    public boolean decryptFile(Uri encryptedUri, File outputFile, String password) {
+        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
+            // reads v2, v1 and the sink's CTR stream
+            EncryptedMediaReader.decryptTo(requireContext(), encryptedUri, password, fos);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -361,145 +372,112 @@ public class PlaybackFragment extends BaseFragment
     }
 
     @Override
-    public void onDragLoadMore() {}
+    public void onDragLoadMore() {
+        if (treeUri == null || pageTask != null) {
+            list_view.mIsLoading = false;
+            list_view.onLoadMoreComplete(true);
+            return;
+        }
+        pageTask = new LoadPageTask(mDataList.isEmpty() ? null : mDataList.get(mDataList.size() - 1));
+        pageTask.execute();
+    }
 
     private void loadMediaFromAllSources() {
         txt_no_data.setVisibility(View.GONE);
+        if (metadataTask != null) {
+            metadataTask.cancel(false);
+            metadataTask = null;
+        }
         new LoadAllMediaTask().execute();
     }
-    
-    private void loadFromTreeUriSingleDirectory() {
-        if (treeUri == null) {
-            // Load from file paths instead
-            loadMediaFromAllSources();
-            return;
+
+    private void showMedia(List<Media> media) {
+        mDataList.clear();
+        mDataList.addAll(media);
+        adapter.notifyDataSetChanged();
+
+        // Center the no data message and make it more prominent
+        if (mDataList.isEmpty()) {
+            txt_no_data.setVisibility(View.VISIBLE);
+            txt_no_data.setText("No media files found\nPull down to refresh");
+            list_view.setVisibility(View.GONE);
+        } else {
+            txt_no_data.setVisibility(View.GONE);
+            list_view.setVisibility(View.VISIBLE);
         }
-        txt_no_data.setVisibility(View.GONE);
-        new LoadDirectoryTask().execute(treeUri);
     }
 
+    private void setHasMorePages(boolean hasMore) {
+        list_view.mIsLoading = false;
+        list_view.mIsEnd = !hasMore;
+        list_view.onLoadMoreComplete(!hasMore);
+    }
 
-    private class LoadDirectoryTask extends AsyncTask<Uri, Void, List<Media>> {
-        @Override
-        protected List<Media> doInBackground(Uri... uris) {
-            List<Media> result = new ArrayList<>();
-            if (treeUri == null || treeUri.toString().isEmpty()) {
-                return result;
-            }
+    // DocumentFile for delete; fromSingleUri does no IPC until it is used
+    private List<Media> attachFiles(Context context, List<Media> page) {
+        for (Media media : page) {
+            media.file = DocumentFile.fromSingleUri(context, media.contentUri);
+        }
+        return page;
+    }
 
-            Context context = requireContext();
-            DocumentFile rootDoc = DocumentFile.fromTreeUri(context, treeUri);
-            if (rootDoc == null || !rootDoc.isDirectory()) {
-                return result;
-            }
+    /**
+     * Next page after the last row shown, by timestamp and id rather than by offset, so rows the
+     * index gained or lost meanwhile neither repeat nor skip entries.
+     */
+    private class LoadPageTask extends AsyncTask<Void, Void, List<Media>> {
+        private final Media last;
+        private final Context context = requireContext().getApplicationContext();
 
-            // Get existing records from DB
-            Map<String, Media> dbMediaMap = new HashMap<>();
-            List<Media> dbMediaList = fileStoreDb.getMediaForPath(treeUri.toString());
-            for (Media media : dbMediaList) {
-                // Use URI as key to ensure uniqueness
-                dbMediaMap.put(media.contentUri.toString(), media);
-            }
+        LoadPageTask(Media last) {
+            this.last = last;
+        }
 
-            // Create a set to track files we've found in directory
-            Set<String> foundUris = new HashSet<>();
-
-            // Scan directory
-            DocumentFile[] children = rootDoc.listFiles();
-            if (children == null) return result;
-
-            for (DocumentFile doc : children) {
-                if (doc.isDirectory()) continue;
-                String name = doc.getName();
-                if (TextUtils.isEmpty(name)) continue;
-
-                Uri contentUri = doc.getUri();
-                String uriString = contentUri.toString();
-                foundUris.add(uriString);
-
-                Media media = dbMediaMap.get(uriString);
-
-                // Create new media if doesn't exist in DB
-                if (media == null) {
-                    media = new Media();
-                    media.name = name;
-                    media.date = new Date(doc.lastModified());
-                    media.file = doc;
-                    media.contentUri = contentUri;
-
-                    String lowerName = name.toLowerCase();
-                    if (lowerName.endsWith(".t3v")) {
-                        media.type = Media.TYPE.VIDEO;
-                        media.is_encrypted = true;
-                    } else if (lowerName.endsWith(".t3j")) {
-                        media.type = Media.TYPE.PHOTO;
-                        media.is_encrypted = true;
-                    } else if (lowerName.endsWith(".mp4") || lowerName.endsWith(".mov") ||
-                            lowerName.endsWith(".mkv") || lowerName.endsWith(".avi") ||
-                            lowerName.endsWith(".3gp") || lowerName.endsWith(".webm")) {
-                        media.type = Media.TYPE.VIDEO;
-                    } else if (lowerName.endsWith(".jpg") || lowerName.endsWith(".jpeg") ||
-                            lowerName.endsWith(".png") || lowerName.endsWith(".gif") ||
-                            lowerName.endsWith(".bmp") || lowerName.endsWith(".webp")) {
-                        media.type = Media.TYPE.IMAGE;
-                    } else {
-                        // Skip non-media files - only include VIDEO, PHOTO, and IMAGE types
-                        continue;
-                    }
+        @Override
+        protected List<Media> doInBackground(Void... voids) {
+            String tree = treeUri.toString();
+            return attachFiles(context, last == null
+                    ? fileStoreDb.queryPage(tree, 0, PAGE_SIZE)
+                    : fileStoreDb.queryPageAfter(tree, last.date.getTime(), last.id, PAGE_SIZE));
+        }
 
-                    // Extract and store metadata for non-encrypted files
-                    if (!media.is_encrypted) {
-                        extractAndStoreMetadata(context, media);
-                    }
+        @Override
+        protected void onPostExecute(List<Media> result) {
+            pageTask = null;
+            if (!isAdded()) return;
+            mDataList.addAll(result);
+            adapter.notifyDataSetChanged();
+            setHasMorePages(result.size() == PAGE_SIZE);
+        }
+    }
 
-                    // Insert into database
-                    fileStoreDb.logFile(
-                            media.name,
-                            uriString,
-                            media.date.getTime(),
-                            media.type == Media.TYPE.VIDEO ? "video" : 
-                            media.type == Media.TYPE.IMAGE ? "image" : "photo",
-                            media.is_encrypted,
-                            media.duration,
-                            media.resolutionWidth,
-                            media.resolutionHeight,
-                            media.fileSize
-                    );
-
-                    // Add to result list
-                    result.add(media);
-                } else {
-                    // Update existing media object with current DocumentFile
-                    media.file = doc;
-                    result.add(media);
-                }
-            }
+    /**
+     * Reads duration and resolution for unencrypted files the index does not have them for yet,
+     * a batch at a time, after the list is already showing.
+     */
+    private class MetadataTask extends AsyncTask<Void, Void, Map<Long, Media>> {
+        private final Context context = requireContext().getApplicationContext();
+        private final String tree = treeUri.toString();
 
-            // Add database records not found in current directory
-            for (Media media : dbMediaMap.values()) {
-                if (!foundUris.contains(media.contentUri.toString())) {
-                    // Try to get DocumentFile from URI
-                    DocumentFile doc = DocumentFile.fromSingleUri(context, Uri.parse(media.contentUri.toString()));
-                    if (doc != null && doc.exists()) {
-                        media.file = doc;
-                        result.add(media);
-                    } else {
-                        // Remove from database if file no longer exists
-                        fileStoreDb.deleteByPath(media.contentUri.toString());
-                    }
+        @Override
+        protected Map<Long, Media> doInBackground(Void... voids) {
+            Map<Long, Media> updated = new HashMap<>();
+            List<Media> batch;
+            while (!isCancelled() && !(batch = fileStoreDb.queryMissingMetadata(tree, METADATA_BATCH)).isEmpty()) {
+                for (Media media : batch) {
+                    if (isCancelled()) break;
+                    extractMetadata(context, media);
+                    // stored even when nothing could be read, so the file is not retried every pass
+                    fileStoreDb.updateMetadata(media.id, media.duration, media.resolutionWidth, media.resolutionHeight);
+                    updated.put(media.id, media);
                 }
             }
-
-            // Sort by date (newest first)
-            result.sort((m1, m2) ->
-                    Long.compare(m2.date.getTime(), m1.date.getTime()));
-
-            return result;
+            return updated;
         }
 
-        private void extractAndStoreMetadata(Context context, Media media) {
+        private void extractMetadata(Context context, Media media) {
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
             try {
-                MediaMetadataRetriever retriever = new MediaMetadataRetriever();
                 retriever.setDataSource(context, media.contentUri);
 
                 if (media.type == Media.TYPE.VIDEO) {
@@ -519,39 +497,44 @@ public class PlaybackFragment extends BaseFragment
 
                 media.resolutionWidth = widthStr != null ? Integer.parseInt(widthStr) : 0;
                 media.resolutionHeight = heightStr != null ? Integer.parseInt(heightStr) : 0;
-
-                // Get file size
-                try (Cursor cursor = context.getContentResolver().query(
-                        media.contentUri,
-                        new String[]{OpenableColumns.SIZE},
-                        null, null, null)) {
-                    if (cursor != null && cursor.moveToFirst()) {
-                        int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
-                        if (sizeIndex != -1) {
-                            media.fileSize = cursor.getLong(sizeIndex);
-                        }
-                    }
-                }
             } catch (Exception e) {
                 Log.e("Metadata", "Error extracting metadata", e);
+            } finally {
+                try {
+                    retriever.release();
+                } catch (Exception ignored) {
+                }
             }
         }
 
         @Override
-        protected void onPostExecute(List<Media> result) {
-            mDataList.clear();
-            mDataList.addAll(result);
+        protected void onPostExecute(Map<Long, Media> updated) {
+            if (metadataTask == this) metadataTask = null;
+            if (!isAdded() || updated.isEmpty()) return;
+            for (Media media : mDataList) {
+                Media known = updated.get(media.id);
+                if (known != null) {
+                    media.duration = known.duration;
+                    media.resolutionWidth = known.resolutionWidth;
+                    media.resolutionHeight = known.resolutionHeight;
+                }
+            }
             adapter.notifyDataSetChanged();
-            txt_no_data.setVisibility(mDataList.isEmpty() ? View.VISIBLE : View.GONE);
-            list_view.onRefreshComplete();
         }
     }
 
-    private class LoadAllMediaTask extends AsyncTask<Void, Void, List<Media>> {
-        
+    /**
+     * Shows the index straight away, then reconciles it with the storage location and shows the
+     * result. Plain file paths (no SAF tree) are still listed directly.
+     */
+    private class LoadAllMediaTask extends AsyncTask<Void, List<Media>, List<Media>> {
+        private final Context context = requireContext().getApplicationContext();
+        private int limit;
+
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
+            limit = Math.max(PAGE_SIZE, mDataList.size());
         }
         
         @Override
@@ -559,8 +542,19 @@ public class PlaybackFragment extends BaseFragment
             List<Media> result = new ArrayList<>();
             
             try {
-                // Only load from database (SAF and file paths) - ignore MediaStore
-                result.addAll(loadFromSAF());
+                if (treeUri != null) {
+                    String tree = treeUri.toString();
+                    List<Media> cached = fileStoreDb.queryPage(tree, 0, limit);
+                    if (!cached.isEmpty()) {
+                        publishProgress(attachFiles(context, cached));
+                    }
+                    FileStoreDb.ReconcileResult reconciled = fileStoreDb.reconcile(context, treeUri);
+                    if (!reconciled.changed() && !cached.isEmpty()) {
+                        return cached;
+                    }
+                    return attachFiles(context, fileStoreDb.queryPage(tree, 0, limit));
+                }
+
                 result.addAll(loadFromFilePaths());
                 
                 // Sort by date (newest first)
@@ -574,78 +568,13 @@ public class PlaybackFragment extends BaseFragment
             
             return result;
         }
-        
-        private List<Media> loadFromSAF() {
-            List<Media> result = new ArrayList<>();
-            
-            // Check if treeUri is null or invalid
-            if (treeUri == null) {
-                Log.w("LoadSAF", "treeUri is null, skipping SAF loading");
-                return result;
-            }
-            
-            try {
-                Context context = requireContext();
-                DocumentFile rootDoc = DocumentFile.fromTreeUri(context, treeUri);
-                if (rootDoc == null || !rootDoc.isDirectory()) {
-                    Log.w("LoadSAF", "rootDoc is null or not a directory");
-                    return result;
-                }
-
-                // Get existing records from DB
-                Map<String, Media> dbMediaMap = new HashMap<>();
-                List<Media> dbMediaList = fileStoreDb.getMediaForPath(treeUri.toString());
-                for (Media media : dbMediaList) {
-                    dbMediaMap.put(media.contentUri.toString(), media);
-                }
 
-                // Scan directory
-                DocumentFile[] children = rootDoc.listFiles();
-                if (children == null) return result;
-
-                for (DocumentFile doc : children) {
-                    if (doc.isDirectory()) continue;
-                    String name = doc.getName();
-                    if (TextUtils.isEmpty(name)) continue;
-
-                    Uri contentUri = doc.getUri();
-                    String uriString = contentUri.toString();
-
-                    Media media = dbMediaMap.get(uriString);
-                    if (media == null) {
-                        media = new Media();
-                        media.name = name;
-                        media.contentUri = contentUri;
-                        media.path = treeUri.toString();
-                        media.date = new Date(doc.lastModified());
-                        media.file = doc;
-
-                        // Determine media type - only include VIDEO and IMAGE types
-                        if (isVideoFile(name)) {
-                            media.type = Media.TYPE.VIDEO;
-                            extractVideoMetadata(media);
-                        } else if (isImageFile(name)) {
-                            media.type = Media.TYPE.IMAGE;
-                        } else {
-                            // Skip non-media files
-                            continue;
-                        }
-
-                        // Check if encrypted
-                        media.is_encrypted = name.endsWith(".enc");
-
-                        // Save to database
-                        long id = fileStoreDb.insert(media);
-                        media.id = id;
-                    }
-                    result.add(media);
-                }
-                
-            } catch (Exception e) {
-                Log.e("LoadSAF", "Error loading from SAF", e);
+        @SafeVarargs
+        @Override
+        protected final void onProgressUpdate(List<Media>... cached) {
+            if (isAdded()) {
+                showMedia(cached[0]);
             }
-            
-            return result;
         }
         
         private List<Media> loadFromFilePaths() {
@@ -729,21 +658,16 @@ public class PlaybackFragment extends BaseFragment
 
         @Override
         protected void onPostExecute(List<Media> result) {
-            mDataList.clear();
-            mDataList.addAll(result);
-            adapter.notifyDataSetChanged();
-            
-            // Center the no data message and make it more prominent
-            if (mDataList.isEmpty()) {
-                txt_no_data.setVisibility(View.VISIBLE);
-                txt_no_data.setText("No media files found\nPull down to refresh");
-                list_view.setVisibility(View.GONE);
+            if (!isAdded()) return;
+            showMedia(result);
+            list_view.onRefreshComplete();
+            if (treeUri != null) {
+                setHasMorePages(result.size() >= limit);
+                metadataTask = new MetadataTask();
+                metadataTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
             } else {
-                txt_no_data.setVisibility(View.GONE);
-                list_view.setVisibility(View.VISIBLE);
+                setHasMorePages(false);
             }
-            
-            list_view.onRefreshComplete();
         }
         
         private void updateStorageLocationDisplay(List<Media> mediaList) {
@@ -831,6 +755,7 @@ public class PlaybackFragment extends BaseFragment
                         if (media.is_selected && media.file != null) {
                             media.file.delete();
                             fileStoreDb.deleteByPath(media.contentUri.toString());
+                            ThumbnailCache.get(requireContext()).remove(media.contentUri.toString());
                         }
                     }
                     list_view.refresh();
@@ -859,6 +784,7 @@ public class PlaybackFragment extends BaseFragment
             TextView txt_name, txt_type, txt_date, txt_time, txt_duration;
             ImageView ic_share, ic_trash;
             CheckBox checkbox;
+            String thumbKey;
 
             ViewHolder(View convertView) {
                 img_thumbnail = convertView.findViewById(R.id.img_thumbnail);
@@ -873,6 +799,33 @@ public class PlaybackFragment extends BaseFragment
             }
         }
 
+        // Thumbnails come from ThumbnailCache; a miss shows a placeholder and loads in the background
+        private void bindThumbnail(ViewHolder holder, Media media) {
+            String key = media.contentUri.toString();
+            holder.thumbKey = key;
+            ThumbnailCache cache = ThumbnailCache.get(requireContext());
+            Bitmap cached = cache.getCached(key);
+            if (cached != null) {
+                holder.img_thumbnail.setImageBitmap(cached);
+                return;
+            }
+            if (media.is_encrypted) {
+                holder.img_thumbnail.setImageResource(R.mipmap.ic_lock);
+            } else {
+                holder.img_thumbnail.setImageDrawable(null);
+            }
+            String password = null;
+            if (media.is_encrypted) {
+                password = AppPreference.getStr(AppPreference.KEY.ENCRYPTION_KEY, "");
+                if (TextUtils.isEmpty(password)) return;
+            }
+            cache.load(key, media.contentUri, media.type == Media.TYPE.VIDEO, password, (loadedKey, bitmap) -> {
+                if (bitmap != null && loadedKey.equals(holder.thumbKey)) {
+                    holder.img_thumbnail.setImageBitmap(bitmap);
+                }
+            });
+        }
+
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             ViewHolder holder;
@@ -891,15 +844,10 @@ public class PlaybackFragment extends BaseFragment
 
             if (media.type == Media.TYPE.VIDEO) {
                 holder.txt_type.setText(R.string.video);
+                bindThumbnail(holder, media);
                 if (media.is_encrypted) {
-                    holder.img_thumbnail.setImageResource(R.mipmap.ic_lock);
                     holder.txt_duration.setText(R.string.encrypted);
                 } else {
-                    Glide.with(requireActivity())
-                            .load(media.contentUri)
-                            .thumbnail(0.1f)
-                            .into(holder.img_thumbnail);
-
                     if (media.duration > 0) {
                         String duration = String.format(Locale.getDefault(), "%02d:%02d",
                                 (media.duration / 1000) / 60,
@@ -913,26 +861,12 @@ public class PlaybackFragment extends BaseFragment
             } else if (media.type == Media.TYPE.IMAGE) {
                 holder.txt_type.setText("Image");
                 holder.txt_duration.setVisibility(View.GONE);
-                if (media.is_encrypted) {
-                    holder.img_thumbnail.setImageResource(R.mipmap.ic_lock);
-                } else {
-                    Glide.with(getActivity())
-                            .load(media.contentUri)
-                            .thumbnail(0.1f)
-                            .into(holder.img_thumbnail);
-                }
+                bindThumbnail(holder, media);
             } else {
                 // Handle PHOTO type (legacy)
                 holder.txt_type.setText(R.string.photo);
                 holder.txt_duration.setVisibility(View.GONE);
-                if (media.is_encrypted) {
-                    holder.img_thumbnail.setImageResource(R.mipmap.ic_lock);
-                } else {
-                    Glide.with(getActivity())
-                            .load(media.contentUri)
-                            .thumbnail(0.1f)
-                            .into(holder.img_thumbnail);
-                }
+                bindThumbnail(holder, media);
             }
 
             holder.checkbox.setVisibility(is_selectable ? View.VISIBLE : View.GONE);
@@ -982,6 +916,7 @@ public class PlaybackFragment extends BaseFragment
                                 if (media.file != null) {
                                     media.file.delete();
                                     fileStoreDb.deleteByPath(media.contentUri.toString());
+                                    ThumbnailCache.get(requireContext()).remove(media.contentUri.toString());
                                     list_view.refresh();
                                 }
                                 return false;
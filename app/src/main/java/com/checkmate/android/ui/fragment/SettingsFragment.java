@@ -21,6 +21,7 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
@@ -87,6 +88,7 @@ import com.checkmate.android.R;
 import com.checkmate.android.model.Camera;
 import com.checkmate.android.networking.RestApiService;
 import com.checkmate.android.service.LocationManagerService;
+import com.checkmate.android.service.SharedEGL.SharedEglManager;
 import com.checkmate.android.ui.activity.SplashActivity;
 import com.checkmate.android.ui.dialog.CameraDialog;
 import com.checkmate.android.ui.dialog.EncryptionDialog;
@@ -97,13 +99,16 @@ import com.checkmate.android.ui.dialog.WifiDialog;
 import com.checkmate.android.ui.dialog.WifiListDialog;
 import com.checkmate.android.ui.dialog.WifiPasswordDialog;
 import com.checkmate.android.ui.view.MySpinner;
+import com.checkmate.android.util.BulkCryptoEngine;
 import com.checkmate.android.util.CameraInfo;
 import com.checkmate.android.util.CommonUtil;
 import com.checkmate.android.util.DeviceUtils;
+import com.checkmate.android.util.EncryptionKeyManager;
 import com.checkmate.android.util.MainActivity;
 import com.checkmate.android.util.MessageUtil;
 import com.checkmate.android.util.ResourceUtil;
 import com.checkmate.android.util.SettingsUtils;
+import com.checkmate.android.util.ThumbnailCache;
 import com.codekidlabs.storagechooser.StorageChooser;
 import com.serenegiant.usb.Size;
 import com.serenegiant.usb.UVCCamera;
@@ -3512,12 +3517,29 @@ public class SettingsFragment extends BaseFragment implements OnStoragePathChang
             codeDialog.dismiss();
             mListener.isDialog(false);
             String encryption_code = codeDialog.edt_code.getText().toString();
-            if (!TextUtils.isEmpty(encryption_code)) {
+            String previous_code = AppPreference.getStr(AppPreference.KEY.ENCRYPTION_KEY, "");
+            boolean code_changed = !TextUtils.isEmpty(previous_code) && !previous_code.equals(encryption_code);
+            SharedEglManager eglManager = SharedEglManager.peekInstance();
+            if (!TextUtils.isEmpty(encryption_code) && code_changed
+                    && eglManager != null && eglManager.isRecording()) {
+                // the open segment is sealed with the old code and cannot be migrated yet
+                AppPreference.setBool(AppPreference.KEY.FILE_ENCRYPTION, false);
+                if (swt_encryption != null) {
+                    swt_encryption.setChecked(false);
+                }
+                MessageUtil.showToast(requireContext(), "Stop recording before changing the encryption code.");
+            } else if (!TextUtils.isEmpty(encryption_code)) {
+                // drop keys derived from the old code, and the failures they caused
+                EncryptionKeyManager.getInstance().clear();
+                ThumbnailCache.get(requireContext()).clearFailed();
                 AppPreference.setStr(AppPreference.KEY.ENCRYPTION_KEY, encryption_code);
                 AppPreference.setBool(AppPreference.KEY.FILE_ENCRYPTION, true);
                 if (swt_encryption != null) {
                     swt_encryption.setChecked(true);
                 }
+                if (code_changed) {
+                    reencryptRecordings(previous_code, encryption_code);
+                }
             } else {
                 AppPreference.setBool(AppPreference.KEY.FILE_ENCRYPTION, false);
                 if (swt_encryption != null) {
@@ -3529,6 +3551,96 @@ public class SettingsFragment extends BaseFragment implements OnStoragePathChang
         codeDialog.show();
     }
 
+    /**
+     * Moves the encrypted recordings in the storage location to the new code, so they keep
+     * opening in playback.
+     */
+    private void reencryptRecordings(String oldCode, String newCode) {
+        String tree = AppPreference.getStr(AppPreference.KEY.STORAGE_LOCATION, "");
+        if (TextUtils.isEmpty(tree)) {
+            return;
+        }
+        new ReencryptTask(Uri.parse(tree), oldCode, newCode).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Runs {@link BulkCryptoEngine#reencryptTree} off the UI thread behind a progress dialog and
+     * reports the files it could not migrate.
+     */
+    private class ReencryptTask extends AsyncTask<Void, Integer, BulkCryptoEngine.Result> {
+        private final Context context = requireContext().getApplicationContext();
+        private final Uri treeUri;
+        private final String oldCode;
+        private final String newCode;
+        private TextProgressDialog dialog;
+        private IOException error;
+        private volatile int lastPercent = -1;
+
+        ReencryptTask(Uri treeUri, String oldCode, String newCode) {
+            this.treeUri = treeUri;
+            this.oldCode = oldCode;
+            this.newCode = newCode;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mListener.isDialog(true);
+            dialog = new TextProgressDialog(requireContext(), "Re-encrypting recordings...");
+            dialog.show();
+        }
+
+        @Override
+        protected BulkCryptoEngine.Result doInBackground(Void... voids) {
+            BulkCryptoEngine engine = new BulkCryptoEngine();
+            try {
+                return engine.reencryptTree(context, treeUri, oldCode, newCode,
+                        (filesDone, fileCount, bytesDone, bytesTotal) -> {
+                            int percent = bytesTotal > 0 ? (int) (bytesDone * 100 / bytesTotal) : 100;
+                            // called for every chunk, from several threads
+                            if (percent != lastPercent) {
+                                lastPercent = percent;
+                                publishProgress(filesDone + 1, fileCount, percent);
+                            }
+                        });
+            } catch (IOException e) {
+                error = e;
+                return null;
+            } finally {
+                engine.shutdown();
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            dialog.setMessage(String.format(Locale.US, "Re-encrypting recording %d of %d (%d%%)...",
+                    values[0], values[1], values[2]));
+        }
+
+        @Override
+        protected void onPostExecute(BulkCryptoEngine.Result result) {
+            dialog.dismiss();
+            mListener.isDialog(false);
+            // thumbnails read while files were being replaced may have failed
+            ThumbnailCache.get(context).clearFailed();
+            if (!isAdded()) {
+                return;
+            }
+            if (error != null) {
+                Log.e("ReencryptTask", "Re-encrypting recordings failed", error);
+                MessageUtil.showAlertDialog(requireActivity(), MessageUtil.TYPE_ERROR,
+                        "Recordings were not re-encrypted (" + error.getMessage()
+                                + "). They still open only with the previous code.");
+            } else if (result.failed > 0) {
+                MessageUtil.showAlertDialog(requireActivity(), MessageUtil.TYPE_WARNING,
+                        result.failed + " of " + (result.files + result.skipped + result.failed)
+                                + " recordings were not re-encrypted and open only with the previous code:\n"
+                                + TextUtils.join("\n", result.errors));
+            } else if (result.files > 0) {
+                MessageUtil.showToast(context, "Re-encrypted " + result.files + " recordings.");
+            }
+        }
+    }
+
     // Initialize default values and field states
     private void initializeDefaultValues() {
         // Set default streaming quality to Medium (index 1)
@@ -0,0 +1,472 @@
+package com.checkmate.android.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import androidx.documentfile.provider.DocumentFile;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Re-encrypts or decrypts whole recording folders, e.g. after the encryption code changed or to
+ * move v1/CTR files to the v2 format.
+ * <p>
+ * Each file is split into chunks that a fork-join pool handles in parallel: a worker reads the
+ * plaintext of one chunk through its own {@link EncryptedMediaReader} (random access, any source
+ * format), seals it as a v2 chunk or keeps it as plaintext, and writes it with {@code pwrite} at
+ * its final offset, which the fixed v2 chunk size makes known up front. Memory stays at about
+ * four chunks per worker (the reader's cache and the worker's buffers) whatever the file size.
+ * Files are migrated in place through a temporary document that replaces the original only once
+ * it is complete.
+ * <p>
+ * Recordings that were never finished ({@link EncryptedMediaReader#isComplete()}) are not
+ * re-encrypted, which would make the recovered part look like the whole recording; they are
+ * decrypted with {@value #PARTIAL_SUFFIX} in the name.
+ */
+public class BulkCryptoEngine {
+    private static final String TAG = "BulkCryptoEngine";
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String BACKUP_SUFFIX = ".bak";
+    private static final String PARTIAL_SUFFIX = "_partial";
+
+    public interface Progress {
+        /**
+         * Called from worker threads after every chunk.
+         */
+        void onProgress(int filesDone, int fileCount, long bytesDone, long bytesTotal);
+    }
+
+    public static class Result {
+        public int files;
+        public int skipped;
+        public int failed;
+        public long bytes;
+        public long elapsedMs;
+        /** One line per failed file: its name and why. */
+        public final List<String> errors = new ArrayList<>();
+
+        public double megabytesPerSecond() {
+            return elapsedMs > 0 ? bytes / 1048576.0 / (elapsedMs / 1000.0) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d files (%d skipped, %d failed), %.1f MB in %d ms, %.1f MB/s",
+                    files, skipped, failed, bytes / 1048576.0, elapsedMs, megabytesPerSecond());
+        }
+    }
+
+    private final int mParallelism;
+    private final int mChunkSize;
+    private final ForkJoinPool mPool;
+    private volatile boolean mCancelled;
+
+    public BulkCryptoEngine() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), EncryptedMediaFormat.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize plaintext bytes per v2 chunk of the output
+     */
+    public BulkCryptoEngine(int parallelism, int chunkSize) {
+        mParallelism = Math.max(1, parallelism);
+        mChunkSize = chunkSize;
+        mPool = new ForkJoinPool(mParallelism);
+    }
+
+    /**
+     * Stops after the chunks in flight; the file being processed is left untouched.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    /**
+     * Rewrites every .t3v/.t3j in the tree as v2 under {@code newPassword}. Files that are already
+     * v2 are skipped when the password does not change.
+     */
+    public Result reencryptTree(Context context, Uri treeUri, String oldPassword, String newPassword,
+                                Progress progress) throws IOException {
+        List<DocumentFile> files = listEncrypted(context, treeUri);
+        Result result = new Result();
+        long total = 0;
+        for (DocumentFile file : files) total += file.length();
+        long start = SystemClock.elapsedRealtime();
+        AtomicLong done = new AtomicLong();
+        for (int i = 0; i < files.size() && !mCancelled; i++) {
+            DocumentFile file = files.get(i);
+            DocumentFile parent = file.getParentFile();
+            String name = file.getName();
+            DocumentFile part = null;
+            try {
+                if (oldPassword.equals(newPassword) && formatOf(context, file.getUri(), oldPassword)
+                        == EncryptedMediaReader.FORMAT_V2) {
+                    result.skipped++;
+                    done.addAndGet(file.length());
+                    continue;
+                }
+                part = parent == null ? null : parent.createFile("application/octet-stream", name + PART_SUFFIX);
+                if (part == null) {
+                    throw new IOException("Cannot create " + name + PART_SUFFIX);
+                }
+                result.bytes += transform(context, file.getUri(), oldPassword, part.getUri(), newPassword,
+                        false, i, files.size(), done, total, progress);
+                DocumentFile replacement = part;
+                // from here replace() decides whether the new copy may be deleted
+                part = null;
+                replace(file, replacement, name);
+                result.files++;
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                Log.e(TAG, "Re-encrypting " + name + " failed", e);
+                result.failed++;
+                result.errors.add(name + ": " + e.getMessage());
+            } finally {
+                if (part != null) part.delete();
+            }
+        }
+        result.elapsedMs = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "reencryptTree: " + result);
+        return result;
+    }
+
+    /**
+     * Gives {@code part} the name of {@code original}. The original is renamed to a backup first
+     * and deleted only once the new file has its name; if that rename fails the backup is renamed
+     * back. {@code part} is deleted only while the original still has its name, so a failure at any
+     * step leaves at least one complete copy.
+     */
+    private static void replace(DocumentFile original, DocumentFile part, String name) throws IOException {
+        String backupName = name + BACKUP_SUFFIX;
+        if (!original.renameTo(backupName)) {
+            part.delete();
+            throw new IOException("Cannot move the original aside, it is unchanged");
+        }
+        if (!part.renameTo(name)) {
+            if (original.renameTo(name)) {
+                part.delete();
+                throw new IOException("Cannot rename the new copy, the original is unchanged");
+            }
+            throw new IOException("Cannot rename the new copy: original kept as " + backupName
+                    + ", new copy as " + part.getName());
+        }
+        if (!original.delete()) {
+            Log.w(TAG, "Replaced " + name + " but cannot delete " + backupName);
+        }
+    }
+
+    /**
+     * Writes the plaintext of every .t3v/.t3j in the tree into {@code outTreeUri} as .mp4/.jpg.
+     */
+    public Result decryptTree(Context context, Uri treeUri, String password, Uri outTreeUri,
+                              Progress progress) throws IOException {
+        List<DocumentFile> files = listEncrypted(context, treeUri);
+        DocumentFile outDir = DocumentFile.fromTreeUri(context, outTreeUri);
+        if (outDir == null || !outDir.canWrite()) {
+            throw new FileNotFoundException("Output location not writable");
+        }
+        Result result = new Result();
+        long total = 0;
+        for (DocumentFile file : files) total += file.length();
+        long start = SystemClock.elapsedRealtime();
+        AtomicLong done = new AtomicLong();
+        for (int i = 0; i < files.size() && !mCancelled; i++) {
+            DocumentFile file = files.get(i);
+            String name = file.getName();
+            boolean image = name.toLowerCase(Locale.US).endsWith(".t3j");
+            DocumentFile out = null;
+            try {
+                String plainName = name.substring(0, name.length() - 4)
+                        + (isComplete(context, file.getUri(), password) ? "" : PARTIAL_SUFFIX)
+                        + (image ? ".jpg" : ".mp4");
+                out = outDir.createFile(image ? "image/jpeg" : "video/mp4", plainName);
+                if (out == null) {
+                    throw new IOException("Cannot create " + plainName);
+                }
+                result.bytes += transform(context, file.getUri(), password, out.getUri(), null,
+                        true, i, files.size(), done, total, progress);
+                out = null;
+                result.files++;
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                Log.e(TAG, "Decrypting " + name + " failed", e);
+                result.failed++;
+                result.errors.add(name + ": " + e.getMessage());
+            } finally {
+                if (out != null) out.delete();
+            }
+        }
+        result.elapsedMs = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "decryptTree: " + result);
+        return result;
+    }
+
+    /**
+     * Decrypts and re-encrypts every .t3v/.t3j in the tree without writing anything, to measure
+     * crypto throughput against the IO-bound {@link #reencryptTree}.
+     */
+    public Result measureTree(Context context, Uri treeUri, String password) throws IOException {
+        List<DocumentFile> files = listEncrypted(context, treeUri);
+        Result result = new Result();
+        long total = 0;
+        for (DocumentFile file : files) total += file.length();
+        long start = SystemClock.elapsedRealtime();
+        AtomicLong done = new AtomicLong();
+        for (int i = 0; i < files.size() && !mCancelled; i++) {
+            try {
+                result.bytes += transform(context, files.get(i).getUri(), password, null, password,
+                        true, i, files.size(), done, total, null);
+                result.files++;
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                Log.e(TAG, "Measuring " + files.get(i).getName() + " failed", e);
+                result.failed++;
+                result.errors.add(files.get(i).getName() + ": " + e.getMessage());
+            }
+        }
+        result.elapsedMs = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, String.format(Locale.US, "measureTree (%d workers): %s", mParallelism, result));
+        return result;
+    }
+
+    /**
+     * Decrypts {@code src} and writes it to {@code dst} as v2 under {@code newPassword}, or as
+     * plaintext when that is null. {@code dst} null only decrypts and encrypts.
+     *
+     * @param allowPartial whether an unfinished {@code src} is processed or refused
+     * @return plaintext bytes processed
+     */
+    private long transform(Context context, Uri src, String password, Uri dst, String newPassword,
+                          boolean allowPartial, int fileIndex, int fileCount, AtomicLong done, long total,
+                          Progress progress)
+            throws IOException, GeneralSecurityException {
+        ParcelFileDescriptor source = context.getContentResolver().openFileDescriptor(src, "r");
+        if (source == null) {
+            throw new FileNotFoundException("Cannot open " + src);
+        }
+        ParcelFileDescriptor target = null;
+        BlockingQueue<Worker> workers = new ArrayBlockingQueue<>(mParallelism);
+        try {
+            EncryptedMediaReader first = EncryptedMediaReader.open(source.dup(), password);
+            if (!allowPartial && !first.isComplete()) {
+                first.close();
+                throw new IOException("Unfinished recording, left under the previous code");
+            }
+            long length = first.length();
+
+            EncryptedMediaFormat.Header header = null;
+            SecretKeySpec key = null;
+            if (newPassword != null) {
+                EncryptionKeyManager keys = EncryptionKeyManager.getInstance();
+                header = keys.newHeader(newPassword, mChunkSize);
+                header.setPlainLength(length);
+                key = keys.fileKey(newPassword, header);
+            }
+            int chunkCount = (int) Math.max(1, (length + mChunkSize - 1) / mChunkSize);
+            workers.add(new Worker(first, header, key, mChunkSize));
+            for (int i = 1; i < Math.min(mParallelism, chunkCount); i++) {
+                workers.add(new Worker(EncryptedMediaReader.open(source.dup(), password), header, key, mChunkSize));
+            }
+
+            FileDescriptor out = null;
+            if (dst != null) {
+                target = context.getContentResolver().openFileDescriptor(dst, "rw");
+                if (target == null) {
+                    throw new FileNotFoundException("Cannot open " + dst);
+                }
+                out = target.getFileDescriptor();
+            }
+            Job job = new Job(workers, header, out, length, fileIndex, fileCount, done, total, progress);
+            try {
+                mPool.invoke(new ChunkRange(job, 0, chunkCount));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (out != null) {
+                long fileLength = header != null ? header.fileLength() : length;
+                if (header != null) {
+                    byte[] head = header.toBytes();
+                    pwrite(out, head, head.length, 0);
+                }
+                Os.ftruncate(out, fileLength);
+                Os.fsync(out);
+            }
+            return length;
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        } finally {
+            for (Worker worker : workers) {
+                try {
+                    worker.reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+            source.close();
+            if (target != null) target.close();
+        }
+    }
+
+    private static List<DocumentFile> listEncrypted(Context context, Uri treeUri) throws IOException {
+        DocumentFile dir = DocumentFile.fromTreeUri(context, treeUri);
+        if (dir == null || !dir.isDirectory()) {
+            throw new FileNotFoundException("No storage location");
+        }
+        List<DocumentFile> files = new ArrayList<>();
+        for (DocumentFile file : dir.listFiles()) {
+            String name = file.getName();
+            if (file.isFile() && name != null) {
+                String lower = name.toLowerCase(Locale.US);
+                if (lower.endsWith(".t3v") || lower.endsWith(".t3j")) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static boolean isComplete(Context context, Uri uri, String password)
+            throws IOException, GeneralSecurityException {
+        try (EncryptedMediaReader reader = EncryptedMediaReader.open(context, uri, password)) {
+            return reader.isComplete();
+        }
+    }
+
+    private static int formatOf(Context context, Uri uri, String password)
+            throws IOException, GeneralSecurityException {
+        try (EncryptedMediaReader reader = EncryptedMediaReader.open(context, uri, password)) {
+            return reader.getFormat();
+        }
+    }
+
+    private static void pwrite(FileDescriptor fd, byte[] buffer, int size, long position)
+            throws ErrnoException, IOException {
+        int done = 0;
+        while (done < size) {
+            int n = Os.pwrite(fd, buffer, done, size - done, position + done);
+            if (n <= 0) throw new IOException("Short write at " + (position + done));
+            done += n;
+        }
+    }
+
+    /**
+     * A reader over the source and the buffers for one chunk; one per pool thread.
+     */
+    private static final class Worker {
+        final EncryptedMediaReader reader;
+        final EncryptedMediaFormat.ChunkCipher cipher;
+        final byte[] plain;
+        final byte[] sealed;
+
+        Worker(EncryptedMediaReader reader, EncryptedMediaFormat.Header header, SecretKeySpec key,
+               int chunkSize) throws GeneralSecurityException {
+            this.reader = reader;
+            this.cipher = header != null ? new EncryptedMediaFormat.ChunkCipher(key, header) : null;
+            this.plain = new byte[chunkSize];
+            this.sealed = header != null ? new byte[chunkSize + EncryptedMediaFormat.CHUNK_OVERHEAD] : null;
+        }
+    }
+
+    private final class Job {
+        final BlockingQueue<Worker> workers;
+        final EncryptedMediaFormat.Header header;
+        final FileDescriptor out;
+        final long length;
+        final int fileIndex;
+        final int fileCount;
+        final AtomicLong done;
+        final long total;
+        final Progress progress;
+
+        Job(BlockingQueue<Worker> workers, EncryptedMediaFormat.Header header, FileDescriptor out,
+            long length, int fileIndex, int fileCount, AtomicLong done, long total, Progress progress) {
+            this.workers = workers;
+            this.header = header;
+            this.out = out;
+            this.length = length;
+            this.fileIndex = fileIndex;
+            this.fileCount = fileCount;
+            this.done = done;
+            this.total = total;
+            this.progress = progress;
+        }
+
+        void process(int index) throws IOException, ErrnoException, GeneralSecurityException,
+                InterruptedException {
+            if (mCancelled) throw new CancellationException();
+            Worker worker = workers.take();
+            try {
+                long position = (long) index * mChunkSize;
+                int size = (int) Math.min(mChunkSize, length - position);
+                int read = 0;
+                while (read < size) {
+                    int n = worker.reader.read(position + read, worker.plain, read, size - read);
+                    if (n <= 0) throw new IOException("Source ended at " + (position + read));
+                    read += n;
+                }
+                if (header != null) {
+                    int n = worker.cipher.encrypt(index, index == header.chunkCount - 1, worker.plain, size, worker.sealed);
+                    if (out != null) pwrite(out, worker.sealed, n, header.chunkOffset(index));
+                } else if (out != null) {
+                    pwrite(out, worker.plain, size, position);
+                }
+                long bytes = done.addAndGet(size);
+                if (progress != null) progress.onProgress(fileIndex, fileCount, bytes, total);
+            } finally {
+                workers.add(worker);
+            }
+        }
+    }
+
+    private static final class ChunkRange extends RecursiveAction {
+        private final Job mJob;
+        private final int mFrom;
+        private final int mTo;
+
+        ChunkRange(Job job, int from, int to) {
+            mJob = job;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > 1) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new ChunkRange(mJob, mFrom, mid), new ChunkRange(mJob, mid, mTo));
+                return;
+            }
+            try {
+                mJob.process(mFrom);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (ErrnoException | GeneralSecurityException e) {
+                throw new UncheckedIOException(new IOException("Chunk " + mFrom + " failed", e));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            }
+        }
+    }
+}
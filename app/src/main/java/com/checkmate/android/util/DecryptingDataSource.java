@@ -0,0 +1,123 @@
+package com.checkmate.android.util;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.PlaybackException;
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSourceException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * ExoPlayer {@link DataSource} that plays an encrypted .t3v in place through a
+ * {@link DecryptingMediaDataSource}. The player creates a data source per load, so the decrypted
+ * block cache lives in the {@link Factory} and is shared; the file is opened on the first load,
+ * i.e. on the loader thread, and closed with {@link Factory#close()}.
+ */
+public class DecryptingDataSource extends BaseDataSource {
+
+    public static class Factory implements DataSource.Factory {
+        private final Context mContext;
+        private final Uri mUri;
+        private final String mPassword;
+        private DecryptingMediaDataSource mSource;
+        private boolean mClosed;
+
+        public Factory(Context context, Uri uri, String password) {
+            mContext = context.getApplicationContext();
+            mUri = uri;
+            mPassword = password;
+        }
+
+        @Override
+        public DataSource createDataSource() {
+            return new DecryptingDataSource(this);
+        }
+
+        synchronized DecryptingMediaDataSource source() throws IOException {
+            if (mClosed) throw new IOException("closed");
+            if (mSource == null) {
+                try {
+                    mSource = DecryptingMediaDataSource.open(mContext, mUri, mPassword);
+                } catch (GeneralSecurityException e) {
+                    throw new DataSourceException(e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+                }
+            }
+            return mSource;
+        }
+
+        public synchronized void close() {
+            mClosed = true;
+            if (mSource != null) {
+                try {
+                    mSource.close();
+                } catch (IOException ignored) {
+                }
+                mSource = null;
+            }
+        }
+    }
+
+    private final Factory mFactory;
+    @Nullable
+    private Uri mUri;
+    private DecryptingMediaDataSource mSource;
+    private long mPosition;
+    private long mRemaining;
+
+    private DecryptingDataSource(Factory factory) {
+        super(false);
+        mFactory = factory;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        mUri = dataSpec.uri;
+        transferInitializing(dataSpec);
+        mSource = mFactory.source();
+        long size = mSource.getSize();
+        if (dataSpec.position > size) {
+            throw new DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+        }
+        mPosition = dataSpec.position;
+        mRemaining = dataSpec.length == C.LENGTH_UNSET
+                ? size - mPosition : Math.min(dataSpec.length, size - mPosition);
+        transferStarted(dataSpec);
+        return mRemaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (mRemaining == 0) return C.RESULT_END_OF_INPUT;
+        int n = mSource.readAt(mPosition, buffer, offset, (int) Math.min(length, mRemaining));
+        if (n < 0) return C.RESULT_END_OF_INPUT;
+        mPosition += n;
+        mRemaining -= n;
+        bytesTransferred(n);
+        return n;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return mUri;
+    }
+
+    @Override
+    public void close() {
+        // The decrypting source is shared between loads and owned by the factory.
+        if (mSource != null) {
+            mSource = null;
+            transferEnded();
+        }
+        mUri = null;
+    }
+}
@@ -0,0 +1,133 @@
+package com.checkmate.android.util;
+
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link MediaDataSource} over an encrypted .t3v/.t3j file that decrypts on demand.
+ * <p>
+ * Reads go through {@link EncryptedMediaReader}, so any position costs a chunk read at most, and
+ * decrypted data is kept in a bounded LRU of fixed-size blocks (4 MB by default). Plaintext never
+ * touches storage and the first frame does not wait for the rest of the file. Thread safe, since
+ * players read from their own loader threads; closing it closes the file.
+ */
+public class DecryptingMediaDataSource extends MediaDataSource {
+    private static final String TAG = "DecryptingMediaDataSource";
+
+    public static final int BLOCK_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_BLOCKS = 16;
+
+    private final EncryptedMediaReader mReader;
+    private final long mSize;
+    private final int mMaxBlocks;
+    private final LinkedHashMap<Long, byte[]> mBlocks;
+    private final ArrayDeque<byte[]> mSpare = new ArrayDeque<>();
+    private long mHits;
+    private long mMisses;
+    private boolean mClosed;
+
+    /**
+     * Opens the file and checks the password where the format allows it.
+     */
+    public static DecryptingMediaDataSource open(Context context, Uri uri, String password)
+            throws IOException, GeneralSecurityException {
+        return new DecryptingMediaDataSource(EncryptedMediaReader.open(context, uri, password), DEFAULT_MAX_BLOCKS);
+    }
+
+    public DecryptingMediaDataSource(EncryptedMediaReader reader, int maxBlocks) {
+        mReader = reader;
+        mSize = reader.length();
+        mMaxBlocks = Math.max(2, maxBlocks);
+        mBlocks = new LinkedHashMap<Long, byte[]>(mMaxBlocks, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                if (size() > mMaxBlocks) {
+                    mSpare.push(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (mClosed) throw new IOException("closed");
+        if (position >= mSize) return -1;
+        int wanted = (int) Math.min(size, mSize - position);
+        int done = 0;
+        while (done < wanted) {
+            long p = position + done;
+            long index = p / BLOCK_SIZE;
+            int inBlock = (int) (p % BLOCK_SIZE);
+            byte[] block = block(index);
+            int n = Math.min(wanted - done, blockLength(index) - inBlock);
+            System.arraycopy(block, inBlock, buffer, offset + done, n);
+            done += n;
+        }
+        return done;
+    }
+
+    @Override
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Whole plaintext in memory, for stills.
+     */
+    public synchronized byte[] readFully() throws IOException {
+        if (mSize > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too large to read into memory: " + mSize);
+        }
+        byte[] data = new byte[(int) mSize];
+        int done = 0;
+        while (done < data.length) {
+            int n = mReader.read(done, data, done, data.length - done);
+            if (n <= 0) throw new IOException("Unexpected end at " + done);
+            done += n;
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        Log.d(TAG, "close: blocks hit=" + mHits + " miss=" + mMisses);
+        mBlocks.clear();
+        mSpare.clear();
+        mReader.close();
+    }
+
+    private byte[] block(long index) throws IOException {
+        byte[] block = mBlocks.get(index);
+        if (block != null) {
+            mHits++;
+            return block;
+        }
+        mMisses++;
+        block = mSpare.isEmpty() ? new byte[BLOCK_SIZE] : mSpare.pop();
+        int length = blockLength(index);
+        int done = 0;
+        while (done < length) {
+            int n = mReader.read(index * BLOCK_SIZE + done, block, done, length - done);
+            if (n <= 0) throw new IOException("Unexpected end in block " + index);
+            done += n;
+        }
+        mBlocks.put(index, block);
+        return block;
+    }
+
+    private int blockLength(long index) {
+        return (int) Math.min(BLOCK_SIZE, mSize - index * BLOCK_SIZE);
+    }
+}
@@ -14,16 +14,13 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.security.spec.KeySpec;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import static com.checkmate.android.AppConstant.CIPHER_ALGORITHM;
@@ -73,7 +70,7 @@ public class EncryptDecryptUtils {
     }
 
     static void doCopy(InputStream is, OutputStream os) throws IOException {
-        byte[] bytes = new byte[64];
+        byte[] bytes = new byte[64 * 1024];
         int numBytes;
         while ((numBytes = is.read(bytes)) != -1) {
             os.write(bytes, 0, numBytes);
@@ -150,11 +147,8 @@ public class EncryptDecryptUtils {
 
     public SecretKey getCustomKey(String password) {
         try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, OUTPUT_KEY_LENGTH);
-            SecretKey tmp = factory.generateSecret(spec);
-            SecretKey secret = new SecretKeySpec(tmp.getEncoded(), "AES");
-            return secret;
+            // the salt is fixed, so this only depends on the password; derived once per password
+            return EncryptionKeyManager.getInstance().pbkdf2Key("PBKDF2WithHmacSHA1", password, salt, 65536, OUTPUT_KEY_LENGTH);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,237 @@
+package com.checkmate.android.util;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The .t3v/.t3j v2 container: fixed-size chunks, each encrypted and authenticated on its own with
+ * AES-GCM, so any byte range can be decrypted by reading only the chunks that hold it.
+ * <pre>
+ *  0   8  magic "T3VGCM02", "T3VGCMW2" while the file is being written
+ *  8   4  header size (64)
+ * 12   4  plaintext bytes per chunk
+ * 16   8  plaintext length
+ * 24   4  chunk count
+ * 28   4  PBKDF2 iterations
+ * 32  16  PBKDF2 salt
+ * 48  16  HKDF file salt
+ * 64      chunk 0 .. chunk count - 1, each: 12 byte nonce, ciphertext, 16 byte tag
+ * </pre>
+ * All chunks but the last hold exactly the chunk size, so the header is the chunk index: chunk
+ * {@code i} starts at {@code 64 + i * (chunkSize + 28)}. Each chunk's tag also covers the
+ * fixed header fields, its index and whether it is the last chunk, so chunks cannot be swapped,
+ * moved between files or cut off without failing authentication. Big endian throughout.
+ * <p>
+ * A recording sink writes the header with the "being written" magic and length and chunk count 0
+ * first, and the final header when it closes. A file left like that (app killed, card pulled) is
+ * read as the run of chunks up to the last one that authenticates, all sealed as not last, which
+ * is what the sink wrote; readers report it as not complete. The tags cover neither the magic nor
+ * the length, so a finished file relabelled as unfinished is told apart by its final chunk, which
+ * still authenticates as the last one, and rejected rather than read short.
+ * <p>
+ * The chunk key is HKDF-SHA256 over the PBKDF2 key with the file salt, so files written in one
+ * session share the PBKDF2 salt and derive it once ({@link EncryptionKeyManager}).
+ * <p>
+ * v1 files (salt, IV, one AES/CBC/PKCS5 stream) and the AES/CTR stream written by the first
+ * {@link EncryptedRecordingSink} are still read by {@link EncryptedMediaReader}.
+ */
+public final class EncryptedMediaFormat {
+    public static final byte[] MAGIC = {'T', '3', 'V', 'G', 'C', 'M', '0', '2'};
+    public static final byte[] MAGIC_UNFINISHED = {'T', '3', 'V', 'G', 'C', 'M', 'W', '2'};
+    public static final int HEADER_SIZE = 64;
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    // readers allocate two chunk buffers from the header, so a corrupt size must not get that far
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+    public static final int CHUNK_OVERHEAD = NONCE_SIZE + TAG_SIZE;
+    public static final int PBKDF2_ITERATIONS = 10000;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private EncryptedMediaFormat() {
+    }
+
+    /**
+     * PBKDF2-SHA256 key as used by v1 and CTR files, cached by {@link EncryptionKeyManager}.
+     */
+    public static SecretKeySpec deriveKey(String password, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        return EncryptionKeyManager.getInstance().pbkdf2Key("PBKDF2WithHmacSHA256", password, salt, iterations, 256);
+    }
+
+    public static boolean hasMagic(byte[] header, byte[] magic) {
+        if (header == null || header.length < magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (header[i] != magic[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether {@code header} starts like a v2 file, finished or not.
+     */
+    public static boolean isV2(byte[] header) {
+        return hasMagic(header, MAGIC) || hasMagic(header, MAGIC_UNFINISHED);
+    }
+
+    public static final class Header {
+        public final int chunkSize;
+        public final int iterations;
+        public final byte[] salt;
+        public final byte[] fileSalt;
+        public long plainLength;
+        public int chunkCount;
+
+        /**
+         * Header for a new file, see {@link EncryptionKeyManager#newHeader}.
+         */
+        public Header(int chunkSize, byte[] salt, int iterations, byte[] fileSalt) {
+            this.chunkSize = chunkSize;
+            this.iterations = iterations;
+            this.salt = salt;
+            this.fileSalt = fileSalt;
+        }
+
+        private Header(int chunkSize, int iterations, byte[] salt, byte[] fileSalt, long plainLength,
+                       int chunkCount) {
+            this(chunkSize, salt, iterations, fileSalt);
+            this.plainLength = plainLength;
+            this.chunkCount = chunkCount;
+        }
+
+        /**
+         * False until the length is set, and for a file whose writer never wrote the final header.
+         */
+        public boolean isComplete() {
+            return chunkCount != 0;
+        }
+
+        /**
+         * Sets the length and the matching chunk count; an empty file still has one (empty) chunk.
+         */
+        public void setPlainLength(long length) {
+            plainLength = length;
+            chunkCount = (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+        }
+
+        public long chunkOffset(int index) {
+            return HEADER_SIZE + (long) index * (chunkSize + CHUNK_OVERHEAD);
+        }
+
+        public int plainChunkLength(int index) {
+            return (int) Math.min(chunkSize, plainLength - (long) index * chunkSize);
+        }
+
+        public long fileLength() {
+            return HEADER_SIZE + plainLength + (long) chunkCount * CHUNK_OVERHEAD;
+        }
+
+        public byte[] toBytes() {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            buffer.put(isComplete() ? MAGIC : MAGIC_UNFINISHED)
+                    .putInt(HEADER_SIZE)
+                    .putInt(chunkSize)
+                    .putLong(plainLength)
+                    .putInt(chunkCount)
+                    .putInt(iterations)
+                    .put(salt)
+                    .put(fileSalt);
+            return buffer.array();
+        }
+
+        /**
+         * @throws GeneralSecurityException if this is not a v2 header or it is inconsistent
+         */
+        public static Header parse(byte[] bytes) throws GeneralSecurityException {
+            if (bytes.length < HEADER_SIZE || !isV2(bytes)) {
+                throw new GeneralSecurityException("Not a v2 file");
+            }
+            boolean unfinished = hasMagic(bytes, MAGIC_UNFINISHED);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.position(MAGIC.length);
+            int headerSize = buffer.getInt();
+            int chunkSize = buffer.getInt();
+            long plainLength = buffer.getLong();
+            int chunkCount = buffer.getInt();
+            int iterations = buffer.getInt();
+            byte[] salt = new byte[16];
+            buffer.get(salt);
+            byte[] fileSalt = new byte[16];
+            buffer.get(fileSalt);
+            if (headerSize != HEADER_SIZE || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE
+                    || plainLength < 0 || iterations <= 0) {
+                throw new GeneralSecurityException("Corrupt v2 header");
+            }
+            if (unfinished ? chunkCount != 0 || plainLength != 0
+                    : chunkCount != Math.max(1, (plainLength + chunkSize - 1) / chunkSize)) {
+                throw new GeneralSecurityException("Corrupt v2 header");
+            }
+            return new Header(chunkSize, iterations, salt, fileSalt, plainLength, chunkCount);
+        }
+    }
+
+    /**
+     * Encrypts and decrypts single chunks. Not thread safe.
+     */
+    public static final class ChunkCipher {
+        private final SecretKeySpec mKey;
+        private final Header mHeader;
+        private final Cipher mCipher;
+        private final SecureRandom mRandom = new SecureRandom();
+        private final byte[] mNonce = new byte[NONCE_SIZE];
+        private final ByteBuffer mAad = ByteBuffer.allocate(MAGIC.length + 4 + 4 + 4 + 16 + 4 + 1);
+
+        public ChunkCipher(SecretKeySpec key, Header header) throws GeneralSecurityException {
+            mKey = key;
+            mHeader = header;
+            mCipher = Cipher.getInstance(TRANSFORMATION);
+        }
+
+        /**
+         * @param out receives nonce, ciphertext and tag, at least {@code length + CHUNK_OVERHEAD} bytes
+         * @return bytes written to {@code out}
+         */
+        public int encrypt(int index, boolean last, byte[] plain, int length, byte[] out)
+                throws GeneralSecurityException {
+            mRandom.nextBytes(mNonce);
+            System.arraycopy(mNonce, 0, out, 0, NONCE_SIZE);
+            mCipher.init(Cipher.ENCRYPT_MODE, mKey, new GCMParameterSpec(TAG_SIZE * 8, mNonce));
+            mCipher.updateAAD(aad(index, last));
+            return NONCE_SIZE + mCipher.doFinal(plain, 0, length, out, NONCE_SIZE);
+        }
+
+        /**
+         * @param in nonce, ciphertext and tag as stored
+         * @return plaintext bytes written to {@code out}
+         * @throws javax.crypto.AEADBadTagException on a wrong key or a modified chunk
+         */
+        public int decrypt(int index, boolean last, byte[] in, int length, byte[] out)
+                throws GeneralSecurityException {
+            if (length < CHUNK_OVERHEAD) {
+                throw new GeneralSecurityException("Truncated chunk " + index);
+            }
+            mCipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(TAG_SIZE * 8, in, 0, NONCE_SIZE));
+            mCipher.updateAAD(aad(index, last));
+            return mCipher.doFinal(in, NONCE_SIZE, length - NONCE_SIZE, out, 0);
+        }
+
+        private ByteBuffer aad(int index, boolean last) {
+            mAad.clear();
+            mAad.put(MAGIC)
+                    .putInt(HEADER_SIZE)
+                    .putInt(mHeader.chunkSize)
+                    .putInt(mHeader.iterations)
+                    .put(mHeader.salt)
+                    .putInt(index)
+                    .put((byte) (last ? 1 : 0));
+            mAad.flip();
+            return mAad;
+        }
+    }
+}
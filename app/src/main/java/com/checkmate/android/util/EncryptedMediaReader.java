@@ -0,0 +1,439 @@
+package com.checkmate.android.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access to the plaintext of an encrypted .t3v/.t3j file, whatever version wrote it:
+ * <ul>
+ * <li>v2 ({@link EncryptedMediaFormat}): only the chunks that hold the requested range are read and
+ * authenticated; the last decrypted chunk is kept for sequential reads. An unfinished file is cut
+ * at its last chunk that authenticates and reports {@link #isComplete()} false.</li>
+ * <li>AES/CTR stream (magic "T3VCTR01", the first {@link EncryptedRecordingSink}): decrypted at
+ * any offset from the block counter.</li>
+ * <li>v1 (salt, IV, AES/CBC/PKCS5): CBC decrypts block {@code n} from ciphertext blocks
+ * {@code n - 1} and {@code n}, so this is random access too; the padding is read once on open.</li>
+ * </ul>
+ * Opening costs one key derivation and a few small reads, independent of the file size.
+ * Not thread safe.
+ */
+public abstract class EncryptedMediaReader implements Closeable {
+    public static final int FORMAT_V1 = 1;
+    public static final int FORMAT_CTR = 2;
+    public static final int FORMAT_V2 = 3;
+
+    private static final byte[] CTR_MAGIC = {'T', '3', 'V', 'C', 'T', 'R', '0', '1'};
+    private static final int CTR_HEADER_SIZE = CTR_MAGIC.length + 16 + 16;
+    private static final int V1_HEADER_SIZE = 32;
+    private static final int BLOCK = 16;
+
+    private final ParcelFileDescriptor mPfd;
+    protected final FileDescriptor mFd;
+    protected final long mFileLength;
+
+    public static EncryptedMediaReader open(Context context, Uri uri, String password)
+            throws IOException, GeneralSecurityException {
+        ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        return open(pfd, password);
+    }
+
+    /**
+     * @param pfd seekable descriptor; owned by the reader from here on
+     * @throws GeneralSecurityException on a wrong password, where the format can tell
+     */
+    public static EncryptedMediaReader open(ParcelFileDescriptor pfd, String password)
+            throws IOException, GeneralSecurityException {
+        try {
+            FileDescriptor fd = pfd.getFileDescriptor();
+            long fileLength = Os.fstat(fd).st_size;
+            byte[] head = new byte[EncryptedMediaFormat.HEADER_SIZE];
+            int n = pread(fd, head, 0, head.length, 0);
+            if (n >= EncryptedMediaFormat.HEADER_SIZE && EncryptedMediaFormat.isV2(head)) {
+                return new V2Reader(pfd, fileLength, EncryptedMediaFormat.Header.parse(head), password);
+            }
+            if (n >= CTR_HEADER_SIZE && EncryptedMediaFormat.hasMagic(head, CTR_MAGIC)) {
+                return new CtrReader(pfd, fileLength, head, password);
+            }
+            if (n >= V1_HEADER_SIZE + BLOCK && (fileLength - V1_HEADER_SIZE) % BLOCK == 0) {
+                return new V1Reader(pfd, fileLength, head, password);
+            }
+            throw new GeneralSecurityException("Unknown encrypted file format");
+        } catch (ErrnoException e) {
+            closeQuietly(pfd);
+            throw new IOException(e);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            closeQuietly(pfd);
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypts a whole file to {@code out}.
+     */
+    public static void decryptTo(Context context, Uri uri, String password, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        try (EncryptedMediaReader reader = open(context, uri, password)) {
+            byte[] buffer = new byte[256 * 1024];
+            long position = 0;
+            int n;
+            while ((n = reader.read(position, buffer, 0, buffer.length)) > 0) {
+                out.write(buffer, 0, n);
+                position += n;
+            }
+            out.flush();
+        }
+    }
+
+    protected EncryptedMediaReader(ParcelFileDescriptor pfd, long fileLength) {
+        mPfd = pfd;
+        mFd = pfd.getFileDescriptor();
+        mFileLength = fileLength;
+    }
+
+    public abstract int getFormat();
+
+    /** Plaintext length. */
+    public abstract long length();
+
+    /**
+     * False for a v2 file its writer never finished; {@link #length()} is then what could be
+     * recovered, and the recording may have gone on past it.
+     */
+    public boolean isComplete() {
+        return true;
+    }
+
+    /**
+     * Reads plaintext at an absolute position.
+     *
+     * @return bytes read, -1 at the end
+     * @throws IOException also when a v2 chunk fails authentication
+     */
+    public final int read(long position, byte[] buffer, int offset, int size) throws IOException {
+        long length = length();
+        if (position >= length) return -1;
+        int wanted = (int) Math.min(size, length - position);
+        if (wanted <= 0) return 0;
+        try {
+            return readAt(position, buffer, offset, wanted);
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Decryption failed at " + position, e);
+        }
+    }
+
+    /**
+     * @param size already clamped to the plaintext length, at least 1
+     */
+    protected abstract int readAt(long position, byte[] buffer, int offset, int size)
+            throws IOException, ErrnoException, GeneralSecurityException;
+
+    @Override
+    public void close() throws IOException {
+        mPfd.close();
+    }
+
+    protected static int pread(FileDescriptor fd, byte[] buffer, int offset, int size, long position)
+            throws ErrnoException {
+        int done = 0;
+        while (done < size) {
+            int n = Os.pread(fd, buffer, offset + done, size - done, position + done);
+            if (n <= 0) break;
+            done += n;
+        }
+        return done;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class V2Reader extends EncryptedMediaReader {
+        private final EncryptedMediaFormat.Header mHeader;
+        private final EncryptedMediaFormat.ChunkCipher mCipher;
+        private final byte[] mSealed;
+        private final byte[] mPlain;
+        private final boolean mComplete;     // false: no chunk is sealed as the last one
+        private int mPlainIndex = -1;
+        private int mPlainLength;
+
+        V2Reader(ParcelFileDescriptor pfd, long fileLength, EncryptedMediaFormat.Header header,
+                 String password) throws IOException, ErrnoException, GeneralSecurityException {
+            super(pfd, fileLength);
+            mComplete = header.isComplete();
+            if (mComplete && fileLength < header.fileLength()) {
+                throw new GeneralSecurityException("Truncated file");
+            }
+            mHeader = header;
+            SecretKeySpec key = EncryptionKeyManager.getInstance().fileKey(password, header);
+            mCipher = new EncryptedMediaFormat.ChunkCipher(key, header);
+            mSealed = new byte[header.chunkSize + EncryptedMediaFormat.CHUNK_OVERHEAD];
+            mPlain = new byte[header.chunkSize];
+            if (!mComplete) {
+                recoverLength();
+            }
+            // authenticates the first chunk, which also checks the password
+            loadChunk(0);
+        }
+
+        /**
+         * Sets the header's length from the full chunks on storage, dropping any trailing chunk that
+         * does not authenticate (torn by the crash). Chunk 0 is tried first so a wrong password fails
+         * after one decryption rather than one per chunk.
+         *
+         * @throws GeneralSecurityException also when the tail is a chunk sealed as the last one: the
+         *                                  file was finished and its header changed afterwards
+         */
+        private void recoverLength() throws IOException, ErrnoException, GeneralSecurityException {
+            long sealedChunk = mHeader.chunkSize + EncryptedMediaFormat.CHUNK_OVERHEAD;
+            long stored = (mFileLength - EncryptedMediaFormat.HEADER_SIZE) / sealedChunk;
+            long tail = mFileLength - EncryptedMediaFormat.HEADER_SIZE - stored * sealedChunk;
+            if (tail >= EncryptedMediaFormat.CHUNK_OVERHEAD) {
+                checkNotLast(stored, (int) tail - EncryptedMediaFormat.CHUNK_OVERHEAD);
+            } else if (tail == 0 && stored > 0) {
+                checkNotLast(stored - 1, mHeader.chunkSize);
+            }
+            if (stored <= 0) {
+                throw new GeneralSecurityException("Unfinished file without a complete chunk");
+            }
+            mHeader.plainLength = mHeader.chunkSize;
+            mHeader.chunkCount = 1;
+            loadChunk(0);
+            for (long index = stored - 1; index > 0; index--) {
+                mHeader.plainLength = (index + 1) * mHeader.chunkSize;
+                mHeader.chunkCount = (int) (index + 1);
+                try {
+                    loadChunk((int) index);
+                    return;
+                } catch (IOException | GeneralSecurityException e) {
+                    // torn, try the one before
+                }
+            }
+            mHeader.plainLength = mHeader.chunkSize;
+            mHeader.chunkCount = 1;
+        }
+
+        private void checkNotLast(long index, int plainLength) throws ErrnoException, GeneralSecurityException {
+            int sealedLength = plainLength + EncryptedMediaFormat.CHUNK_OVERHEAD;
+            if (pread(mFd, mSealed, 0, sealedLength, mHeader.chunkOffset((int) index)) != sealedLength) {
+                return;
+            }
+            try {
+                mCipher.decrypt((int) index, true, mSealed, sealedLength, mPlain);
+            } catch (GeneralSecurityException e) {
+                // not a final chunk, or torn: an unfinished file
+                return;
+            }
+            throw new GeneralSecurityException("Finished file with an unfinished header");
+        }
+
+        @Override
+        public int getFormat() {
+            return FORMAT_V2;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        @Override
+        public long length() {
+            return mHeader.plainLength;
+        }
+
+        @Override
+        protected int readAt(long position, byte[] buffer, int offset, int size)
+                throws IOException, ErrnoException, GeneralSecurityException {
+            int done = 0;
+            while (done < size) {
+                long p = position + done;
+                int index = (int) (p / mHeader.chunkSize);
+                int inChunk = (int) (p % mHeader.chunkSize);
+                loadChunk(index);
+                int n = Math.min(size - done, mPlainLength - inChunk);
+                if (n <= 0) break;
+                System.arraycopy(mPlain, inChunk, buffer, offset + done, n);
+                done += n;
+            }
+            return done;
+        }
+
+        private void loadChunk(int index) throws IOException, ErrnoException, GeneralSecurityException {
+            if (index == mPlainIndex) return;
+            int sealedLength = mHeader.plainChunkLength(index) + EncryptedMediaFormat.CHUNK_OVERHEAD;
+            if (pread(mFd, mSealed, 0, sealedLength, mHeader.chunkOffset(index)) != sealedLength) {
+                throw new IOException("Truncated chunk " + index);
+            }
+            mPlainIndex = -1;
+            boolean last = mComplete && index == mHeader.chunkCount - 1;
+            mPlainLength = mCipher.decrypt(index, last, mSealed, sealedLength, mPlain);
+            mPlainIndex = index;
+        }
+    }
+
+    private static final class CtrReader extends EncryptedMediaReader {
+        private final SecretKeySpec mKey;
+        private final byte[] mCounter0;
+        private final Cipher mCipher;
+        private byte[] mCipherText = new byte[64 * 1024];
+        private long mCipherOffset = -1;
+
+        CtrReader(ParcelFileDescriptor pfd, long fileLength, byte[] head, String password)
+                throws GeneralSecurityException {
+            super(pfd, fileLength);
+            byte[] salt = Arrays.copyOfRange(head, CTR_MAGIC.length, CTR_MAGIC.length + 16);
+            mCounter0 = Arrays.copyOfRange(head, CTR_MAGIC.length + 16, CTR_HEADER_SIZE);
+            mKey = EncryptedMediaFormat.deriveKey(password, salt, EncryptedMediaFormat.PBKDF2_ITERATIONS);
+            mCipher = Cipher.getInstance("AES/CTR/NoPadding");
+        }
+
+        @Override
+        public int getFormat() {
+            return FORMAT_CTR;
+        }
+
+        @Override
+        public long length() {
+            return mFileLength - CTR_HEADER_SIZE;
+        }
+
+        @Override
+        protected int readAt(long position, byte[] buffer, int offset, int size)
+                throws ErrnoException, GeneralSecurityException {
+            if (mCipherText.length < size) {
+                mCipherText = new byte[size];
+            }
+            int n = pread(mFd, mCipherText, 0, size, CTR_HEADER_SIZE + position);
+            if (position != mCipherOffset) {
+                // not continuing the previous read; restart the key stream at this offset
+                mCipher.init(Cipher.DECRYPT_MODE, mKey, new IvParameterSpec(counterAt(mCounter0, position / BLOCK)));
+                int skip = (int) (position % BLOCK);
+                if (skip > 0) {
+                    mCipher.update(new byte[skip]);
+                }
+            }
+            int out = mCipher.update(mCipherText, 0, n, buffer, offset);
+            mCipherOffset = position + out;
+            return out;
+        }
+
+        /**
+         * Initial counter plus {@code block}, as a 128 bit big endian number.
+         */
+        private static byte[] counterAt(byte[] counter0, long block) {
+            byte[] counter = Arrays.copyOf(counter0, BLOCK);
+            long carry = block;
+            for (int i = BLOCK - 1; i >= 0 && carry != 0; i--) {
+                long sum = (counter[i] & 0xff) + (carry & 0xff);
+                counter[i] = (byte) sum;
+                carry = (carry >>> 8) + (sum >>> 8);
+            }
+            return counter;
+        }
+    }
+
+    private static final class V1Reader extends EncryptedMediaReader {
+        private final SecretKeySpec mKey;
+        private final byte[] mIv;
+        private final Cipher mCipher;
+        private final long mPlainLength;
+        private byte[] mCipherText = new byte[64 * 1024 + 2 * BLOCK];
+        private byte[] mPlainText = new byte[64 * 1024 + 2 * BLOCK];
+
+        V1Reader(ParcelFileDescriptor pfd, long fileLength, byte[] head, String password)
+                throws ErrnoException, GeneralSecurityException {
+            super(pfd, fileLength);
+            byte[] salt = Arrays.copyOfRange(head, 0, 16);
+            mIv = Arrays.copyOfRange(head, 16, V1_HEADER_SIZE);
+            mKey = EncryptedMediaFormat.deriveKey(password, salt, EncryptedMediaFormat.PBKDF2_ITERATIONS);
+            mCipher = Cipher.getInstance("AES/CBC/NoPadding");
+
+            // PKCS5 padding is in the last block; a wrong password almost always breaks it
+            long cipherLength = fileLength - V1_HEADER_SIZE;
+            byte[] last = new byte[BLOCK];
+            decryptBlocks(cipherLength / BLOCK - 1, 1, last);
+            int pad = last[BLOCK - 1] & 0xff;
+            if (pad < 1 || pad > BLOCK) {
+                throw new BadPaddingException("Wrong password or corrupt file");
+            }
+            for (int i = BLOCK - pad; i < BLOCK; i++) {
+                if ((last[i] & 0xff) != pad) {
+                    throw new BadPaddingException("Wrong password or corrupt file");
+                }
+            }
+            mPlainLength = cipherLength - pad;
+        }
+
+        @Override
+        public int getFormat() {
+            return FORMAT_V1;
+        }
+
+        @Override
+        public long length() {
+            return mPlainLength;
+        }
+
+        @Override
+        protected int readAt(long position, byte[] buffer, int offset, int size)
+                throws ErrnoException, GeneralSecurityException {
+            long firstBlock = position / BLOCK;
+            long lastBlock = (position + size - 1) / BLOCK;
+            int blocks = (int) (lastBlock - firstBlock + 1);
+            if (mPlainText.length < blocks * BLOCK) {
+                mPlainText = new byte[blocks * BLOCK];
+            }
+            decryptBlocks(firstBlock, blocks, mPlainText);
+            System.arraycopy(mPlainText, (int) (position % BLOCK), buffer, offset, size);
+            return size;
+        }
+
+        /**
+         * Decrypts {@code count} blocks starting at {@code block}; the IV is the preceding
+         * ciphertext block, or the file IV for block 0.
+         */
+        private void decryptBlocks(long block, int count, byte[] out) throws ErrnoException, GeneralSecurityException {
+            int length = count * BLOCK;
+            if (mCipherText.length < length + BLOCK) {
+                mCipherText = new byte[length + BLOCK];
+            }
+            byte[] iv;
+            int start;
+            if (block == 0) {
+                iv = mIv;
+                start = 0;
+                pread(mFd, mCipherText, 0, length, V1_HEADER_SIZE);
+            } else {
+                pread(mFd, mCipherText, 0, length + BLOCK, V1_HEADER_SIZE + (block - 1) * BLOCK);
+                iv = Arrays.copyOf(mCipherText, BLOCK);
+                start = BLOCK;
+            }
+            mCipher.init(Cipher.DECRYPT_MODE, mKey, new IvParameterSpec(iv));
+            mCipher.doFinal(mCipherText, start, length, out, 0);
+        }
+    }
+}
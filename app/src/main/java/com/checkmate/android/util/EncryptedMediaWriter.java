@@ -0,0 +1,58 @@
+package com.checkmate.android.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Writes the v2 container ({@link EncryptedMediaFormat}) to a plain output stream, e.g. a SAF
+ * document opened with {@code openOutputStream}. The length has to be known up front because the
+ * header comes first and the stream cannot seek back.
+ */
+public final class EncryptedMediaWriter {
+
+    private EncryptedMediaWriter() {
+    }
+
+    /**
+     * @param length number of bytes {@code in} will deliver
+     * @return bytes written to {@code out}
+     */
+    public static long encrypt(InputStream in, long length, OutputStream out, String password)
+            throws IOException, GeneralSecurityException {
+        return encrypt(in, length, out, password, EncryptedMediaFormat.DEFAULT_CHUNK_SIZE);
+    }
+
+    public static long encrypt(InputStream in, long length, OutputStream out, String password,
+                               int chunkSize) throws IOException, GeneralSecurityException {
+        EncryptionKeyManager keys = EncryptionKeyManager.getInstance();
+        EncryptedMediaFormat.Header header = keys.newHeader(password, chunkSize);
+        header.setPlainLength(length);
+        SecretKeySpec key = keys.fileKey(password, header);
+        EncryptedMediaFormat.ChunkCipher cipher = new EncryptedMediaFormat.ChunkCipher(key, header);
+
+        out.write(header.toBytes());
+        long written = EncryptedMediaFormat.HEADER_SIZE;
+        byte[] plain = new byte[chunkSize];
+        byte[] sealed = new byte[chunkSize + EncryptedMediaFormat.CHUNK_OVERHEAD];
+        for (int index = 0; index < header.chunkCount; index++) {
+            int chunkLength = header.plainChunkLength(index);
+            int read = 0;
+            while (read < chunkLength) {
+                int n = in.read(plain, read, chunkLength - read);
+                if (n < 0) {
+                    throw new IOException("Source ended at " + ((long) index * chunkSize + read) + " of " + length);
+                }
+                read += n;
+            }
+            int n = cipher.encrypt(index, index == header.chunkCount - 1, plain, chunkLength, sealed);
+            out.write(sealed, 0, n);
+            written += n;
+        }
+        out.flush();
+        return written;
+    }
+}
@@ -0,0 +1,395 @@
+package com.checkmate.android.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.SystemClock;
+import android.os.storage.StorageManager;
+import android.provider.DocumentsContract;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.documentfile.provider.DocumentFile;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Recording sink that encrypts the muxer output while it is written, straight into a SAF document.
+ * <p>
+ * The recorder is handed a seekable proxy file descriptor
+ * ({@link StorageManager#openProxyFileDescriptor}). Writes are collected into the open chunk of a
+ * v2 container ({@link EncryptedMediaFormat}), which is sealed with AES-GCM and written out once
+ * the muxer moves past it. When the muxer goes back to rewrite the mdat size or the moov, the
+ * affected chunk is read, patched and sealed again, so no temp file or second pass is needed.
+ * The header with the final length is written when the recorder closes the descriptor; until then
+ * the file reads back as the chunks sealed so far (see {@link EncryptedMediaFormat}).
+ */
+public class EncryptedRecordingSink {
+    private static final String TAG = "EncryptedRecordingSink";
+
+    public interface Listener {
+        /**
+         * Called on the sink thread once the recorder closed its descriptor and the document is complete.
+         */
+        void onClosed(EncryptedRecordingSink sink);
+    }
+
+    private final Context mContext;
+    private final Uri mUri;
+    private final String mDisplayName;
+    private final ParcelFileDescriptor mDestination;
+    private final FileDescriptor mFd;
+    private final EncryptedMediaFormat.Header mHeader;
+    private final HandlerThread mThread;
+    private ParcelFileDescriptor mProxy;
+    private volatile Listener mListener;
+
+    // Only touched on mThread
+    private final EncryptedMediaFormat.ChunkCipher mCipher;
+    private final byte[] mChunk;            // plaintext of the open chunk
+    private final byte[] mScratch;          // plaintext of a sealed chunk being read or patched
+    private final byte[] mSealed;
+    private int mChunkIndex;                // chunks before this one are sealed on storage
+    private int mChunkFill;
+
+    private volatile long mPlainSize;
+    private volatile long mBytesWritten;
+    private volatile long mWriteCalls;
+    private volatile long mResealCount;
+    private final long mOpenedAt = SystemClock.elapsedRealtime();
+    private volatile long mClosedAt;
+    private volatile boolean mClosed;
+
+    /**
+     * Creates the document and the descriptor the recorder writes to.
+     * Does document IO and key derivation, keep it off the camera thread where possible.
+     *
+     * @param displayName document name including the extension
+     * @throws IOException when the provider cannot give a seekable read/write descriptor;
+     *                     callers fall back to recording into a temp file
+     */
+    public static EncryptedRecordingSink create(Context context, Uri treeUri, String displayName,
+                                                String password) throws IOException {
+        if (treeUri == null || !DocumentsContract.isTreeUri(treeUri)) {
+            throw new FileNotFoundException("No storage location");
+        }
+        DocumentFile pickedDir = DocumentFile.fromTreeUri(context, treeUri);
+        if (pickedDir == null || !pickedDir.canWrite()) {
+            throw new FileNotFoundException("Storage location not writable");
+        }
+        DocumentFile destFile = pickedDir.createFile("application/octet-stream", displayName);
+        if (destFile == null) {
+            throw new IOException("Failed to create " + displayName);
+        }
+        try {
+            return new EncryptedRecordingSink(context, destFile.getUri(), displayName, password);
+        } catch (IOException | RuntimeException e) {
+            destFile.delete();
+            throw e;
+        }
+    }
+
+    private EncryptedRecordingSink(Context context, Uri uri, String displayName, String password)
+            throws IOException {
+        mContext = context.getApplicationContext();
+        mUri = uri;
+        mDisplayName = displayName;
+
+        EncryptionKeyManager keys = EncryptionKeyManager.getInstance();
+        mHeader = keys.newHeader(password, EncryptedMediaFormat.DEFAULT_CHUNK_SIZE);
+        try {
+            SecretKeySpec key = keys.fileKey(password, mHeader);
+            mCipher = new EncryptedMediaFormat.ChunkCipher(key, mHeader);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cipher setup failed", e);
+        }
+        mChunk = new byte[mHeader.chunkSize];
+        mScratch = new byte[mHeader.chunkSize];
+        mSealed = new byte[mHeader.chunkSize + EncryptedMediaFormat.CHUNK_OVERHEAD];
+
+        mDestination = mContext.getContentResolver().openFileDescriptor(uri, "rw");
+        if (mDestination == null) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        mFd = mDestination.getFileDescriptor();
+        mThread = new HandlerThread(TAG);
+        try {
+            // the "being written" header until the recorder closes the sink; readers recover such
+            // a file from the sealed chunks
+            Os.ftruncate(mFd, 0);
+            writeFully(ByteBuffer.wrap(mHeader.toBytes()), 0);
+
+            mThread.start();
+            StorageManager storage = mContext.getSystemService(StorageManager.class);
+            mProxy = storage.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_WRITE,
+                    mCallback, new Handler(mThread.getLooper()));
+        } catch (ErrnoException e) {
+            mThread.quitSafely();
+            closeDestination();
+            throw new IOException("Failed to prepare " + uri, e);
+        } catch (IOException | RuntimeException e) {
+            mThread.quitSafely();
+            closeDestination();
+            throw e;
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Descriptor for the recorder; it owns and closes it, which completes the document.
+     */
+    public ParcelFileDescriptor getFileDescriptor() {
+        return mProxy;
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    public String getDisplayName() {
+        return mDisplayName;
+    }
+
+    /** Size of the recording as the muxer sees it. */
+    public long getPlainSize() {
+        return mPlainSize;
+    }
+
+    /** Size of the document once complete. */
+    public long getFileSize() {
+        long chunks = Math.max(1, (mPlainSize + mHeader.chunkSize - 1) / mHeader.chunkSize);
+        return EncryptedMediaFormat.HEADER_SIZE + mPlainSize + chunks * EncryptedMediaFormat.CHUNK_OVERHEAD;
+    }
+
+    /** Bytes written to storage so far, including resealed chunks and the header. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public long getWriteCount() {
+        return mWriteCalls;
+    }
+
+    /** Number of times the muxer went back into a sealed chunk. */
+    public long getResealCount() {
+        return mResealCount;
+    }
+
+    /** Time between opening the sink and the recorder closing it. */
+    public long getOpenDurationMs() {
+        long closed = mClosedAt;
+        return (closed > 0 ? closed : SystemClock.elapsedRealtime()) - mOpenedAt;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Closes everything and deletes the document, for a sink the recorder never took.
+     */
+    public void abort() {
+        mListener = null;
+        try {
+            if (mProxy != null) mProxy.close();
+        } catch (IOException ignored) {
+        }
+        // onRelease closes the destination on the sink thread
+        mThread.quitSafely();
+        try {
+            mThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeDestination();
+        delete();
+    }
+
+    /**
+     * Deletes the document, e.g. when the recording turned out empty.
+     */
+    public boolean delete() {
+        try {
+            return DocumentsContract.deleteDocument(mContext.getContentResolver(), mUri);
+        } catch (FileNotFoundException | RuntimeException e) {
+            Log.w(TAG, "Failed to delete " + mUri, e);
+            return false;
+        }
+    }
+
+    private final ProxyFileDescriptorCallback mCallback = new ProxyFileDescriptorCallback() {
+        @Override
+        public long onGetSize() {
+            return mPlainSize;
+        }
+
+        @Override
+        public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+            try {
+                return readPlain(offset, size, data);
+            } catch (IOException | GeneralSecurityException e) {
+                Log.e(TAG, "read failed at " + offset, e);
+                throw new ErrnoException("onRead", OsConstants.EIO);
+            }
+        }
+
+        @Override
+        public int onWrite(long offset, int size, byte[] data) throws ErrnoException {
+            try {
+                writePlain(offset, size, data);
+                return size;
+            } catch (IOException | GeneralSecurityException e) {
+                Log.e(TAG, "write failed at " + offset, e);
+                throw new ErrnoException("onWrite", OsConstants.EIO);
+            }
+        }
+
+        @Override
+        public void onFsync() throws ErrnoException {
+            Os.fdatasync(mFd);
+        }
+
+        @Override
+        public void onRelease() {
+            mClosedAt = SystemClock.elapsedRealtime();
+            try {
+                finish();
+            } catch (IOException | GeneralSecurityException | ErrnoException e) {
+                Log.e(TAG, "Failed to complete " + mDisplayName, e);
+            }
+            closeDestination();
+            mClosed = true;
+            Log.d(TAG, mDisplayName + ": " + mPlainSize + " bytes in " + mWriteCalls + " writes, "
+                    + mBytesWritten + " bytes to storage, " + mResealCount + " chunks resealed");
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onClosed(EncryptedRecordingSink.this);
+            }
+            mThread.quitSafely();
+        }
+    };
+
+    private void writePlain(long offset, int size, byte[] data) throws IOException, GeneralSecurityException {
+        final int chunkSize = mHeader.chunkSize;
+        int done = 0;
+        while (done < size) {
+            long position = offset + done;
+            int index = (int) (position / chunkSize);
+            int inChunk = (int) (position % chunkSize);
+            int length = Math.min(size - done, chunkSize - inChunk);
+            if (index < mChunkIndex) {
+                // the muxer went back into a sealed chunk (mdat size, moov)
+                openSealed(index);
+                System.arraycopy(data, done, mScratch, inChunk, length);
+                seal(index, false, mScratch, chunkSize);
+                mResealCount++;
+            } else {
+                while (index > mChunkIndex) {
+                    // moved past the open chunk; anything not written reads back as zeros
+                    Arrays.fill(mChunk, mChunkFill, chunkSize, (byte) 0);
+                    seal(mChunkIndex, false, mChunk, chunkSize);
+                    mChunkIndex++;
+                    mChunkFill = 0;
+                }
+                if (inChunk > mChunkFill) {
+                    Arrays.fill(mChunk, mChunkFill, inChunk, (byte) 0);
+                }
+                System.arraycopy(data, done, mChunk, inChunk, length);
+                mChunkFill = Math.max(mChunkFill, inChunk + length);
+            }
+            done += length;
+        }
+        mWriteCalls++;
+        if (offset + size > mPlainSize) {
+            mPlainSize = offset + size;
+        }
+    }
+
+    private int readPlain(long offset, int size, byte[] data) throws IOException, GeneralSecurityException {
+        final int chunkSize = mHeader.chunkSize;
+        long end = Math.min(offset + size, mPlainSize);
+        int done = 0;
+        while (offset + done < end) {
+            long position = offset + done;
+            int index = (int) (position / chunkSize);
+            int inChunk = (int) (position % chunkSize);
+            int length = (int) Math.min(end - position, chunkSize - inChunk);
+            if (index == mChunkIndex) {
+                System.arraycopy(mChunk, inChunk, data, done, length);
+            } else {
+                openSealed(index);
+                System.arraycopy(mScratch, inChunk, data, done, length);
+            }
+            done += length;
+        }
+        return done;
+    }
+
+    /**
+     * Decrypts a sealed (full, not last) chunk into mScratch.
+     */
+    private void openSealed(int index) throws IOException, GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.wrap(mSealed);
+        long position = mHeader.chunkOffset(index);
+        try {
+            while (buffer.hasRemaining()) {
+                if (Os.pread(mFd, buffer, position + buffer.position()) <= 0) break;
+            }
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        }
+        mCipher.decrypt(index, false, mSealed, buffer.position(), mScratch);
+    }
+
+    private void seal(int index, boolean last, byte[] plain, int length) throws IOException, GeneralSecurityException {
+        int n = mCipher.encrypt(index, last, plain, length, mSealed);
+        writeFully(ByteBuffer.wrap(mSealed, 0, n), mHeader.chunkOffset(index));
+    }
+
+    /**
+     * Seals the open chunk as the last one and writes the final header.
+     */
+    private void finish() throws IOException, GeneralSecurityException, ErrnoException {
+        // writes never reach past the open chunk, so it is the last one
+        mHeader.setPlainLength(mPlainSize);
+        seal(mChunkIndex, true, mChunk, mChunkFill);
+        Os.ftruncate(mFd, mHeader.fileLength());
+        writeFully(ByteBuffer.wrap(mHeader.toBytes()), 0);
+        Os.fsync(mFd);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                written += Os.pwrite(mFd, buffer, position + written);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        }
+        mBytesWritten += written;
+    }
+
+    private void closeDestination() {
+        try {
+            mDestination.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+    }
+}
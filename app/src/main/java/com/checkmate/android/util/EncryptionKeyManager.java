@@ -0,0 +1,239 @@
+package com.checkmate.android.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps password-derived keys so PBKDF2 runs once per password and salt instead of once per file.
+ * <p>
+ * New v2 files share a session master key, PBKDF2-SHA256 over the password and a salt picked once
+ * per process, and each file gets its own key from it with HKDF-SHA256 over a random per-file salt
+ * (see {@link EncryptedMediaFormat}). Opening files also goes through the cache, so checking the
+ * password and then playing the same file derives once. The cached key bytes only live in memory
+ * and are zeroed when evicted or on {@link #clear()}, which runs when the encryption password
+ * changes. The SecretKeySpec objects handed out copy the key and cannot be wiped; they last until
+ * their cipher is collected.
+ */
+public final class EncryptionKeyManager {
+    private static final int MAX_KEYS = 8;
+    private static final int MAX_HELD = 4;
+    private static final byte[] FILE_KEY_INFO = "T3V file key".getBytes(StandardCharsets.US_ASCII);
+
+    private static final EncryptionKeyManager sInstance = new EncryptionKeyManager();
+
+    private final SecureRandom mRandom = new SecureRandom();
+    private final LinkedHashMap<String, byte[]> mKeys = new LinkedHashMap<>(MAX_KEYS, 0.75f, true);
+    private final LinkedHashMap<String, String> mHeld = new LinkedHashMap<>();
+    private byte[] mSessionSalt;
+    private String mSessionId;
+    private long mDerivations;
+    private long mHits;
+
+    public static EncryptionKeyManager getInstance() {
+        return sInstance;
+    }
+
+    private EncryptionKeyManager() {
+    }
+
+    /**
+     * Header for a new v2 file: the session salt for the master key and a fresh file salt.
+     */
+    public synchronized EncryptedMediaFormat.Header newHeader(String password, int chunkSize) {
+        String id = cacheId("session", password, new byte[0], 0, 0);
+        if (mSessionSalt == null || !id.equals(mSessionId)) {
+            mSessionSalt = new byte[16];
+            mRandom.nextBytes(mSessionSalt);
+            mSessionId = id;
+        }
+        byte[] fileSalt = new byte[16];
+        mRandom.nextBytes(fileSalt);
+        return new EncryptedMediaFormat.Header(chunkSize, mSessionSalt.clone(),
+                EncryptedMediaFormat.PBKDF2_ITERATIONS, fileSalt);
+    }
+
+    /**
+     * Key for a v2 file.
+     */
+    public SecretKeySpec fileKey(String password, EncryptedMediaFormat.Header header)
+            throws GeneralSecurityException {
+        byte[] master = derive("PBKDF2WithHmacSHA256", password, header.salt, header.iterations, 256);
+        try {
+            byte[] key = hkdf(master, header.fileSalt, FILE_KEY_INFO, 32);
+            try {
+                return new SecretKeySpec(key, "AES");
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+        } finally {
+            Arrays.fill(master, (byte) 0);
+        }
+    }
+
+    /**
+     * PBKDF2 AES key, cached by algorithm, password, salt and iterations.
+     */
+    public SecretKeySpec pbkdf2Key(String algorithm, String password, byte[] salt, int iterations,
+                                   int bits) throws GeneralSecurityException {
+        byte[] key = derive(algorithm, password, salt, iterations, bits);
+        try {
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Keeps a password in this process for a screen that opens encrypted files, which gets the
+     * returned handle in its Intent instead of the password; Intents pass through the system and
+     * end up in saved state. The handle is random and stops working after {@link #releasePassword},
+     * once {@link #MAX_HELD} newer ones exist, on {@link #clear()} or with the process.
+     */
+    public synchronized String holdPassword(String password) {
+        byte[] random = new byte[16];
+        mRandom.nextBytes(random);
+        String handle = hex(random);
+        mHeld.put(handle, password);
+        Iterator<String> it = mHeld.keySet().iterator();
+        while (mHeld.size() > MAX_HELD && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        return handle;
+    }
+
+    /**
+     * @return the password held under {@code handle}, or null once it is gone
+     */
+    public synchronized String heldPassword(String handle) {
+        return handle != null ? mHeld.get(handle) : null;
+    }
+
+    public synchronized void releasePassword(String handle) {
+        mHeld.remove(handle);
+    }
+
+    /**
+     * Zeroes and drops every key, forgets held passwords and starts a new session salt.
+     */
+    public synchronized void clear() {
+        for (byte[] key : mKeys.values()) {
+            Arrays.fill(key, (byte) 0);
+        }
+        mKeys.clear();
+        mHeld.clear();
+        mSessionSalt = null;
+        mSessionId = null;
+    }
+
+    public synchronized long getDerivationCount() {
+        return mDerivations;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return a copy of the cached key, the caller zeroes it
+     */
+    private byte[] derive(String algorithm, String password, byte[] salt, int iterations, int bits)
+            throws GeneralSecurityException {
+        String id = cacheId(algorithm, password, salt, iterations, bits);
+        synchronized (this) {
+            byte[] key = mKeys.get(id);
+            if (key != null) {
+                mHits++;
+                return key.clone();
+            }
+        }
+        // outside the lock, two threads may race on a miss and both derive the same key
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+        byte[] key;
+        try {
+            key = SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+        synchronized (this) {
+            mDerivations++;
+            byte[] old = mKeys.put(id, key.clone());
+            if (old != null) {
+                Arrays.fill(old, (byte) 0);
+            }
+            Iterator<Map.Entry<String, byte[]>> it = mKeys.entrySet().iterator();
+            while (mKeys.size() > MAX_KEYS && it.hasNext()) {
+                Arrays.fill(it.next().getValue(), (byte) 0);
+                it.remove();
+            }
+        }
+        return key;
+    }
+
+    /**
+     * RFC 5869 with HMAC-SHA256.
+     */
+    static byte[] hkdf(byte[] ikm, byte[] salt, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] prk = mac.doFinal(ikm);
+        try {
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            byte[] okm = new byte[length];
+            byte[] t = new byte[0];
+            int done = 0;
+            for (int i = 1; done < length; i++) {
+                mac.update(t);
+                mac.update(info);
+                mac.update((byte) i);
+                Arrays.fill(t, (byte) 0);
+                t = mac.doFinal();
+                int n = Math.min(t.length, length - done);
+                System.arraycopy(t, 0, okm, done, n);
+                done += n;
+            }
+            Arrays.fill(t, (byte) 0);
+            return okm;
+        } finally {
+            Arrays.fill(prk, (byte) 0);
+        }
+    }
+
+    /**
+     * Digest of the derivation inputs, so the cache never holds the password itself.
+     */
+    private static String cacheId(String algorithm, String password, byte[] salt, int iterations, int bits) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(algorithm.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(password.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(salt);
+            digest.update(new byte[]{(byte) (iterations >>> 24), (byte) (iterations >>> 16),
+                    (byte) (iterations >>> 8), (byte) iterations, (byte) (bits >>> 8), (byte) bits});
+            return hex(digest.digest());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package com.checkmate.android.util.HttpServer;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * NanoHTTPD runner with two bounded pools instead of a thread per connection: a control lane for
+ * short API calls and a long lane for downloads and streams, so a few large transfers cannot
+ * starve status polling. Connections start on the control lane; a handler that implements
+ * {@link LaneAware} looks at its first request there and moves to the long lane when it is a long
+ * one. A connection that finds its lane full is answered 503 and closed.
+ */
+class BoundedAsyncRunner implements NanoHTTPD.AsyncRunner {
+    private static final String TAG = "BoundedAsyncRunner";
+
+    private static final ThreadLocal<Boolean> sLongLane = new ThreadLocal<>();
+
+    /**
+     * Client handler that can tell which lane its connection belongs on.
+     */
+    interface LaneAware {
+        /**
+         * Reads ahead to the first request line without consuming it. Blocks up to the socket timeout.
+         */
+        boolean isLongRunning();
+
+        /**
+         * Answers 503 and closes the connection; called on the accepting or a control thread.
+         */
+        void reject();
+    }
+
+    private final ThreadPoolExecutor mControl;
+    private final ThreadPoolExecutor mLong;
+    private final Set<NanoHTTPD.ClientHandler> mRunning = Collections.synchronizedSet(new HashSet<>());
+    private final AtomicLong mRejected = new AtomicLong();
+
+    BoundedAsyncRunner(int controlThreads, int controlQueue, int longThreads, int longQueue) {
+        mControl = pool("http-control", controlThreads, controlQueue);
+        mLong = pool("http-long", longThreads, longQueue);
+    }
+
+    /**
+     * True on a long-lane thread.
+     */
+    static boolean isLongLane() {
+        return Boolean.TRUE.equals(sLongLane.get());
+    }
+
+    /**
+     * Whether control connections are waiting for a thread; idle keep-alive connections should
+     * then be closed so they do not hold one.
+     */
+    boolean isControlBacklogged() {
+        return !mControl.getQueue().isEmpty();
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler handler) {
+        mRunning.add(handler);
+        try {
+            mControl.execute(() -> {
+                if (handler instanceof LaneAware && ((LaneAware) handler).isLongRunning()) {
+                    try {
+                        mLong.execute(() -> {
+                            sLongLane.set(true);
+                            try {
+                                handler.run();
+                            } finally {
+                                sLongLane.remove();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        reject(handler);
+                    }
+                    return;
+                }
+                handler.run();
+            });
+        } catch (RejectedExecutionException e) {
+            reject(handler);
+        }
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler handler) {
+        mRunning.remove(handler);
+    }
+
+    @Override
+    public void closeAll() {
+        NanoHTTPD.ClientHandler[] handlers;
+        synchronized (mRunning) {
+            handlers = mRunning.toArray(new NanoHTTPD.ClientHandler[0]);
+        }
+        for (NanoHTTPD.ClientHandler handler : handlers) {
+            handler.close();
+        }
+    }
+
+    /**
+     * Stops both pools; the runner cannot be used afterwards.
+     */
+    void shutdown() {
+        closeAll();
+        mControl.shutdownNow();
+        mLong.shutdownNow();
+    }
+
+    String getSummary() {
+        return String.format(Locale.US, "control %d/%d active, %d queued; long %d/%d active, %d queued; %d rejected",
+                mControl.getActiveCount(), mControl.getMaximumPoolSize(), mControl.getQueue().size(),
+                mLong.getActiveCount(), mLong.getMaximumPoolSize(), mLong.getQueue().size(), mRejected.get());
+    }
+
+    private void reject(NanoHTTPD.ClientHandler handler) {
+        mRejected.incrementAndGet();
+        Log.w(TAG, "Lane full, rejecting connection: " + getSummary());
+        mRunning.remove(handler);
+        if (handler instanceof LaneAware) {
+            ((LaneAware) handler).reject();
+        } else {
+            handler.close();
+        }
+    }
+
+    private static ThreadPoolExecutor pool(String name, int threads, int queue) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), factory, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
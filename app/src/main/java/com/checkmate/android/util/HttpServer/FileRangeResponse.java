@@ -0,0 +1,227 @@
+package com.checkmate.android.util.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Download response that sends byte ranges of a file with {@link FileChannel#transferTo} straight
+ * into the client's socket channel (sendfile), so the data never passes through a Java buffer.
+ * Several ranges are sent as multipart/byteranges. The connection's socket is published per
+ * handler thread with {@link #bindSocket}; without a socket channel (or when transferTo cannot be
+ * used) the body is copied through one reused buffer.
+ */
+class FileRangeResponse extends StreamingResponse {
+
+    private static final int MAX_RANGES = 16;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<Socket> sSocket = new ThreadLocal<>();
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mFileSize;
+    private final String mPartType;
+    private final List<long[]> mRanges;     // {start, end} inclusive
+    private final String mBoundary;
+    private final long mLength;
+
+    /**
+     * Makes {@code socket} the connection responses on this thread write to.
+     */
+    static void bindSocket(Socket socket) {
+        sSocket.set(socket);
+    }
+
+    static void unbindSocket() {
+        sSocket.remove();
+    }
+
+    /**
+     * Parses a Range header: comma-separated "a-b", "a-" and "-n" specs.
+     *
+     * @return satisfiable ranges as {start, end}, possibly empty; null to send the whole file
+     *         (no header, a malformed one, or more ranges than are worth serving)
+     */
+    static List<long[]> parseRanges(String header, long fileSize) {
+        if (header == null || !header.toLowerCase(Locale.ROOT).startsWith("bytes=")) return null;
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null;
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                String s = spec.trim();
+                int dash = s.indexOf('-');
+                if (dash < 0) return null;
+                String first = s.substring(0, dash).trim();
+                String last = s.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // suffix: the last n bytes
+                    long n = Long.parseLong(last);
+                    if (n <= 0) continue;
+                    start = Math.max(0, fileSize - n);
+                    end = fileSize - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? fileSize - 1 : Long.parseLong(last);
+                    if (end < start) return null;
+                    end = Math.min(end, fileSize - 1);
+                }
+                if (start >= fileSize || start > end) continue;
+                ranges.add(new long[]{start, end});
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * @param ranges from {@link #parseRanges}, null or one range covering the file for a 200
+     */
+    FileRangeResponse(File file, String mimeType, List<long[]> ranges) throws IOException {
+        super(Status.OK, mimeType);
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        mFileSize = mChannel.size();
+        mPartType = mimeType;
+        if (ranges == null || ranges.isEmpty()
+                || (ranges.size() == 1 && ranges.get(0)[0] == 0 && ranges.get(0)[1] == mFileSize - 1)) {
+            mRanges = Collections.singletonList(new long[]{0, mFileSize - 1});
+            mBoundary = null;
+            setStatus(Status.OK);
+        } else if (ranges.size() == 1) {
+            mRanges = ranges;
+            mBoundary = null;
+            setStatus(Status.PARTIAL_CONTENT);
+            long[] r = ranges.get(0);
+            addHeader("Content-Range", String.format(Locale.US, "bytes %d-%d/%d", r[0], r[1], mFileSize));
+        } else {
+            mRanges = ranges;
+            mBoundary = Long.toHexString(sRandom.nextLong()) + Long.toHexString(sRandom.nextLong());
+            setStatus(Status.PARTIAL_CONTENT);
+            setMimeType("multipart/byteranges; boundary=" + mBoundary);
+        }
+        long length = 0;
+        for (int i = 0; i < mRanges.size(); i++) {
+            long[] r = mRanges.get(i);
+            length += mBoundary != null ? partHeader(i).length : 0;
+            length += r[1] - r[0] + 1;
+        }
+        if (mBoundary != null) {
+            length += closingBoundary().length;
+        }
+        mLength = Math.max(0, length);
+        addHeader("Accept-Ranges", "bytes");
+        addHeader("Content-Length", String.valueOf(mLength));
+        addHeader("Content-Disposition", "inline; filename=\"" + file.getName() + "\"");
+    }
+
+    long getContentLength() {
+        return mLength;
+    }
+
+    @Override
+    void writeTo(OutputStream out) throws IOException {
+        writeTo(out, channelFor(sSocket.get()));
+    }
+
+    /**
+     * Writes the whole response. {@code socket} null copies the body through a buffer into
+     * {@code out}; otherwise the body goes to the socket channel with transferTo.
+     */
+    void writeTo(OutputStream out, SocketChannel socket) throws IOException {
+        if (!writeHead(out, false)) return;
+
+        byte[] buffer = socket == null ? new byte[COPY_BUFFER_SIZE] : null;
+        for (int i = 0; i < mRanges.size(); i++) {
+            if (mBoundary != null) {
+                out.write(partHeader(i));
+                out.flush();
+            }
+            long[] r = mRanges.get(i);
+            if (socket != null) {
+                transfer(r[0], r[1] - r[0] + 1, socket);
+            } else {
+                copy(r[0], r[1] - r[0] + 1, out, buffer);
+            }
+        }
+        if (mBoundary != null) {
+            out.write(closingBoundary());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        safeCloseFile();
+    }
+
+    private void transfer(long position, long count, SocketChannel socket) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long n = mChannel.transferTo(position + done, count - done, socket);
+            if (n <= 0) {
+                if (position + done >= mChannel.size()) {
+                    throw new IOException("File shrank during download");
+                }
+                continue;
+            }
+            done += n;
+        }
+    }
+
+    private void copy(long position, long count, OutputStream out, byte[] buffer) throws IOException {
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long done = 0;
+        while (done < count) {
+            wrapped.clear();
+            wrapped.limit((int) Math.min(buffer.length, count - done));
+            int n = mChannel.read(wrapped, position + done);
+            if (n <= 0) throw new IOException("File shrank during download");
+            out.write(buffer, 0, n);
+            done += n;
+        }
+    }
+
+    private byte[] partHeader(int index) {
+        long[] r = mRanges.get(index);
+        return String.format(Locale.US, "\r\n--%s\r\nContent-Type: %s\r\nContent-Range: bytes %d-%d/%d\r\n\r\n",
+                mBoundary, mPartType, r[0], r[1], mFileSize).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] closingBoundary() {
+        return ("\r\n--" + mBoundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Socket channel of a connection accepted from a channel-backed server socket, null otherwise.
+     * transferTo needs it in blocking mode.
+     */
+    private static SocketChannel channelFor(Socket socket) {
+        if (socket == null) return null;
+        SocketChannel channel = socket.getChannel();
+        return channel != null && channel.isBlocking() ? channel : null;
+    }
+
+    private void safeCloseFile() {
+        try {
+            mFile.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
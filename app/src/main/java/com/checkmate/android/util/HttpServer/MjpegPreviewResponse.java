@@ -0,0 +1,74 @@
+package com.checkmate.android.util.HttpServer;
+
+import com.checkmate.android.util.PreviewFrameRing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * multipart/x-mixed-replace stream of the JPEG frames in a {@link PreviewFrameRing}, the MJPEG
+ * format browsers show in an img tag. Each write is the newest frame; a client that cannot keep up
+ * skips frames instead of queueing them. Holds a viewer slot, which must already be acquired, until
+ * the client goes away or the server stops.
+ */
+class MjpegPreviewResponse extends StreamingResponse {
+    private static final String BOUNDARY = "checkmateframe";
+    private static final long FRAME_TIMEOUT_MS = 5000;
+    // a stalled camera ends the stream, so a client that left is not waited on forever
+    private static final int MAX_IDLE_TIMEOUTS = 6;
+
+    private final PreviewFrameRing mRing;
+    private boolean mReleased;
+
+    MjpegPreviewResponse(PreviewFrameRing ring) {
+        super(Status.OK, "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+        mRing = ring;
+        addHeader("Cache-Control", "no-cache, no-store");
+        addHeader("Pragma", "no-cache");
+        // no length and no chunking: the body ends when the connection does
+        addHeader("Connection", "close");
+    }
+
+    @Override
+    void writeTo(OutputStream out) throws IOException {
+        try {
+            if (!writeHead(out, false)) return;
+            PreviewFrameRing.Frame frame = new PreviewFrameRing.Frame();
+            // the ring keeps its last frame after viewers leave; start with a fresh one
+            frame.seq = mRing.latestSeq();
+            int idle = 0;
+            while (true) {
+                if (!mRing.awaitNext(frame.seq, FRAME_TIMEOUT_MS, frame)) {
+                    if (++idle >= MAX_IDLE_TIMEOUTS) break;
+                    continue;
+                }
+                idle = 0;
+                String head = "--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: "
+                        + frame.length + "\r\n\r\n";
+                out.write(head.getBytes(StandardCharsets.US_ASCII));
+                out.write(frame.data, 0, frame.length);
+                out.write('\r');
+                out.write('\n');
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            // server stopping
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        super.close();
+    }
+
+    private synchronized void release() {
+        if (!mReleased) {
+            mReleased = true;
+            mRing.releaseViewer();
+        }
+    }
+}
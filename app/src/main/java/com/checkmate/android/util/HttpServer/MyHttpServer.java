@@ -10,6 +10,7 @@ import android.content.pm.PackageManager;
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
+import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Handler;
@@ -24,28 +25,34 @@ import com.checkmate.android.AppConstant;
 import com.checkmate.android.AppPreference;
 import com.checkmate.android.R;
 import com.checkmate.android.service.LocationManagerService;
+import com.checkmate.android.service.SharedEGL.SharedEglManager;
 import com.checkmate.android.ui.activity.SplashActivity;
 import com.checkmate.android.ui.fragment.LiveFragment;
 import com.checkmate.android.util.CommonUtil;
 import com.checkmate.android.util.MainActivity;
+import com.checkmate.android.util.PreviewFrameRing;
+import com.checkmate.android.util.StorageQuotaManager;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.lang.reflect.Type;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -65,7 +72,20 @@ public final class MyHttpServer extends NanoHTTPD {
     private static final String API_PREFIX = "/api/v1/";
     private static final String MIME_JSON = "application/json";
     private static final String MIME_MP4 = "video/mp4";
-    private static final int SOCKET_TIMEOUT_MS = 30_000;
+    // read timeout, so also how long an idle keep-alive connection holds a control thread
+    private static final int SOCKET_TIMEOUT_MS = 5_000;
+    private static final int PEEK_LIMIT = 2048;
+    // a request line not there by then goes to the control lane; this runs on a control thread
+    private static final int PEEK_TIMEOUT_MS = 200;
+    private static final int CONTROL_THREADS = 4;
+    private static final int CONTROL_QUEUE = 32;
+    // event streams and preview viewers take long-lane threads too, so together they are capped below LONG_THREADS
+    private static final int LONG_THREADS = 8;
+    private static final int MAX_EVENT_CLIENTS = 3;
+    private static final int MAX_PREVIEW_VIEWERS = 3;
+    private static final long PREVIEW_FIRST_FRAME_MS = 3000;
+    private static final int DEFAULT_EVENTS_INTERVAL_MS = 500;
+    private static final int LONG_QUEUE = 2;
     private static final String DEFAULT_KEY_B64 = "VkNTIENoZWNrbWF0ZSBBbmRyb2lkIEFwcA==";
     private static final double BYTES_IN_GB = 1024.0 * 1024.0 * 1024.0;
 
@@ -75,7 +95,9 @@ public final class MyHttpServer extends NanoHTTPD {
 
     private final Context ctx;
     private final File recordingsDir;
+    private final RecordingIndex recordingIndex;
     private final Gson gson = new GsonBuilder().serializeNulls().create();
+    private final StatusEventStream events = new StatusEventStream(this::statusSnapshot, gson, MAX_EVENT_CLIENTS);
     private final Handler uiHandler = new Handler(Looper.getMainLooper());
     private final String apiKey;
     private ServiceManager serviceManager;
@@ -84,6 +106,8 @@ public final class MyHttpServer extends NanoHTTPD {
     // Route handlers
     private final ConcurrentMap<String, Supplier<Response>> simpleHandlers = new ConcurrentHashMap<>();
     private final ConcurrentMap<String, ParamHandler> paramHandlers = new ConcurrentHashMap<>();
+    private final BoundedAsyncRunner runner =
+            new BoundedAsyncRunner(CONTROL_THREADS, CONTROL_QUEUE, LONG_THREADS, LONG_QUEUE);
 
     @FunctionalInterface
     private interface ParamHandler {
@@ -94,6 +118,7 @@ public final class MyHttpServer extends NanoHTTPD {
         super(port);
         this.ctx = applicationContext.getApplicationContext();
         this.recordingsDir = initRecordingDir();
+        this.recordingIndex = recordingsDir != null ? new RecordingIndex(recordingsDir) : null;
         this.apiKey = resolveApiKey();
         serviceManager = Toothpick
                 .openScope("APP_SCOPE")
@@ -111,9 +136,94 @@ public final class MyHttpServer extends NanoHTTPD {
                 }
             }
         },5000);
+        // channel-backed sockets, so downloads can sendfile into them
+        setServerSocketFactory(() -> ServerSocketChannel.open().socket());
+        setAsyncRunner(runner);
         initRoutes();
     }
 
+    @Override
+    protected ClientHandler createClientHandler(Socket finalAccept, InputStream inputStream) {
+        return new LaneClientHandler(new BufferedInputStream(inputStream, PEEK_LIMIT), finalAccept);
+    }
+
+    /**
+     * Connection handler that publishes its socket for sendfile downloads and sorts itself into
+     * the runner's control or long lane by its first request line.
+     */
+    private final class LaneClientHandler extends ClientHandler implements BoundedAsyncRunner.LaneAware {
+        private final BufferedInputStream in;
+        private final Socket socket;
+
+        LaneClientHandler(BufferedInputStream in, Socket socket) {
+            super(in, socket);
+            this.in = in;
+            this.socket = socket;
+        }
+
+        @Override
+        public boolean isLongRunning() {
+            int timeout;
+            try {
+                timeout = socket.getSoTimeout();
+                socket.setSoTimeout(PEEK_TIMEOUT_MS);
+            } catch (IOException e) {
+                return false;
+            }
+            StringBuilder line = new StringBuilder();
+            in.mark(PEEK_LIMIT);
+            try {
+                int c;
+                while (line.length() < PEEK_LIMIT - 1 && (c = in.read()) != -1 && c != '\n') {
+                    line.append((char) c);
+                }
+                // "GET /api/v1/playback/download?filename=... HTTP/1.1"
+                String[] parts = line.toString().split(" ");
+                return parts.length > 1 && isLongRunningPath(parts[1]);
+            } catch (IOException e) {
+                // slow, timed out or closed; the session notices on its own read
+                return false;
+            } finally {
+                // bytes read before a timeout stay buffered, the session reads them again
+                try {
+                    in.reset();
+                } catch (IOException ignored) {
+                }
+                try {
+                    socket.setSoTimeout(timeout);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void reject() {
+            try {
+                socket.getOutputStream().write(("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException ignored) {
+            }
+            close();
+        }
+
+        @Override
+        public void run() {
+            FileRangeResponse.bindSocket(socket);
+            try {
+                super.run();
+            } finally {
+                FileRangeResponse.unbindSocket();
+            }
+        }
+    }
+
+    private static boolean isLongRunningPath(String path) {
+        int query = path.indexOf('?');
+        String endpoint = query >= 0 ? path.substring(0, query) : path;
+        return endpoint.equals(API_PREFIX + "playback/download") || endpoint.equals(API_PREFIX + "events")
+                || endpoint.equals(API_PREFIX + "live/preview");
+    }
+
     @SuppressLint("NewApi")
     private String resolveApiKey() {
         String envKey = System.getenv("CHECKMATE_API_KEY");
@@ -149,8 +259,11 @@ public final class MyHttpServer extends NanoHTTPD {
         simpleHandlers.put("audio/status", this::audioStatus);
         simpleHandlers.put("streaming/status", this::streamingStatus);
         simpleHandlers.put("recording/status", this::recordingStatus);
+        simpleHandlers.put("storage/status", this::storageStatus);
         paramHandlers.put("playback/list", this::playbackList);
         simpleHandlers.put("gps/status", this::gpsStatus);
+        paramHandlers.put("events", this::events);
+        paramHandlers.put("live/preview", this::livePreview);
 
         // POST/PUT endpoints
         paramHandlers.put("camera/set", this::cameraSet);
@@ -164,6 +277,16 @@ public final class MyHttpServer extends NanoHTTPD {
 
     @Override
     public Response serve(IHTTPSession session) {
+        Response response = route(session);
+        // keep connections alive unless they would hold a thread someone is waiting for
+        boolean longOnControl = !BoundedAsyncRunner.isLongLane() && isLongRunningPath(session.getUri());
+        if (longOnControl || runner.isControlBacklogged()) {
+            response.addHeader("Connection", "close");
+        }
+        return response;
+    }
+
+    private Response route(IHTTPSession session) {
         try {
             if (Method.OPTIONS.equals(session.getMethod())) {
                 return cors(jsonOk(Collections.emptyMap()));
@@ -311,35 +434,75 @@ public final class MyHttpServer extends NanoHTTPD {
     }
 
     private Response audioStatus() {
-        return jsonOk(Map.of(
+        return jsonOk(audioStatusData());
+    }
+
+    private Map<String, Object> audioStatusData() {
+        return Map.of(
                 "enabled", AppPreference.getBool(AppPreference.KEY.RECORD_AUDIO, true),
                 "type", "Microphone"
-        ));
+        );
     }
 
     private Response streamingStatus() {
+        return jsonOk(streamingStatusData());
+    }
+
+    private Map<String, Object> streamingStatusData() {
         boolean isStreaming = AppPreference.getBool(AppPreference.KEY.STREAM_STARTED, false);
-        return jsonOk(Map.of(
+        return Map.of(
                 "is_streaming", isStreaming,
                 "streaming_mode", humanReadableCamera(AppPreference.getStr(AppPreference.KEY.SELECTED_POSITION, "0"))
-        ));
+        );
     }
 
     private Response recordingStatus() {
+        return jsonOk(recordingStatusData());
+    }
+
+    private Map<String, Object> recordingStatusData() {
         boolean isRecording = AppPreference.getBool(AppPreference.KEY.RECORDING_STARTED, false);
-        return jsonOk(Map.of(
+        return Map.of(
                 "is_recording", isRecording,
                 "recording_source", humanReadableCamera(AppPreference.getStr(AppPreference.KEY.SELECTED_POSITION, "0"))
-        ));
+        );
+    }
+
+    /**
+     * Space in the storage location and how many minutes of recording it holds at the current
+     * bitrate, with and without FIFO eviction.
+     */
+    private Response storageStatus() {
+        String location = AppPreference.getStr(AppPreference.KEY.STORAGE_LOCATION, "");
+        if (location.isEmpty()) {
+            return jsonErr(Response.Status.SERVICE_UNAVAILABLE, "Storage location not set");
+        }
+        StorageQuotaManager.Status status = StorageQuotaManager.get(ctx).getStatus(Uri.parse(location));
+        Map<String, Object> data = new HashMap<>();
+        data.put("storage_location", status.tree);
+        data.put("fifo_enabled", status.fifo);
+        data.put("file_count", status.fileCount);
+        data.put("used_bytes", status.usedBytes);
+        data.put("free_bytes", status.freeBytes);
+        data.put("bitrate_kbps", status.bitrateKbps);
+        data.put("headroom_minutes", String.format(Locale.US, "%.1f", status.headroomMinutes));
+        data.put("fifo_headroom_minutes", String.format(Locale.US, "%.1f", status.fifoHeadroomMinutes));
+        data.put("evicted_files", status.evictedFiles);
+        data.put("evicted_bytes", status.evictedBytes);
+        return jsonOk(data);
     }
 
     private Response cameraStatus() {
+        return jsonOk(cameraStatusData());
+    }
+
+    private Map<String, Object> cameraStatusData() {
         String pref = AppPreference.getStr(AppPreference.KEY.SELECTED_POSITION, "0");
-        return jsonOk(Map.of(
+        return Map.of(
                 "selected_camera_id", pref,
                 "selected_camera_name", humanReadableCamera(pref),
                 "is_usb_camera_attached", usbCameraAttached()
-        ));
+        );
     }
 
     private boolean isAppInForeground() {
@@ -519,25 +682,24 @@ public final class MyHttpServer extends NanoHTTPD {
                     "message", "Recordings directory not available or not configured."
             ));
         }
-        File[] filesArray = recordingsDir.listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".mp4"));
-        List<Map<String, Object>> fileList = new java.util.ArrayList<>();
-        if (filesArray != null) {
-            java.util.Arrays.sort(filesArray, (f1, f2) -> Long.compare(f2.lastModified(), f1.lastModified()));
-            for (File file : filesArray) {
-                Map<String, Object> fileInfo = new HashMap<>();
-                fileInfo.put("filename", file.getName());
-                fileInfo.put("size_bytes", file.length());
-                fileInfo.put("size_mb", String.format(Locale.US, "%.2f", file.length() / (1024.0 * 1024.0)));
-                fileInfo.put("last_modified_timestamp", file.lastModified());
-                fileInfo.put("last_modified_date", new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss z", Locale.US).format(new java.util.Date(file.lastModified())));
-                fileList.add(fileInfo);
-            }
+        // newest first; offset/limit page through it, since (ms) keeps files modified after it
+        int offset = parseInt(first(params, "offset", null), 0);
+        int limit = parseInt(first(params, "limit", null), Integer.MAX_VALUE);
+        long since;
+        try {
+            since = Long.parseLong(first(params, "since", "0"));
+        } catch (NumberFormatException e) {
+            return jsonErr(Response.Status.BAD_REQUEST, "Invalid 'since' parameter.");
         }
-        return jsonOk(Map.of(
-                "files", fileList,
-                "total_files", fileList.size(),
-                "directory", recordingsDir.getAbsolutePath()
-        ));
+        recordingIndex.start();
+        String etag = recordingIndex.etag();
+        String ifNoneMatch = session.getHeaders().get("if-none-match");
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag))) {
+            Response notModified = newFixedLengthResponse(Response.Status.NOT_MODIFIED, MIME_JSON, "");
+            notModified.addHeader("ETag", etag);
+            return notModified;
+        }
+        return recordingIndex.listResponse(getUtcDateTimeString(), etag, since, offset, limit);
     }
 
     private Response playbackDownload(IHTTPSession session, Map<String, List<String>> params) {
@@ -603,19 +765,91 @@ public final class MyHttpServer extends NanoHTTPD {
     }
 
     private Response gpsStatus() {
+        return jsonOk(gpsStatusData());
+    }
+
+    private Map<String, Object> gpsStatusData() {
         boolean enabled = AppPreference.getBool(AppPreference.KEY.GPS_ENABLED, false);
         String lat = String.format(Locale.US, "%.6f", LocationManagerService.lat);
         String lng = String.format(Locale.US, "%.6f", LocationManagerService.lng);
         String intervalDesc = getGpsIntervalString();
         int intervalMinutes = AppPreference.getInt(AppPreference.KEY.FREQUENCY_MIN, 1);
 
-        return jsonOk(Map.of(
+        return Map.of(
                 "is_gps_enabled", enabled,
                 "latitude", enabled ? lat : "N/A",
                 "longitude", enabled ? lng : "N/A",
                 "update_interval_minutes_preference", intervalMinutes,
                 "update_interval_description", intervalDesc
-        ));
+        );
+    }
+
+    /**
+     * GET /events: Server-Sent Events carrying the camera, audio, streaming, recording and gps
+     * status sections whenever they change, at most every {@code interval} ms per section.
+     */
+    private Response events(IHTTPSession session, Map<String, List<String>> params) {
+        int defaultInterval = AppPreference.getInt(AppPreference.KEY.EVENTS_MIN_INTERVAL, DEFAULT_EVENTS_INTERVAL_MS);
+        int interval = Math.max(100, Math.min(60_000, parseInt(first(params, "interval", null), defaultInterval)));
+        // a stream would pin a control thread; send one round and let EventSource reconnect
+        Response response = events.open(interval, !BoundedAsyncRunner.isLongLane());
+        if (response == null) {
+            return jsonErr(Response.Status.SERVICE_UNAVAILABLE, "Too many event streams");
+        }
+        return response;
+    }
+
+    /**
+     * GET /live/preview: MJPEG of the camera at preview size, from frames shared by all viewers.
+     * A request on a control connection, or with {@code mode=snapshot}, gets the next frame as a
+     * single JPEG instead.
+     */
+    private Response livePreview(IHTTPSession session, Map<String, List<String>> params) throws InterruptedException {
+        SharedEglManager egl = SharedEglManager.peekInstance();
+        if (egl == null) {
+            return jsonErr(Response.Status.SERVICE_UNAVAILABLE, "No preview frames, camera not rendering");
+        }
+        PreviewFrameRing ring = egl.getPreviewRing();
+        if (!ring.acquireViewer(MAX_PREVIEW_VIEWERS)) {
+            return jsonErr(Response.Status.SERVICE_UNAVAILABLE, "Too many preview viewers");
+        }
+        boolean snapshot = "snapshot".equals(first(params, "mode", null)) || !BoundedAsyncRunner.isLongLane();
+        if (!snapshot) {
+            return new MjpegPreviewResponse(ring);
+        }
+        PreviewFrameRing.Frame frame = new PreviewFrameRing.Frame();
+        boolean received;
+        try {
+            // the ring keeps the last frame after viewers leave; wait for a fresh one
+            received = ring.awaitNext(ring.latestSeq(), PREVIEW_FIRST_FRAME_MS, frame);
+        } finally {
+            ring.releaseViewer();
+        }
+        if (!received) {
+            return jsonErr(Response.Status.SERVICE_UNAVAILABLE, "No preview frames, camera not rendering");
+        }
+        Response response = newFixedLengthResponse(Response.Status.OK, "image/jpeg",
+                new ByteArrayInputStream(frame.data, 0, frame.length), frame.length);
+        response.addHeader("Cache-Control", "no-cache, no-store");
+        return response;
+    }
+
+    private Map<String, Object> statusSnapshot() {
+        Map<String, Object> streaming = new HashMap<>(streamingStatusData());
+        // never create the manager from an HTTP thread just to report it idle
+        SharedEglManager egl = SharedEglManager.peekInstance();
+        streaming.put("bitrate_bps", egl != null ? egl.getStreamBandwidth() : 0L);
+        streaming.put("connections", egl != null ? egl.getConnectionStates() : Collections.emptyMap());
+        Map<String, Object> recording = new HashMap<>(recordingStatusData());
+        recording.put("is_recorder_running", egl != null && egl.isRecording());
+
+        Map<String, Object> sections = new LinkedHashMap<>();
+        sections.put("camera", cameraStatusData());
+        sections.put("audio", audioStatusData());
+        sections.put("streaming", streaming);
+        sections.put("recording", recording);
+        sections.put("gps", gpsStatusData());
+        return sections;
     }
 
     private Response appUpdate(IHTTPSession session, Map<String, List<String>> params) {
@@ -748,62 +982,13 @@ public final class MyHttpServer extends NanoHTTPD {
 
     private Response streamRange(IHTTPSession session, File file) throws IOException {
         long fileSize = file.length();
-        String rangeHeader = session.getHeaders().get("range");
-        long[] range = parseRange(rangeHeader, fileSize);
-
-        RandomAccessFile raf = null;
-        FileChannel channel = null;
-        ChannelRangeInputStream cis = null;
-
-        try {
-            raf = new RandomAccessFile(file, "r");
-            channel = raf.getChannel();
-            cis = new ChannelRangeInputStream(channel, raf, range[0], range[2]);
-
-            Response.Status status = (range[2] == fileSize) ? Response.Status.OK : Response.Status.PARTIAL_CONTENT;
-            Response response = newFixedLengthResponse(status, MIME_MP4, cis, range[2]);
-            response.addHeader("Accept-Ranges", "bytes");
-            response.addHeader("Content-Length", String.valueOf(range[2]));
-            if (status == Response.Status.PARTIAL_CONTENT) {
-                response.addHeader("Content-Range", String.format(Locale.US, "bytes %d-%d/%d", range[0], range[1], fileSize));
-            }
-            response.addHeader("Content-Disposition", "inline; filename=\"" + file.getName() + "\"");
+        List<long[]> ranges = FileRangeResponse.parseRanges(session.getHeaders().get("range"), fileSize);
+        if (ranges != null && ranges.isEmpty()) {
+            Response response = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, MIME_JSON, "");
+            response.addHeader("Content-Range", "bytes */" + fileSize);
             return response;
-        } catch (IOException e) {
-            if (cis != null) { try { cis.close(); } catch (IOException ignored) {} }
-            else if (channel != null && channel.isOpen()) { try { channel.close(); } catch (IOException ignored) {} }
-            else if (raf != null) { try { raf.close(); } catch (IOException ignored) {} }
-            throw e;
-        }
-    }
-
-    private long[] parseRange(String rangeHeader, long fileSize) {
-        long start = 0;
-        long end = fileSize - 1;
-        if (rangeHeader != null && rangeHeader.toLowerCase(Locale.ROOT).startsWith("bytes=") && fileSize > 0) {
-            try {
-                String rangeValue = rangeHeader.substring(6);
-                String[] parts = rangeValue.split("-");
-                if (parts.length > 0 && !parts[0].trim().isEmpty()) {
-                    start = Long.parseLong(parts[0].trim());
-                }
-                if (parts.length > 1 && !parts[1].trim().isEmpty()) {
-                    end = Long.parseLong(parts[1].trim());
-                }
-                if (start < 0) start = 0;
-                if (end >= fileSize) end = fileSize - 1;
-                if (start > end) {
-                    Log.w(TAG, "Invalid byte range requested: " + rangeHeader + ", fileSize: " + fileSize + ". Resetting to full file.");
-                    start = 0; end = fileSize - 1;
-                }
-            } catch (NumberFormatException e) {
-                Log.w(TAG, "Malformed Range header: " + rangeHeader + ". Serving full file.", e);
-                start = 0; end = fileSize - 1;
-            }
         }
-        long length = (end - start) + 1;
-        if (length < 0) length = 0;
-        return new long[]{start, end, length};
+        return new FileRangeResponse(file, MIME_MP4, ranges);
     }
 
     private File secureRecording(String filename) throws IOException, SecurityException {
@@ -834,87 +1019,6 @@ public final class MyHttpServer extends NanoHTTPD {
         return file;
     }
 
-    private static class ChannelRangeInputStream extends InputStream {
-        private final FileChannel channel;
-        private final RandomAccessFile raf;
-        private long position;
-        private long remaining;
-
-        ChannelRangeInputStream(FileChannel channel, RandomAccessFile raf, long start, long length) {
-            this.channel = channel;
-            this.raf = raf;
-            this.position = start;
-            this.remaining = length;
-        }
-
-        @Override
-        public int read() throws IOException {
-            if (remaining <= 0) return -1;
-            ByteBuffer singleByteBuffer = ByteBuffer.allocate(1);
-            int bytesRead = channel.read(singleByteBuffer, position);
-            if (bytesRead <= 0) {
-                remaining = 0;
-                return -1;
-            }
-            position += bytesRead;
-            remaining -= bytesRead;
-            singleByteBuffer.flip();
-            return singleByteBuffer.get() & 0xFF;
-        }
-
-        @Override
-        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
-            if (buffer == null) throw new NullPointerException("Buffer cannot be null.");
-            if (offset < 0 || length < 0 || length > buffer.length - offset) throw new IndexOutOfBoundsException();
-            if (length == 0) return 0;
-            if (remaining <= 0) return -1;
-            int bytesToRead = (int) Math.min(length, remaining);
-            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, bytesToRead);
-            int bytesRead = channel.read(byteBuffer, position);
-            if (bytesRead > 0) {
-                position += bytesRead;
-                remaining -= bytesRead;
-            }
-            if (bytesRead == -1) remaining = 0;
-            return bytesRead;
-        }
-
-        @Override
-        public long skip(long n) throws IOException {
-            if (n <= 0) return 0;
-            long bytesToSkip = Math.min(n, remaining);
-            position += bytesToSkip;
-            remaining -= bytesToSkip;
-            return bytesToSkip;
-        }
-
-        @Override
-        public int available() throws IOException {
-            return (int) Math.min(remaining, Integer.MAX_VALUE);
-        }
-
-        @Override
-        public void close() throws IOException {
-            IOException firstEx = null;
-            try {
-                if (channel != null && channel.isOpen()) {
-                    channel.close();
-                }
-            } catch (IOException e) {
-                firstEx = e;
-            }
-            try {
-                if (raf != null) {
-                    raf.close();
-                }
-            } catch (IOException e) {
-                if (firstEx == null) firstEx = e;
-                else firstEx.addSuppressed(e);
-            }
-            if (firstEx != null) throw firstEx;
-        }
-    }
-
     public void startServer() {
         boolean daemon = false;
         this.isRunningAsDaemon = daemon;
@@ -928,6 +1032,11 @@ public final class MyHttpServer extends NanoHTTPD {
 
     public void stopServer() {
         super.stop();
+        events.stop();
+        runner.shutdown();
+        if (recordingIndex != null) {
+            recordingIndex.stop();
+        }
         Log.i(TAG, "HTTP server stopped");
     }
 }
\ No newline at end of file
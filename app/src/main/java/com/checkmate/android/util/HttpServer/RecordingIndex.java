@@ -0,0 +1,219 @@
+package com.checkmate.android.util.HttpServer;
+
+import android.os.FileObserver;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * In-memory listing of the .mp4 files in the recordings directory for playback/list. The directory
+ * is listed once; after that a {@link FileObserver} updates single entries as files are created,
+ * written, moved or deleted, and the newest-first order is rebuilt only after a change. A file
+ * still being written is listed from its creation with the size it had then, and updated when it
+ * is closed. Every change bumps the version the ETag is made of, so pollers get 304 until
+ * something actually changed. If the directory itself goes away the observer is dropped, and the
+ * next query watches and lists it afresh.
+ */
+class RecordingIndex {
+    private static final String TAG = "RecordingIndex";
+
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    static final class Entry {
+        final String name;
+        final long size;
+        final long lastModified;
+        final String date;          // formatted once, when the entry is made
+
+        Entry(String name, long size, long lastModified, String date) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.date = date;
+        }
+    }
+
+    private final File mDir;
+    private final String mInstance = Long.toHexString(System.currentTimeMillis());
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z", Locale.US);
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private FileObserver mObserver;
+    private List<Entry> mSorted;        // null after a change
+    private long mVersion;
+    private boolean mLoaded;
+
+    RecordingIndex(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Starts watching the directory, again after it went away; the first query lists it.
+     */
+    synchronized void start() {
+        if (mObserver != null) return;
+        if (!mDir.isDirectory()) {
+            // nothing to watch yet; list on every query until it exists
+            mLoaded = false;
+            return;
+        }
+        mObserver = new FileObserver(mDir, EVENTS) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                    invalidate(this);
+                } else if (path != null) {
+                    update(path);
+                }
+            }
+        };
+        mObserver.startWatching();
+    }
+
+    synchronized void stop() {
+        if (mObserver != null) {
+            mObserver.stopWatching();
+            mObserver = null;
+        }
+    }
+
+    synchronized String etag() {
+        ensureLoaded();
+        return "\"" + mInstance + "-" + mVersion + "\"";
+    }
+
+    /**
+     * Entries modified after {@code since}, newest first, and how many there are in total.
+     */
+    synchronized List<Entry> query(long since, int offset, int limit, int[] total) {
+        ensureLoaded();
+        if (mSorted == null) {
+            List<Entry> sorted = new ArrayList<>(mEntries.values());
+            Collections.sort(sorted, (a, b) -> Long.compare(b.lastModified, a.lastModified));
+            mSorted = Collections.unmodifiableList(sorted);
+        }
+        // newest first, so the entries after since are a prefix
+        int matching = mSorted.size();
+        if (since > 0) {
+            matching = 0;
+            while (matching < mSorted.size() && mSorted.get(matching).lastModified > since) {
+                matching++;
+            }
+        }
+        total[0] = matching;
+        int from = Math.min(Math.max(0, offset), matching);
+        int to = (int) Math.min((long) from + Math.max(0, limit), matching);
+        return mSorted.subList(from, to);
+    }
+
+    /**
+     * Response that writes the list as it goes, in the same envelope as the other endpoints.
+     */
+    NanoHTTPD.Response listResponse(String timestamp, String etag, long since, int offset, int limit) {
+        int[] total = new int[1];
+        List<Entry> page = query(since, offset, limit, total);
+        String directory = mDir.getAbsolutePath();
+        StreamingResponse response = new StreamingResponse(NanoHTTPD.Response.Status.OK, "application/json") {
+            @Override
+            void writeTo(OutputStream out) throws IOException {
+                if (!writeHead(out, true)) return;
+                ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+                JsonWriter json = new JsonWriter(new BufferedWriter(
+                        new OutputStreamWriter(chunked, StandardCharsets.UTF_8), 8192));
+                json.beginObject();
+                json.name("success").value(true);
+                json.name("timestamp").value(timestamp);
+                json.name("data").beginObject();
+                json.name("files").beginArray();
+                for (Entry entry : page) {
+                    json.beginObject();
+                    json.name("filename").value(entry.name);
+                    json.name("size_bytes").value(entry.size);
+                    json.name("size_mb").value(String.format(Locale.US, "%.2f", entry.size / (1024.0 * 1024.0)));
+                    json.name("last_modified_timestamp").value(entry.lastModified);
+                    json.name("last_modified_date").value(entry.date);
+                    json.endObject();
+                }
+                json.endArray();
+                json.name("total_files").value(total[0]);
+                json.name("offset").value(Math.min(Math.max(0, offset), total[0]));
+                json.name("returned").value(page.size());
+                json.name("directory").value(directory);
+                json.endObject();
+                json.endObject();
+                json.flush();
+                chunked.finish();
+            }
+        };
+        response.addHeader("ETag", etag);
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) return;
+        mEntries.clear();
+        File[] files = mDir.listFiles((dir, name) -> isRecording(name));
+        if (files != null) {
+            for (File file : files) {
+                mEntries.put(file.getName(), entryFor(file));
+            }
+        }
+        mSorted = null;
+        mLoaded = true;
+        mVersion++;
+    }
+
+    private synchronized void update(String name) {
+        if (!mLoaded || !isRecording(name)) return;
+        File file = new File(mDir, name);
+        if (file.isFile()) {
+            mEntries.put(name, entryFor(file));
+        } else if (mEntries.remove(name) == null) {
+            return;
+        }
+        mSorted = null;
+        mVersion++;
+    }
+
+    /**
+     * The watch ended with the directory; start() makes a new observer for whatever is there next.
+     */
+    private synchronized void invalidate(FileObserver observer) {
+        Log.w(TAG, mDir + " went away, relisting on next query");
+        if (mObserver == observer) {
+            mObserver.stopWatching();
+            mObserver = null;
+        }
+        mLoaded = false;
+        mVersion++;
+    }
+
+    private Entry entryFor(File file) {
+        long lastModified = file.lastModified();
+        return new Entry(file.getName(), file.length(), lastModified, mDateFormat.format(new Date(lastModified)));
+    }
+
+    private static boolean isRecording(String name) {
+        return name.toLowerCase(Locale.ROOT).endsWith(".mp4");
+    }
+}
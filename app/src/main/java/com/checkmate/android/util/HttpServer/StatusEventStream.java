@@ -0,0 +1,229 @@
+package com.checkmate.android.util.HttpServer;
+
+import android.util.Log;
+
+import com.checkmate.android.service.SharedEGL.SharedEglManager;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Server-Sent Events feed for /api/v1/events. What the separate .../status endpoints return is
+ * sampled into named sections on one thread, whenever {@link SharedEglManager} reports a change and
+ * once a second for what nothing announces (location, USB camera). Each section is kept as its
+ * JSON, and a client is sent the sections that changed since its last write, at most once per its
+ * interval, so a burst of changes collapses into one event per section. New clients get every
+ * section first.
+ */
+class StatusEventStream implements SharedEglManager.StateListener {
+    private static final String TAG = "StatusEventStream";
+
+    private static final long SAMPLE_MS = 1000;
+    private static final long KEEPALIVE_MS = 15_000;
+    private static final int RETRY_MS = 3000;
+
+    private final Supplier<Map<String, Object>> mSnapshot;
+    private final Gson mGson;
+    private final int mMaxClients;
+    private final Object mRefreshLock = new Object();
+    private final AtomicBoolean mRefreshPending = new AtomicBoolean();
+    // guarded by this
+    private final Map<String, String> mSections = new HashMap<>();
+    private final Map<String, Long> mSectionSeq = new HashMap<>();
+    private long mSeq;
+    private int mClients;
+    private ScheduledExecutorService mSampler;
+
+    /**
+     * @param snapshot section name to the data for that section; called on the sampling thread
+     */
+    StatusEventStream(Supplier<Map<String, Object>> snapshot, Gson gson, int maxClients) {
+        mSnapshot = snapshot;
+        mGson = gson;
+        mMaxClients = maxClients;
+    }
+
+    /**
+     * Takes a client slot, or returns null when all are in use.
+     *
+     * @param intervalMs minimum time between two writes to this client
+     * @param once       send the current sections and end, for connections that must not stay open
+     */
+    synchronized NanoHTTPD.Response open(long intervalMs, boolean once) {
+        if (mClients >= mMaxClients) return null;
+        if (mClients++ == 0) {
+            mSampler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, TAG));
+            mSampler.scheduleWithFixedDelay(this::refresh, SAMPLE_MS, SAMPLE_MS, TimeUnit.MILLISECONDS);
+            SharedEglManager.addStateListener(this);
+        }
+        return new Client(intervalMs, once);
+    }
+
+    /**
+     * Ends every stream.
+     */
+    synchronized void stop() {
+        if (mSampler != null) {
+            SharedEglManager.removeStateListener(this);
+            mSampler.shutdownNow();
+            mSampler = null;
+        }
+        mClients = 0;
+        mSections.clear();
+        mSectionSeq.clear();
+        notifyAll();
+    }
+
+    @Override
+    public void onStateChanged() {
+        if (!mRefreshPending.compareAndSet(false, true)) return;
+        synchronized (this) {
+            if (mSampler != null) {
+                mSampler.execute(this::refresh);
+                return;
+            }
+        }
+        mRefreshPending.set(false);
+    }
+
+    private synchronized boolean isOpen() {
+        return mSampler != null;
+    }
+
+    private synchronized void release() {
+        if (mClients > 0) mClients--;
+        if (mClients > 0 || mSampler == null) return;
+        SharedEglManager.removeStateListener(this);
+        mSampler.shutdownNow();
+        mSampler = null;
+        mSections.clear();
+        mSectionSeq.clear();
+    }
+
+    private void refresh() {
+        synchronized (mRefreshLock) {
+            mRefreshPending.set(false);
+            Map<String, Object> snapshot;
+            try {
+                snapshot = mSnapshot.get();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Status snapshot failed", e);
+                return;
+            }
+            Map<String, String> json = new HashMap<>();
+            for (Map.Entry<String, Object> section : snapshot.entrySet()) {
+                json.put(section.getKey(), mGson.toJson(section.getValue()));
+            }
+            synchronized (this) {
+                boolean changed = false;
+                for (Map.Entry<String, String> section : json.entrySet()) {
+                    if (!section.getValue().equals(mSections.put(section.getKey(), section.getValue()))) {
+                        mSectionSeq.put(section.getKey(), ++mSeq);
+                        changed = true;
+                    }
+                }
+                if (changed) notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Blocks until a section is newer than {@code sent} or {@code timeoutMs} passes, then returns
+     * the newer sections as {name, json, seq} and records them in {@code sent}.
+     */
+    private synchronized List<String[]> awaitChanges(Map<String, Long> sent, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        List<String[]> changed = new ArrayList<>();
+        while (mSampler != null) {
+            for (Map.Entry<String, Long> section : mSectionSeq.entrySet()) {
+                Long last = sent.get(section.getKey());
+                if (last == null || last < section.getValue()) {
+                    changed.add(new String[]{section.getKey(), mSections.get(section.getKey()),
+                            Long.toString(section.getValue())});
+                    sent.put(section.getKey(), section.getValue());
+                }
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (!changed.isEmpty() || remaining <= 0) break;
+            wait(remaining);
+        }
+        return changed;
+    }
+
+    private final class Client extends StreamingResponse {
+        private final long mIntervalMs;
+        private final boolean mOnce;
+        private final AtomicBoolean mReleased = new AtomicBoolean();
+
+        Client(long intervalMs, boolean once) {
+            super(Status.OK, "text/event-stream");
+            mIntervalMs = intervalMs;
+            mOnce = once;
+            addHeader("Cache-Control", "no-cache");
+            if (once) {
+                addHeader("Connection", "close");
+            }
+        }
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            try {
+                if (!writeHead(out, true)) return;
+                ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+                chunked.write(("retry: " + RETRY_MS + "\n\n").getBytes(StandardCharsets.UTF_8));
+                refresh();
+                Map<String, Long> sent = new HashMap<>();
+                StringBuilder event = new StringBuilder(1024);
+                while (true) {
+                    List<String[]> changed = awaitChanges(sent, KEEPALIVE_MS);
+                    event.setLength(0);
+                    if (changed.isEmpty()) {
+                        if (mOnce || !isOpen()) break;
+                        event.append(": keepalive\n\n");
+                    }
+                    for (String[] section : changed) {
+                        event.append("id: ").append(section[2]).append('\n')
+                                .append("event: ").append(section[0]).append('\n')
+                                .append("data: ").append(section[1]).append("\n\n");
+                    }
+                    chunked.write(event.toString().getBytes(StandardCharsets.UTF_8));
+                    chunked.flush();
+                    if (mOnce) break;
+                    // whatever changes meanwhile goes out together in the next write
+                    Thread.sleep(mIntervalMs);
+                }
+                chunked.finish();
+            } catch (InterruptedException e) {
+                // server stopping
+            } finally {
+                releaseOnce();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            releaseOnce();
+            super.close();
+        }
+
+        private void releaseOnce() {
+            if (mReleased.compareAndSet(false, true)) {
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.checkmate.android.util.HttpServer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Base for responses that write their body themselves instead of handing NanoHTTPD an
+ * InputStream. NanoHTTPD writes headers and body in {@code send()} with private helpers, so this
+ * keeps its own copy of the headers and writes the head in {@link #writeHead}; bodies of unknown
+ * length go out chunked through {@link ChunkedOutputStream}.
+ */
+abstract class StreamingResponse extends NanoHTTPD.Response {
+
+    private final Map<String, String> mHeaders = new LinkedHashMap<>();
+    private boolean mKeepAlive = true;
+    private volatile boolean mBroken;
+
+    StreamingResponse(IStatus status, String mimeType) {
+        super(status, mimeType, null, 0);
+    }
+
+    /**
+     * Writes head and body. When this throws, the rest of the response is missing, so
+     * {@link #send} has the session close the socket rather than keep it alive.
+     */
+    abstract void writeTo(OutputStream out) throws IOException;
+
+    @Override
+    public void addHeader(String name, String value) {
+        super.addHeader(name, value);
+        mHeaders.put(name, value);
+    }
+
+    @Override
+    public void setKeepAlive(boolean useKeepAlive) {
+        super.setKeepAlive(useKeepAlive);
+        mKeepAlive = useKeepAlive;
+    }
+
+    /**
+     * NanoHTTPD's send() cannot throw, and the session only closes the socket afterwards when the
+     * response asks for it (it then throws SocketException itself), so a failed write is reported
+     * through {@link #isCloseConnection()}.
+     */
+    @Override
+    protected void send(OutputStream out) {
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            mBroken = true;
+            setKeepAlive(false);
+        }
+    }
+
+    @Override
+    public boolean isCloseConnection() {
+        return mBroken || super.isCloseConnection();
+    }
+
+    /**
+     * Status line and headers. Set Content-Length with addHeader, or pass {@code chunked}.
+     *
+     * @return false for HEAD requests, which get no body
+     */
+    boolean writeHead(OutputStream out, boolean chunked) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(getStatus().getDescription()).append(" \r\n");
+        head.append("Content-Type: ").append(getMimeType()).append("\r\n");
+        SimpleDateFormat gmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        gmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        head.append("Date: ").append(gmt.format(new Date())).append("\r\n");
+        for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        if (!mHeaders.containsKey("Connection")) {
+            head.append("Connection: ").append(mKeepAlive ? "keep-alive" : "close").append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        return getRequestMethod() != NanoHTTPD.Method.HEAD;
+    }
+
+    /**
+     * HTTP/1.1 chunked framing; {@link #finish()} writes the last chunk without closing the socket.
+     */
+    static class ChunkedOutputStream extends FilterOutputStream {
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        void finish() throws IOException {
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the connection may be kept alive
+            flush();
+        }
+    }
+}
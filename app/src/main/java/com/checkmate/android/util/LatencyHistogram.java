@@ -0,0 +1,69 @@
+package com.checkmate.android.util;
+
+import java.util.Locale;
+
+/**
+ * Log2 histogram of latencies in microseconds: bucket i counts samples below 2^(i+1) µs, the last
+ * bucket everything from about 1 s up. Percentiles are reported as the upper bound of their
+ * bucket. Cheap enough to record every write of a recording.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 21;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mTotalUs;
+    private long mMaxUs;
+
+    public synchronized void record(long micros) {
+        long us = Math.max(0, micros);
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(us | 1));
+        mCounts[bucket]++;
+        mCount++;
+        mTotalUs += us;
+        mMaxUs = Math.max(mMaxUs, us);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMaxUs() {
+        return mMaxUs;
+    }
+
+    /**
+     * Upper bound in µs of the bucket holding the given percentile, 0 without samples.
+     */
+    public synchronized long percentileUs(double percentile) {
+        if (mCount == 0) return 0;
+        long rank = (long) Math.ceil(mCount * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? mMaxUs : Math.min(1L << (i + 1), mMaxUs);
+            }
+        }
+        return mMaxUs;
+    }
+
+    /**
+     * Counts per non-empty bucket, e.g. "<64us:120 <128us:31".
+     */
+    public synchronized String buckets() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (mCounts[i] == 0) continue;
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(i == BUCKETS - 1 ? ">=" + (1L << i) : "<" + (1L << (i + 1))).append("us:").append(mCounts[i]);
+        }
+        return sb.toString();
+    }
+
+    public synchronized String getSummary() {
+        return String.format(Locale.US, "n=%d mean=%dus p50=%dus p99=%dus p99.9=%dus max=%dus",
+                mCount, mCount > 0 ? mTotalUs / mCount : 0, percentileUs(50), percentileUs(99),
+                percentileUs(99.9), mMaxUs);
+    }
+}
@@ -2,6 +2,7 @@ package com.checkmate.android.util;
 
 import android.content.Context;
 import android.graphics.BitmapFactory;
+import android.media.MediaDataSource;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.provider.DocumentsContract;
@@ -10,6 +11,7 @@ import android.database.Cursor;
 import android.util.Log;
 import androidx.exifinterface.media.ExifInterface;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.SimpleDateFormat;
@@ -80,6 +82,13 @@ public class MediaMetadataUtils {
     }
 
     public static ImageMetadata extractImageMetadata(Context context, Uri uri) {
+        return extractImageMetadata(context, uri, null);
+    }
+
+    /**
+     * @param plain decrypted image bytes for encrypted files, or null to read {@code uri}
+     */
+    public static ImageMetadata extractImageMetadata(Context context, Uri uri, byte[] plain) {
         ImageMetadata metadata = new ImageMetadata();
         
         try {
@@ -99,7 +108,7 @@ public class MediaMetadataUtils {
             }
             
             // Get EXIF data
-            try (InputStream inputStream = context.getContentResolver().openInputStream(uri)) {
+            try (InputStream inputStream = openImageStream(context, uri, plain)) {
                 if (inputStream != null) {
                     ExifInterface exif = new ExifInterface(inputStream);
                     
@@ -124,7 +133,7 @@ public class MediaMetadataUtils {
             
             // If EXIF dimensions not available, try BitmapFactory
             if (metadata.width == 0 || metadata.height == 0) {
-                try (InputStream inputStream = context.getContentResolver().openInputStream(uri)) {
+                try (InputStream inputStream = openImageStream(context, uri, plain)) {
                     if (inputStream != null) {
                         BitmapFactory.Options options = new BitmapFactory.Options();
                         options.inJustDecodeBounds = true;
@@ -167,6 +176,14 @@ public class MediaMetadataUtils {
     }
 
     public static VideoMetadata extractVideoMetadata(Context context, Uri uri) {
+        return extractVideoMetadata(context, uri, null);
+    }
+
+    /**
+     * @param dataSource decrypting source for encrypted files, or null to read {@code uri}; the
+     *                   retriever closes it when it is released
+     */
+    public static VideoMetadata extractVideoMetadata(Context context, Uri uri, MediaDataSource dataSource) {
         VideoMetadata metadata = new VideoMetadata();
         MediaMetadataRetriever retriever = new MediaMetadataRetriever();
         
@@ -187,7 +204,11 @@ public class MediaMetadataUtils {
             }
             
             // Use MediaMetadataRetriever for video metadata
-            retriever.setDataSource(context, uri);
+            if (dataSource != null) {
+                retriever.setDataSource(dataSource);
+            } else {
+                retriever.setDataSource(context, uri);
+            }
             
             // Get video dimensions
             String width = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
@@ -251,6 +272,13 @@ public class MediaMetadataUtils {
         return metadata;
     }
 
+    private static InputStream openImageStream(Context context, Uri uri, byte[] plain) throws IOException {
+        if (plain != null) {
+            return new ByteArrayInputStream(plain);
+        }
+        return context.getContentResolver().openInputStream(uri);
+    }
+
     private static String formatDateTime(String dateTime) {
         try {
             SimpleDateFormat input = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.getDefault());
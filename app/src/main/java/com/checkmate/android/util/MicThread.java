@@ -4,6 +4,8 @@ import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.util.Log;
 
+import com.serenegiant.encoder.AvSyncMonitor;
+
 import com.wmspanel.libstream.AudioConfig;
 import com.wmspanel.libstream.Streamer;
 
@@ -14,6 +16,7 @@ public class MicThread extends Thread {
 
     public Streamer mStreamer;
     public Streamer mRecorder;
+    public volatile AvSyncMonitor mSyncMonitor;
     private AudioConfig mConfig;
     private AudioRecord mAudioRecord;
 
@@ -69,6 +72,10 @@ public class MicThread extends Thread {
                     }
                     if (mRecorder != null) {
                         mRecorder.writePcmData(audioBuffer);
+                        AvSyncMonitor monitor = mSyncMonitor;
+                        if (monitor != null) {
+                            monitor.onAudioSamples(audioInputLength / sampleSize, sampleRate);
+                        }
                     }
                 }
             }
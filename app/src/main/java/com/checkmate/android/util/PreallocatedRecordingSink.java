@@ -0,0 +1,359 @@
+package com.checkmate.android.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.SystemClock;
+import android.os.storage.StorageManager;
+import android.provider.DocumentsContract;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.checkmate.android.AppPreference;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Recording output for removable SD cards, where FAT cluster allocation can stall a write for
+ * hundreds of milliseconds. The file is extended to the expected segment size up front
+ * (bitrate x SPLIT_TIME), grown ahead of the muxer in large steps when that was too little, and
+ * cut back to what the muxer wrote when the recorder closes it.
+ * <p>
+ * Like {@link EncryptedRecordingSink}, the recorder gets a seekable proxy descriptor; writes go
+ * straight to the file on the sink thread. fdatasync is batched to one per sync interval instead
+ * of whenever the muxer asks, and every write is timed into a {@link LatencyHistogram}.
+ */
+public class PreallocatedRecordingSink {
+    private static final String TAG = "PreallocatedSink";
+
+    private static final long MIN_PREALLOCATE = 8L * 1024 * 1024;
+    private static final long MIN_EXTEND_STEP = 16L * 1024 * 1024;
+    private static final long EXTEND_MARGIN = 4L * 1024 * 1024;   // grow before writes get this close
+
+    public interface Listener {
+        /**
+         * Called on the sink thread once the recorder closed its descriptor and the file is truncated.
+         */
+        void onClosed(PreallocatedRecordingSink sink);
+    }
+
+    private final File mFile;
+    private final ParcelFileDescriptor mDestination;
+    private final FileDescriptor mFd;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final long mExtendStep;
+    private final long mSyncIntervalMs;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private ParcelFileDescriptor mProxy;
+    private volatile Listener mListener;
+
+    // Only touched on mThread
+    private long mAllocated;
+    private long mLastSync = SystemClock.elapsedRealtime();
+    private boolean mExtendPending;
+    private boolean mSyncPending;
+
+    private volatile long mSize;
+    private volatile long mWriteCalls;
+    private volatile long mSyncCount;
+    private volatile long mExtendCount;
+    private volatile boolean mClosed;
+
+    /**
+     * Whether recordings into {@code file} should go through a sink: the setting is on and the
+     * file is on removable storage.
+     */
+    public static boolean shouldUse(File file) {
+        if (file == null || !AppPreference.getBool(AppPreference.KEY.PREALLOCATE_RECORDING, true)) {
+            return false;
+        }
+        try {
+            return Environment.isExternalStorageRemovable(file);
+        } catch (IllegalArgumentException e) {
+            // not on a storage volume the system knows
+            return false;
+        }
+    }
+
+    /**
+     * The app's files directory on the removable volume that holds {@code treeUri}, so temp
+     * segments can be written on the card they end up on; null for primary storage or when the
+     * volume is not mounted.
+     */
+    public static File removableFilesDir(Context context, Uri treeUri) {
+        if (treeUri == null) return null;
+        String docId;
+        try {
+            docId = DocumentsContract.getTreeDocumentId(treeUri);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int colon = docId.indexOf(':');
+        String volume = colon >= 0 ? docId.substring(0, colon) : docId;
+        if (volume.isEmpty() || "primary".equals(volume)) return null;
+        for (File dir : context.getExternalFilesDirs(null)) {
+            // app dirs on a card look like /storage/<volume uuid>/Android/data/...
+            if (dir != null && dir.getAbsolutePath().startsWith("/storage/" + volume + "/") && shouldUse(dir)) {
+                return dir;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Expected size of one segment at the configured bitrate and SPLIT_TIME.
+     */
+    public static long expectedSegmentBytes() {
+        int splitMinutes = AppPreference.getInt(AppPreference.KEY.SPLIT_TIME, 10);
+        return StorageQuotaManager.segmentBytes(splitMinutes * 60_000L);
+    }
+
+    /**
+     * Creates {@code file}, preallocates {@code expectedBytes} and opens the descriptor for the
+     * recorder. The sync interval comes from {@link AppPreference.KEY#RECORD_SYNC_INTERVAL}.
+     *
+     * @throws IOException when the file cannot be created or no proxy descriptor is available;
+     *                     callers record into the file directly
+     */
+    public static PreallocatedRecordingSink create(Context context, File file, long expectedBytes)
+            throws IOException {
+        long syncIntervalMs = AppPreference.getInt(AppPreference.KEY.RECORD_SYNC_INTERVAL, 2000);
+        return new PreallocatedRecordingSink(context, file, expectedBytes, syncIntervalMs);
+    }
+
+    private PreallocatedRecordingSink(Context context, File file, long expectedBytes, long syncIntervalMs)
+            throws IOException {
+        mFile = file;
+        mSyncIntervalMs = Math.max(0, syncIntervalMs);
+        mExtendStep = Math.max(MIN_EXTEND_STEP, expectedBytes / 4);
+        mDestination = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_WRITE
+                | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+        mFd = mDestination.getFileDescriptor();
+        mThread = new HandlerThread(TAG);
+        try {
+            long start = SystemClock.elapsedRealtime();
+            mAllocated = allocate(Math.max(MIN_PREALLOCATE, expectedBytes));
+            Log.d(TAG, file.getName() + ": preallocated " + mAllocated + " bytes in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+            StorageManager storage = context.getApplicationContext().getSystemService(StorageManager.class);
+            mProxy = storage.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_WRITE, mCallback, mHandler);
+        } catch (IOException | RuntimeException e) {
+            mThread.quitSafely();
+            closeDestination();
+            file.delete();
+            throw e;
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Descriptor for the recorder; it owns and closes it, which truncates the file.
+     */
+    public ParcelFileDescriptor getFileDescriptor() {
+        return mProxy;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Size of the recording as the muxer sees it. */
+    public long getSize() {
+        return mSize;
+    }
+
+    public long getWriteCount() {
+        return mWriteCalls;
+    }
+
+    public long getSyncCount() {
+        return mSyncCount;
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return mLatency;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Closes everything and deletes the file, for a sink the recorder never took.
+     */
+    public void abort() {
+        mListener = null;
+        try {
+            if (mProxy != null) mProxy.close();
+        } catch (IOException ignored) {
+        }
+        mThread.quitSafely();
+        try {
+            mThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeDestination();
+        mFile.delete();
+    }
+
+    public String getSummary() {
+        return mFile.getName() + ": " + mSize + " bytes in " + mWriteCalls + " writes, " + mSyncCount
+                + " syncs, " + mExtendCount + " extensions; write latency " + mLatency.getSummary()
+                + " [" + mLatency.buckets() + "]";
+    }
+
+    private final ProxyFileDescriptorCallback mCallback = new ProxyFileDescriptorCallback() {
+        @Override
+        public long onGetSize() {
+            return mSize;
+        }
+
+        @Override
+        public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+            // the preallocated tail is not part of the recording
+            int length = (int) Math.max(0, Math.min(size, mSize - offset));
+            int done = 0;
+            while (done < length) {
+                int n = Os.pread(mFd, data, done, length - done, offset + done);
+                if (n <= 0) break;
+                done += n;
+            }
+            return done;
+        }
+
+        @Override
+        public int onWrite(long offset, int size, byte[] data) throws ErrnoException {
+            long start = SystemClock.elapsedRealtimeNanos();
+            int done = 0;
+            while (done < size) {
+                int n = Os.pwrite(mFd, data, done, size - done, offset + done);
+                if (n <= 0) {
+                    // no progress would spin here forever
+                    throw new ErrnoException("pwrite", OsConstants.EIO);
+                }
+                done += n;
+            }
+            mLatency.record((SystemClock.elapsedRealtimeNanos() - start) / 1000);
+            mWriteCalls++;
+            if (offset + size > mSize) {
+                mSize = offset + size;
+            }
+            // both run after this write has returned to the muxer
+            if (mSize + EXTEND_MARGIN > mAllocated && !mExtendPending) {
+                mExtendPending = true;
+                mHandler.post(mExtend);
+            }
+            scheduleSync();
+            return size;
+        }
+
+        @Override
+        public void onFsync() {
+            // batched, the next interval covers it
+            scheduleSync();
+        }
+
+        @Override
+        public void onRelease() {
+            try {
+                Os.ftruncate(mFd, mSize);
+                Os.fdatasync(mFd);
+                mSyncCount++;
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Failed to finalise " + mFile.getName(), e);
+            }
+            closeDestination();
+            mClosed = true;
+            Log.i(TAG, getSummary());
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onClosed(PreallocatedRecordingSink.this);
+            }
+            mThread.quitSafely();
+        }
+    };
+
+    private final Runnable mExtend = new Runnable() {
+        @Override
+        public void run() {
+            mExtendPending = false;
+            if (mClosed) return;
+            try {
+                mAllocated = allocate(Math.max(mAllocated, mSize) + mExtendStep);
+                mExtendCount++;
+            } catch (IOException e) {
+                // writes still extend the file, just cluster by cluster
+                Log.w(TAG, "Cannot extend " + mFile.getName() + ": " + e.getMessage());
+                mAllocated = Long.MAX_VALUE;
+            }
+        }
+    };
+
+    private final Runnable mSync = new Runnable() {
+        @Override
+        public void run() {
+            mSyncPending = false;
+            if (mClosed) return;
+            try {
+                Os.fdatasync(mFd);
+                mSyncCount++;
+            } catch (ErrnoException e) {
+                Log.w(TAG, "fdatasync failed: " + e.getMessage());
+            }
+            mLastSync = SystemClock.elapsedRealtime();
+        }
+    };
+
+    private void scheduleSync() {
+        if (mSyncIntervalMs == 0 || mSyncPending) return;
+        mSyncPending = true;
+        long due = mLastSync + mSyncIntervalMs - SystemClock.elapsedRealtime();
+        mHandler.postDelayed(mSync, Math.max(0, due));
+    }
+
+    /**
+     * Reserves the first {@code length} bytes of the file. Falls back to extending it with
+     * ftruncate, which makes FAT allocate and zero the clusters, where fallocate is unsupported.
+     *
+     * @return the allocated length
+     */
+    private long allocate(long length) throws IOException {
+        try {
+            Os.posix_fallocate(mFd, 0, length);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EOPNOTSUPP && e.errno != OsConstants.ENOSYS) {
+                throw new IOException("fallocate " + length, e);
+            }
+            try {
+                Os.ftruncate(mFd, length);
+            } catch (ErrnoException e2) {
+                throw new IOException("ftruncate " + length, e2);
+            }
+        }
+        return length;
+    }
+
+    private void closeDestination() {
+        try {
+            mDestination.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+    }
+}
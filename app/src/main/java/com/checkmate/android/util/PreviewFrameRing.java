@@ -0,0 +1,116 @@
+package com.checkmate.android.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed ring of encoded preview frames with one producer and any number of viewers. The producer
+ * copies each frame into the next slot, reusing its array; a viewer copies the newest slot into its
+ * own {@link Frame} and writes from there, so a slow client never holds up the producer and adding
+ * a viewer costs a memcpy per frame, not an encode. Slots are locked only for those copies, and
+ * viewers read the newest slot while the producer fills the next one, so the locks stay uncontended.
+ */
+public final class PreviewFrameRing {
+
+    /** A viewer's copy of one frame. */
+    public static final class Frame {
+        public byte[] data = new byte[0];
+        public int length;
+        public long seq;
+    }
+
+    private static final class Slot {
+        byte[] data = new byte[0];
+        int length;
+        long seq;
+    }
+
+    private final Slot[] mSlots;
+    private final Object mSignal = new Object();
+    private final AtomicInteger mViewers = new AtomicInteger();
+    private volatile long mLatest;      // 0 until the first frame
+
+    public PreviewFrameRing(int slots) {
+        mSlots = new Slot[Math.max(2, slots)];
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Registers a viewer unless {@code max} are already watching.
+     */
+    public boolean acquireViewer(int max) {
+        while (true) {
+            int viewers = mViewers.get();
+            if (viewers >= max) return false;
+            if (mViewers.compareAndSet(viewers, viewers + 1)) return true;
+        }
+    }
+
+    public void releaseViewer() {
+        mViewers.decrementAndGet();
+    }
+
+    /**
+     * Producers skip the work of making frames while this is false.
+     */
+    public boolean hasViewers() {
+        return mViewers.get() > 0;
+    }
+
+    /**
+     * Sequence number of the newest frame, 0 before the first.
+     */
+    public long latestSeq() {
+        return mLatest;
+    }
+
+    /**
+     * Adds a frame, overwriting the oldest. Only one thread may call this.
+     */
+    public void publish(byte[] src, int length) {
+        long seq = mLatest + 1;
+        Slot slot = mSlots[(int) (seq % mSlots.length)];
+        synchronized (slot) {
+            if (slot.data.length < length) {
+                slot.data = new byte[length + length / 4];
+            }
+            System.arraycopy(src, 0, slot.data, 0, length);
+            slot.length = length;
+            slot.seq = seq;
+        }
+        mLatest = seq;
+        synchronized (mSignal) {
+            mSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for a frame newer than {@code after} and copies the newest one into {@code into};
+     * frames in between are skipped.
+     *
+     * @return false if none arrived within {@code timeoutMs}
+     */
+    public boolean awaitNext(long after, long timeoutMs, Frame into) throws InterruptedException {
+        if (mLatest <= after) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            synchronized (mSignal) {
+                long remaining;
+                while (mLatest <= after && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    mSignal.wait(remaining);
+                }
+            }
+            if (mLatest <= after) return false;
+        }
+        Slot slot = mSlots[(int) (mLatest % mSlots.length)];
+        synchronized (slot) {
+            if (into.data.length < slot.length) {
+                into.data = new byte[slot.length + slot.length / 4];
+            }
+            System.arraycopy(slot.data, 0, into.data, 0, slot.length);
+            into.length = slot.length;
+            into.seq = slot.seq;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+package com.checkmate.android.util;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.util.Log;
+
+import com.checkmate.android.AppPreference;
+import com.serenegiant.usb.TurboJpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Still image JPEG encoder.
+ * <p>
+ * Uses the libjpeg-turbo TurboJPEG API (SIMD) bundled with libuvccamera when the native side is
+ * available, reading RGBA or NV21 straight from direct buffers; otherwise falls back to
+ * {@link Bitmap#compress} / {@link YuvImage#compressToJpeg}. Quality and chroma subsampling
+ * come from {@link AppPreference.KEY#SNAPSHOT_JPEG_QUALITY} and
+ * {@link AppPreference.KEY#SNAPSHOT_JPEG_SUBSAMPLING}. Not thread safe.
+ */
+public class StillJpegEncoder {
+    private static final String TAG = "StillJpegEncoder";
+
+    public static final int DEFAULT_QUALITY = 90;
+    public static final int DEFAULT_SUBSAMPLING = TurboJpeg.SUBSAMPLING_420;
+
+    private TurboJpeg mTurbo;
+    private ByteBuffer mJpegBuffer;
+    private int mQuality = DEFAULT_QUALITY;
+    private int mSubsampling = DEFAULT_SUBSAMPLING;
+
+    public StillJpegEncoder() {
+        try {
+            mTurbo = new TurboJpeg();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "TurboJPEG unavailable, using Bitmap.compress: " + e.getMessage());
+            mTurbo = null;
+        }
+        applyPreferences();
+    }
+
+    /**
+     * Re-reads quality and subsampling from preferences.
+     */
+    public void applyPreferences() {
+        setQuality(AppPreference.getInt(AppPreference.KEY.SNAPSHOT_JPEG_QUALITY, DEFAULT_QUALITY));
+        setSubsampling(AppPreference.getInt(AppPreference.KEY.SNAPSHOT_JPEG_SUBSAMPLING, DEFAULT_SUBSAMPLING));
+    }
+
+    public void setQuality(int quality) {
+        mQuality = Math.max(1, Math.min(100, quality));
+        if (mTurbo != null) mTurbo.setQuality(mQuality);
+    }
+
+    /**
+     * @param subsampling one of the {@code TurboJpeg.SUBSAMPLING_*} constants; ignored by the fallback
+     */
+    public void setSubsampling(int subsampling) {
+        if (subsampling < TurboJpeg.SUBSAMPLING_444 || subsampling > TurboJpeg.SUBSAMPLING_GRAY) {
+            subsampling = DEFAULT_SUBSAMPLING;
+        }
+        mSubsampling = subsampling;
+        if (mTurbo != null) mTurbo.setSubsampling(mSubsampling);
+    }
+
+    public boolean isTurboJpeg() {
+        return mTurbo != null;
+    }
+
+    /**
+     * Encodes tightly packed RGBA pixels.
+     *
+     * @param bottomUp true for glReadPixels output (first row is the bottom of the image)
+     */
+    public void encodeRgba(ByteBuffer rgba, int width, int height, boolean bottomUp, OutputStream out)
+            throws IOException {
+        if (mTurbo != null && rgba.isDirect()) {
+            ByteBuffer jpeg = jpegBuffer(width, height);
+            rgba.rewind();
+            mTurbo.compress(rgba, width, 0, height, TurboJpeg.PIXEL_FORMAT_RGBA, bottomUp, jpeg);
+            write(jpeg, out);
+            return;
+        }
+
+        Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Bitmap output = bmp;
+        try {
+            rgba.rewind();
+            bmp.copyPixelsFromBuffer(rgba);
+            if (bottomUp) {
+                Matrix flip = new Matrix();
+                flip.postScale(1.0f, -1.0f);
+                output = Bitmap.createBitmap(bmp, 0, 0, width, height, flip, true);
+            }
+            if (!output.compress(Bitmap.CompressFormat.JPEG, mQuality, out)) {
+                throw new IOException("Failed to compress bitmap");
+            }
+        } finally {
+            if (output != bmp) output.recycle();
+            bmp.recycle();
+        }
+    }
+
+    /**
+     * Encodes an NV21 frame (camera preview / ImageReader layout, luma stride == width).
+     */
+    public void encodeNv21(ByteBuffer nv21, int width, int height, OutputStream out) throws IOException {
+        if (mTurbo != null && nv21.isDirect()) {
+            ByteBuffer jpeg = jpegBuffer(width, height);
+            nv21.rewind();
+            mTurbo.compress(nv21, width, 0, height, TurboJpeg.PIXEL_FORMAT_NV21, false, jpeg);
+            write(jpeg, out);
+            return;
+        }
+
+        byte[] data;
+        if (nv21.hasArray() && nv21.arrayOffset() == 0) {
+            data = nv21.array();
+        } else {
+            data = new byte[nv21.remaining()];
+            nv21.rewind();
+            nv21.get(data);
+        }
+        YuvImage image = new YuvImage(data, ImageFormat.NV21, width, height, null);
+        if (!image.compressToJpeg(new Rect(0, 0, width, height), mQuality, out)) {
+            throw new IOException("Failed to compress NV21 frame");
+        }
+    }
+
+    /**
+     * Encodes a bitmap, going through TurboJPEG when it is available.
+     */
+    public void encodeBitmap(Bitmap bitmap, OutputStream out) throws IOException {
+        if (mTurbo != null && bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            ByteBuffer rgba = ByteBuffer.allocateDirect(bitmap.getByteCount()).order(ByteOrder.nativeOrder());
+            bitmap.copyPixelsToBuffer(rgba);
+            encodeRgba(rgba, bitmap.getWidth(), bitmap.getHeight(), false, out);
+            return;
+        }
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, mQuality, out)) {
+            throw new IOException("Failed to compress bitmap");
+        }
+    }
+
+    public void release() {
+        if (mTurbo != null) {
+            mTurbo.release();
+            mTurbo = null;
+        }
+        mJpegBuffer = null;
+    }
+
+    private ByteBuffer jpegBuffer(int width, int height) {
+        int size = mTurbo.maxCompressedSize(width, height);
+        if (mJpegBuffer == null || mJpegBuffer.capacity() < size) {
+            mJpegBuffer = ByteBuffer.allocateDirect(size);
+        }
+        mJpegBuffer.clear();
+        return mJpegBuffer;
+    }
+
+    private static void write(ByteBuffer jpeg, OutputStream out) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (jpeg.hasRemaining()) {
+            channel.write(jpeg);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.checkmate.android.util;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.StatFs;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import com.checkmate.android.AppPreference;
+import com.checkmate.android.database.FileStoreDb;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * FIFO housekeeping for the storage location ({@link AppPreference.KEY#FIFO}). Keeps the indexed
+ * recordings of one tree in a min-heap by timestamp, with the bytes they use, built from
+ * {@link FileStoreDb}; the oldest file is a peek and making room never lists the folder. The heap
+ * is only rebuilt when something else wrote to the index ({@link FileStoreDb#generation()}); the
+ * recorder's own files and the evictions update it in place. Photos and other files are never
+ * evicted.
+ * <p>
+ * The recorder calls {@link #ensureHeadroom} as each segment starts, for that segment and the
+ * next, so the oldest recordings go before the volume fills rather than after a write fails.
+ */
+public class StorageQuotaManager {
+    private static final String TAG = "StorageQuotaManager";
+
+    private static final long MIN_FREE_BYTES = 200L * 1024 * 1024;
+    private static final int AUDIO_KBPS = 128;          // added to VIDEO_BITRATE
+    private static final double SEGMENT_MARGIN = 1.25;  // encoders overshoot the target bitrate
+    private static final int MAX_EVICTIONS = 100;       // per call
+    private static final String EVICTABLE_TYPE = "video";
+
+    /**
+     * Snapshot for the HTTP API; byte counts are -1 when the provider does not report them.
+     */
+    public static class Status {
+        public String tree;
+        public boolean fifo;
+        public int fileCount;
+        public long usedBytes;
+        public long freeBytes;
+        public int bitrateKbps;
+        public double headroomMinutes;       // free space only
+        public double fifoHeadroomMinutes;   // plus what FIFO may evict
+        public long evictedFiles;
+        public long evictedBytes;
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final String path;
+        final long timestamp;
+        final long size;
+        boolean removed;
+
+        Entry(String path, long timestamp, long size) {
+            this.path = path;
+            this.timestamp = timestamp;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int c = Long.compare(timestamp, other.timestamp);
+            return c != 0 ? c : path.compareTo(other.path);
+        }
+    }
+
+    private static StorageQuotaManager sInstance;
+
+    private final Context mContext;
+    private final FileStoreDb mDb;
+    private PriorityQueue<Entry> mHeap = new PriorityQueue<>();
+    // live entry per path; replaced entries stay in the heap flagged removed until polled
+    private final Map<String, Entry> mLive = new HashMap<>();
+    private String mTree;
+    private long mGeneration = -1;
+    private long mUsedBytes;
+    private long mEvictedFiles;
+    private long mEvictedBytes;
+
+    public static synchronized StorageQuotaManager get(Context context) {
+        if (sInstance == null) {
+            sInstance = new StorageQuotaManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StorageQuotaManager(Context context) {
+        mContext = context;
+        mDb = new FileStoreDb(context);
+    }
+
+    /**
+     * Bytes a recording of {@code durationMs} takes at the configured bitrate, with margin.
+     */
+    public static long segmentBytes(long durationMs) {
+        return (long) (bytesPerSecond() * (durationMs / 1000.0) * SEGMENT_MARGIN);
+    }
+
+    /**
+     * Call after {@link FileStoreDb#logFile} so the heap takes the file without a reload.
+     *
+     * @param type the type the file was logged with; only recordings are tracked
+     */
+    public synchronized void onFileLogged(String path, String type, long timestamp, long size) {
+        if (path == null || mTree == null || !path.startsWith(mTree + "/document/")) return;
+        if (mGeneration != FileStoreDb.generation() - 1) {
+            // another write came in between, reload on next use
+            mGeneration = -1;
+            return;
+        }
+        if (EVICTABLE_TYPE.equals(type)) {
+            put(path, timestamp, size);
+        }
+        mGeneration = FileStoreDb.generation();
+    }
+
+    /**
+     * Deletes the oldest indexed files until the volume has {@code bytesNeeded} free above the
+     * reserve, when FIFO is on. Blocks on provider calls; run it off the camera thread.
+     *
+     * @return number of files deleted
+     */
+    public synchronized int ensureHeadroom(Uri treeUri, long bytesNeeded) {
+        long free = freeBytes(treeUri);
+        long target = bytesNeeded + MIN_FREE_BYTES;
+        if (free < 0 || free >= target) return 0;
+        if (!AppPreference.getBool(AppPreference.KEY.FIFO, true)) {
+            Log.w(TAG, "Low on space (" + free + " bytes free) and FIFO is off");
+            return 0;
+        }
+        sync(treeUri);
+        int evicted = 0;
+        long reclaimed = 0;
+        while (free < target && evicted < MAX_EVICTIONS) {
+            Entry oldest = pollOldest();
+            if (oldest == null) break;
+            long freed = delete(oldest);
+            if (freed < 0) {
+                // still on storage and in the index; keep counting it and stop retrying
+                put(oldest.path, oldest.timestamp, oldest.size);
+                break;
+            }
+            if (freed == 0) continue;
+            free += freed;
+            reclaimed += freed;
+            evicted++;
+        }
+        mEvictedFiles += evicted;
+        mEvictedBytes += reclaimed;
+        if (free < target) {
+            Log.w(TAG, "Evicted " + evicted + " files but only " + free + " of " + target + " bytes are free");
+        } else if (evicted > 0) {
+            Log.i(TAG, "Evicted " + evicted + " files, " + reclaimed + " bytes");
+        }
+        return evicted;
+    }
+
+    public synchronized Status getStatus(Uri treeUri) {
+        sync(treeUri);
+        Status status = new Status();
+        status.tree = treeUri.toString();
+        status.fifo = AppPreference.getBool(AppPreference.KEY.FIFO, true);
+        status.fileCount = mLive.size();
+        status.usedBytes = mUsedBytes;
+        status.freeBytes = freeBytes(treeUri);
+        status.bitrateKbps = bitrateKbps();
+        double perMinute = bytesPerSecond() * 60 * SEGMENT_MARGIN;
+        if (status.freeBytes < 0) {
+            status.headroomMinutes = -1;
+            status.fifoHeadroomMinutes = -1;
+        } else {
+            status.headroomMinutes = Math.max(0, status.freeBytes - MIN_FREE_BYTES) / perMinute;
+            status.fifoHeadroomMinutes = status.fifo
+                    ? Math.max(0, status.freeBytes + mUsedBytes - MIN_FREE_BYTES) / perMinute
+                    : status.headroomMinutes;
+        }
+        status.evictedFiles = mEvictedFiles;
+        status.evictedBytes = mEvictedBytes;
+        return status;
+    }
+
+    private void sync(Uri treeUri) {
+        String tree = treeUri.toString();
+        long generation = FileStoreDb.generation();
+        if (tree.equals(mTree) && generation == mGeneration) return;
+        List<Entry> entries = new ArrayList<>();
+        mLive.clear();
+        mUsedBytes = 0;
+        for (FileStoreDb.StoredFile file : mDb.queryStoredFiles(tree, EVICTABLE_TYPE)) {
+            Entry entry = new Entry(file.path, file.timestamp, file.size);
+            entries.add(entry);
+            mLive.put(entry.path, entry);
+            mUsedBytes += entry.size;
+        }
+        mHeap = new PriorityQueue<>(entries);   // heapifies in O(n)
+        mTree = tree;
+        mGeneration = generation;
+    }
+
+    private void put(String path, long timestamp, long size) {
+        Entry entry = new Entry(path, timestamp, size);
+        Entry old = mLive.put(path, entry);
+        if (old != null) {
+            old.removed = true;
+            mUsedBytes -= old.size;
+        }
+        mHeap.add(entry);
+        mUsedBytes += size;
+    }
+
+    private Entry pollOldest() {
+        Entry entry;
+        while ((entry = mHeap.poll()) != null) {
+            if (!entry.removed) {
+                mLive.remove(entry.path);
+                mUsedBytes -= entry.size;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the document and its index row.
+     *
+     * @return bytes the delete freed, its size as the provider reports it; 0 when the document
+     *         was already gone (the row is dropped), -1 when it could not be deleted
+     */
+    private long delete(Entry entry) {
+        Uri uri = Uri.parse(entry.path);
+        long size = documentSize(uri, entry.size);
+        long freed = 0;
+        if (size >= 0) {
+            try {
+                if (!DocumentsContract.deleteDocument(mContext.getContentResolver(), uri)) {
+                    Log.w(TAG, "Cannot evict " + entry.path);
+                    return -1;
+                }
+                freed = size;
+            } catch (FileNotFoundException e) {
+                // gone meanwhile, drop the row
+            } catch (Exception e) {
+                Log.w(TAG, "Cannot evict " + entry.path + ": " + e.getMessage());
+                return -1;
+            }
+        }
+        long before = FileStoreDb.generation();
+        mDb.deleteByPath(entry.path);
+        if (mGeneration == before) {
+            mGeneration = FileStoreDb.generation();
+        }
+        ThumbnailCache.get(mContext).remove(entry.path);
+        return freed;
+    }
+
+    /**
+     * Current size of a document, -1 if it no longer exists, {@code fallback} when the provider
+     * cannot tell.
+     */
+    private long documentSize(Uri uri, long fallback) {
+        String[] projection = {DocumentsContract.Document.COLUMN_SIZE};
+        try (Cursor cursor = mContext.getContentResolver().query(uri, projection, null, null, null)) {
+            if (cursor == null) return fallback;
+            if (!cursor.moveToFirst()) return -1;
+            return cursor.isNull(0) ? fallback : cursor.getLong(0);
+        } catch (IllegalArgumentException e) {
+            // providers report a missing document this way (FileNotFoundException inside)
+            return -1;
+        } catch (RuntimeException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Available bytes on the volume of {@code treeUri}: the provider's root for a document tree,
+     * StatFs for a plain path; -1 when unknown.
+     */
+    private long freeBytes(Uri treeUri) {
+        String scheme = treeUri.getScheme();
+        if (scheme == null || "file".equals(scheme)) {
+            try {
+                return new StatFs(treeUri.getPath()).getAvailableBytes();
+            } catch (IllegalArgumentException e) {
+                return -1;
+            }
+        }
+        String docId;
+        try {
+            docId = DocumentsContract.getTreeDocumentId(treeUri);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        // ExternalStorageProvider document IDs are "<root>:<path>"
+        int colon = docId.indexOf(':');
+        String rootId = colon >= 0 ? docId.substring(0, colon) : docId;
+        String[] projection = {DocumentsContract.Root.COLUMN_ROOT_ID, DocumentsContract.Root.COLUMN_AVAILABLE_BYTES};
+        try (Cursor cursor = mContext.getContentResolver().query(
+                DocumentsContract.buildRootsUri(treeUri.getAuthority()), projection, null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                if (rootId.equals(cursor.getString(0)) && !cursor.isNull(1)) {
+                    return cursor.getLong(1);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Roots query failed for " + treeUri + ": " + e.getMessage());
+        }
+        return -1;
+    }
+
+    private static int bitrateKbps() {
+        return AppPreference.getInt(AppPreference.KEY.VIDEO_BITRATE, 4096) + AUDIO_KBPS;
+    }
+
+    private static double bytesPerSecond() {
+        return bitrateKbps() * 1000 / 8.0;
+    }
+}
@@ -241,7 +241,7 @@ public final class StorageUtils {
         boolean result = false;
         File f = newMp4Temp(ctx, mode);
         if (f != null && streamer != null) {
-            streamer.startRecord(f);
+            startRecordFile(ctx, streamer, f);
             result = true;
         }
 
@@ -259,7 +259,7 @@ public final class StorageUtils {
 //            File f = newMp4File(ctx, mode, safUri);
             File f = newMp4File1(ctx,mode);
             if (f != null && streamer != null) {
-                streamer.startRecord(f);
+                startRecordFile(ctx, streamer, f);
                 result = true;
             }
         } catch (Exception e) {
@@ -267,6 +267,30 @@ public final class StorageUtils {
         }
         return result;
     }
+
+    /**
+     * Starts recording into {@code file}, through a {@link PreallocatedRecordingSink} when it is
+     * on a removable card so cluster allocation does not stall the muxer.
+     */
+    private static void startRecordFile(Context ctx, Streamer streamer, File file) {
+        if (PreallocatedRecordingSink.shouldUse(file)) {
+            try {
+                PreallocatedRecordingSink sink = PreallocatedRecordingSink.create(ctx, file,
+                        PreallocatedRecordingSink.expectedSegmentBytes());
+                try {
+                    streamer.startRecord(sink.getFileDescriptor(), Uri.fromFile(file), Streamer.SAVE_METHOD.SAF);
+                    return;
+                } catch (RuntimeException e) {
+                    sink.abort();
+                    Log.w(TAG, "Recorder rejected the preallocated sink: " + e.getMessage());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Preallocated sink unavailable, recording directly: " + e.getMessage());
+            }
+        }
+        streamer.startRecord(file);
+    }
+
     static File newMp4File1(Context context, Streamer.MODE mode) {
 //        File internalDir = new File(context.getFilesDir(), "temp_videos");
         File internalDir = new File(ResourceUtil.getRecordPath(), "temp_videos");
@@ -286,7 +310,7 @@ public final class StorageUtils {
 //        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
         File f = newMp4File(ctx, mode);
         if (f.exists() && streamer != null) {
-            streamer.startRecord(f);
+            startRecordFile(ctx, streamer, f);
             result = true;
             Log.e(TAG, "startRecordDCIM: result = true;");
         }
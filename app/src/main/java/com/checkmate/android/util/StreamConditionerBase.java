@@ -4,7 +4,7 @@ import android.content.Context;
 import android.os.Handler;
 import android.util.Log;
 
-import com.checkmate.android.AppPreference;
+import com.checkmate.android.RenderSettings;
 import com.wmspanel.libstream.Streamer;
 
 import java.util.HashSet;
@@ -68,7 +68,7 @@ public abstract class StreamConditionerBase {
         mCurrentBitrate = 0;
         mFpsRanges = new Streamer.FpsRange[0];
 
-        mMaxFps = AppPreference.getInt(AppPreference.KEY.STREAMING_FRAME, 30);
+        mMaxFps = RenderSettings.get().streamingFrame;
         mCurrentRange = new Streamer.FpsRange((int) mMaxFps, (int) mMaxFps);
     }
 
@@ -100,7 +100,7 @@ public abstract class StreamConditionerBase {
         Log.d(TAG, "Requested bitrate change: " + newBitrate); // Log requested value
         long curTime = System.currentTimeMillis();
         mBitrateHistory.add(new BitrateHistory(curTime, newBitrate));
-        if (SettingsUtils.adaptiveFps(mContext)) {
+        if (RenderSettings.get().adaptiveFramerate) {
             updateFps(newBitrate);
         }
         mStreamer.changeBitRate((int) newBitrate); // Use exactly what is passed
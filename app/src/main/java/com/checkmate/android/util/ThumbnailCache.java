@@ -0,0 +1,314 @@
+package com.checkmate.android.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaDataSource;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Thumbnails for the playback list, keyed by document URI. Two tiers: a memory LRU of bitmaps
+ * and small JPEGs in a directory next to the media index database. Thumbnails of encrypted files
+ * are stored as v2 containers under the encryption code, so the cache never holds plaintext of
+ * an encrypted clip.
+ * <p>
+ * The recorder creates the thumbnail when a segment or snapshot is finalised, while the
+ * plaintext is still at hand, so scrolling only reads small files. Files from before get one
+ * generated on first display.
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    public static final int THUMB_SIZE = 256;
+    private static final int JPEG_QUALITY = 80;
+    private static final int THUMB_CHUNK_SIZE = 64 * 1024;
+    private static final long FRAME_TIME_US = 1_000_000;
+
+    public interface Callback {
+        /**
+         * Main thread; {@code bitmap} is null when there is none and none could be made.
+         */
+        void onThumbnail(String key, Bitmap bitmap);
+    }
+
+    private static ThumbnailCache sInstance;
+
+    private final Context mContext;
+    private final File mDir;
+    private final LruCache<String, Bitmap> mMemory;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(2);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Set<String> mPending = new HashSet<>();
+    private final Set<String> mFailed = new HashSet<>();   // not retried while scrolling
+
+    public static synchronized ThumbnailCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ThumbnailCache(Context context) {
+        mContext = context;
+        mDir = new File(context.getDatabasePath("filestore.db").getParentFile(), "thumbs");
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.w(TAG, "Cannot create " + mDir);
+        }
+        int maxKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / 16);
+        mMemory = new LruCache<String, Bitmap>(maxKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount() / 1024;
+            }
+        };
+    }
+
+    /**
+     * Memory tier only, safe to call while binding list rows.
+     */
+    public Bitmap getCached(String key) {
+        return mMemory.get(key);
+    }
+
+    /**
+     * Loads from disk off the main thread, or generates the thumbnail when there is none yet.
+     *
+     * @param source   the media file, only read when the thumbnail has to be generated
+     * @param password encryption code for encrypted media, null otherwise
+     */
+    public void load(String key, Uri source, boolean video, String password, Callback callback) {
+        synchronized (mPending) {
+            if (mFailed.contains(key) || !mPending.add(key)) return;
+        }
+        mExecutor.execute(() -> {
+            Bitmap bitmap = null;
+            try {
+                bitmap = readDisk(key, password);
+                if (bitmap == null) {
+                    bitmap = generate(source, video, password);
+                    if (bitmap != null) {
+                        writeDisk(key, bitmap, password);
+                    }
+                }
+                if (bitmap != null) {
+                    mMemory.put(key, bitmap);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "No thumbnail for " + key + ": " + e.getMessage());
+            } finally {
+                synchronized (mPending) {
+                    mPending.remove(key);
+                    if (bitmap == null) mFailed.add(key);
+                }
+            }
+            final Bitmap result = bitmap;
+            mMainHandler.post(() -> callback.onThumbnail(key, result));
+        });
+    }
+
+    /**
+     * Creates the thumbnail of a finalised file from its plaintext. Runs on the caller's thread.
+     *
+     * @param password encryption code when the stored file is encrypted, null otherwise
+     */
+    public void createFromFile(String key, File plain, boolean video, String password) {
+        if (key == null || key.isEmpty()) return;
+        try {
+            Bitmap bitmap = video ? videoFrame(plain.getAbsolutePath(), null) : decodeImage(plain);
+            if (bitmap != null) {
+                writeDisk(key, bitmap, password);
+                mMemory.put(key, bitmap);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "createFromFile " + key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the thumbnail of a finalised encrypted file by decrypting only what the first
+     * frame needs. Runs on the caller's thread.
+     */
+    public void createFromEncrypted(String key, Uri uri, boolean video, String password) {
+        try {
+            Bitmap bitmap = generate(uri, video, password);
+            if (bitmap != null) {
+                writeDisk(key, bitmap, password);
+                mMemory.put(key, bitmap);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "createFromEncrypted " + key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lets thumbnails that failed be tried again; call when the encryption code changes, as a
+     * wrong code fails them too.
+     */
+    public void clearFailed() {
+        synchronized (mPending) {
+            mFailed.clear();
+        }
+    }
+
+    public void remove(String key) {
+        synchronized (mPending) {
+            mFailed.remove(key);
+        }
+        mMemory.remove(key);
+        fileFor(key, true).delete();
+        fileFor(key, false).delete();
+    }
+
+    private Bitmap generate(Uri source, boolean video, String password) throws Exception {
+        if (password != null) {
+            DecryptingMediaDataSource data = DecryptingMediaDataSource.open(mContext, source, password);
+            if (video) {
+                // the retriever closes the data source on release
+                try {
+                    return videoFrame(null, data);
+                } catch (Exception e) {
+                    data.close();
+                    throw e;
+                }
+            }
+            try {
+                return decodeImage(data.readFully());
+            } finally {
+                data.close();
+            }
+        }
+        if (video) {
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            try {
+                retriever.setDataSource(mContext, source);
+                return retriever.getScaledFrameAtTime(FRAME_TIME_US, MediaMetadataRetriever.OPTION_CLOSEST_SYNC,
+                        THUMB_SIZE, THUMB_SIZE);
+            } finally {
+                retriever.release();
+            }
+        }
+        try (InputStream in = mContext.getContentResolver().openInputStream(source)) {
+            if (in == null) return null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+            return decodeImage(out.toByteArray());
+        }
+    }
+
+    private static Bitmap videoFrame(String path, MediaDataSource data) throws IOException {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            if (data != null) {
+                retriever.setDataSource(data);
+            } else {
+                retriever.setDataSource(path);
+            }
+            return retriever.getScaledFrameAtTime(FRAME_TIME_US, MediaMetadataRetriever.OPTION_CLOSEST_SYNC,
+                    THUMB_SIZE, THUMB_SIZE);
+        } finally {
+            retriever.release();
+        }
+    }
+
+    private static Bitmap decodeImage(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    }
+
+    private static Bitmap decodeImage(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    private static int sampleSize(int width, int height) {
+        int sample = 1;
+        while (width / (sample * 2) >= THUMB_SIZE && height / (sample * 2) >= THUMB_SIZE) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    private Bitmap readDisk(String key, String password) throws Exception {
+        File file = fileFor(key, password != null);
+        if (!file.exists()) return null;
+        if (password == null) {
+            return BitmapFactory.decodeFile(file.getAbsolutePath());
+        }
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        try (EncryptedMediaReader reader = EncryptedMediaReader.open(pfd, password)) {
+            byte[] data = new byte[(int) reader.length()];
+            int done = 0;
+            while (done < data.length) {
+                int n = reader.read(done, data, done, data.length - done);
+                if (n <= 0) break;
+                done += n;
+            }
+            return BitmapFactory.decodeByteArray(data, 0, done);
+        }
+    }
+
+    private void writeDisk(String key, Bitmap bitmap, String password) throws Exception {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpeg);
+        File file = fileFor(key, password != null);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            if (password == null) {
+                jpeg.writeTo(out);
+            } else {
+                byte[] data = jpeg.toByteArray();
+                EncryptedMediaWriter.encrypt(new ByteArrayInputStream(data), data.length, out, password,
+                        THUMB_CHUNK_SIZE);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+
+    private File fileFor(String key, boolean encrypted) {
+        return new File(mDir, hash(key) + (encrypted ? ".t3j" : ".jpg"));
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes());
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
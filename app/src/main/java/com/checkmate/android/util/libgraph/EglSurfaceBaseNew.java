@@ -7,12 +7,15 @@ import android.opengl.EGLSurface;
 import android.opengl.GLES20;
 import android.util.Log;
 
+import com.checkmate.android.util.StillJpegEncoder;
+
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Locale;
 
 /**
  * Common base class for EGL surfaces.
@@ -145,7 +148,8 @@ public class EglSurfaceBaseNew implements AutoCloseable {
     }
 
     /**
-     * Saves the current frame of the EGL surface to the specified file.
+     * Saves the current frame of the EGL surface to the specified file, as JPEG when the file
+     * name ends in .jpg/.jpeg and as PNG otherwise.
      * <p>
      * Expects that the EGL context and surface are current.
      *
@@ -170,6 +174,19 @@ public class EglSurfaceBaseNew implements AutoCloseable {
         GlUtilNew.checkGlError("glReadPixels");
         buffer.rewind();
 
+        final String name = file.getName().toLowerCase(Locale.US);
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+            // TurboJPEG reads the GL rows bottom-up directly, no Bitmap or flip needed.
+            final StillJpegEncoder encoder = new StillJpegEncoder();
+            try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file))) {
+                encoder.encodeRgba(buffer, width, height, true, bos);
+            } finally {
+                encoder.release();
+            }
+            Log.d(TAG, "Saved " + width + "x" + height + " frame as '" + file.getAbsolutePath() + "'");
+            return;
+        }
+
         // Create a bitmap from the pixel buffer.
         final Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         bmp.copyPixelsFromBuffer(buffer);
@@ -0,0 +1,125 @@
+package com.checkmate.android.util.libgraph;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Off-screen render target: a framebuffer object with a single RGBA texture attachment.
+ * <p>
+ * Used as an intermediate stage so an external (OES) texture can be sampled once and the
+ * resulting 2D texture drawn to any number of window surfaces. All methods must be called
+ * with the owning EGL context current.
+ */
+public final class FramebufferNew implements AutoCloseable {
+    private static final String TAG = "FramebufferNew";
+
+    private int mFramebufferId = 0;
+    private int mTextureId = 0;
+    private int mWidth = 0;
+    private int mHeight = 0;
+
+    // Scratch array to avoid allocating on every bind/release.
+    private final int[] mIds = new int[1];
+
+    /**
+     * Makes sure the framebuffer exists with the requested size, (re)allocating it if needed.
+     *
+     * @param width  Width in pixels; must be positive.
+     * @param height Height in pixels; must be positive.
+     * @return true if the framebuffer is complete and ready to be bound.
+     */
+    public boolean ensureSize(final int width, final int height) {
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        if (mFramebufferId != 0 && width == mWidth && height == mHeight) {
+            return true;
+        }
+        release();
+
+        GLES20.glGenTextures(1, mIds, 0);
+        mTextureId = mIds[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GlUtilNew.checkGlError("FramebufferNew texture");
+
+        GLES20.glGenFramebuffers(1, mIds, 0);
+        mFramebufferId = mIds[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextureId, 0);
+        final int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            Log.e(TAG, "Framebuffer incomplete: 0x" + Integer.toHexString(status));
+            release();
+            return false;
+        }
+
+        mWidth = width;
+        mHeight = height;
+        Log.d(TAG, "Framebuffer " + mFramebufferId + " allocated " + width + "x" + height);
+        return true;
+    }
+
+    /**
+     * Binds the framebuffer as the draw target and sets a full-size viewport.
+     */
+    public void bind() {
+        if (mFramebufferId == 0) {
+            throw new IllegalStateException("Framebuffer not allocated");
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    /**
+     * Restores the default (window surface) framebuffer.
+     */
+    public void unbind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Returns the GL_TEXTURE_2D attachment holding the rendered image.
+     */
+    public int getTextureId() {
+        return mTextureId;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Deletes the framebuffer and its texture. Safe to call more than once.
+     */
+    public void release() {
+        if (mFramebufferId != 0) {
+            mIds[0] = mFramebufferId;
+            GLES20.glDeleteFramebuffers(1, mIds, 0);
+            mFramebufferId = 0;
+        }
+        if (mTextureId != 0) {
+            mIds[0] = mTextureId;
+            GLES20.glDeleteTextures(1, mIds, 0);
+            mTextureId = 0;
+        }
+        mWidth = mHeight = 0;
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
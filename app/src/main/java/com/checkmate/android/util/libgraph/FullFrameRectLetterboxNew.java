@@ -105,7 +105,15 @@ public final class FullFrameRectLetterboxNew extends FullFrameRectNew implements
      * @param rotation  Input rotation angle (in degrees).
      */
     public void drawFlipMirror(final int textureId, final float[] texMatrix, final int rotation) {
-        resetMatrix();
+        flipMirrorTransform(mMatrix, rotation);
+        drawFrame(textureId, texMatrix, mMatrix);
+    }
+
+    /**
+     * Fills {@code out} with the transform used by {@link #drawFlipMirror}.
+     */
+    public static void flipMirrorTransform(final float[] out, final int rotation) {
+        Matrix.setIdentityM(out, 0);
         int rotate;
         if (rotation == 0) {
             rotate = 180;
@@ -116,9 +124,8 @@ public final class FullFrameRectLetterboxNew extends FullFrameRectNew implements
         } else {
             rotate = rotation; // Default to input value if not one of the above.
         }
-        Matrix.rotateM(mMatrix, 0, rotate, 0.0f, 0.0f, 1.0f);
-        Matrix.scaleM(mMatrix, 0, -1.0f, 1.0f, 1.0f);
-        drawFrame(textureId, texMatrix, mMatrix);
+        Matrix.rotateM(out, 0, rotate, 0.0f, 0.0f, 1.0f);
+        Matrix.scaleM(out, 0, -1.0f, 1.0f, 1.0f);
     }
 
     /**
@@ -130,18 +137,25 @@ public final class FullFrameRectLetterboxNew extends FullFrameRectNew implements
      * @param scale     Scaling factor.
      */
     public void drawFrameMirrorY(final int textureId, final float[] texMatrix, final int rotate, final float scale) {
-        resetMatrix();
+        mirrorYTransform(mMatrix, rotate, scale);
+        drawFrame(textureId, texMatrix, mMatrix);
+    }
+
+    /**
+     * Fills {@code out} with the transform used by {@link #drawFrameMirrorY}.
+     */
+    public static void mirrorYTransform(final float[] out, final int rotate, final float scale) {
+        Matrix.setIdentityM(out, 0);
         if (rotate != 0) {
-            Matrix.rotateM(mMatrix, 0, rotate, 0.0f, 0.0f, 1.0f);
+            Matrix.rotateM(out, 0, rotate, 0.0f, 0.0f, 1.0f);
         }
         float effectiveScale = (rotate == 90 || rotate == 270) ? -scale : scale;
         if (effectiveScale != 1.0f) {
-            Matrix.scaleM(mMatrix, 0, 1.0f, effectiveScale, 1.0f);
+            Matrix.scaleM(out, 0, 1.0f, effectiveScale, 1.0f);
         }
         if (rotate == 0 || rotate == 180) {
-            Matrix.scaleM(mMatrix, 0, -1.0f, 1.0f, 1.0f);
+            Matrix.scaleM(out, 0, -1.0f, 1.0f, 1.0f);
         }
-        drawFrame(textureId, texMatrix, mMatrix);
     }
 
     /**
@@ -153,14 +167,32 @@ public final class FullFrameRectLetterboxNew extends FullFrameRectNew implements
      * @param scale     Scaling factor along X.
      */
     public void drawFrameX(final int textureId, final float[] texMatrix, final int rotate, final float scale) {
-        resetMatrix();
+        xTransform(mMatrix, rotate, scale);
+        drawFrame(textureId, texMatrix, mMatrix);
+    }
+
+    /**
+     * Fills {@code out} with the transform used by {@link #drawFrameX}.
+     */
+    public static void xTransform(final float[] out, final int rotate, final float scale) {
+        Matrix.setIdentityM(out, 0);
         if (rotate != 0) {
-            Matrix.rotateM(mMatrix, 0, rotate, 0.0f, 0.0f, 1.0f);
+            Matrix.rotateM(out, 0, rotate, 0.0f, 0.0f, 1.0f);
         }
         if (scale != 1.0f) {
-            Matrix.scaleM(mMatrix, 0, scale, 1.0f, 1.0f);
+            Matrix.scaleM(out, 0, scale, 1.0f, 1.0f);
         }
-        drawFrame(textureId, texMatrix, mMatrix);
+    }
+
+    /**
+     * Draws the frame with a precomputed vertex transform (see the static *Transform helpers).
+     *
+     * @param textureId Texture ID.
+     * @param texMatrix Texture coordinate matrix.
+     * @param transform 4x4 vertex transform.
+     */
+    public void drawFrameTransformed(final int textureId, final float[] texMatrix, final float[] transform) {
+        drawFrame(textureId, texMatrix, transform);
     }
 
     /**
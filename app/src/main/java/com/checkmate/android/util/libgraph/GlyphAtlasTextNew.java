@@ -0,0 +1,289 @@
+package com.checkmate.android.util.libgraph;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * GPU-resident text overlay for the recording timestamp.
+ * <p>
+ * The digit and separator set is rasterised once into a texture atlas (black glyphs on a white
+ * cell, same look as the old per-second bitmap). {@link #setText(CharSequence)} only rewrites a
+ * preallocated vertex buffer with one textured quad per character, so updating the clock costs
+ * no Java allocation and no texture upload. All methods must be called on the GL thread.
+ */
+public final class GlyphAtlasTextNew {
+    private static final String TAG = "GlyphAtlasTextNew";
+
+    /** Characters baked into the atlas. Anything else makes {@link #setText} return false. */
+    public static final String GLYPHS = "0123456789-:/. ,";
+
+    private static final float TEXT_SIZE_PX = 40f;   // matches the legacy timestamp bitmap
+    private static final int PAD_PX = 10;
+    private static final int GUTTER_PX = 2;          // white gap so linear filtering never bleeds
+    private static final int MAX_CHARS = 48;
+    private static final int FLOATS_PER_VERTEX = 2;
+    private static final int SIZEOF_FLOAT = 4;
+
+    // Layout on the output frame, same as SurfaceImageNew.drawTimeStampOnFrame()
+    private static final float HEIGHT_FRAC = 0.08f;
+    private static final int MARGIN_PX = 16;
+
+    // Glyph metrics in atlas pixels; index GLYPHS.length() is the blank padding cell.
+    private final int[] mGlyphIndex = new int[128];
+    private final float[] mGlyphX = new float[GLYPHS.length() + 1];
+    private final float[] mGlyphW = new float[GLYPHS.length() + 1];
+    private int mAtlasW;
+    private int mAtlasH;
+    private int mCellH;
+
+    private Texture2dProgramNew mProgram;
+    private int mTextureId = -1;
+
+    // Two quads of padding + text; strip needs 4 vertices per quad and 2 degenerate per join.
+    private static final int MAX_QUADS = MAX_CHARS + 2;
+    private static final int MAX_VERTICES = MAX_QUADS * 6 - 2;
+    private final FloatBuffer mVertices = allocate(MAX_VERTICES * FLOATS_PER_VERTEX);
+    private final FloatBuffer mTexCoords = allocate(MAX_VERTICES * FLOATS_PER_VERTEX);
+    private int mVertexCount;
+    private float mTextWidthPx;
+
+    private final char[] mText = new char[MAX_CHARS];
+    private int mTextLength;
+
+    private final float[] mProjection = new float[16];
+    private final float[] mModel = new float[16];
+    private final float[] mMvp = new float[16];
+
+    public GlyphAtlasTextNew() {
+        Arrays.fill(mGlyphIndex, -1);
+        for (int i = 0; i < GLYPHS.length(); i++) {
+            mGlyphIndex[GLYPHS.charAt(i)] = i;
+        }
+    }
+
+    /**
+     * Returns true if every character of {@code text} is in the atlas and the text fits.
+     */
+    public boolean supports(CharSequence text) {
+        if (text == null || text.length() > MAX_CHARS) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= mGlyphIndex.length || mGlyphIndex[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean hasText() {
+        return mTextLength > 0;
+    }
+
+    /** Drops the current text so {@link #hasText()} is false until the next {@link #setText}. */
+    public void clear() {
+        mTextLength = 0;
+        mVertexCount = 0;
+        mTextWidthPx = 0f;
+    }
+
+    /**
+     * Lays out {@code text} into the vertex buffer. Unchanged text is a no-op.
+     *
+     * @return false if the text contains glyphs outside {@link #GLYPHS}
+     */
+    public boolean setText(CharSequence text) {
+        if (!supports(text)) {
+            return false;
+        }
+        if (sameText(text)) {
+            return true;
+        }
+        ensureAtlas();
+        mTextLength = text.length();
+        for (int i = 0; i < mTextLength; i++) {
+            mText[i] = text.charAt(i);
+        }
+
+        mVertices.clear();
+        mTexCoords.clear();
+        mVertexCount = 0;
+        final int blank = GLYPHS.length();
+        float x = putQuad(0f, blank, PAD_PX);
+        for (int i = 0; i < mTextLength; i++) {
+            int g = mGlyphIndex[mText[i]];
+            x = putQuad(x, g, mGlyphW[g]);
+        }
+        x = putQuad(x, blank, PAD_PX);
+        mTextWidthPx = x;
+        mVertices.position(0);
+        mTexCoords.position(0);
+        return true;
+    }
+
+    /**
+     * Draws the text in the top-left corner of a {@code frameW x frameH} frame using the
+     * current viewport. Height is 8% of the frame, never larger than the rasterised size.
+     */
+    public void drawOnFrame(int frameW, int frameH) {
+        if (mTextLength == 0 || frameW <= 0 || frameH <= 0) {
+            return;
+        }
+        ensureGlObjects();
+
+        float scale = Math.min(frameH * HEIGHT_FRAC, mCellH) / mCellH;
+        float left = MARGIN_PX;
+        float bottom = frameH - MARGIN_PX - mCellH * scale;
+
+        Matrix.orthoM(mProjection, 0, 0, frameW, 0, frameH, -1, 1);
+        Matrix.setIdentityM(mModel, 0);
+        Matrix.translateM(mModel, 0, left, bottom, 0f);
+        Matrix.scaleM(mModel, 0, scale, scale, 1f);
+        Matrix.multiplyMM(mMvp, 0, mProjection, 0, mModel, 0);
+
+        mProgram.draw(mMvp, mVertices, 0, mVertexCount, FLOATS_PER_VERTEX,
+                FLOATS_PER_VERTEX * SIZEOF_FLOAT, GlUtilNew.IDENTITY_MATRIX, mTexCoords,
+                mTextureId, FLOATS_PER_VERTEX * SIZEOF_FLOAT);
+    }
+
+    /** Rendered width of the current text in atlas pixels, including padding. */
+    public float getTextWidthPx() {
+        return mTextWidthPx;
+    }
+
+    public void release() {
+        if (mTextureId > 0) {
+            GLES20.glDeleteTextures(1, new int[]{mTextureId}, 0);
+        }
+        mTextureId = -1;
+        if (mProgram != null) {
+            mProgram.release();
+            mProgram = null;
+        }
+        mTextLength = 0;
+        mVertexCount = 0;
+    }
+
+    /* ---------- helpers ---------- */
+
+    private boolean sameText(CharSequence text) {
+        if (text.length() != mTextLength) {
+            return false;
+        }
+        for (int i = 0; i < mTextLength; i++) {
+            if (mText[i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends one quad (BL, BR, TL, TR) at x for glyph g, with degenerate joins.
+     * Returns the x of the next quad.
+     */
+    private float putQuad(float x, int g, float width) {
+        final float x1 = x + width;
+        final float u0 = mGlyphX[g] / mAtlasW;
+        final float u1 = (mGlyphX[g] + width) / mAtlasW;
+        final float vTop = 0f;
+        final float vBottom = (float) mCellH / mAtlasH;
+
+        if (mVertexCount > 0) {
+            // repeat previous vertex and the upcoming one to stitch strips
+            int prev = (mVertexCount - 1) * FLOATS_PER_VERTEX;
+            mVertices.put(mVertices.get(prev)).put(mVertices.get(prev + 1));
+            mTexCoords.put(mTexCoords.get(prev)).put(mTexCoords.get(prev + 1));
+            mVertices.put(x).put(0f);
+            mTexCoords.put(u0).put(vBottom);
+            mVertexCount += 2;
+        }
+        mVertices.put(x).put(0f);        mTexCoords.put(u0).put(vBottom);
+        mVertices.put(x1).put(0f);       mTexCoords.put(u1).put(vBottom);
+        mVertices.put(x).put(mCellH);    mTexCoords.put(u0).put(vTop);
+        mVertices.put(x1).put(mCellH);   mTexCoords.put(u1).put(vTop);
+        mVertexCount += 4;
+        return x1;
+    }
+
+    /** Measures the glyph set; cheap and GL-free, so layout works before the first draw. */
+    private void ensureAtlas() {
+        if (mAtlasW > 0) {
+            return;
+        }
+        Paint paint = newPaint();
+        Rect bounds = new Rect();
+        paint.getTextBounds(GLYPHS, 0, GLYPHS.length(), bounds);
+        mCellH = bounds.height() + PAD_PX * 2;
+
+        float x = GUTTER_PX;
+        for (int i = 0; i < GLYPHS.length(); i++) {
+            mGlyphX[i] = x;
+            mGlyphW[i] = (float) Math.ceil(paint.measureText(GLYPHS, i, i + 1));
+            x += mGlyphW[i] + GUTTER_PX;
+        }
+        final int blank = GLYPHS.length();
+        mGlyphX[blank] = x;
+        mGlyphW[blank] = PAD_PX;
+        x += PAD_PX + GUTTER_PX;
+
+        mAtlasW = (int) Math.ceil(x);
+        mAtlasH = mCellH;
+    }
+
+    private void ensureGlObjects() {
+        ensureAtlas();
+        if (mProgram == null) {
+            mProgram = new Texture2dProgramNew(Texture2dProgramNew.ProgramType.TEXTURE_2D);
+        }
+        if (mTextureId <= 0) {
+            Bitmap atlas = rasterise();
+            mTextureId = GlUtilNew.createImageTexture(atlas);
+            atlas.recycle();
+            Log.d(TAG, "Glyph atlas uploaded " + mAtlasW + "x" + mAtlasH);
+        }
+    }
+
+    /** One-time rasterisation of the glyph set; the bitmap is only alive for the upload. */
+    private Bitmap rasterise() {
+        Paint paint = newPaint();
+        Rect bounds = new Rect();
+        paint.getTextBounds(GLYPHS, 0, GLYPHS.length(), bounds);
+        final float baseline = PAD_PX - bounds.top;
+
+        Bitmap bitmap = Bitmap.createBitmap(mAtlasW, mAtlasH, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(Color.WHITE);
+        for (int i = 0; i < GLYPHS.length(); i++) {
+            canvas.drawText(GLYPHS, i, i + 1, mGlyphX[i], baseline, paint);
+        }
+        return bitmap;
+    }
+
+    private static Paint newPaint() {
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTextSize(TEXT_SIZE_PX);
+        paint.setColor(Color.BLACK);
+        paint.setTypeface(Typeface.DEFAULT_BOLD);
+        return paint;
+    }
+
+    private static FloatBuffer allocate(int floats) {
+        return ByteBuffer.allocateDirect(floats * SIZEOF_FLOAT)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+}
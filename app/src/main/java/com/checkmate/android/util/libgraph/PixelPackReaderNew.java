@@ -0,0 +1,206 @@
+package com.checkmate.android.util.libgraph;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Asynchronous framebuffer readback.
+ * <p>
+ * On a GLES3 context {@link #start} issues glReadPixels into one of two pixel-pack buffers and
+ * drops a fence behind it, so the call returns without waiting for the GPU. {@link #poll} maps the
+ * oldest buffer once its fence has signalled, typically a frame later. On GLES2 the read falls
+ * back to a synchronous glReadPixels so callers can use the same start/poll sequence.
+ * All methods must be called with the owning EGL context current.
+ */
+public final class PixelPackReaderNew {
+    private static final String TAG = "PixelPackReaderNew";
+
+    private static final int SLOT_COUNT = 2;
+    private static final long WAIT_TIMEOUT_NS = 100_000_000L;
+
+    /** Completed readback: tightly packed RGBA rows, bottom row first (GL order). */
+    public static final class Result {
+        public final ByteBuffer pixels;
+        public final int width;
+        public final int height;
+        public final Object tag;
+
+        Result(ByteBuffer pixels, int width, int height, Object tag) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.tag = tag;
+        }
+    }
+
+    private static final class Slot {
+        int buffer;
+        int capacity;
+        long fence;
+        int width;
+        int height;
+        Object tag;
+        long sequence;
+        boolean busy;
+        Result ready;   // GLES2 path: read synchronously, handed out on the next poll
+    }
+
+    private final boolean mUsePbo;
+    private final Slot[] mSlots = new Slot[SLOT_COUNT];
+    private final int[] mIds = new int[1];
+    private long mSequence;
+
+    /**
+     * @param glVersion client version of the current context, see {@link EglCoreNew#getGlVersion()}
+     */
+    public PixelPackReaderNew(int glVersion) {
+        mUsePbo = glVersion >= 3;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            mSlots[i] = new Slot();
+        }
+        Log.d(TAG, mUsePbo ? "Using pixel-pack buffers" : "GLES2 context, synchronous readback");
+    }
+
+    public boolean isAsync() {
+        return mUsePbo;
+    }
+
+    public boolean hasPending() {
+        for (Slot slot : mSlots) {
+            if (slot.busy) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues a read of the bottom-left {@code width x height} pixels of the current read framebuffer.
+     *
+     * @return false if both buffers are still in flight
+     */
+    public boolean start(int width, int height, Object tag) {
+        Slot slot = null;
+        for (Slot s : mSlots) {
+            if (!s.busy) {
+                slot = s;
+                break;
+            }
+        }
+        if (slot == null || width <= 0 || height <= 0) {
+            return false;
+        }
+        slot.width = width;
+        slot.height = height;
+        slot.tag = tag;
+        slot.sequence = ++mSequence;
+
+        final int size = width * height * 4;
+        if (!mUsePbo) {
+            ByteBuffer pixels = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+            GlUtilNew.checkGlError("glReadPixels");
+            pixels.rewind();
+            slot.ready = new Result(pixels, width, height, tag);
+            slot.busy = true;
+            return true;
+        }
+
+        if (slot.buffer == 0) {
+            GLES20.glGenBuffers(1, mIds, 0);
+            slot.buffer = mIds[0];
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.buffer);
+        if (slot.capacity < size) {
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            slot.capacity = size;
+        }
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        slot.fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        GlUtilNew.checkGlError("PixelPackReaderNew start");
+        slot.busy = true;
+        return true;
+    }
+
+    /**
+     * Returns the oldest readback if it has completed, otherwise null.
+     *
+     * @param wait block (up to 100ms) for the GPU instead of returning null
+     */
+    public Result poll(boolean wait) {
+        Slot slot = null;
+        for (Slot s : mSlots) {
+            if (s.busy && (slot == null || s.sequence < slot.sequence)) {
+                slot = s;
+            }
+        }
+        if (slot == null) {
+            return null;
+        }
+        if (!mUsePbo) {
+            Result result = slot.ready;
+            slot.ready = null;
+            slot.busy = false;
+            return result;
+        }
+
+        int status = GLES30.glClientWaitSync(slot.fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                wait ? WAIT_TIMEOUT_NS : 0);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+            return null;
+        }
+        GLES30.glDeleteSync(slot.fence);
+        slot.fence = 0;
+        slot.busy = false;
+        if (status == GLES30.GL_WAIT_FAILED) {
+            Log.e(TAG, "glClientWaitSync failed, dropping readback");
+            return null;
+        }
+
+        final int size = slot.width * slot.height * 4;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.buffer);
+        Buffer mapped = GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT);
+        Result result = null;
+        if (mapped instanceof ByteBuffer) {
+            ByteBuffer src = ((ByteBuffer) mapped).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer pixels = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+            pixels.put(src);
+            pixels.rewind();
+            result = new Result(pixels, slot.width, slot.height, slot.tag);
+        } else {
+            Log.e(TAG, "glMapBufferRange returned " + mapped);
+        }
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtilNew.checkGlError("PixelPackReaderNew poll");
+        slot.tag = null;
+        return result;
+    }
+
+    /**
+     * Frees the buffers and fences; in-flight reads are discarded.
+     */
+    public void release() {
+        for (Slot slot : mSlots) {
+            if (slot.fence != 0) {
+                GLES30.glDeleteSync(slot.fence);
+                slot.fence = 0;
+            }
+            if (slot.buffer != 0) {
+                mIds[0] = slot.buffer;
+                GLES20.glDeleteBuffers(1, mIds, 0);
+                slot.buffer = 0;
+            }
+            slot.capacity = 0;
+            slot.busy = false;
+            slot.ready = null;
+            slot.tag = null;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * JPEG encoder backed by the TurboJPEG API of the bundled libjpeg-turbo (libjpeg-turbo1500.so).
+ * Pixels are read straight from a direct ByteBuffer and the JPEG is written into another direct
+ * ByteBuffer, so nothing is copied through the Java heap.
+ * Not thread safe; use one instance per thread.
+ */
+public final class TurboJpeg {
+	private static final boolean DEBUG = false;
+	private static final String TAG = TurboJpeg.class.getSimpleName();
+
+	// must match serenegiant_usb_TurboJpeg.cpp
+	public static final int PIXEL_FORMAT_RGBA = 0;
+	public static final int PIXEL_FORMAT_NV21 = 1;
+
+	// TJSAMP_* from turbojpeg.h
+	public static final int SUBSAMPLING_444 = 0;
+	public static final int SUBSAMPLING_422 = 1;
+	public static final int SUBSAMPLING_420 = 2;
+	public static final int SUBSAMPLING_GRAY = 3;
+
+	// TJFLAG_* from turbojpeg.h
+	public static final int FLAG_BOTTOMUP = 2;
+	public static final int FLAG_FASTDCT = 2048;
+	public static final int FLAG_ACCURATEDCT = 4096;
+
+	private static final boolean sLoaded;
+	static {
+		boolean loaded;
+		try {
+			System.loadLibrary("jpeg-turbo1500");
+			System.loadLibrary("usb100");
+			System.loadLibrary("uvc");
+			System.loadLibrary("UVCCamera");
+			loaded = true;
+		} catch (final UnsatisfiedLinkError e) {
+			Log.w(TAG, "native libraries unavailable", e);
+			loaded = false;
+		}
+		sLoaded = loaded;
+	}
+
+	private long mNativePtr;
+	private int mQuality = 90;
+	private int mSubsampling = SUBSAMPLING_420;
+	private int mFlags = FLAG_FASTDCT;
+
+	/**
+	 * @throws IllegalStateException if the native encoder is not available on this build
+	 */
+	public TurboJpeg() {
+		if (!sLoaded) throw new IllegalStateException("libjpeg-turbo not loaded");
+		try {
+			mNativePtr = nativeCreate();
+		} catch (final UnsatisfiedLinkError e) {
+			// prebuilt libUVCCamera.so without the TurboJpeg natives
+			throw new IllegalStateException("TurboJpeg natives not registered", e);
+		}
+		if (mNativePtr == 0) throw new IllegalStateException("tjInitCompress failed");
+	}
+
+	/**
+	 * @return true if a TurboJpeg instance can be created
+	 */
+	public static boolean isAvailable() {
+		if (!sLoaded) return false;
+		try {
+			final TurboJpeg probe = new TurboJpeg();
+			probe.release();
+			return true;
+		} catch (final IllegalStateException e) {
+			if (DEBUG) Log.w(TAG, "isAvailable:", e);
+			return false;
+		}
+	}
+
+	/**
+	 * @param quality 1..100
+	 */
+	public void setQuality(final int quality) {
+		mQuality = Math.max(1, Math.min(100, quality));
+	}
+
+	public int getQuality() {
+		return mQuality;
+	}
+
+	/**
+	 * Chroma subsampling for RGBA input, one of SUBSAMPLING_*. NV21 is always 4:2:0.
+	 */
+	public void setSubsampling(final int subsampling) {
+		if (subsampling < SUBSAMPLING_444 || subsampling > SUBSAMPLING_GRAY) {
+			throw new IllegalArgumentException("subsampling=" + subsampling);
+		}
+		mSubsampling = subsampling;
+	}
+
+	public int getSubsampling() {
+		return mSubsampling;
+	}
+
+	/**
+	 * @param flags bitwise OR of FLAG_*
+	 */
+	public void setFlags(final int flags) {
+		mFlags = flags;
+	}
+
+	/**
+	 * Worst case JPEG size for the given image at any subsampling; size the destination buffer with this.
+	 */
+	public int maxCompressedSize(final int width, final int height) {
+		return nativeBufferSize(width, height, SUBSAMPLING_444);
+	}
+
+	/**
+	 * Compresses one frame.
+	 * @param src direct buffer holding RGBA rows or an NV21 image
+	 * @param width image width in pixels
+	 * @param stride row stride in bytes (RGBA) or luma row stride (NV21), 0 for tightly packed
+	 * @param height image height in pixels
+	 * @param pixelFormat PIXEL_FORMAT_RGBA or PIXEL_FORMAT_NV21
+	 * @param bottomUp true if the first row in src is the bottom of the image (glReadPixels order)
+	 * @param dst direct buffer of at least {@link #maxCompressedSize(int, int)} bytes;
+	 *            on return its position is 0 and its limit is the JPEG size
+	 * @return JPEG size in bytes
+	 */
+	public synchronized int compress(final ByteBuffer src, final int width, final int stride,
+		final int height, final int pixelFormat, final boolean bottomUp, final ByteBuffer dst) {
+
+		if (mNativePtr == 0) throw new IllegalStateException("already released");
+		if (!src.isDirect() || !dst.isDirect()) {
+			throw new IllegalArgumentException("src and dst must be direct buffers");
+		}
+		final int flags = bottomUp ? (mFlags | FLAG_BOTTOMUP) : (mFlags & ~FLAG_BOTTOMUP);
+		final int size = nativeCompress(mNativePtr, src, width, stride, height, pixelFormat,
+			mSubsampling, mQuality, flags, dst);
+		if (size < 0) {
+			throw new IllegalStateException("TurboJPEG compress failed:" + size);
+		}
+		dst.clear();
+		dst.limit(size);
+		return size;
+	}
+
+	public synchronized void release() {
+		if (mNativePtr != 0) {
+			nativeDestroy(mNativePtr);
+			mNativePtr = 0;
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	private native long nativeCreate();
+	private native void nativeDestroy(final long id_encoder);
+	private static native int nativeBufferSize(final int width, final int height, final int subsamp);
+	private native int nativeCompress(final long id_encoder, final ByteBuffer src,
+		final int width, final int stride, final int height, final int pixelFormat,
+		final int subsamp, final int quality, final int flags, final ByteBuffer dst);
+}
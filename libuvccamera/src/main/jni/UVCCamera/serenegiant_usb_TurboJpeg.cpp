@@ -0,0 +1,158 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: serenegiant_usb_TurboJpeg.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * JNI glue for com.serenegiant.usb.TurboJpeg: compresses RGBA or NV21 pixels held in a
+ * direct ByteBuffer into a caller supplied direct ByteBuffer with the TurboJPEG API of the
+ * bundled libjpeg-turbo, without copying through the Java heap.
+*/
+
+#if 1	// デバッグ情報を出さない時
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// LOGV/LOGD/MARKを出力しない時
+		#endif
+	#undef USE_LOGALL			// 指定したLOGxだけを出力
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG
+#endif
+
+#include <jni.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "utilbase.h"
+#include "turbojpeg.h"
+
+// must match com.serenegiant.usb.TurboJpeg
+#define PIXEL_FORMAT_RGBA	0
+#define PIXEL_FORMAT_NV21	1
+
+extern jint registerNativeMethods(JNIEnv* env, const char *class_name, JNINativeMethod *methods, int num_methods);
+
+typedef struct turbojpeg_encoder {
+	tjhandle handle;
+	// NV21 carries interleaved VU; TurboJPEG wants separate U and V planes
+	unsigned char *chroma;
+	size_t chroma_bytes;
+} turbojpeg_encoder_t;
+
+static jlong nativeCreate(JNIEnv *env, jobject thiz) {
+	turbojpeg_encoder_t *encoder = (turbojpeg_encoder_t *)calloc(1, sizeof(turbojpeg_encoder_t));
+	if (UNLIKELY(!encoder)) return 0;
+	encoder->handle = tjInitCompress();
+	if (UNLIKELY(!encoder->handle)) {
+		LOGE("tjInitCompress failed:%s", tjGetErrorStr());
+		free(encoder);
+		return 0;
+	}
+	return reinterpret_cast<jlong>(encoder);
+}
+
+static void nativeDestroy(JNIEnv *env, jobject thiz, jlong id_encoder) {
+	turbojpeg_encoder_t *encoder = reinterpret_cast<turbojpeg_encoder_t *>(id_encoder);
+	if (LIKELY(encoder)) {
+		if (encoder->handle) tjDestroy(encoder->handle);
+		free(encoder->chroma);
+		free(encoder);
+	}
+}
+
+static jint nativeBufferSize(JNIEnv *env, jclass clazz, jint width, jint height, jint subsamp) {
+	const unsigned long size = tjBufSize(width, height, subsamp);
+	return size == (unsigned long)-1 ? -1 : (jint)size;
+}
+
+/**
+ * @return number of JPEG bytes written to dst, or a negative value on error
+ */
+static jint nativeCompress(JNIEnv *env, jobject thiz, jlong id_encoder,
+	jobject src, jint width, jint stride, jint height, jint pixel_format,
+	jint subsamp, jint quality, jint flags, jobject dst) {
+
+	turbojpeg_encoder_t *encoder = reinterpret_cast<turbojpeg_encoder_t *>(id_encoder);
+	if (UNLIKELY(!encoder || !encoder->handle)) return -1;
+
+	unsigned char *src_buf = (unsigned char *)env->GetDirectBufferAddress(src);
+	unsigned char *dst_buf = (unsigned char *)env->GetDirectBufferAddress(dst);
+	if (UNLIKELY(!src_buf || !dst_buf)) {
+		LOGE("nativeCompress:buffers must be direct");
+		return -2;
+	}
+	const jlong src_capacity = env->GetDirectBufferCapacity(src);
+	unsigned long jpeg_size = (unsigned long)env->GetDirectBufferCapacity(dst);
+	int result;
+
+	if (pixel_format == PIXEL_FORMAT_NV21) {
+		if (UNLIKELY((width & 1) || (height & 1))) return -3;
+		const int y_stride = stride > 0 ? stride : width;
+		const int chroma_w = width / 2;
+		const int chroma_h = height / 2;
+		if (UNLIKELY(src_capacity < (jlong)y_stride * height + (jlong)y_stride * chroma_h)) return -3;
+		const size_t chroma_bytes = (size_t)chroma_w * chroma_h * 2;
+		if (encoder->chroma_bytes < chroma_bytes) {
+			unsigned char *chroma = (unsigned char *)realloc(encoder->chroma, chroma_bytes);
+			if (UNLIKELY(!chroma)) return -4;
+			encoder->chroma = chroma;
+			encoder->chroma_bytes = chroma_bytes;
+		}
+		unsigned char *u = encoder->chroma;
+		unsigned char *v = encoder->chroma + chroma_w * chroma_h;
+		const unsigned char *vu = src_buf + y_stride * height;
+		for (int row = 0; row < chroma_h; row++) {
+			const unsigned char *in = vu + row * y_stride;
+			unsigned char *out_u = u + row * chroma_w;
+			unsigned char *out_v = v + row * chroma_w;
+			for (int col = 0; col < chroma_w; col++) {
+				out_v[col] = in[col * 2];
+				out_u[col] = in[col * 2 + 1];
+			}
+		}
+		const unsigned char *planes[3] = { src_buf, u, v };
+		const int strides[3] = { y_stride, chroma_w, chroma_w };
+		result = tjCompressFromYUVPlanes(encoder->handle, planes, width, strides, height,
+			TJSAMP_420, &dst_buf, &jpeg_size, quality, flags | TJFLAG_NOREALLOC);
+	} else {
+		const int pitch = stride > 0 ? stride : width * 4;
+		if (UNLIKELY(src_capacity < (jlong)pitch * height)) return -3;
+		result = tjCompress2(encoder->handle, src_buf, width, pitch, height, TJPF_RGBA,
+			&dst_buf, &jpeg_size, subsamp, quality, flags | TJFLAG_NOREALLOC);
+	}
+	if (UNLIKELY(result != 0)) {
+		LOGE("nativeCompress failed:%s", tjGetErrorStr());
+		return -5;
+	}
+	return (jint)jpeg_size;
+}
+
+static JNINativeMethod methods[] = {
+	{ "nativeCreate",		"()J", (void *) nativeCreate },
+	{ "nativeDestroy",		"(J)V", (void *) nativeDestroy },
+	{ "nativeBufferSize",	"(III)I", (void *) nativeBufferSize },
+	{ "nativeCompress",		"(JLjava/nio/ByteBuffer;IIIIIIILjava/nio/ByteBuffer;)I", (void *) nativeCompress },
+};
+
+int register_turbojpeg(JNIEnv *env) {
+	LOGV("register_turbojpeg:");
+	if (registerNativeMethods(env,
+		"com/serenegiant/usb/TurboJpeg",
+		methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
+		return -1;
+	}
+	return 0;
+}
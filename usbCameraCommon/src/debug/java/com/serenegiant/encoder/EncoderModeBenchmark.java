@@ -0,0 +1,145 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * On-device A/B benchmark of the polling encoder loop (MediaVideoBufferEncoder) against callback mode
+ * (MediaVideoBufferAsyncEncoder). Synthetic NV21 frames are fed at a fixed rate the same way
+ * AbstractUVCCameraHandler feeds UVC frames, and for each mode it reports the time the feeding thread
+ * spends in encode(), the input-to-muxer latency, dropped frames and process CPU time.
+ * Run it off the main thread, e.g. through the app's debug BenchmarkReceiver; the temporary movies
+ * are deleted afterwards.
+ */
+public class EncoderModeBenchmark {
+	private static final String TAG = "EncoderModeBenchmark";
+
+	private static final long STOP_TIMEOUT_MS = 5000;
+
+	/**
+	 * @param width frame width
+	 * @param height frame height
+	 * @param fps feeding rate
+	 * @param durationMs feeding time per mode
+	 * @return one line per mode
+	 */
+	public static String run(final int width, final int height, final int fps, final long durationMs) {
+		final ByteBuffer frame = ByteBuffer.allocateDirect(width * height * 3 / 2);
+		for (int i = 0; i < frame.capacity(); i++) {
+			frame.put((byte)((i * 31) & 0xff));
+		}
+		frame.clear();
+		final StringBuilder report = new StringBuilder();
+		report.append(runMode(false, frame, width, height, fps, durationMs)).append('\n');
+		report.append(runMode(true, frame, width, height, fps, durationMs)).append('\n');
+		Log.i(TAG, report.toString());
+		return report.toString();
+	}
+
+	private static String runMode(final boolean useCallback, final ByteBuffer frame,
+		final int width, final int height, final int fps, final long durationMs) {
+
+		final String mode = useCallback ? "callback" : "poll";
+		final CountDownLatch stopped = new CountDownLatch(1);
+		final MediaEncoder.MediaEncoderListener listener = new MediaEncoder.MediaEncoderListener() {
+			@Override
+			public void onPrepared(final MediaEncoder encoder) {
+			}
+
+			@Override
+			public void onStopped(final MediaEncoder encoder) {
+				stopped.countDown();
+			}
+		};
+		MediaMuxerWrapper muxer = null;
+		try {
+			muxer = new MediaMuxerWrapper(".mp4");
+			final MediaVideoBufferEncoder encoder = useCallback
+				? new MediaVideoBufferAsyncEncoder(muxer, width, height, listener)
+				: new MediaVideoBufferEncoder(muxer, width, height, listener);
+			muxer.prepare();
+			muxer.startRecording();
+
+			final long intervalNs = 1000000000L / Math.max(1, fps);
+			final long cpuStart = Process.getElapsedCpuTime();
+			final long start = SystemClock.elapsedRealtimeNanos();
+			long next = start;
+			long feedNs = 0, feedMaxNs = 0;
+			int frames = 0;
+			while (SystemClock.elapsedRealtimeNanos() - start < durationMs * 1000000L) {
+				final long t0 = SystemClock.elapsedRealtimeNanos();
+				encoder.frameAvailableSoon();
+				encoder.encode(frame);
+				final long spent = SystemClock.elapsedRealtimeNanos() - t0;
+				feedNs += spent;
+				if (spent > feedMaxNs) feedMaxNs = spent;
+				frames++;
+				next += intervalNs;
+				final long sleepNs = next - SystemClock.elapsedRealtimeNanos();
+				if (sleepNs > 0) {
+					SystemClock.sleep(sleepNs / 1000000L);
+				}
+			}
+			muxer.stopRecording();
+			if (!stopped.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				Log.w(TAG, mode + ": encoder did not stop in time");
+			}
+			final long cpuMs = Process.getElapsedCpuTime() - cpuStart;
+			final long wallMs = (SystemClock.elapsedRealtimeNanos() - start) / 1000000L;
+
+			final long[] latency = encoder.getLatencyStats();
+			final long dropped = useCallback
+				? ((MediaVideoBufferAsyncEncoder)encoder).getDroppedFrameCount() : 0;
+			return String.format(Locale.US,
+				"%s %dx%d@%d: frames=%d encode() avg=%.2fms max=%.2fms, latency avg=%.1fms max=%.1fms (n=%d), dropped=%d, cpu=%dms/%dms wall",
+				mode, width, height, fps, frames,
+				frames > 0 ? feedNs / 1e6 / frames : 0.0, feedMaxNs / 1e6,
+				latency[1] / 1e3, latency[2] / 1e3, latency[0],
+				dropped, cpuMs, wallMs);
+		} catch (final IOException e) {
+			Log.e(TAG, mode + ":", e);
+			return mode + ": failed " + e.getMessage();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return mode + ": interrupted";
+		} finally {
+			if (muxer != null) {
+				final String path = muxer.getOutputPath();
+				if ((path != null) && !new File(path).delete()) {
+					Log.w(TAG, "could not delete " + path);
+				}
+			}
+		}
+	}
+}
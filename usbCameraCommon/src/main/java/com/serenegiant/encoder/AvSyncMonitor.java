@@ -0,0 +1,154 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.util.Locale;
+
+/**
+ * Tracks the skew between audio and video presentation timestamps over one recording segment.
+ * Every video timestamp is compared with the latest audio timestamp; the report gives the average,
+ * minimum and maximum skew and the drift, i.e. how far the skew at the end of the segment has moved
+ * from the skew at its start. Timestamps are in microseconds on the System.nanoTime() clock.
+ * Thread safe; audio and video usually arrive on different threads.
+ */
+public class AvSyncMonitor {
+	/**
+	 * number of skew samples averaged for the start and end of the segment
+	 */
+	private static final int WINDOW = 30;
+
+	private final String mName;
+
+	private long mLastAudioUs = -1, mLastVideoUs = -1;
+	private long mCount;
+	private long mSumUs;
+	private long mMinUs = Long.MAX_VALUE, mMaxUs = Long.MIN_VALUE;
+	private long mStartSumUs;
+	private int mStartCount;
+	private final long[] mRecent = new long[WINDOW];
+	private int mRecentCount, mRecentHead;
+	private long mVideoFrames, mAudioBuffers;
+
+	/**
+	 * audio sample clock, see #onAudioSamples
+	 */
+	private long mAudioAnchorUs = -1;
+	private long mAudioFrames;
+
+	public AvSyncMonitor(final String name) {
+		mName = name;
+	}
+
+	/**
+	 * start a new segment
+	 */
+	public synchronized void reset() {
+		mLastAudioUs = mLastVideoUs = -1;
+		mCount = mSumUs = 0;
+		mMinUs = Long.MAX_VALUE;
+		mMaxUs = Long.MIN_VALUE;
+		mStartSumUs = 0;
+		mStartCount = 0;
+		mRecentCount = mRecentHead = 0;
+		mVideoFrames = mAudioBuffers = 0;
+		mAudioAnchorUs = -1;
+		mAudioFrames = 0;
+	}
+
+	public synchronized void onAudioPts(final long ptsUs) {
+		mLastAudioUs = ptsUs;
+		mAudioBuffers++;
+	}
+
+	/**
+	 * For sources that only hand over PCM: derives the audio timestamp from the number of samples
+	 * delivered since the first buffer, so the audio clock is measured rather than the delivery time.
+	 * @param frames sample frames (samples per channel) in this buffer
+	 * @param sampleRate
+	 * @return presentation time of the first sample of this buffer in microseconds
+	 */
+	public synchronized long onAudioSamples(final int frames, final int sampleRate) {
+		if ((frames <= 0) || (sampleRate <= 0)) return mLastAudioUs;
+		if (mAudioAnchorUs < 0) {
+			// the buffer has just been filled, so its first sample was captured one buffer ago
+			mAudioAnchorUs = System.nanoTime() / 1000L - frames * 1000000L / sampleRate;
+		}
+		final long pts = mAudioAnchorUs + mAudioFrames * 1000000L / sampleRate;
+		mAudioFrames += frames;
+		onAudioPts(pts);
+		return pts;
+	}
+
+	public synchronized void onVideoPts(final long ptsUs) {
+		mLastVideoUs = ptsUs;
+		mVideoFrames++;
+		if (mLastAudioUs < 0) return;
+		final long skew = ptsUs - mLastAudioUs;
+		mCount++;
+		mSumUs += skew;
+		if (skew < mMinUs) mMinUs = skew;
+		if (skew > mMaxUs) mMaxUs = skew;
+		if (mStartCount < WINDOW) {
+			mStartSumUs += skew;
+			mStartCount++;
+		}
+		mRecent[mRecentHead] = skew;
+		mRecentHead = (mRecentHead + 1) % WINDOW;
+		if (mRecentCount < WINDOW) mRecentCount++;
+	}
+
+	/**
+	 * @return latest video timestamp minus latest audio timestamp, 0 until both have been seen
+	 */
+	public synchronized long getLastSkewUs() {
+		return (mLastAudioUs >= 0) && (mLastVideoUs >= 0) ? mLastVideoUs - mLastAudioUs : 0;
+	}
+
+	public synchronized long getAverageSkewUs() {
+		return mCount > 0 ? mSumUs / mCount : 0;
+	}
+
+	/**
+	 * @return change of the skew between the start and the end of the segment
+	 */
+	public synchronized long getDriftUs() {
+		if ((mStartCount == 0) || (mRecentCount == 0)) return 0;
+		long recent = 0;
+		for (int i = 0; i < mRecentCount; i++) {
+			recent += mRecent[i];
+		}
+		return recent / mRecentCount - mStartSumUs / mStartCount;
+	}
+
+	public synchronized String getSummary() {
+		if (mCount == 0) {
+			return String.format(Locale.US, "%s: no A/V pairs (video=%d, audio=%d)",
+				mName, mVideoFrames, mAudioBuffers);
+		}
+		return String.format(Locale.US,
+			"%s: A/V skew avg=%.1fms min=%.1fms max=%.1fms drift=%.1fms (video=%d, audio=%d)",
+			mName, getAverageSkewUs() / 1e3, mMinUs / 1e3, mMaxUs / 1e3, getDriftUs() / 1e3,
+			mVideoFrames, mAudioBuffers);
+	}
+}
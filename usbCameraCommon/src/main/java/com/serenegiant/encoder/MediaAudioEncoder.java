@@ -30,6 +30,7 @@ import java.nio.ByteOrder;
 import android.annotation.SuppressLint;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
@@ -50,7 +51,14 @@ public class MediaAudioEncoder extends MediaEncoder implements IAudioEncoder {
 	private AudioThread mAudioThread = null;
 
 	public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
-		super(muxer, listener);
+		this(muxer, listener, false);
+	}
+
+	/**
+	 * @param useCallback true: run MediaCodec in callback mode, see MediaEncoder
+	 */
+	public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final boolean useCallback) {
+		super(muxer, listener, useCallback);
 	}
 
 	@Override
@@ -75,6 +83,7 @@ public class MediaAudioEncoder extends MediaEncoder implements IAudioEncoder {
 //      audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
 		if (DEBUG) Log.i(TAG, "format: " + audioFormat);
 		mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+		onConfigure(mMediaCodec);
 		mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		mMediaCodec.start();
 		if (DEBUG) Log.i(TAG, "prepare finishing");
@@ -148,6 +157,9 @@ public class MediaAudioEncoder extends MediaEncoder implements IAudioEncoder {
 					if (mIsCapturing) {
 						if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
 						int readBytes;
+						final AudioTimestamp timestamp = new AudioTimestamp();
+						long framesRead = 0;
+						long anchorUs = -1;
 						audioRecord.startRecording();
 						try {
 							for ( ; mIsCapturing && !mRequestStop && !mIsEOS ; ) {
@@ -162,7 +174,20 @@ public class MediaAudioEncoder extends MediaEncoder implements IAudioEncoder {
 									// set audio data to encoder
 									buf.position(readBytes);
 									buf.flip();
-									encode(buf, readBytes, getPTSUs());
+									final long ptsUs;
+									if (audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS) {
+										// capture time of the first sample in this buffer
+										ptsUs = (timestamp.nanoTime
+											- (timestamp.framePosition - framesRead) * 1000000000L / SAMPLE_RATE) / 1000L;
+									} else {
+										// no timestamp from the HAL: sample clock anchored at the first buffer
+										if (anchorUs < 0) {
+											anchorUs = getPTSUs() - (readBytes / 2) * 1000000L / SAMPLE_RATE;
+										}
+										ptsUs = anchorUs + framesRead * 1000000L / SAMPLE_RATE;
+									}
+									framesRead += readBytes / 2;	// 16bit mono
+									encode(buf, readBytes, ptsUs);
 									frameAvailableSoon();
 									cnt++;
 								}
@@ -29,8 +29,11 @@ import java.nio.ByteBuffer;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Handler;
 import android.util.Log;
 
+import java.util.ArrayList;
+
 public abstract class MediaEncoder implements Runnable {
 	private static final boolean DEBUG = true;	// TODO set false on release
 	private static final String TAG = "MediaEncoder";
@@ -38,6 +41,11 @@ public abstract class MediaEncoder implements Runnable {
 	protected static final int TIMEOUT_USEC = 10000;	// 10[msec]
 	protected static final int MSG_FRAME_AVAILABLE = 1;
 	protected static final int MSG_STOP_RECORDING = 9;
+	/**
+	 * callback mode: maximum number of input buffers we hold and how long to wait for EOS on stop
+	 */
+	private static final int MAX_INPUT_BUFFERS = 64;
+	private static final long EOS_TIMEOUT_MS = 1000;
 
 	public interface MediaEncoderListener {
 		public void onPrepared(MediaEncoder encoder);
@@ -84,12 +92,52 @@ public abstract class MediaEncoder implements Runnable {
 
     protected final MediaEncoderListener mListener;
 
+    /**
+     * true when MediaCodec runs in asynchronous mode, its MediaCodec.Callback is called on
+     * the callback thread shared by all encoders of the muxer and no encoder thread is started
+     */
+    protected final boolean mUseCallback;
+    private Handler mCallbackHandler;
+    private boolean mReleased;
+    /**
+     * callback mode: input buffer indices handed out by MediaCodec and not used yet, guarded by mInputSync
+     */
+    private final Object mInputSync = new Object();
+    private final int[] mFreeInputs = new int[MAX_INPUT_BUFFERS];
+    private int mFreeHead, mFreeCount;
+    private boolean mPendingEOS;
+    /**
+     * callback mode: output that came before the muxer started, only touched on the callback thread
+     */
+    private final ArrayList<MediaCodec.BufferInfo> mPendingOutputInfo = new ArrayList<MediaCodec.BufferInfo>();
+    private final ArrayList<Integer> mPendingOutputIndex = new ArrayList<Integer>();
+    /**
+     * input-to-output latency of encoded samples, see #getLatencyStats
+     */
+    private final Object mLatencySync = new Object();
+    private long mLatencySumUs, mLatencyMaxUs;
+    private int mLatencyCount;
+
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
+    	this(muxer, listener, false);
+    }
+
+    /**
+     * @param useCallback true: drive MediaCodec with MediaCodec.Callback on the muxer's shared callback thread,
+     * false: poll it from a private encoder thread
+     */
+    protected MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final boolean useCallback) {
     	if (listener == null) throw new NullPointerException("MediaEncoderListener is null");
     	if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
 		mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
 		muxer.addEncoder(this);
 		mListener = listener;
+		mUseCallback = useCallback;
+		if (useCallback) {
+			// no encoder thread, everything runs on the muxer's callback thread
+			mBufferInfo = null;
+			return;
+		}
         synchronized (mSync) {
             // create BufferInfo here for effectiveness(to reduce GC)
             mBufferInfo = new MediaCodec.BufferInfo();
@@ -113,6 +161,10 @@ public abstract class MediaEncoder implements Runnable {
      */
     public boolean frameAvailableSoon() {
 //    	if (DEBUG) Log.v(TAG, "frameAvailableSoon");
+    	if (mUseCallback) {
+    		// MediaCodec calls us back when output is ready, nothing to wake up
+    		return mIsCapturing && !mRequestStop;
+    	}
         synchronized (mSync) {
             if (!mIsCapturing || mRequestStop) {
                 return false;
@@ -203,6 +255,243 @@ public abstract class MediaEncoder implements Runnable {
 	        // We can not know when the encoding and writing finish.
 	        // so we return immediately after request to avoid delay of caller thread
 		}
+		if (mUseCallback) {
+			final Handler handler = mCallbackHandler;
+			if (handler != null) {
+				handler.post(mStopTask);
+				// release even if EOS never comes back
+				handler.postDelayed(mReleaseTask, EOS_TIMEOUT_MS);
+			} else {
+				release();
+			}
+		}
+	}
+
+//********************************************************************************
+// callback mode
+//********************************************************************************
+	/**
+	 * Subclasses call this just before MediaCodec#configure.
+	 * In callback mode this installs the MediaCodec.Callback on the muxer's shared callback thread.
+	 * @param codec
+	 */
+	protected void onConfigure(final MediaCodec codec) {
+		if (!mUseCallback) return;
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		if (muxer == null) throw new IllegalStateException("muxer is already released");
+		synchronized (mInputSync) {
+			mFreeHead = mFreeCount = 0;
+			mPendingEOS = false;
+		}
+		mReleased = false;
+		mCallbackHandler = muxer.getCallbackHandler();
+		codec.setCallback(mCodecCallback, mCallbackHandler);
+	}
+
+	/**
+	 * callback mode: take an input buffer index that MediaCodec has handed out
+	 * @param timeoutMs 0 to return immediately
+	 * @return input buffer index or -1 if none is free
+	 */
+	protected int pollFreeInput(final long timeoutMs) {
+		synchronized (mInputSync) {
+			if ((mFreeCount == 0) && (timeoutMs > 0)) {
+				try {
+					mInputSync.wait(timeoutMs);
+				} catch (final InterruptedException e) {
+					// fall through
+				}
+			}
+			if (mFreeCount == 0) return -1;
+			final int index = mFreeInputs[mFreeHead];
+			mFreeHead = (mFreeHead + 1) % MAX_INPUT_BUFFERS;
+			mFreeCount--;
+			return index;
+		}
+	}
+
+	private void offerFreeInput(final MediaCodec codec, final int index) {
+		synchronized (mInputSync) {
+			if (mPendingEOS) {
+				mPendingEOS = false;
+				queueEOS(codec, index);
+				return;
+			}
+			if (mFreeCount < MAX_INPUT_BUFFERS) {
+				mFreeInputs[(mFreeHead + mFreeCount) % MAX_INPUT_BUFFERS] = index;
+				mFreeCount++;
+			} else {
+				Log.w(TAG, "too many input buffers, ignoring index " + index);
+			}
+			mInputSync.notifyAll();
+		}
+	}
+
+	private void queueEOS(final MediaCodec codec, final int index) {
+		mIsEOS = true;
+		if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+		codec.queueInputBuffer(index, 0, 0, getPTSUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+	}
+
+	/**
+	 * callback mode: send EOS on the next free input buffer
+	 */
+	private void signalEndOfInputStreamAsync() {
+		final MediaCodec codec = mMediaCodec;
+		if (codec == null) return;
+		final int index = pollFreeInput(0);
+		if (index >= 0) {
+			queueEOS(codec, index);
+		} else {
+			synchronized (mInputSync) {
+				mPendingEOS = true;
+			}
+		}
+	}
+
+	/**
+	 * called on the callback thread by the muxer once all tracks are added and it has started
+	 */
+	/*package*/ void flushPendingOutput() {
+		final MediaCodec codec = mMediaCodec;
+		final int n = mPendingOutputIndex.size();
+		for (int i = 0; i < n; i++) {
+			if (codec != null) {
+				writeOutput(codec, mPendingOutputIndex.get(i), mPendingOutputInfo.get(i));
+			}
+		}
+		mPendingOutputIndex.clear();
+		mPendingOutputInfo.clear();
+	}
+
+	private void writeOutput(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+		try {
+			if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+				// already passed to the muxer with the output format
+				if (DEBUG) Log.d(TAG, "writeOutput:BUFFER_FLAG_CODEC_CONFIG");
+				info.size = 0;
+			}
+			if (info.size != 0) {
+				final MediaMuxerWrapper muxer = mWeakMuxer.get();
+				final ByteBuffer encodedData = codec.getOutputBuffer(index);
+				if ((muxer != null) && (encodedData != null)) {
+					recordLatency(info.presentationTimeUs);
+					info.presentationTimeUs = monotonicPTSUs(info.presentationTimeUs);
+					muxer.writeSampleData(mTrackIndex, encodedData, info);
+					prevOutputPTSUs = info.presentationTimeUs;
+				}
+			}
+			codec.releaseOutputBuffer(index, false);
+		} catch (final IllegalStateException e) {
+			Log.w(TAG, "writeOutput:", e);
+		}
+		if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+			final Handler handler = mCallbackHandler;
+			if (handler != null) {
+				// do not stop MediaCodec from inside its own callback
+				handler.removeCallbacks(mReleaseTask);
+				handler.post(mReleaseTask);
+			}
+		}
+	}
+
+	private final Runnable mStopTask = new Runnable() {
+		@Override
+		public void run() {
+			signalEndOfInputStream();
+		}
+	};
+
+	private final Runnable mReleaseTask = new Runnable() {
+		@Override
+		public void run() {
+			if (mReleased) return;
+			mReleased = true;
+			final Handler handler = mCallbackHandler;
+			if (handler != null) {
+				handler.removeCallbacks(this);
+			}
+			release();
+		}
+	};
+
+	private final MediaCodec.Callback mCodecCallback = new MediaCodec.Callback() {
+		@Override
+		public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+			offerFreeInput(codec, index);
+		}
+
+		@Override
+		public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			if (mMuxerStarted && (muxer != null) && !muxer.isStarted()
+				&& ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0)) {
+				// hold it until the other tracks are added, see #flushPendingOutput
+				final MediaCodec.BufferInfo copy = new MediaCodec.BufferInfo();
+				copy.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+				mPendingOutputIndex.add(index);
+				mPendingOutputInfo.add(copy);
+				return;
+			}
+			writeOutput(codec, index, info);
+		}
+
+		@Override
+		public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+			if (DEBUG) Log.v(TAG, "onOutputFormatChanged:" + format);
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			if (muxer == null) {
+				Log.w(TAG, "muxer is unexpectedly null");
+				return;
+			}
+			if (mMuxerStarted) {	// second time request is error
+				throw new RuntimeException("format changed twice");
+			}
+			mTrackIndex = muxer.addTrack(format);
+			mMuxerStarted = true;
+			// never wait here, the other tracks' callbacks run on this thread too
+			if (muxer.start()) {
+				muxer.flushPendingOutput();
+			}
+		}
+
+		@Override
+		public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+			Log.e(TAG, "onError:", e);
+			final Handler handler = mCallbackHandler;
+			if (handler != null) {
+				// do not stop MediaCodec from inside its own callback
+				handler.removeCallbacks(mReleaseTask);
+				handler.post(mReleaseTask);
+			}
+		}
+	};
+
+	/**
+	 * @return {count, average, max} of input-to-output latency in microseconds
+	 */
+	public long[] getLatencyStats() {
+		synchronized (mLatencySync) {
+			return new long[] {
+				mLatencyCount,
+				mLatencyCount > 0 ? mLatencySumUs / mLatencyCount : 0,
+				mLatencyMaxUs,
+			};
+		}
+	}
+
+	/**
+	 * input presentationTimeUs comes from #getPTSUs(System.nanoTime) at queueing time,
+	 * so the difference to now is the time the sample spent in the encoder and its output queue
+	 */
+	private void recordLatency(final long inputPtsUs) {
+		final long latency = System.nanoTime() / 1000L - inputPtsUs;
+		if (latency < 0) return;
+		synchronized (mLatencySync) {
+			mLatencySumUs += latency;
+			mLatencyCount++;
+			if (latency > mLatencyMaxUs) mLatencyMaxUs = latency;
+		}
 	}
 
 //********************************************************************************
@@ -237,11 +526,24 @@ public abstract class MediaEncoder implements Runnable {
     			}
        		}
         }
+        if (mUseCallback) {
+        	synchronized (mInputSync) {
+        		mFreeCount = 0;
+        		mPendingEOS = false;
+        		mInputSync.notifyAll();
+        	}
+        	mPendingOutputIndex.clear();
+        	mPendingOutputInfo.clear();
+        }
         mBufferInfo = null;
     }
 
     protected void signalEndOfInputStream() {
 		if (DEBUG) Log.d(TAG, "sending EOS to encoder");
+		if (mUseCallback) {
+			signalEndOfInputStreamAsync();
+			return;
+		}
         // signalEndOfInputStream is only avairable for video encoding with surface
         // and equivalent sending a empty buffer with BUFFER_FLAG_END_OF_STREAM flag.
 //		mMediaCodec.signalEndOfInputStream();	// API >= 18
@@ -259,11 +561,13 @@ public abstract class MediaEncoder implements Runnable {
 //    	if (DEBUG) Log.v(TAG, "encode:buffer=" + buffer);
     	if (!mIsCapturing) return;
     	int ix = 0, sz;
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+        final ByteBuffer[] inputBuffers = mUseCallback ? null : mMediaCodec.getInputBuffers();
         while (mIsCapturing && ix < length) {
-	        final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+	        final int inputBufferIndex = mUseCallback
+	        	? pollFreeInput(TIMEOUT_USEC / 1000) : mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
 	        if (inputBufferIndex >= 0) {
-	            final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
+	            final ByteBuffer inputBuffer = mUseCallback
+	            	? mMediaCodec.getInputBuffer(inputBufferIndex) : inputBuffers[inputBufferIndex];
 	            inputBuffer.clear();
 	            sz = inputBuffer.remaining();
 	            sz = (ix + sz < length) ? sz : length - ix;
@@ -301,11 +605,13 @@ public abstract class MediaEncoder implements Runnable {
 //    	if (DEBUG) Log.v(TAG, "encode:buffer=" + buffer);
     	if (!mIsCapturing) return;
     	int ix = 0, sz;
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+        final ByteBuffer[] inputBuffers = mUseCallback ? null : mMediaCodec.getInputBuffers();
         while (mIsCapturing && ix < length) {
-	        final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+	        final int inputBufferIndex = mUseCallback
+	        	? pollFreeInput(TIMEOUT_USEC / 1000) : mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
 	        if (inputBufferIndex >= 0) {
-	            final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
+	            final ByteBuffer inputBuffer = mUseCallback
+	            	? mMediaCodec.getInputBuffer(inputBufferIndex) : inputBuffers[inputBufferIndex];
 	            inputBuffer.clear();
 	            sz = inputBuffer.remaining();
 	            sz = (ix + sz < length) ? sz : length - ix;
@@ -412,8 +718,9 @@ LOOP:	while (mIsCapturing) {
                     	// muxer is not ready...this will prrograming failure.
                         throw new RuntimeException("drain:muxer hasn't started");
                     }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                   	mBufferInfo.presentationTimeUs = getPTSUs();
+                    // write encoded data to muxer, keeping the capture timestamp the input was queued with
+                   	recordLatency(mBufferInfo.presentationTimeUs);
+                   	mBufferInfo.presentationTimeUs = monotonicPTSUs(mBufferInfo.presentationTimeUs);
                    	muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
 					prevOutputPTSUs = mBufferInfo.presentationTimeUs;
                 }
@@ -432,6 +739,14 @@ LOOP:	while (mIsCapturing) {
      * previous presentationTimeUs for writing
      */
 	private long prevOutputPTSUs = 0;
+	/**
+	 * output keeps the timestamp its input was captured at, this only makes sure it never goes backwards
+	 * otherwise muxer fail to write
+	 */
+	private long monotonicPTSUs(final long ptsUs) {
+		return ptsUs > prevOutputPTSUs ? ptsUs : prevOutputPTSUs + 1;
+	}
+
 	/**
 	 * get next encoding presentationTimeUs
 	 * @return
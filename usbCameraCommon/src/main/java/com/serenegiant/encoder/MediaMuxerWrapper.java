@@ -34,6 +34,8 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -49,6 +51,16 @@ public class MediaMuxerWrapper {
 	private int mEncoderCount, mStatredCount;
 	private boolean mIsStarted;
 	private MediaEncoder mVideoEncoder, mAudioEncoder;
+	/**
+	 * thread that receives MediaCodec.Callback of all encoders running in callback mode
+	 */
+	private HandlerThread mCallbackThread;
+	private Handler mCallbackHandler;
+	/**
+	 * audio/video timestamp skew of this file
+	 */
+	private final AvSyncMonitor mAvSync;
+	private int mVideoTrackIx = -1, mAudioTrackIx = -1;
 
 	/**
 	 * Constructor
@@ -63,6 +75,7 @@ public class MediaMuxerWrapper {
 			throw new RuntimeException("This app has no permission of writing external storage");
 		}
 		mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		mAvSync = new AvSyncMonitor(new File(mOutputPath).getName());
 		mEncoderCount = mStatredCount = 0;
 		mIsStarted = false;
 	}
@@ -98,6 +111,13 @@ public class MediaMuxerWrapper {
 		return mIsStarted;
 	}
 
+	/**
+	 * @return A/V skew statistics of the samples written so far
+	 */
+	public AvSyncMonitor getAvSyncMonitor() {
+		return mAvSync;
+	}
+
 //**********************************************************************
 //**********************************************************************
 	/**
@@ -156,9 +176,44 @@ public class MediaMuxerWrapper {
 			}
 			mIsStarted = false;
 			if (DEBUG) Log.v(TAG,  "MediaMuxer stopped:");
+			Log.i(TAG, mAvSync.getSummary());
+			if (mCallbackThread != null) {
+				mCallbackThread.quitSafely();
+				mCallbackThread = null;
+				mCallbackHandler = null;
+			}
 		}
 	}
 
+	/**
+	 * get the Handler shared by all encoders in callback mode, the thread is started on first use
+	 * and quits when the muxer stops
+	 */
+	/*package*/ synchronized Handler getCallbackHandler() {
+		if (mCallbackHandler == null) {
+			mCallbackThread = new HandlerThread("MediaMuxerCallback");
+			mCallbackThread.start();
+			mCallbackHandler = new Handler(mCallbackThread.getLooper());
+		}
+		return mCallbackHandler;
+	}
+
+	/**
+	 * write output that encoders in callback mode held back until the muxer started.
+	 * called on the callback thread
+	 */
+	/*package*/ void flushPendingOutput() {
+		final MediaEncoder video, audio;
+		synchronized (this) {
+			video = mVideoEncoder;
+			audio = mAudioEncoder;
+		}
+		if (video != null)
+			video.flushPendingOutput();
+		if (audio != null)
+			audio.flushPendingOutput();
+	}
+
 	/**
 	 * assign encoder to muxer
 	 * @param format
@@ -168,6 +223,14 @@ public class MediaMuxerWrapper {
 		if (mIsStarted)
 			throw new IllegalStateException("muxer already started");
 		final int trackIx = mMediaMuxer.addTrack(format);
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		if (mime != null) {
+			if (mime.startsWith("video/")) {
+				mVideoTrackIx = trackIx;
+			} else if (mime.startsWith("audio/")) {
+				mAudioTrackIx = trackIx;
+			}
+		}
 		if (DEBUG) Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
 		return trackIx;
 	}
@@ -179,8 +242,14 @@ public class MediaMuxerWrapper {
 	 * @param bufferInfo
 	 */
 	/*package*/ synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-		if (mStatredCount > 0)
+		if (mStatredCount > 0) {
 			mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+			if (trackIndex == mVideoTrackIx) {
+				mAvSync.onVideoPts(bufferInfo.presentationTimeUs);
+			} else if (trackIndex == mAudioTrackIx) {
+				mAvSync.onAudioPts(bufferInfo.presentationTimeUs);
+			}
+		}
 	}
 
 //**********************************************************************
@@ -45,7 +45,14 @@ public class MediaSurfaceEncoder extends MediaEncoder implements IVideoEncoder {
     private Surface mSurface;
 
 	public MediaSurfaceEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener) {
-		super(muxer, listener);
+		this(muxer, width, height, listener, false);
+	}
+
+	/**
+	 * @param useCallback true: run MediaCodec in callback mode, see MediaEncoder
+	 */
+	public MediaSurfaceEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener, final boolean useCallback) {
+		super(muxer, listener, useCallback);
 		if (DEBUG) Log.i(TAG, "MediaVideoEncoder: ");
 		mWidth = width;
 		mHeight = height;
@@ -79,6 +86,7 @@ public class MediaSurfaceEncoder extends MediaEncoder implements IVideoEncoder {
 		if (DEBUG) Log.i(TAG, "format: " + format);
 
         mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        onConfigure(mMediaCodec);
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         // get Surface for encoder input
         // this method only can call between #configure and #start
@@ -94,6 +102,18 @@ public class MediaSurfaceEncoder extends MediaEncoder implements IVideoEncoder {
         }
 	}
 
+	@Override
+	protected void signalEndOfInputStream() {
+		if (mUseCallback && (mMediaCodec != null)) {
+			// input comes from the Surface, there is no input buffer to put EOS on
+			if (DEBUG) Log.d(TAG, "signalEndOfInputStream:");
+			mIsEOS = true;
+			mMediaCodec.signalEndOfInputStream();
+			return;
+		}
+		super.signalEndOfInputStream();
+	}
+
 	@Override
     protected void release() {
 		if (DEBUG) Log.i(TAG, "release:");
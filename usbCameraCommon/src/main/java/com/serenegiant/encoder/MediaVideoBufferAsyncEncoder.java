@@ -0,0 +1,161 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * NV21 buffer encoder running MediaCodec in callback mode (see MediaEncoder).
+ * {@link #encode(ByteBuffer)} takes an input buffer index MediaCodec has already handed out and copies
+ * the UVC frame straight into it with a single bulk put (row by row only when the codec pads its input),
+ * then queues it. When no input buffer is free the frame is dropped and counted, so the UVC frame
+ * callback thread never waits for the codec.
+ */
+public class MediaVideoBufferAsyncEncoder extends MediaVideoBufferEncoder {
+	private static final boolean DEBUG = true;	// TODO set false on release
+	private static final String TAG = "MediaVideoBufferAsyncEncoder";
+
+	/**
+	 * input layout reported by the codec, luma row stride and rows before the chroma plane
+	 */
+	private int mStride, mSliceHeight;
+
+	private volatile long mQueuedFrames, mDroppedFrames;
+
+	public MediaVideoBufferAsyncEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener) {
+		super(muxer, width, height, listener, true);
+		if (DEBUG) Log.i(TAG, "MediaVideoBufferAsyncEncoder: ");
+	}
+
+	/**
+	 * @return number of frames queued to the codec
+	 */
+	public long getQueuedFrameCount() {
+		return mQueuedFrames;
+	}
+
+	/**
+	 * @return number of frames dropped because no input buffer was free
+	 */
+	public long getDroppedFrameCount() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * called from the UVC frame callback, never blocks
+	 * @param buffer NV21 frame
+	 * @param captureTimeUs time the frame was captured, System.nanoTime() / 1000
+	 */
+	@Override
+	public void encode(final ByteBuffer buffer, final long captureTimeUs) {
+		if (!mIsCapturing || mRequestStop) return;
+		final MediaCodec codec = mMediaCodec;
+		if (codec == null) return;
+		final int index = pollFreeInput(0);
+		if (index < 0) {
+			mDroppedFrames++;
+			return;
+		}
+		try {
+			final ByteBuffer input = codec.getInputBuffer(index);
+			final int size = input != null ? copyFrame(buffer, input) : -1;
+			if (size > 0) {
+				codec.queueInputBuffer(index, 0, size, captureTimeUs, 0);
+				mQueuedFrames++;
+			} else {
+				// hand the buffer back untouched
+				codec.queueInputBuffer(index, 0, 0, captureTimeUs, 0);
+				mDroppedFrames++;
+			}
+		} catch (final IllegalStateException e) {
+			// codec was stopped while we were copying
+			if (DEBUG) Log.w(TAG, "encode:", e);
+		}
+	}
+
+	@Override
+	protected void prepare() throws IOException {
+		super.prepare();
+		mStride = mWidth;
+		mSliceHeight = mHeight;
+		if (mMediaCodec != null) {
+			final MediaFormat format = mMediaCodec.getInputFormat();
+			if (format.containsKey(MediaFormat.KEY_STRIDE)) {
+				mStride = Math.max(mWidth, format.getInteger(MediaFormat.KEY_STRIDE));
+			}
+			if (format.containsKey(MediaFormat.KEY_SLICE_HEIGHT)) {
+				mSliceHeight = Math.max(mHeight, format.getInteger(MediaFormat.KEY_SLICE_HEIGHT));
+			}
+			if (DEBUG) Log.i(TAG, "input layout:stride=" + mStride + ",sliceHeight=" + mSliceHeight);
+		}
+	}
+
+	@Override
+	protected void release() {
+		super.release();
+		Log.i(TAG, "release:queued=" + mQueuedFrames + ",dropped=" + mDroppedFrames);
+	}
+
+	/**
+	 * @return number of bytes written, -1 if the codec buffer is too small
+	 */
+	private int copyFrame(final ByteBuffer src, final ByteBuffer dst) {
+		final int ySize = mWidth * mHeight;
+		final int frameSize = ySize * 3 / 2;
+		if (src.capacity() < frameSize) return -1;
+		dst.clear();
+		if ((mStride == mWidth) && (mSliceHeight == mHeight)) {
+			if (dst.remaining() < frameSize) return -1;
+			src.clear();
+			src.limit(frameSize);
+			dst.put(src);
+			src.clear();
+			return frameSize;
+		}
+		// codec pads its rows, copy luma and interleaved chroma row by row
+		final int chromaBase = mStride * mSliceHeight;
+		final int chromaRows = mHeight / 2;
+		final int size = chromaBase + (chromaRows - 1) * mStride + mWidth;
+		if (dst.capacity() < size) return -1;
+		for (int y = 0; y < mHeight; y++) {
+			src.limit(y * mWidth + mWidth);
+			src.position(y * mWidth);
+			dst.position(y * mStride);
+			dst.put(src);
+		}
+		for (int y = 0; y < chromaRows; y++) {
+			src.limit(ySize + y * mWidth + mWidth);
+			src.position(ySize + y * mWidth);
+			dst.position(chromaBase + y * mStride);
+			dst.put(src);
+		}
+		src.clear();
+		return size;
+	}
+}
@@ -49,22 +49,37 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
     private static final int FRAME_RATE = 15;
     private static final float BPP = 0.50f;
 
-	private final int mWidth, mHeight;
+	protected final int mWidth, mHeight;
     protected int mColorFormat;
 
 	public MediaVideoBufferEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener) {
-		super(muxer, listener);
+		this(muxer, width, height, listener, false);
+	}
+
+	/**
+	 * @param useCallback true: run MediaCodec in callback mode, see MediaEncoder
+	 */
+	public MediaVideoBufferEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener, final boolean useCallback) {
+		super(muxer, listener, useCallback);
 		if (DEBUG) Log.i(TAG, "MediaVideoEncoder: ");
 		mWidth = width;
 		mHeight = height;
 	}
 
 	public void encode(final ByteBuffer buffer) {
+		encode(buffer, getPTSUs());
+	}
+
+	/**
+	 * @param buffer NV21 frame
+	 * @param captureTimeUs time the frame was captured, System.nanoTime() / 1000
+	 */
+	public void encode(final ByteBuffer buffer, final long captureTimeUs) {
 //    	if (DEBUG) Log.v(TAG, "encode:buffer=" + buffer);
 		synchronized (mSync) {
 			if (!mIsCapturing || mRequestStop) return;
 		}
-		encode(buffer, buffer.capacity(), getPTSUs());
+		encode(buffer, buffer.capacity(), captureTimeUs);
     }
 
 	@Override
@@ -88,6 +103,7 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
 		if (DEBUG) Log.i(TAG, "format: " + format);
 
         mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        onConfigure(mMediaCodec);
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mMediaCodec.start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
@@ -55,7 +55,14 @@ public class MediaVideoEncoder extends MediaEncoder implements IVideoEncoder {
     private Surface mSurface;
 
 	public MediaVideoEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener) {
-		super(muxer, listener);
+		this(muxer, width, height, listener, false);
+	}
+
+	/**
+	 * @param useCallback true: run MediaCodec in callback mode, see MediaEncoder
+	 */
+	public MediaVideoEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener, final boolean useCallback) {
+		super(muxer, listener, useCallback);
 		if (DEBUG) Log.i(TAG, "MediaVideoEncoder: ");
 		mRenderHandler = RenderHandler.createHandler(TAG);
 		mWidth = width;
@@ -103,6 +110,7 @@ public class MediaVideoEncoder extends MediaEncoder implements IVideoEncoder {
 		if (DEBUG) Log.i(TAG, "format: " + format);
 
         mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        onConfigure(mMediaCodec);
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         // get Surface for encoder input
         // this method only can call between #configure and #start
@@ -118,6 +126,18 @@ public class MediaVideoEncoder extends MediaEncoder implements IVideoEncoder {
         }
 	}
 
+	@Override
+	protected void signalEndOfInputStream() {
+		if (mUseCallback && (mMediaCodec != null)) {
+			// input comes from the Surface, there is no input buffer to put EOS on
+			if (DEBUG) Log.d(TAG, "signalEndOfInputStream:");
+			mIsEOS = true;
+			mMediaCodec.signalEndOfInputStream();
+			return;
+		}
+		super.signalEndOfInputStream();
+	}
+
 	public void setEglContext(final EGLBase.IContext sharedContext, final int tex_id) {
 		mRenderHandler.setEglContext(sharedContext, tex_id, mSurface, true);
 	}
@@ -46,9 +46,11 @@ import com.serenegiant.encoder.MediaAudioEncoder;
 import com.serenegiant.encoder.MediaEncoder;
 import com.serenegiant.encoder.MediaMuxerWrapper;
 import com.serenegiant.encoder.MediaSurfaceEncoder;
+import com.serenegiant.encoder.MediaVideoBufferAsyncEncoder;
 import com.serenegiant.encoder.MediaVideoBufferEncoder;
 import com.serenegiant.encoder.MediaVideoEncoder;
 import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.TurboJpeg;
 import com.serenegiant.usb.USBMonitor;
 import com.serenegiant.usb.UVCCamera;
 import com.serenegiant.widget.CameraViewInterface;
@@ -57,12 +59,14 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -357,13 +361,20 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		 */
 		private MediaMuxerWrapper mMuxer;
 		private MediaVideoBufferEncoder mVideoEncoder;
+		/**
+		 * still image encoder and its reusable direct buffers, only touched on this thread
+		 */
+		private static final int STILL_JPEG_QUALITY = 90;
+		private TurboJpeg mStillEncoder;
+		private boolean mStillEncoderFailed;
+		private ByteBuffer mStillPixels, mStillJpeg;
 
 		/**
 		 *
 		 * @param clazz Class extends AbstractUVCCameraHandler
 		 * @param parent parent Activity
 		 * @param cameraView for still capturing
-		 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+		 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder, 3: use MediaVideoBufferAsyncEncoder
 		 * @param width
 		 * @param height
 		 * @param format either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
@@ -520,16 +531,24 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			mSoundPool.play(mSoundId, 0.2f, 0.2f, 0, 0, 1.0f);  // play shutter sound
 			try {
 				final Bitmap bitmap = mWeakCameraView.get().captureStillImage();
+				// PNG only when explicitly asked for, otherwise JPEG through TurboJPEG if it is available
+				final String lowerPath = TextUtils.isEmpty(path) ? "" : path.toLowerCase(Locale.US);
+				final boolean jpeg = lowerPath.endsWith(".jpg") || lowerPath.endsWith(".jpeg")
+					|| (TextUtils.isEmpty(path) && obtainStillEncoder() != null);
 				// get buffered output stream for saving a captured still image as a file on external storage.
 				// the file name is came from current time.
 				// You should use extension name as same as CompressFormat when calling Bitmap#compress.
 				final File outputFile = TextUtils.isEmpty(path)
-					? MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_DCIM, ".png")
+					? MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_DCIM, jpeg ? ".jpg" : ".png")
 					: new File(path);
 				final BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile));
 				try {
 					try {
-						bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+						if (jpeg) {
+							writeJpeg(bitmap, os);
+						} else {
+							bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+						}
 						os.flush();
 						mHandler.sendMessage(mHandler.obtainMessage(MSG_MEDIA_UPDATE, outputFile.getPath()));
 					} catch (final IOException e) {
@@ -542,6 +561,51 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
+		/**
+		 * TurboJPEG encoder for stills, created on first use; null if the native side is missing
+		 */
+		private TurboJpeg obtainStillEncoder() {
+			if ((mStillEncoder == null) && !mStillEncoderFailed) {
+				try {
+					mStillEncoder = new TurboJpeg();
+				} catch (final IllegalStateException e) {
+					Log.w(TAG_THREAD, "TurboJPEG unavailable, falling back to Bitmap#compress", e);
+					mStillEncoderFailed = true;
+				}
+			}
+			return mStillEncoder;
+		}
+
+		private void writeJpeg(final Bitmap bitmap, final OutputStream os) throws IOException {
+			final TurboJpeg encoder = obtainStillEncoder();
+			if ((encoder == null) || (bitmap.getConfig() != Bitmap.Config.ARGB_8888)) {
+				bitmap.compress(Bitmap.CompressFormat.JPEG, STILL_JPEG_QUALITY, os);
+				return;
+			}
+			final int width = bitmap.getWidth();
+			final int height = bitmap.getHeight();
+			final int pixelBytes = bitmap.getByteCount();
+			if ((mStillPixels == null) || (mStillPixels.capacity() < pixelBytes)) {
+				mStillPixels = ByteBuffer.allocateDirect(pixelBytes).order(ByteOrder.nativeOrder());
+			}
+			final int jpegBytes = encoder.maxCompressedSize(width, height);
+			if ((mStillJpeg == null) || (mStillJpeg.capacity() < jpegBytes)) {
+				mStillJpeg = ByteBuffer.allocateDirect(jpegBytes);
+			}
+			mStillPixels.clear();
+			bitmap.copyPixelsToBuffer(mStillPixels);
+			mStillPixels.rewind();
+			encoder.setQuality(STILL_JPEG_QUALITY);
+			final int size = encoder.compress(mStillPixels, width, bitmap.getRowBytes(), height,
+				TurboJpeg.PIXEL_FORMAT_RGBA, false, mStillJpeg);
+			final byte[] chunk = new byte[Math.min(size, 64 * 1024)];
+			while (mStillJpeg.hasRemaining()) {
+				final int n = Math.min(chunk.length, mStillJpeg.remaining());
+				mStillJpeg.get(chunk, 0, n);
+				os.write(chunk, 0, n);
+			}
+		}
+
 		public void handleStartRecording() {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStartRecording:");
 			try {
@@ -555,14 +619,17 @@ abstract class AbstractUVCCameraHandler extends Handler {
 				case 2: // for video capturing using MediaVideoBufferEncoder
 					videoEncoder = new MediaVideoBufferEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
 					break;
+				case 3: // for video capturing using MediaVideoBufferAsyncEncoder, frames never wait for the codec
+					videoEncoder = new MediaVideoBufferAsyncEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
+					break;
 				// case 0:  // for video capturing using MediaSurfaceEncoder
 				default:
 					new MediaSurfaceEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
 					break;
 				}
 				if (true) {
-					// for audio capturing
-					new MediaAudioEncoder(muxer, mMediaEncoderListener);
+					// for audio capturing, shares the callback thread with the video track in callback mode
+					new MediaAudioEncoder(muxer, mMediaEncoderListener, mEncoderType == 3);
 				}
 				muxer.prepare();
 				muxer.startRecording();
@@ -607,13 +674,15 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		private final IFrameCallback mIFrameCallback = new IFrameCallback() {
 			@Override
 			public void onFrame(final ByteBuffer frame) {
+				// IFrameCallback carries no timestamp, the frame has just been completed by the native side
+				final long captureTimeUs = System.nanoTime() / 1000L;
 				final MediaVideoBufferEncoder videoEncoder;
 				synchronized (mSync) {
 					videoEncoder = mVideoEncoder;
 				}
 				if (videoEncoder != null) {
 					videoEncoder.frameAvailableSoon();
-					videoEncoder.encode(frame);
+					videoEncoder.encode(frame, captureTimeUs);
 				}
 			}
 		};
@@ -643,6 +712,11 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			if (DEBUG) Log.v(TAG_THREAD, "handleRelease:mIsRecording=" + mIsRecording);
 			handleClose();
 			mCallbacks.clear();
+			if (mStillEncoder != null) {
+				mStillEncoder.release();
+				mStillEncoder = null;
+			}
+			mStillPixels = mStillJpeg = null;
 			if (!mIsRecording) {
 				mHandler.mReleased = true;
 				Looper.myLooper().quit();
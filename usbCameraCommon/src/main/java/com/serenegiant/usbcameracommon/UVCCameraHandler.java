@@ -65,7 +65,7 @@ public class UVCCameraHandler extends AbstractUVCCameraHandler {
 	 * create UVCCameraHandler, try MJPEG, default bandwidth
 	 * @param parent
 	 * @param cameraView
-	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder, 3: use MediaVideoBufferAsyncEncoder
 	 * @param width
 	 * @param height
 	 * @return
@@ -81,7 +81,7 @@ public class UVCCameraHandler extends AbstractUVCCameraHandler {
 	 * create UVCCameraHandler, default bandwidth
 	 * @param parent
 	 * @param cameraView
-	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder, 3: use MediaVideoBufferAsyncEncoder
 	 * @param width
 	 * @param height
 	 * @param format either UVCCamera.FRAME_FORMAT_YUYV(0) or UVCCamera.FRAME_FORMAT_MJPEG(1)
@@ -98,7 +98,7 @@ public class UVCCameraHandler extends AbstractUVCCameraHandler {
 	 * create UVCCameraHandler
 	 * @param parent
 	 * @param cameraView
-	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder, 3: use MediaVideoBufferAsyncEncoder
 	 * @param width
 	 * @param height
 	 * @param format either UVCCamera.FRAME_FORMAT_YUYV(0) or UVCCamera.FRAME_FORMAT_MJPEG(1)